@@ -0,0 +1,271 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps a sliding window of front pages in memory as the user scrolls through history. Pages that
+ * fall out of the window can be loaded again (usually from the {@link PostCache}) when the user
+ * scrolls back. Posts that show up on two pages, because new posts pushed everything down between
+ * requests, are only kept once.
+ */
+public class FrontPagePager {
+
+    /**
+     * Told about every change to the list of posts, so an adapter can follow along
+     */
+    public interface Listener {
+        void onPostsInserted(int position, List<Post> posts);
+
+        void onPostsRemoved(int position, int count);
+
+        void onPostsReset(List<Post> posts);
+    }
+
+    /**
+     * A page of posts along with where it came from
+     */
+    private static class Page {
+        final int offset;
+        final List<Post> posts;
+
+        Page(int offset, List<Post> posts) {
+            this.offset = offset;
+            this.posts = posts;
+        }
+    }
+
+    private final int maxPages;
+    private final Listener listener;
+    private final LinkedList<Page> window = new LinkedList<>();
+    private final Set<Integer> windowIds = new HashSet<>();
+    // Every page offset we know of, in order. Only ints, so it's fine to keep them all.
+    private final ArrayList<Integer> boundaries = new ArrayList<>();
+    // Offset after the last page we know of, or -1 once we've hit the end
+    private int endOffset = -1;
+    private int generation = 0;
+
+    /**
+     * Constructor
+     * @param maxPages Most pages kept in memory at once
+     * @param listener Told about every change
+     */
+    public FrontPagePager(int maxPages, Listener listener) {
+        this.maxPages = Math.max(2, maxPages);
+        this.listener = listener;
+    }
+
+    /**
+     * Start over from a single page, like on a refresh
+     * @param offset Offset of the page
+     * @param posts Posts in the page
+     */
+    public void Reset(int offset, List<Post> posts) {
+        generation++;
+        window.clear();
+        windowIds.clear();
+        boundaries.clear();
+        boundaries.add(offset);
+        endOffset = posts.isEmpty() ? -1 : offset + posts.size();
+
+        List<Post> unique = Dedupe(posts);
+        window.add(new Page(offset, unique));
+        listener.onPostsReset(Posts());
+    }
+
+    /**
+     * Add the page after the last one in the window
+     * @param offset Offset the page was loaded from, should be {@link #NextOffset()}
+     * @param posts Posts in the page
+     * @return false if the page doesn't belong at the end anymore and was ignored
+     */
+    public boolean AppendPage(int offset, List<Post> posts) {
+        if (offset != NextOffset()) {
+            return false;
+        }
+        boolean newest = boundaries.get(boundaries.size() - 1) <= offset;
+        if (newest) {
+            if (posts.isEmpty()) {
+                // Ran out of history
+                endOffset = -1;
+                return true;
+            }
+            if (boundaries.get(boundaries.size() - 1) < offset) {
+                boundaries.add(offset);
+            }
+            endOffset = offset + posts.size();
+        }
+
+        List<Post> unique = Dedupe(posts);
+        int position = Count();
+        window.addLast(new Page(offset, unique));
+        if (!unique.isEmpty()) {
+            listener.onPostsInserted(position, unique);
+        }
+
+        while (window.size() > maxPages) {
+            Page dropped = window.removeFirst();
+            Forget(dropped);
+            listener.onPostsRemoved(0, dropped.posts.size());
+        }
+        return true;
+    }
+
+    /**
+     * Add the page before the first one in the window, after scrolling back up
+     * @param offset Offset the page was loaded from, should be {@link #PreviousOffset()}
+     * @param posts Posts in the page
+     * @return false if the page doesn't belong at the start anymore and was ignored
+     */
+    public boolean PrependPage(int offset, List<Post> posts) {
+        if (offset != PreviousOffset()) {
+            return false;
+        }
+        List<Post> unique = Dedupe(posts);
+        window.addFirst(new Page(offset, unique));
+        if (!unique.isEmpty()) {
+            listener.onPostsInserted(0, unique);
+        }
+
+        while (window.size() > maxPages) {
+            Page dropped = window.removeLast();
+            Forget(dropped);
+            listener.onPostsRemoved(Count(), dropped.posts.size());
+        }
+        return true;
+    }
+
+    /**
+     * Put posts from a delta refresh at the top. Everything on the server moved down by that
+     * many posts, so the offsets of the pages below move with it.
+     * @param posts Posts newer than anything on the front page, newest first
+     * @return The new first page, for caching, or null if the window doesn't start at the top
+     * and the front page needs a full reload instead
+     */
+    public List<Post> MergeNewest(List<Post> posts) {
+        if (window.isEmpty() || window.getFirst().offset != 0 || boundaries.get(0) != 0) {
+            return null;
+        }
+        Page first = window.removeFirst();
+        if (posts.isEmpty()) {
+            window.addFirst(first);
+            return first.posts;
+        }
+        List<Post> unique = Dedupe(posts);
+        List<Post> merged = new ArrayList<>(unique.size() + first.posts.size());
+        merged.addAll(unique);
+        merged.addAll(first.posts);
+        window.addFirst(new Page(0, merged));
+
+        for (int i = 1; i < boundaries.size(); i++) {
+            boundaries.set(i, boundaries.get(i) + posts.size());
+        }
+        for (int i = 1; i < window.size(); i++) {
+            Page page = window.get(i);
+            window.set(i, new Page(page.offset + posts.size(), page.posts));
+        }
+        if (endOffset >= 0) {
+            endOffset += posts.size();
+        }
+        if (!unique.isEmpty()) {
+            listener.onPostsInserted(0, unique);
+        }
+        return merged;
+    }
+
+    /**
+     * @return Offset of the page to load after the window, or -1 if there's nothing more
+     */
+    public int NextOffset() {
+        if (window.isEmpty()) {
+            return -1;
+        }
+        int index = boundaries.indexOf(window.getLast().offset);
+        if (index + 1 < boundaries.size()) {
+            return boundaries.get(index + 1);
+        }
+        return endOffset;
+    }
+
+    /**
+     * @return Offset of the page to load before the window, or -1 if the window starts at the top
+     */
+    public int PreviousOffset() {
+        if (window.isEmpty()) {
+            return -1;
+        }
+        int index = boundaries.indexOf(window.getFirst().offset);
+        return index > 0 ? boundaries.get(index - 1) : -1;
+    }
+
+    /**
+     * @return Goes up on every {@link #Reset}, so late answers to old requests can be spotted
+     */
+    public int Generation() {
+        return generation;
+    }
+
+    /**
+     * @return Every post in the window, in order
+     */
+    public List<Post> Posts() {
+        List<Post> posts = new ArrayList<>(Count());
+        for (Page page : window) {
+            posts.addAll(page.posts);
+        }
+        return posts;
+    }
+
+    /**
+     * @return Amount of posts in the window
+     */
+    public int Count() {
+        int count = 0;
+        for (Page page : window) {
+            count += page.posts.size();
+        }
+        return count;
+    }
+
+    /**
+     * @param id A {@link Post#Id}
+     * @return true if the post is somewhere in the window
+     */
+    public boolean Contains(int id) {
+        return windowIds.contains(id);
+    }
+
+    /**
+     * @return Amount of pages in the window
+     */
+    int PageCount() {
+        return window.size();
+    }
+
+    /**
+     * Drop posts already in the window, and remember the new ones
+     */
+    private List<Post> Dedupe(List<Post> posts) {
+        List<Post> unique = new ArrayList<>(posts.size());
+        for (Post post : posts) {
+            if (windowIds.add(post.Id)) {
+                unique.add(post);
+            }
+        }
+        return unique;
+    }
+
+    /**
+     * Forget the ids of a page leaving the window
+     */
+    private void Forget(Page page) {
+        for (Post post : page.posts) {
+            windowIds.remove(post.Id);
+        }
+    }
+}
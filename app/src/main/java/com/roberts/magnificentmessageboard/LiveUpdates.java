@@ -0,0 +1,365 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a view up to date without anyone tapping refresh. Long polls the server for posts newer
+ * than the view's {@link NetworkUtils.SyncState}, and asks again as soon as it answers, so new
+ * posts show up about as soon as they're made. Dropped connections are picked up again from the
+ * newest post seen, after a backoff if the server keeps failing.
+ *
+ * Posts coming in quick succession are handed over in batches, at most one every
+ * {@link Timing#batchMs}. In the background it stops holding a connection open and checks now
+ * and then instead, less often the longer nothing happens. The same goes for servers that
+ * answer straight away instead of holding on.
+ */
+public class LiveUpdates {
+    /**
+     * Asks the server for whatever's new, see {@link NetworkUtils#WaitForFrontPage}
+     */
+    public interface Channel {
+        NetworkUtils.Delta Poll(NetworkUtils.SyncState state, int waitSeconds) throws IOException;
+    }
+
+    /**
+     * Gets new posts on the main thread, in the order the server sent them
+     */
+    public interface Listener {
+        void onPosts(List<Post> posts);
+    }
+
+    /**
+     * How often to ask and how long to wait, in the foreground and background
+     */
+    static final class Timing {
+        static final Timing DEFAULT = new Timing(NetworkUtils.LONG_POLL_SECONDS, 500, 10000, 60000, 1000, 60000,
+                60000, 15 * 60000);
+
+        // How long the server is asked to hold a poll open
+        final int waitSeconds;
+        final long batchMs;
+        // Polls that come back with nothing start at least this far apart, in case the server
+        // answers straight away instead of waiting
+        final long minIntervalMs;
+        // If it keeps doing that, the gap doubles up to this, about as often as a refresh
+        final long maxIdleMs;
+        final long baseRetryMs;
+        final long maxRetryMs;
+        // In the background, checks start this far apart and double while nothing's new
+        final long backgroundMs;
+        final long maxBackgroundMs;
+
+        Timing(int waitSeconds, long batchMs, long minIntervalMs, long maxIdleMs, long baseRetryMs, long maxRetryMs,
+               long backgroundMs, long maxBackgroundMs) {
+            this.waitSeconds = waitSeconds;
+            this.batchMs = batchMs;
+            this.minIntervalMs = minIntervalMs;
+            this.maxIdleMs = maxIdleMs;
+            this.baseRetryMs = baseRetryMs;
+            this.maxRetryMs = maxRetryMs;
+            this.backgroundMs = backgroundMs;
+            this.maxBackgroundMs = maxBackgroundMs;
+        }
+    }
+
+    // Every view shares these. Timers and batches are quick, so one thread does them all. Polls
+    // sit waiting on the server, so each gets a thread from a pool that lets them go once idle.
+    private static ScheduledExecutorService sharedScheduler = null;
+    private static ExecutorService sharedPollers = null;
+
+    private final Channel channel;
+    private final NetworkUtils.SyncState state;
+    private final Listener listener;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService pollers;
+    private final Executor callbackExecutor;
+    private final Timing timing;
+    private final Random jitter = new Random();
+
+    // Everything below is guarded by this
+    private boolean running = false;
+    private boolean foreground = true;
+    private boolean polling = false;
+    private ScheduledFuture<?> next = null;
+    // The poll going on, and the thread it's on, so Stop() can cut it off
+    private Future<?> poll = null;
+    private Thread pollThread = null;
+    private int failures = 0;
+    private long backgroundDelayMs;
+    // Gap after a poll the server didn't hold on to
+    private long idleDelayMs;
+    // Posts waiting to be handed over
+    private List<Post> batch = new ArrayList<>();
+    private boolean flushScheduled = false;
+    private long lastFlush = 0;
+    // Read on the main thread, so late batches for a stopped view can be dropped
+    private volatile boolean stopped = false;
+
+    /**
+     * Constructor
+     * @param channel Asks the server, like {@link NetworkUtils#WaitForFrontPage}
+     * @param state What the view has seen. Shared with its refreshes, so live posts and
+     *              refreshed ones don't get fetched twice.
+     * @param listener Gets new posts on the main thread
+     */
+    public LiveUpdates(Channel channel, NetworkUtils.SyncState state, Listener listener) {
+        this(channel, state, listener, Scheduler(), Pollers(), new Handler(Looper.getMainLooper())::post, Timing.DEFAULT);
+    }
+
+    /**
+     * @return The scheduler every view's timers and batches share
+     */
+    static synchronized ScheduledExecutorService Scheduler() {
+        if (sharedScheduler == null) {
+            ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "live-updates");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // Stopped views shouldn't leave their timers behind
+            scheduler.setRemoveOnCancelPolicy(true);
+            sharedScheduler = scheduler;
+        }
+        return sharedScheduler;
+    }
+
+    /**
+     * @return The pool every view's polls run on, a thread each
+     */
+    static synchronized ExecutorService Pollers() {
+        if (sharedPollers == null) {
+            sharedPollers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "live-poll");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+        return sharedPollers;
+    }
+
+    /**
+     * Constructor, use the other one outside of tests
+     * @param scheduler Timers and batches run here
+     * @param pollers Polls run here, each needs a thread of its own while it waits on the server
+     * @param callbackExecutor Where the listener gets called, normally the main thread
+     * @param timing How often to ask
+     */
+    LiveUpdates(Channel channel, NetworkUtils.SyncState state, Listener listener, ScheduledExecutorService scheduler,
+                ExecutorService pollers, Executor callbackExecutor, Timing timing) {
+        this.channel = channel;
+        this.state = state;
+        this.listener = listener;
+        this.scheduler = scheduler;
+        this.pollers = pollers;
+        this.callbackExecutor = callbackExecutor;
+        this.timing = timing;
+        this.backgroundDelayMs = timing.backgroundMs;
+        this.idleDelayMs = timing.minIntervalMs;
+    }
+
+    /**
+     * Start listening for new posts. Does nothing if already started.
+     */
+    public synchronized void Start() {
+        if (running || stopped) {
+            return;
+        }
+        running = true;
+        Schedule(0);
+    }
+
+    /**
+     * Stop for good, like when the view goes away. A poll that's waiting on the server is cut
+     * off, so its thread and connection are let go straight away.
+     */
+    public synchronized void Stop() {
+        running = false;
+        stopped = true;
+        if (next != null) {
+            next.cancel(false);
+            next = null;
+        }
+        if (poll != null) {
+            poll.cancel(true);
+            if (pollThread != null) {
+                HttpTransport.Get().Cancel(pollThread);
+            }
+            poll = null;
+        }
+        batch = new ArrayList<>();
+    }
+
+    /**
+     * Tell it whether the app is on screen. Coming back asks the server straight away.
+     * @param foreground true when the view is showing
+     */
+    public synchronized void SetForeground(boolean foreground) {
+        if (this.foreground == foreground) {
+            return;
+        }
+        this.foreground = foreground;
+        backgroundDelayMs = timing.backgroundMs;
+        if (foreground && running && !polling) {
+            // Whatever it was waiting out was meant for the background
+            if (next != null) {
+                next.cancel(false);
+            }
+            Schedule(0);
+        }
+    }
+
+    /**
+     * @return true if it's listening
+     */
+    public synchronized boolean IsRunning() {
+        return running;
+    }
+
+    /**
+     * Have the next poll go out after a while. Needs the lock.
+     */
+    private void Schedule(long delayMs) {
+        next = scheduler.schedule(this::StartPoll, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Hand the poll to a thread that can wait on the server
+     */
+    private synchronized void StartPoll() {
+        if (!running) {
+            return;
+        }
+        next = null;
+        polling = true;
+        poll = pollers.submit(this::Poll);
+    }
+
+    /**
+     * Ask the server once, then have the next poll go out whenever suits
+     */
+    private void Poll() {
+        int waitSeconds;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            pollThread = Thread.currentThread();
+            waitSeconds = foreground ? timing.waitSeconds : 0;
+        }
+        long start = System.currentTimeMillis();
+        NetworkUtils.Delta delta = null;
+        boolean failed = false;
+        try {
+            // Picks up from the newest post in the state, so nothing is missed across reconnects
+            delta = channel.Poll(state, waitSeconds);
+        } catch (IOException | RuntimeException e) {
+            failed = true;
+        }
+        boolean got = delta != null && !delta.notModified && !delta.posts.isEmpty();
+        if (got) {
+            Queue(delta.posts);
+        }
+
+        synchronized (this) {
+            polling = false;
+            poll = null;
+            pollThread = null;
+            if (!running) {
+                return;
+            }
+            long delay;
+            if (failed) {
+                failures++;
+                delay = Backoff(failures);
+            } else {
+                failures = 0;
+                long now = System.currentTimeMillis();
+                if (got) {
+                    // Straight back, it might be a burst
+                    delay = 0;
+                    idleDelayMs = timing.minIntervalMs;
+                } else if (waitSeconds > 0 && now - start < waitSeconds * 1000L / 2) {
+                    // Nothing new, and it didn't wait to say so. The server doesn't long poll, so
+                    // this is just refreshing and gets paced like it.
+                    delay = Math.max(0, start + idleDelayMs - now);
+                    idleDelayMs = Math.min(idleDelayMs * 2, timing.maxIdleMs);
+                } else {
+                    delay = Math.max(0, start + timing.minIntervalMs - now);
+                }
+            }
+            if (!foreground) {
+                if (got) {
+                    backgroundDelayMs = timing.backgroundMs;
+                }
+                delay = Math.max(delay, backgroundDelayMs);
+                if (!got) {
+                    backgroundDelayMs = Math.min(backgroundDelayMs * 2, timing.maxBackgroundMs);
+                }
+            }
+            Schedule(delay);
+        }
+    }
+
+    /**
+     * Exponential backoff with some jitter, see {@link OutboundQueue#Backoff(int)}
+     * @param failures Polls that have failed in a row
+     * @return How long to wait before the next one
+     */
+    long Backoff(int failures) {
+        long delay = Math.min(timing.baseRetryMs << Math.min(failures - 1, 20), timing.maxRetryMs);
+        return delay / 2 + (long) (jitter.nextDouble() * (delay / 2));
+    }
+
+    /**
+     * Add posts to the batch, and see that it's handed over once it's been long enough since
+     * the last one
+     */
+    private synchronized void Queue(List<Post> posts) {
+        if (!running) {
+            return;
+        }
+        batch.addAll(posts);
+        if (flushScheduled) {
+            return;
+        }
+        flushScheduled = true;
+        long delay = Math.max(0, lastFlush + timing.batchMs - System.currentTimeMillis());
+        scheduler.schedule(this::Flush, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void Flush() {
+        List<Post> posts;
+        synchronized (this) {
+            flushScheduled = false;
+            if (!running || batch.isEmpty()) {
+                return;
+            }
+            posts = batch;
+            batch = new ArrayList<>();
+            lastFlush = System.currentTimeMillis();
+        }
+        callbackExecutor.execute(() -> {
+            if (!stopped) {
+                listener.onPosts(posts);
+            }
+        });
+    }
+}
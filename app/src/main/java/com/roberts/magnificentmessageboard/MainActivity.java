@@ -7,11 +7,9 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Bundle;
@@ -24,16 +22,58 @@ import android.widget.EditText;
 import android.widget.Toast;
 
 import java.util.ArrayList;
-import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Collections;
+import java.util.List;
 
-public class MainActivity extends AppCompatActivity implements FrontPagePostAdapter.ListItemClickListener {
-    private FrontPagePostAdapter frontPageAdapter;
+public class MainActivity extends AppCompatActivity implements PostListAdapter.Listener {
+    private PostListAdapter frontPageAdapter;
     private RecyclerView frontPage;
+    private FrontPagePager pager;
+    // What the adapter shows. Only ever handed to it as a snapshot on the main thread.
+    private PostListHolder frontPagePosts;
+    private boolean loadingNext = false;
+    private boolean loadingPrevious = false;
+    // Times startup, up to the first posts showing
+    private StartupTrace startup;
+    private boolean firstPostShown = false;
+    private OutboundQueue outbound;
+    // The top of the front page, kept fresh by the repository
+    private PostRepository.Subscription frontPageFeed;
+    // Our posts that aren't on the front page yet, shown on top
+    private List<Post> local = Collections.emptyList();
+    private PostRepository.Failure failureShown = null;
+    private final OutboundQueue.Listener outboundListener = new OutboundQueue.Listener() {
+        @Override
+        public void onQueueChanged() {
+            // The repository tells us
+        }
+
+        @Override
+        public void onSent(long localId, Post post) {
+        }
+
+        @Override
+        public void onRejected(Post post, String error) {
+            // This screen is under every other one, so it says why for replies too
+            Toast.makeText(MainActivity.this, getString(R.string.error_rejected, error), Toast.LENGTH_SHORT).show();
+            if (post.Reply == -1) {
+                // Don't lose what they wrote
+                NewPostDialog(post.Content);
+            }
+        }
+    };
 
     public static final String VIEWPOSTID = "com.roberts.magnificentmessageboard.viewpost";
 
+    // Start loading the next page when this many posts from the end of the list
+    private static final int PREFETCH_DISTANCE = 15;
+    // Pages kept in memory while scrolling, the rest get reloaded from cache
+    private static final int MAX_PAGES = 5;
+    // Prefetch replies for this many posts either side of the ones on screen
+    private static final int PREFETCH_AROUND = 5;
+    // Thread rows to have ready before one gets opened
+    private static final int PREINFLATE_REPLIES = 8;
+
     // used for static toasts
     private static Context context;
 
@@ -41,32 +81,110 @@ public class MainActivity extends AppCompatActivity implements FrontPagePostAdap
      * Create the main activity
      * @param savedInstanceState {@link Bundle} of saved state
      */
-    @SuppressLint("ApplySharedPref")
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        startup = StartupTrace.Begin();
+        startup.Section("inflate");
         setContentView(R.layout.activity_main);
 
-        Globals.SetPreferences(getPreferences(Context.MODE_PRIVATE));
-        // Generate tripcode if non-existent
-        SharedPreferences prefs = Globals.GetPreferences();
-        if (!prefs.contains(Globals.PREF_TRIPCODE)) {
-            String trip = UUID.randomUUID().toString();
-            prefs.edit().putString(Globals.PREF_TRIPCODE, trip).commit();
-        }
-
+        startup.Section("list");
         frontPage = findViewById(R.id.main_view);
 
         // Initializing RecyclerView stuff
-        frontPageAdapter = new FrontPagePostAdapter(this, new ArrayList<>());
+        frontPageAdapter = new PostListAdapter(this, PostListAdapter.Screen.FRONT_PAGE, this);
+        frontPageAdapter.AttachTo(frontPage);
+
+        frontPagePosts = PostListHolder.OnMainThread();
+        frontPagePosts.SetListener(snapshot -> {
+            frontPageAdapter.SubmitPosts(snapshot.posts);
+            ShowLoadMore();
+            if (!firstPostShown && !snapshot.posts.isEmpty()) {
+                firstPostShown = true;
+                startup.FirstPost(this);
+                // The front page is up, so get rows ready for the first thread opened
+                PostListAdapter.Preinflate(this, PostListAdapter.TYPE_OP, 1);
+                PostListAdapter.Preinflate(this, PostListAdapter.TYPE_REPLY, PREINFLATE_REPLIES);
+            }
+            // Give the list a chance to lay out first
+            frontPage.post(this::PrefetchVisible);
+        });
+
+        // Keep the adapter in step with the pages in memory
+        pager = new FrontPagePager(MAX_PAGES, new FrontPagePager.Listener() {
+            @Override
+            public void onPostsInserted(int position, List<Post> posts) {
+                ShowFrontPage();
+            }
 
-        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
-        frontPage.setLayoutManager(layoutManager);
-        frontPage.setAdapter(frontPageAdapter);
+            @Override
+            public void onPostsRemoved(int position, int count) {
+                ShowFrontPage();
+            }
 
+            @Override
+            public void onPostsReset(List<Post> posts) {
+                ShowFrontPage();
+            }
+        });
+        frontPage.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                MaybeLoadMore();
+            }
+
+            @Override
+            public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+                // Only once the list settles, so flinging past posts doesn't fetch their replies
+                if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                    PrefetchVisible();
+                }
+            }
+        });
+
+        startup.Section("feed");
         MainActivity.context = getApplicationContext();
-        LoadFrontPage(0);
+        // Posts waiting to go out, maybe from before the app was last killed. Also starts the
+        // settings loading, in the background.
+        outbound = OutboundQueue.Get(this);
+        outbound.AddListener(outboundListener);
+        frontPageFeed = PostRepository.Get(this).Watch(PostRepository.FRONT_PAGE, this::ShowFeed);
+        startup.EndSection();
+
+        // Nothing on screen needs this, so it waits for the first frame
+        PostCache cache = PostCache.Get(this);
+        startup.Defer(() -> NetworkScheduler.Get().Submit(this, NetworkScheduler.Lane.DISK, "search:cache",
+                () -> {
+                    // So the first search doesn't have to wait on the cache
+                    SearchIndex.Get().LoadCache(cache);
+                    return null;
+                }, null));
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        frontPageFeed.SetForeground(true);
+    }
 
+    /**
+     * Nobody's watching, so stop holding a connection open for new posts
+     */
+    @Override
+    protected void onStop() {
+        frontPageFeed.SetForeground(false);
+        super.onStop();
+    }
+
+    /**
+     * Drop any requests still waiting to deliver to this activity
+     */
+    @Override
+    protected void onDestroy() {
+        NetworkScheduler.Get().CancelAll(this);
+        outbound.RemoveListener(outboundListener);
+        frontPageFeed.Close();
+        super.onDestroy();
     }
 
     /**
@@ -86,50 +204,199 @@ public class MainActivity extends AppCompatActivity implements FrontPagePostAdap
     }
 
     /**
-     * Load the front page
-     * @param offset Unused.
+     * Check if we're connected to the internet
+     * @return true if there is an active connection
      */
-    public void LoadFrontPage(int offset) {
-        // Ensure we're connected to the internet
-        ConnectivityManager connMgr = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+    private static boolean isConnected(Context context) {
+        ConnectivityManager connMgr = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
         NetworkInfo networkInfo = null;
         if (connMgr != null) {
             networkInfo = connMgr.getActiveNetworkInfo();
         }
-        if (networkInfo != null && networkInfo.isConnected()) {
-            // Actually get the posts if we are
-            getPosts(offset);
+        return networkInfo != null && networkInfo.isConnected();
+    }
+
+    /**
+     * Show the pages in memory, with our own posts that aren't in them yet on top
+     */
+    private void ShowFrontPage() {
+        List<Post> posts = new ArrayList<>(local);
+        posts.addAll(pager.Posts());
+        frontPagePosts.Publish(posts);
+    }
+
+    /**
+     * Show the top of the front page as the repository has it. A new list starts the pages over,
+     * new posts go on top if the top is what's in memory. Otherwise they're left for the next
+     * refresh, which starts over from the top anyway.
+     * @param result The front page now
+     */
+    private void ShowFeed(PostRepository.Result result) {
+        local = result.local;
+        if (result.replaced) {
+            pager.Reset(0, result.posts);
         } else {
-            makeToast(R.string.not_connected);
+            // Newest first, so the new ones are whatever comes before the first one we have
+            List<Post> newer = new ArrayList<>();
+            for (Post post : result.posts) {
+                if (pager.Contains(post.Id)) {
+                    break;
+                }
+                newer.add(post);
+            }
+            if (newer.isEmpty() || pager.MergeNewest(newer) == null) {
+                ShowFrontPage();
+            }
+        }
+        if (result.failure != null && result.failure != failureShown) {
+            failureShown = result.failure;
+            ShowFailure(this, result.failure);
         }
     }
 
+    /**
+     * Tell the user a fetch failed, and roughly why
+     * @param context Context to toast from
+     * @param failure What went wrong
+     */
+    static void ShowFailure(Context context, PostRepository.Failure failure) {
+        switch (failure.reason) {
+            case REJECTED:
+                // If something is wrong in the request
+                Toast.makeText(context, context.getString(R.string.error_rejected, failure.message), Toast.LENGTH_SHORT).show();
+                break;
+            case UNAVAILABLE:
+                // Whatever was on screen, probably from the cache, stays up
+                Toast.makeText(context, R.string.error_unavailable, Toast.LENGTH_SHORT).show();
+                break;
+            default:
+                Toast.makeText(context, isConnected(context) ? R.string.error_network : R.string.not_connected,
+                        Toast.LENGTH_SHORT).show();
+        }
+    }
 
     /**
-     * Actually fetch the posts
-     * @param offset Unused
+     * Start loading the next or previous page if the user is getting close to either end of the
+     * list, so they never have to wait on the network there.
      */
-    public void getPosts(int offset) {
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        // AsyncTask is deprecated
-        executor.execute(() -> {
-            ArrayList<Post> posts =  NetworkUtils.GetFrontPage(offset);
+    private void MaybeLoadMore() {
+        LinearLayoutManager layoutManager = (LinearLayoutManager) frontPage.getLayoutManager();
+        int count = frontPageAdapter.getItemCount();
+        if (layoutManager == null || count == 0) {
+            return;
+        }
+        int next = pager.NextOffset();
+        if (!loadingNext && next >= 0 && layoutManager.findLastVisibleItemPosition() >= count - 1 - PREFETCH_DISTANCE) {
+            LoadPage(next, true);
+        }
+        int previous = pager.PreviousOffset();
+        if (!loadingPrevious && previous >= 0 && layoutManager.findFirstVisibleItemPosition() <= PREFETCH_DISTANCE) {
+            LoadPage(previous, false);
+        }
+    }
 
-            if (posts != null) {
-                for (Post post: posts) {
-                    frontPageAdapter.AddPost(post);
-                }
-                runOnUiThread(() -> frontPageAdapter.UpdateSize());
-            }
-        });
+    /**
+     * Show the load more row while there's another page, so there's something to tap if
+     * scrolling didn't bring it in
+     */
+    private void ShowLoadMore() {
+        frontPageAdapter.SetLoadMore(pager.NextOffset() >= 0 && !frontPageAdapter.Posts().isEmpty(), loadingNext);
+    }
+
+    /**
+     * Run on tapping the load more row
+     */
+    @Override
+    public void onLoadMore() {
+        int next = pager.NextOffset();
+        if (!loadingNext && next >= 0) {
+            LoadPage(next, true);
+        }
     }
 
     /**
-     * Reload displayed posts
+     * Have replies to the posts on screen fetched ahead of time, so opening them is instant
+     */
+    private void PrefetchVisible() {
+        LinearLayoutManager layoutManager = (LinearLayoutManager) frontPage.getLayoutManager();
+        List<Post> shown = frontPageAdapter.Posts();
+        if (layoutManager == null || shown.isEmpty()) {
+            return;
+        }
+        int first = layoutManager.findFirstVisibleItemPosition();
+        int last = layoutManager.findLastVisibleItemPosition();
+        if (first < 0) {
+            return;
+        }
+        List<Post> nearby = new ArrayList<>(shown.subList(first, Math.min(shown.size(), last + 1)));
+        nearby.addAll(shown.subList(Math.min(shown.size(), last + 1), Math.min(shown.size(), last + 1 + PREFETCH_AROUND)));
+        nearby.addAll(shown.subList(Math.max(0, first - PREFETCH_AROUND), first));
+        ReplyPrefetcher.Get().Visible(nearby);
+    }
+
+    /**
+     * Load a page to add to either end of the list. Pages we've seen before usually come from
+     * the cache.
+     * @param offset Offset of the page
+     * @param append true to add it at the end, false for the start
+     */
+    private void LoadPage(int offset, boolean append) {
+        if (append) {
+            loadingNext = true;
+            ShowLoadMore();
+        } else {
+            loadingPrevious = true;
+        }
+        int generation = pager.Generation();
+        boolean online = isConnected(this);
+        PostCache cache = PostCache.Get(this);
+        String key = PostCache.FrontPageKey(offset);
+        NetworkScheduler.Get().Submit(this, NetworkScheduler.Lane.READ, "page:" + offset,
+                () -> {
+                    PostCache.Entry cached = cache.Read(key);
+                    if (cached != null && (!cached.IsStale() || !online)) {
+                        return cached.posts;
+                    }
+                    ArrayList<Post> posts = NetworkUtils.GetFrontPage(offset);
+                    if (posts != null) {
+                        cache.Write(key, posts);
+                    } else if (cached != null) {
+                        // Stale beats nothing
+                        return cached.posts;
+                    }
+                    return posts;
+                },
+                posts -> {
+                    if (append) {
+                        loadingNext = false;
+                        ShowLoadMore();
+                    } else {
+                        loadingPrevious = false;
+                    }
+                    // Drop pages that were asked for before a refresh
+                    if (posts == null || generation != pager.Generation()) {
+                        return;
+                    }
+                    if (append) {
+                        pager.AppendPage(offset, posts);
+                    } else {
+                        pager.PrependPage(offset, posts);
+                    }
+                    // The page might have been all duplicates, or too short to fill the screen
+                    frontPage.post(this::MaybeLoadMore);
+                });
+    }
+
+    /**
+     * Reload displayed posts. When the top of the front page is showing, only posts newer than
+     * it are fetched and added above it. Otherwise the old ones stay up until the new ones arrive.
      */
     public void RefreshPosts() {
-        frontPageAdapter.clear();
-        getPosts(0);
+        if (pager.PreviousOffset() >= 0) {
+            frontPageFeed.Reload();
+        } else {
+            frontPageFeed.Refresh();
+        }
     }
 
     /**
@@ -140,20 +407,27 @@ public class MainActivity extends AppCompatActivity implements FrontPagePostAdap
         RefreshPosts();
     }
 
+    /**
+     * Open the metrics debug screen
+     */
+    private void ShowMetrics() {
+        startActivity(new Intent(this, MetricsActivity.class));
+    }
 
     /**
-     * Create a new post
+     * Open the search screen
+     */
+    private void ShowSearch() {
+        startActivity(new Intent(this, SearchActivity.class));
+    }
+
+
+    /**
+     * Create a new post. It shows up as pending straight away, and goes out in the background.
      * @param content String containing the content of the post
      */
     public void CreateNewPost(String content) {
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        executor.execute(() -> {
-            int pid = NetworkUtils.CreateNewPost(content);
-
-            if (pid != -1) {
-                runOnUiThread(this::RefreshPosts);
-            }
-        });
+        outbound.Enqueue(content, -1);
     }
 
     /**
@@ -168,18 +442,45 @@ public class MainActivity extends AppCompatActivity implements FrontPagePostAdap
         return true;
     }
 
+    /**
+     * Handle the menu items only the front page has. They're not onClick in the menu, the thread
+     * screen inflates it too and has no methods for them.
+     * @param item Item tapped
+     * @return true if it was handled here
+     */
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.action_fp_metrics) {
+            ShowMetrics();
+            return true;
+        } else if (item.getItemId() == R.id.action_fp_search) {
+            ShowSearch();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
 
     /**
      * Run on pressing the button to make a new post
      * @param view Button's view
      */
     public void NewPostButton(View view) {
+        NewPostDialog("");
+    }
+
+    /**
+     * Ask for the content of a new post
+     * @param text What to start the box off with
+     */
+    private void NewPostDialog(String text) {
         // Credit to https://stackoverflow.com/a/10904665
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setTitle("New Post");
 
         // Create input box
         final EditText input = new EditText(this);
+        input.setText(text);
         // Specifically make it multiline
         input.setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_FLAG_MULTI_LINE);
         builder.setView(input);
@@ -198,9 +499,13 @@ public class MainActivity extends AppCompatActivity implements FrontPagePostAdap
      * @param post {@link Post} associated with the view
      */
     @Override
-    public void onListItemClick(int item, View itemView, Post post) {
+    public void onPostClick(int item, View itemView, Post post) {
+        if (OutboundQueue.IsPending(post)) {
+            // Nothing to open until it's on the server
+            return;
+        }
         Intent intent = new Intent(MainActivity.this, SinglePostActivity.class);
-        intent.putExtra(VIEWPOSTID, post);
+        PostHandoff.Put(intent, VIEWPOSTID, post);
         startActivity(intent);
     }
 }
\ No newline at end of file
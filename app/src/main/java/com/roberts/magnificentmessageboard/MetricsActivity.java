@@ -0,0 +1,70 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+import android.content.Intent;
+import android.os.Bundle;
+import android.view.View;
+import android.widget.TextView;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+import com.google.gson.GsonBuilder;
+
+import java.util.Locale;
+
+/**
+ * Debug screen showing what {@link Metrics} has counted so far, with a way to send it off as
+ * JSON to compare against another build
+ */
+public class MetricsActivity extends AppCompatActivity {
+    private TextView text;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_metrics);
+        setTitle(R.string.metrics_title);
+        text = findViewById(R.id.metrics_text);
+    }
+
+    /**
+     * Numbers keep moving while we're away, so redo them on coming back
+     */
+    @Override
+    protected void onResume() {
+        super.onResume();
+        ShowMetrics();
+    }
+
+    private void ShowMetrics() {
+        ReplyPrefetcher prefetcher = ReplyPrefetcher.Get();
+        HttpTransport transport = HttpTransport.Get();
+        String extra = String.format(Locale.US, "Reply prefetch\n  %d hits, %d misses (%.0f%%)\nConnections\n  %d open, %d idle\nRows\n  %d inflated\n",
+                prefetcher.Hits(), prefetcher.Misses(), prefetcher.HitRate() * 100,
+                transport.OpenConnections(), transport.IdleConnections(), PostListAdapter.Inflated());
+        text.setText(Metrics.Get().Snapshot() + extra);
+    }
+
+    /**
+     * Share the metrics as JSON
+     * @param view Not used
+     */
+    public void ShareMetrics(View view) {
+        String json = new GsonBuilder().setPrettyPrinting().create().toJson(Metrics.Get().Snapshot().ToJson());
+        Intent send = new Intent(Intent.ACTION_SEND);
+        send.setType("application/json");
+        send.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.metrics_title));
+        send.putExtra(Intent.EXTRA_TEXT, json);
+        startActivity(Intent.createChooser(send, getString(R.string.metrics_share)));
+    }
+
+    /**
+     * Start counting from zero, like before trying something out
+     * @param view Not used
+     */
+    public void ResetMetrics(View view) {
+        Metrics.Get().Reset();
+        ShowMetrics();
+    }
+}
@@ -0,0 +1,290 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * App-wide scheduler for the screens', the repository's and the prefetcher's background work.
+ * Reads and writes get their own bounded pools, so a slow refresh never holds up a post and the
+ * thread count stays flat no matter how often refresh is tapped.
+ *
+ * Not everything goes through here. Once a request is running, its hedged copy goes out on
+ * OkHttp's threads and a reply batch's chunks on {@link NetworkUtils}' own pool. The
+ * {@link OutboundQueue} keeps a thread of its own and {@link LiveUpdates} a pool of its own,
+ * since they wait on the network for a long time.
+ */
+public class NetworkScheduler {
+    private static final int READ_THREADS = 3;
+    private static final int WRITE_THREADS = 1;
+    private static final int DISK_THREADS = 1;
+    private static final long IDLE_SECONDS = 30;
+
+    private static NetworkScheduler instance = null;
+
+    /**
+     * Which pool a request runs on
+     */
+    public enum Lane {
+        /** Idempotent fetches. Duplicates are coalesced and they can be cancelled */
+        READ,
+        /** Posts and replies. Run one at a time, in order, and are never interrupted */
+        WRITE,
+        /** Local reads and writes, like the {@link PostCache}. Kept apart so they never queue behind the network */
+        DISK
+    }
+
+    /**
+     * Result of a request, delivered on the main thread
+     * @param <T> Type of the result
+     */
+    public interface Callback<T> {
+        void onResult(T result);
+
+        /**
+         * Called instead of {@link #onResult} if the request threw
+         * @param e What it threw
+         */
+        default void onFailure(Exception e) {
+            onResult(null);
+        }
+    }
+
+    /**
+     * Someone waiting on a request
+     */
+    private static class Subscriber<T> {
+        final Object owner;
+        final Callback<T> callback;
+        volatile boolean cancelled = false;
+
+        Subscriber(Object owner, Callback<T> callback) {
+            this.owner = owner;
+            this.callback = callback;
+        }
+    }
+
+    /**
+     * A request that is queued or running, along with everyone waiting on it
+     */
+    private static class InFlight<T> {
+        final String key;
+        final Lane lane;
+        final List<Subscriber<T>> subscribers = new ArrayList<>();
+        Future<?> future;
+
+        InFlight(String key, Lane lane) {
+            this.key = key;
+            this.lane = lane;
+        }
+    }
+
+    private final ThreadPoolExecutor readPool;
+    private final ThreadPoolExecutor writePool;
+    private final ThreadPoolExecutor diskPool;
+    private final Executor callbackExecutor;
+    // Everything below is guarded by "this"
+    private final Map<String, InFlight<?>> coalesced = new HashMap<>();
+    private final List<InFlight<?>> running = new ArrayList<>();
+    // Finished requests whose callbacks haven't run yet
+    private int delivering = 0;
+
+    /**
+     * Get the shared scheduler, creating it if needed
+     * @return The app-wide {@link NetworkScheduler}
+     */
+    public static synchronized NetworkScheduler Get() {
+        if (instance == null) {
+            Handler handler = new Handler(Looper.getMainLooper());
+            instance = new NetworkScheduler(READ_THREADS, handler::post);
+        }
+        return instance;
+    }
+
+    /**
+     * Constructor, use {@link #Get()} outside of tests
+     * @param readThreads Maximum amount of concurrent reads
+     * @param callbackExecutor Where results get delivered, normally the main thread
+     */
+    NetworkScheduler(int readThreads, Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+        readPool = CreatePool(readThreads, "net-read", Thread.NORM_PRIORITY - 1);
+        writePool = CreatePool(WRITE_THREADS, "net-write", Thread.NORM_PRIORITY);
+        diskPool = CreatePool(DISK_THREADS, "disk", Thread.NORM_PRIORITY);
+    }
+
+    /**
+     * Build a fixed-size pool whose threads go away when idle
+     */
+    private static ThreadPoolExecutor CreatePool(int threads, String name, int priority) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(priority);
+            return thread;
+        };
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, IDLE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), factory);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Run a request in the background
+     * @param owner Whoever wants the result, usually an Activity. See {@link #CancelAll(Object)}
+     * @param lane {@link Lane} to run on
+     * @param key Identifies the request. Reads with the same key share one run, whatever their
+     *            lane. May be null.
+     * @param task The request itself
+     * @param callback Gets the result of the task, or what it threw. May be null.
+     * @param <T> Type of the result
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <T> void Submit(Object owner, Lane lane, String key, Callable<T> task, Callback<T> callback) {
+        boolean coalesce = lane != Lane.WRITE && key != null;
+        if (coalesce) {
+            InFlight<T> existing = (InFlight<T>) coalesced.get(key);
+            if (existing != null) {
+                // Someone already asked for this, just wait for their answer. An owner asking
+                // twice (double-tapped refresh) only hears back once, on its newest callback.
+                for (int i = 0; i < existing.subscribers.size(); i++) {
+                    if (existing.subscribers.get(i).owner == owner) {
+                        existing.subscribers.remove(i).cancelled = true;
+                        break;
+                    }
+                }
+                existing.subscribers.add(new Subscriber<>(owner, callback));
+                return;
+            }
+        }
+
+        InFlight<T> request = new InFlight<>(key, lane);
+        request.subscribers.add(new Subscriber<>(owner, callback));
+        if (coalesce) {
+            coalesced.put(key, request);
+        }
+        running.add(request);
+
+        ThreadPoolExecutor pool = lane == Lane.READ ? readPool : lane == Lane.WRITE ? writePool : diskPool;
+        request.future = pool.submit(() -> {
+            T result = null;
+            Exception failure = null;
+            try {
+                result = task.call();
+            } catch (InterruptedException e) {
+                // Cancelled, nobody is waiting
+                return;
+            } catch (Exception e) {
+                failure = e;
+            }
+            Finish(request, result, failure);
+        });
+    }
+
+    /**
+     * Hand a finished request's result to whoever is still waiting on it
+     */
+    private <T> void Finish(InFlight<T> request, T result, Exception failure) {
+        List<Subscriber<T>> subscribers;
+        synchronized (this) {
+            if (!running.remove(request)) {
+                // Cancelled while running
+                return;
+            }
+            if (request.key != null && coalesced.get(request.key) == request) {
+                coalesced.remove(request.key);
+            }
+            subscribers = new ArrayList<>(request.subscribers);
+            delivering++;
+        }
+        callbackExecutor.execute(() -> {
+            boolean heard = false;
+            for (Subscriber<T> subscriber : subscribers) {
+                // Owners may have gone away while the result was on its way
+                if (subscriber.cancelled || subscriber.callback == null) {
+                    continue;
+                }
+                heard = true;
+                if (failure != null) {
+                    subscriber.callback.onFailure(failure);
+                } else {
+                    subscriber.callback.onResult(result);
+                }
+            }
+            if (failure != null && !heard) {
+                // Nobody to tell, but it still shows up on the metrics screen
+                Metrics.Get().Error(Metrics.Classify(failure));
+            }
+            synchronized (this) {
+                delivering--;
+                notifyAll();
+            }
+        });
+    }
+
+    /**
+     * Forget every request made by an owner, usually called from onDestroy. Reads nobody else
+     * wants are cancelled outright, writes still go through but their results are dropped.
+     * @param owner Owner passed to {@link #Submit}
+     */
+    public synchronized void CancelAll(Object owner) {
+        Iterator<InFlight<?>> iterator = running.iterator();
+        while (iterator.hasNext()) {
+            InFlight<?> request = iterator.next();
+            for (int i = request.subscribers.size() - 1; i >= 0; i--) {
+                if (request.subscribers.get(i).owner == owner) {
+                    request.subscribers.remove(i).cancelled = true;
+                }
+            }
+            if (request.subscribers.isEmpty() && request.lane != Lane.WRITE) {
+                request.future.cancel(true);
+                iterator.remove();
+                notifyAll();
+                if (request.key != null) {
+                    coalesced.remove(request.key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait for every request to finish and its callbacks to run, including any requests those
+     * callbacks made. For tests, the callback executor must not be the waiting thread.
+     * @param timeoutMs Longest to wait
+     * @return true if it went idle in time
+     */
+    synchronized boolean AwaitIdle(long timeoutMs) throws InterruptedException {
+        long until = System.currentTimeMillis() + timeoutMs;
+        while (!running.isEmpty() || delivering > 0) {
+            long left = until - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    /**
+     * @return The most threads the scheduler has ever had alive at once
+     */
+    int LargestPoolSize() {
+        return readPool.getLargestPoolSize() + writePool.getLargestPoolSize() + diskPool.getLargestPoolSize();
+    }
+}
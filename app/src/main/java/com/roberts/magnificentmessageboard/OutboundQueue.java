@@ -0,0 +1,478 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Posts and replies waiting to be sent. They're written to disk before anything else happens, so
+ * they survive the app being killed, and show up in lists straight away as pending rows with
+ * negative ids. A single background thread sends them in order, backing off while the network
+ * is down. A post that might have reached the server is never sent again, it's handed back.
+ */
+public class OutboundQueue {
+    private static final int MAGIC = 0x4D4D4F51;
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".post";
+    // Posts can't be longer than this, so anything bigger is a broken file
+    private static final long MAX_FILE_BYTES = 1024 * 1024;
+
+    private static final long BASE_DELAY_MS = 2 * 1000;
+    private static final long MAX_DELAY_MS = 5 * 60 * 1000;
+    // A few hours of being offline at the longest delay, then the text is handed back
+    static final int MAX_ATTEMPTS = 50;
+    static final String MAYBE_SENT = "Couldn't tell if it was posted, check before sending it again";
+    static final String GAVE_UP = "Couldn't reach the server, try sending it again later";
+
+    private static OutboundQueue instance = null;
+
+    /**
+     * Actually sends a post
+     */
+    interface Sender {
+        /**
+         * @param content Content of the post
+         * @param reply ID of the post it replies to, or -1
+         * @return rowid of the new post
+         * @throws PostStreamDecoder.ApiErrorException If the server turned it down for good
+         * @throws IOException Upon anything else. Only the ones where the post never left get
+         * tried again, see {@link #NeverSent(Throwable)}.
+         */
+        int Send(String content, int reply) throws IOException;
+    }
+
+    /**
+     * Told about the queue on the main thread
+     */
+    public interface Listener {
+        /**
+         * Something was added or removed, so pending rows need redoing
+         */
+        void onQueueChanged();
+
+        /**
+         * A pending post made it to the server
+         * @param localId Id the pending post had, see {@link #LocalId(Post)}
+         * @param post The post as the server now has it. The hash isn't known until it's fetched.
+         */
+        void onSent(long localId, Post post);
+
+        /**
+         * The server turned a post down, so it's out of the queue
+         * @param post The pending post, so its text can be offered back
+         * @param error What the server said
+         */
+        void onRejected(Post post, String error);
+    }
+
+    /**
+     * A post waiting to go out
+     */
+    private static class Entry {
+        final long localId;
+        final String content;
+        final int reply;
+        int attempts;
+
+        Entry(long localId, String content, int reply, int attempts) {
+            this.localId = localId;
+            this.content = content;
+            this.reply = reply;
+            this.attempts = attempts;
+        }
+
+        Post AsPost() {
+            return new Post("", content, (int) -localId, reply);
+        }
+    }
+
+    private final File dir;
+    private final Sender sender;
+    private final ScheduledExecutorService executor;
+    private final Executor callbackExecutor;
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final Random jitter = new Random();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    // Oldest first. Guarded by this.
+    private final List<Entry> entries = new ArrayList<>();
+    // Pending posts are shown with minus this as their id, so it has to stay an int
+    private int lastLocalId = 0;
+    // Only touched on the queue's thread
+    private ScheduledFuture<?> retry = null;
+
+    /**
+     * Get the shared queue, creating it (and picking up whatever was left from last time) if
+     * needed
+     * @param context Any context
+     * @return The app-wide {@link OutboundQueue}
+     */
+    public static synchronized OutboundQueue Get(Context context) {
+        if (instance == null) {
+            // Posts go out with the tripcode, so have it loading before the first one does
+            Settings settings = Settings.Get(context);
+            Handler handler = new Handler(Looper.getMainLooper());
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "outbound");
+                thread.setDaemon(true);
+                return thread;
+            });
+            instance = new OutboundQueue(new File(context.getApplicationContext().getFilesDir(), "outbound"),
+                    (content, reply) -> {
+                        // Only waits if the app has only just started, this is never the main thread
+                        return NetworkUtils.SendNewPost(content, reply, settings.Await().tripcode);
+                    }, executor, handler::post, BASE_DELAY_MS, MAX_DELAY_MS);
+        }
+        return instance;
+    }
+
+    /**
+     * Constructor, use {@link #Get(Context)} outside of tests. Loads the queue from disk and starts
+     * sending it.
+     * @param dir Directory to keep the queue in. Not a cache directory, the OS could clear that.
+     * @param sender Sends posts
+     * @param executor Single thread everything runs on
+     * @param callbackExecutor Where listeners get called, normally the main thread
+     * @param baseDelayMs Wait after the first failed attempt, doubling every attempt after
+     * @param maxDelayMs Longest wait between attempts
+     */
+    OutboundQueue(File dir, Sender sender, ScheduledExecutorService executor, Executor callbackExecutor,
+                  long baseDelayMs, long maxDelayMs) {
+        this.dir = dir;
+        this.sender = sender;
+        this.executor = executor;
+        this.callbackExecutor = callbackExecutor;
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        executor.execute(() -> {
+            Load();
+            Drain();
+        });
+    }
+
+    /**
+     * @param post Any post
+     * @return true if it's a pending post from the queue, rather than one from the server
+     */
+    public static boolean IsPending(Post post) {
+        return post.Id < 0;
+    }
+
+    /**
+     * @param post A pending post
+     * @return The id it's known by in the queue
+     */
+    public static long LocalId(Post post) {
+        return -(long) post.Id;
+    }
+
+    /**
+     * Start telling a listener about the queue. Remember to remove it again.
+     * @param listener Gets told on the main thread
+     */
+    public void AddListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Stop telling a listener about the queue
+     * @param listener Added with {@link #AddListener(Listener)}
+     */
+    public void RemoveListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Queue a post to be sent. Saving and sending both happen in the background.
+     * @param content Content of the post
+     * @param reply ID of the post it replies to, or -1
+     * @return The pending post, to show until it's sent
+     */
+    public Post Enqueue(String content, int reply) {
+        Entry entry;
+        synchronized (this) {
+            // Carries on from whatever was left on disk, see Load()
+            entry = new Entry(++lastLocalId, content, reply, 0);
+            entries.add(entry);
+        }
+        Changed();
+        executor.execute(() -> {
+            Save(entry);
+            Flush();
+        });
+        return entry.AsPost();
+    }
+
+    /**
+     * Pending posts, oldest first
+     * @param reply -1 for top-level posts, otherwise the thread they're in
+     * @return Posts still waiting to go out
+     */
+    public synchronized List<Post> Pending(int reply) {
+        List<Post> posts = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (entry.reply == reply) {
+                posts.add(entry.AsPost());
+            }
+        }
+        return posts;
+    }
+
+    /**
+     * @return Amount of posts waiting to go out
+     */
+    public synchronized int Size() {
+        return entries.size();
+    }
+
+    /**
+     * Try sending straight away instead of waiting out the backoff, like when the network
+     * comes back
+     */
+    public void Flush() {
+        executor.execute(() -> {
+            if (retry != null) {
+                retry.cancel(false);
+                retry = null;
+            }
+            Drain();
+        });
+    }
+
+    /**
+     * Send everything in order, stopping at the first post that can't go out yet so nothing
+     * gets sent out of order. Queue thread only.
+     */
+    private void Drain() {
+        while (true) {
+            Entry entry;
+            synchronized (this) {
+                if (entries.isEmpty()) {
+                    return;
+                }
+                entry = entries.get(0);
+            }
+            try {
+                int rowid = sender.Send(entry.content, entry.reply);
+                Post sent = new Post("", entry.content, rowid, entry.reply);
+                SearchIndex.Get().Add(Collections.singletonList(sent));
+                // Listeners hear about the real post before the pending one goes, so lists never
+                // show a gap where it was
+                callbackExecutor.execute(() -> {
+                    for (Listener listener : listeners) {
+                        listener.onSent(entry.localId, sent);
+                    }
+                });
+                Remove(entry);
+            } catch (PostStreamDecoder.ApiErrorException e) {
+                Reject(entry, e.getMessage());
+            } catch (IOException | RuntimeException e) {
+                if (!NeverSent(e)) {
+                    // It might have got there and the answer didn't make it back. Sending it again
+                    // could post it twice, so it goes back to the user instead, and so does
+                    // anything that'd fail the same way every time and hold up the queue.
+                    Reject(entry, MAYBE_SENT);
+                    continue;
+                }
+                entry.attempts++;
+                if (entry.attempts >= MAX_ATTEMPTS) {
+                    Reject(entry, GAVE_UP);
+                    continue;
+                }
+                Save(entry);
+                retry = executor.schedule(this::Drain, Backoff(entry.attempts), TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param e What sending threw
+     * @return true if the post can't have reached the server, so it's safe to send again. The
+     * transport doesn't retry posts for the same reason.
+     */
+    static boolean NeverSent(Throwable e) {
+        switch (Metrics.Classify(e)) {
+            case DNS:
+            case CONNECT:
+            case CIRCUIT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Take a post out of the queue and tell listeners why
+     */
+    private void Reject(Entry entry, String error) {
+        Remove(entry);
+        callbackExecutor.execute(() -> {
+            for (Listener listener : listeners) {
+                listener.onRejected(entry.AsPost(), error);
+            }
+        });
+    }
+
+    /**
+     * Exponential backoff with some jitter, so a bunch of phones don't all retry at once
+     * @param attempts Failed attempts so far
+     * @return How long to wait before the next one
+     */
+    long Backoff(int attempts) {
+        long delay = baseDelayMs << Math.min(attempts - 1, 20);
+        delay = Math.min(delay, maxDelayMs);
+        return delay / 2 + (long) (jitter.nextDouble() * (delay / 2));
+    }
+
+    private void Remove(Entry entry) {
+        synchronized (this) {
+            entries.remove(entry);
+        }
+        new File(dir, entry.localId + SUFFIX).delete();
+        Changed();
+    }
+
+    private void Changed() {
+        callbackExecutor.execute(() -> {
+            for (Listener listener : listeners) {
+                listener.onQueueChanged();
+            }
+        });
+    }
+
+    /**
+     * Write an entry to disk. Queue thread only.
+     */
+    private void Save(Entry entry) {
+        synchronized (this) {
+            // Already sent, don't bring it back
+            if (!entries.contains(entry)) {
+                return;
+            }
+        }
+        if (!dir.exists() && !dir.mkdirs()) {
+            return;
+        }
+        File file = new File(dir, entry.localId + SUFFIX);
+        File temp = new File(dir, entry.localId + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(entry.localId);
+            out.writeInt(entry.reply);
+            out.writeInt(entry.attempts);
+            WriteString(out, entry.content);
+        } catch (IOException e) {
+            temp.delete();
+            return;
+        }
+        // Same as the cache, a crash mid-write leaves the old file alone
+        file.delete();
+        if (!temp.renameTo(file)) {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Pick up entries left over from last time. Queue thread only.
+     */
+    private void Load() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files == null || files.length == 0) {
+            return;
+        }
+        List<Entry> loaded = new ArrayList<>();
+        for (File file : files) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Not a queue file");
+                }
+                long localId = in.readLong();
+                int reply = in.readInt();
+                int attempts = in.readInt();
+                String content = ReadString(in, MAX_FILE_BYTES);
+                loaded.add(new Entry(localId, content, reply, attempts));
+            } catch (IOException e) {
+                file.delete();
+            }
+        }
+        if (loaded.isEmpty()) {
+            return;
+        }
+        Entry[] sorted = loaded.toArray(new Entry[0]);
+        Arrays.sort(sorted, (a, b) -> Long.compare(a.localId, b.localId));
+        int renumberFrom = 0;
+        synchronized (this) {
+            int newest = (int) sorted[sorted.length - 1].localId;
+            if (lastLocalId > 0) {
+                // Posts queued while we were loading got ids from 0 up, which could clash. Nobody
+                // has seen these yet, so they move up after both instead.
+                renumberFrom = Math.max(lastLocalId, newest) + 1;
+                lastLocalId = renumberFrom + sorted.length - 1;
+            } else {
+                lastLocalId = newest;
+            }
+        }
+        List<Entry> ready = new ArrayList<>(sorted.length);
+        for (int i = 0; i < sorted.length; i++) {
+            Entry entry = sorted[i];
+            if (renumberFrom > 0) {
+                Entry renumbered = new Entry(renumberFrom + i, entry.content, entry.reply, entry.attempts);
+                if (!new File(dir, entry.localId + SUFFIX).renameTo(new File(dir, renumbered.localId + SUFFIX))) {
+                    // Still on disk under the old id, so it goes out next time instead
+                    continue;
+                }
+                entry = renumbered;
+            }
+            ready.add(entry);
+        }
+        synchronized (this) {
+            // Anything queued while we were loading is newer
+            entries.addAll(0, ready);
+        }
+        Changed();
+    }
+
+    /**
+     * writeUTF() can't do more than 64KB, so write the UTF-8 bytes with a length in front
+     */
+    private static void WriteString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String ReadString(DataInputStream in, long limit) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > limit) {
+            throw new IOException("Bad length");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
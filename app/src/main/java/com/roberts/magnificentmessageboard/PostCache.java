@@ -0,0 +1,245 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+import android.content.Context;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * On-disk cache of {@link Post}s, so screens can show something before the network answers (or
+ * when there is no network). One small binary file per front page offset or reply thread,
+ * evicted least recently used first once the cache grows past its size limit.
+ */
+public class PostCache {
+    private static final int MAGIC = 0x4D4D4243;
+    private static final int VERSION = 2;
+    private static final String SUFFIX = ".posts";
+
+    // Younger than this and we don't bother asking the server again
+    private static final long TTL_MS = 60 * 1000;
+    // Older than this and it's not worth showing at all
+    private static final long MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+    private static final long MAX_BYTES = 4 * 1024 * 1024;
+
+    private static PostCache instance = null;
+
+    private final File dir;
+    private final long ttlMs;
+    private final long maxBytes;
+    private long totalBytes = -1;
+
+    /**
+     * A list of posts read back from the cache
+     */
+    public static class Entry {
+        public final ArrayList<Post> posts;
+        public final long savedAt;
+        public final long expiresAt;
+
+        Entry(ArrayList<Post> posts, long savedAt, long expiresAt) {
+            this.posts = posts;
+            this.savedAt = savedAt;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * @return True if the entry is past its TTL and should be refreshed from the network
+         */
+        public boolean IsStale() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+    }
+
+    /**
+     * Get the shared cache, creating it if needed
+     * @param context Any context
+     * @return The app-wide {@link PostCache}
+     */
+    public static synchronized PostCache Get(Context context) {
+        if (instance == null) {
+            instance = new PostCache(new File(context.getApplicationContext().getCacheDir(), "posts"), TTL_MS, MAX_BYTES);
+        }
+        return instance;
+    }
+
+    /**
+     * Constructor, use {@link #Get(Context)} outside of tests
+     * @param dir Directory to keep the cache in
+     * @param ttlMs How long an entry counts as fresh
+     * @param maxBytes Size the cache is trimmed down to
+     */
+    PostCache(File dir, long ttlMs, long maxBytes) {
+        this.dir = dir;
+        this.ttlMs = ttlMs;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param offset Front page offset
+     * @return Cache key of that front page
+     */
+    public static String FrontPageKey(int offset) {
+        return "front_" + offset;
+    }
+
+    /**
+     * @param rowid Post id
+     * @return Cache key of the replies to that post
+     */
+    public static String RepliesKey(int rowid) {
+        return "replies_" + rowid;
+    }
+
+    /**
+     * Read posts back from the cache
+     * @param key Key from {@link #FrontPageKey(int)} or {@link #RepliesKey(int)}
+     * @return The {@link Entry}, or null if there is nothing usable
+     */
+    public synchronized Entry Read(String key) {
+        return Read(key, true);
+    }
+
+    /**
+     * Read posts back from the cache without counting it as a use, for looking through
+     * everything without upsetting what gets evicted
+     * @param key Key from {@link #Keys()}
+     * @return The {@link Entry}, or null if there is nothing usable
+     */
+    public synchronized Entry Peek(String key) {
+        return Read(key, false);
+    }
+
+    /**
+     * @return Keys of everything in the cache
+     */
+    public synchronized List<String> Keys() {
+        List<String> keys = new ArrayList<>();
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                keys.add(name.substring(0, name.length() - SUFFIX.length()));
+            }
+        }
+        return keys;
+    }
+
+    private Entry Read(String key, boolean touch) {
+        File file = new File(dir, key + SUFFIX);
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a cache file");
+            }
+            long savedAt = in.readLong();
+            long expiresAt = in.readLong();
+            if (System.currentTimeMillis() - savedAt > MAX_AGE_MS) {
+                throw new IOException("Too old");
+            }
+            ArrayList<Post> posts = PostCodec.ReadList(in, file.length());
+            if (touch) {
+                // Mark as recently used
+                file.setLastModified(System.currentTimeMillis());
+            }
+            return new Entry(posts, savedAt, expiresAt);
+        } catch (IOException e) {
+            Delete(file);
+            return null;
+        }
+    }
+
+    /**
+     * Save posts to the cache, replacing whatever was under the key
+     * @param key Key from {@link #FrontPageKey(int)} or {@link #RepliesKey(int)}
+     * @param posts Posts to save
+     */
+    public synchronized void Write(String key, List<Post> posts) {
+        if (!dir.exists() && !dir.mkdirs()) {
+            return;
+        }
+        File file = new File(dir, key + SUFFIX);
+        File temp = new File(dir, key + ".tmp");
+        long now = System.currentTimeMillis();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(now);
+            out.writeLong(now + ttlMs);
+            PostCodec.WriteList(out, posts);
+        } catch (IOException e) {
+            temp.delete();
+            return;
+        }
+
+        Delete(file);
+        // Rename so a crash mid-write never leaves a half-written entry behind
+        if (temp.renameTo(file)) {
+            if (totalBytes >= 0) {
+                totalBytes += file.length();
+            }
+            Trim();
+        } else {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Evict least recently used entries until the cache fits in its size limit
+     */
+    private void Trim() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return;
+        }
+        if (totalBytes < 0) {
+            totalBytes = 0;
+            for (File file : files) {
+                totalBytes += file.length();
+            }
+        }
+        if (totalBytes <= maxBytes) {
+            return;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (int i = 0; i < files.length && totalBytes > maxBytes; i++) {
+            Delete(files[i]);
+        }
+    }
+
+    /**
+     * Delete a cache file, keeping the size count right
+     */
+    private void Delete(File file) {
+        long length = file.length();
+        if (file.delete() && totalBytes >= 0) {
+            totalBytes -= length;
+        }
+    }
+
+    /**
+     * @return Bytes the cache is taking up on disk
+     */
+    synchronized long Size() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        long size = 0;
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+}
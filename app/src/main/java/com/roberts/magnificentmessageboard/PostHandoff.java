@@ -0,0 +1,90 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+import android.content.Intent;
+import android.os.Bundle;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Gets posts across to another screen in an {@link Intent}. Small ones are copied as
+ * {@link PostCodec} bytes. Long ones would eat into the Binder transaction limit, so only a
+ * preview goes in the intent and the full post is picked up from memory by id on the other
+ * side. If the app was killed in between, the preview is all there is.
+ */
+final class PostHandoff {
+    // Longer than this and only a preview goes in the intent
+    static final int LARGE_CONTENT_CHARS = 8 * 1024;
+    static final int PREVIEW_CHARS = 1024;
+    private static final int MAX_HANDED_OFF = 16;
+
+    private static final int INLINE = 0;
+    private static final int BY_ID = 1;
+
+    private static final String KIND = "kind";
+    private static final String BYTES = "post";
+
+    private static final Map<Integer, Post> handedOff = new LinkedHashMap<Integer, Post>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Post> eldest) {
+            return size() > MAX_HANDED_OFF;
+        }
+    };
+
+    private PostHandoff() {
+    }
+
+    /**
+     * Put a post in an intent
+     * @param intent Intent starting the other screen
+     * @param name Name of the extra
+     * @param post The post
+     */
+    static void Put(Intent intent, String name, Post post) {
+        Bundle extra = new Bundle();
+        if (post.Content.length() <= LARGE_CONTENT_CHARS) {
+            extra.putInt(KIND, INLINE);
+            extra.putByteArray(BYTES, PostCodec.Encode(post));
+        } else {
+            synchronized (handedOff) {
+                handedOff.put(post.Id, post);
+            }
+            Post preview = new Post(post.Hash, post.Preview(PREVIEW_CHARS), post.Id, post.Reply);
+            extra.putInt(KIND, BY_ID);
+            extra.putByteArray(BYTES, PostCodec.Encode(preview));
+        }
+        intent.putExtra(name, extra);
+    }
+
+    /**
+     * Read a post written by {@link #Put}
+     * @param intent Intent that started this screen
+     * @param name Name of the extra
+     * @return The post, or null if there isn't one
+     */
+    static Post Get(Intent intent, String name) {
+        Bundle extra = intent.getBundleExtra(name);
+        byte[] bytes = extra != null ? extra.getByteArray(BYTES) : null;
+        if (bytes == null) {
+            return null;
+        }
+        Post post;
+        try {
+            post = PostCodec.Decode(bytes);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Broken post in intent", e);
+        }
+        if (extra.getInt(KIND) == BY_ID) {
+            synchronized (handedOff) {
+                Post full = handedOff.get(post.Id);
+                if (full != null) {
+                    return full;
+                }
+            }
+        }
+        return post;
+    }
+}
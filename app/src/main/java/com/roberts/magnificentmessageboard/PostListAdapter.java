@@ -0,0 +1,476 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+import android.content.Context;
+import android.graphics.Color;
+import android.os.Looper;
+import android.view.ContextThemeWrapper;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+import android.widget.TextView;
+
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Adapter for every list of posts, on the front page and in threads. Rows come in a few types,
+ * and all lists share one pool of them, so opening a thread picks up rows that were already
+ * inflated instead of inflating its own. Rows are inflated against the application rather than
+ * an activity, since they outlive the screen that made them.
+ */
+public class PostListAdapter extends RecyclerView.Adapter<PostListAdapter.PostHolder> {
+    // A post on the front page, long ones are cut short
+    public static final int TYPE_POST = 0;
+    // A reply in a thread, shown in full
+    public static final int TYPE_REPLY = 1;
+    // The post a thread is about, at the top of it
+    public static final int TYPE_OP = 2;
+    // One of ours that hasn't made it to the server yet
+    public static final int TYPE_PENDING = 3;
+    // The end of the list, when there's more to load
+    public static final int TYPE_LOAD_MORE = 4;
+
+    // Longer posts are cut short until "Show more" is tapped, only 4 lines show anyway
+    static final int PREVIEW_CHARS = 500;
+    private static final int COLLAPSED_LINES = 4;
+    // Enough of each to fill a tall screen twice over
+    private static final int POOLED_ROWS = 16;
+    // Nested replies stop moving in past this, or there'd be no room left for them
+    private static final int MAX_INDENT = 6;
+
+    private static RecyclerView.RecycledViewPool sharedPool = null;
+    private static Context rowContext = null;
+    // Rows inflated by any list, for the metrics screen. Main thread only.
+    private static int inflated = 0;
+
+    /**
+     * Which screen a list is on
+     */
+    public enum Screen {
+        // Posts are cut short and open their thread when tapped
+        FRONT_PAGE,
+        // The first post is the OP, the rest are its replies
+        THREAD
+    }
+
+    /**
+     * What to do when rows get tapped
+     */
+    public interface Listener {
+        /**
+         * @param position Position of the row
+         * @param itemView View of the row
+         * @param post The row's post
+         */
+        void onPostClick(int position, View itemView, Post post);
+
+        /**
+         * The load more row was tapped
+         */
+        void onLoadMore();
+    }
+
+    private final Screen screen;
+    private final Listener listener;
+    private final PostListDiffer differ;
+    private final LayoutInflater mInflater;
+    private final TextPrecomputer precomputer = new TextPrecomputer();
+    private final TextPrecomputer.Source rowText = new TextPrecomputer.Source() {
+        @Override
+        public CharSequence TextAt(int position) {
+            return ContentFor(differ.Current().get(position));
+        }
+
+        @Override
+        public int Count() {
+            return differ.Current().size();
+        }
+    };
+    // Ids of posts whose "Show more" was tapped
+    private final Set<Integer> expanded = new HashSet<>();
+    private boolean showLoadMore = false;
+    private boolean loadingMore = false;
+    // Where replies sit in the thread, for indenting them. May be null.
+    private ThreadIndex thread = null;
+
+    /**
+     * Constructor
+     * @param context Any context, rows are inflated against the application
+     * @param screen Which screen the list is on
+     * @param listener Gets taps on rows. May be null.
+     */
+    public PostListAdapter(Context context, Screen screen, Listener listener) {
+        this.screen = screen;
+        this.listener = listener;
+        mInflater = LayoutInflater.from(RowContext(context));
+        differ = new PostListDiffer(this);
+    }
+
+    /**
+     * The themed application context rows are inflated against
+     */
+    private static Context RowContext(Context context) {
+        if (rowContext == null) {
+            rowContext = new ContextThemeWrapper(context.getApplicationContext(), R.style.Theme_MagnificentMessageboard);
+        }
+        return rowContext;
+    }
+
+    /**
+     * @return The pool of rows every list draws from. Main thread only.
+     */
+    public static RecyclerView.RecycledViewPool SharedPool() {
+        if (sharedPool == null) {
+            sharedPool = new RecyclerView.RecycledViewPool();
+            sharedPool.setMaxRecycledViews(TYPE_POST, POOLED_ROWS);
+            sharedPool.setMaxRecycledViews(TYPE_REPLY, POOLED_ROWS);
+            sharedPool.setMaxRecycledViews(TYPE_OP, 2);
+            sharedPool.setMaxRecycledViews(TYPE_PENDING, 4);
+            sharedPool.setMaxRecycledViews(TYPE_LOAD_MORE, 2);
+        }
+        return sharedPool;
+    }
+
+    /**
+     * @return How many rows have been inflated, by any list
+     */
+    public static int Inflated() {
+        return inflated;
+    }
+
+    /**
+     * Inflate rows into the shared pool while the main thread has nothing better to do, one per
+     * idle moment, so the screen that needs them later doesn't have to. Main thread only.
+     * @param context Any context
+     * @param type Type of row
+     * @param count How many of them the pool should have
+     */
+    public static void Preinflate(Context context, int type, int count) {
+        RecyclerView.RecycledViewPool pool = SharedPool();
+        PostListAdapter maker = new PostListAdapter(context, Screen.THREAD, null);
+        ViewGroup parent = new FrameLayout(RowContext(context));
+        Looper.myQueue().addIdleHandler(() -> {
+            if (pool.getRecycledViewCount(type) >= count) {
+                return false;
+            }
+            pool.putRecycledView(maker.createViewHolder(parent, type));
+            return pool.getRecycledViewCount(type) < count;
+        });
+    }
+
+    /**
+     * Show this adapter's rows in a list, drawing on the shared pool
+     * @param list The list
+     */
+    public void AttachTo(RecyclerView list) {
+        LinearLayoutManager layoutManager = new LinearLayoutManager(list.getContext());
+        // Rows go back in the pool when the screen goes away, for the next one to use
+        layoutManager.setRecycleChildrenOnDetach(true);
+        list.setLayoutManager(layoutManager);
+        list.setRecycledViewPool(SharedPool());
+        list.setAdapter(this);
+    }
+
+    /**
+     * Show a new list of posts. Only the rows that changed get touched.
+     * @param posts {@link Post}s to show. Must not be changed afterwards. In a thread, the OP
+     *              goes first.
+     */
+    public void SubmitPosts(List<Post> posts) {
+        differ.Submit(posts);
+    }
+
+    /**
+     * Swap some rows for others straight away, for when exactly which ones changed is known
+     * @param position Where the rows start
+     * @param removed How many rows go
+     * @param inserted Posts that go in their place
+     */
+    public void SplicePosts(int position, int removed, List<Post> inserted) {
+        differ.Splice(position, removed, inserted);
+    }
+
+    /**
+     * @return The posts being shown, in adapter order. Read-only.
+     */
+    public List<Post> Posts() {
+        return differ.Current();
+    }
+
+    /**
+     * Indent replies by how deep they are in a thread
+     * @param thread Index of the thread being shown
+     */
+    public void SetThread(ThreadIndex thread) {
+        this.thread = thread;
+    }
+
+    /**
+     * Show or hide the load more row at the end
+     * @param shown true if there's more to load
+     * @param loading true if it's on its way already
+     */
+    public void SetLoadMore(boolean shown, boolean loading) {
+        int position = differ.Current().size();
+        if (shown && !showLoadMore) {
+            showLoadMore = true;
+            loadingMore = loading;
+            notifyItemInserted(position);
+        } else if (!shown && showLoadMore) {
+            showLoadMore = false;
+            notifyItemRemoved(position);
+        } else if (shown && loading != loadingMore) {
+            loadingMore = loading;
+            notifyItemChanged(position);
+        }
+    }
+
+    /**
+     * @param post A post
+     * @return What its row shows, all of it or a preview
+     */
+    private String ContentFor(Post post) {
+        if (screen == Screen.THREAD || expanded.contains(post.Id)) {
+            return post.Content;
+        }
+        return post.Preview(PREVIEW_CHARS);
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        List<Post> posts = differ.Current();
+        if (position == posts.size()) {
+            return TYPE_LOAD_MORE;
+        }
+        Post post = posts.get(position);
+        if (OutboundQueue.IsPending(post)) {
+            return TYPE_PENDING;
+        }
+        if (screen == Screen.FRONT_PAGE) {
+            return TYPE_POST;
+        }
+        return post.Reply == -1 ? TYPE_OP : TYPE_REPLY;
+    }
+
+    /**
+     * Run on creating a new row
+     * @param parent Parent view
+     * @param viewType One of the TYPE_ constants
+     * @return New {@link PostHolder}
+     */
+    @Override
+    public PostHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        int layout;
+        switch (viewType) {
+            case TYPE_POST:
+                layout = R.layout.frontpage_post;
+                break;
+            case TYPE_REPLY:
+                layout = R.layout.postview_post;
+                break;
+            case TYPE_OP:
+                layout = R.layout.list_op_post;
+                break;
+            case TYPE_PENDING:
+                layout = R.layout.list_pending_post;
+                break;
+            default:
+                layout = R.layout.list_load_more;
+                break;
+        }
+        inflated++;
+        return new PostHolder(mInflater.inflate(layout, parent, false), viewType);
+    }
+
+    /**
+     * On binding a row
+     * @param holder {@link PostHolder} that we are modifying
+     * @param position Position of it in the list
+     */
+    @Override
+    public void onBindViewHolder(PostHolder holder, int position) {
+        long start = System.nanoTime();
+        // Rows move between lists through the pool, so they find out whose they are here
+        holder.adapter = this;
+        if (holder.type == TYPE_LOAD_MORE) {
+            holder.post = null;
+            holder.loadMore.setText(loadingMore ? R.string.loading_more : R.string.load_more);
+            return;
+        }
+        Post mCurrent = differ.Current().get(position);
+        holder.post = mCurrent;
+        switch (holder.type) {
+            case TYPE_POST:
+                boolean open = expanded.contains(mCurrent.Id);
+                precomputer.Bind(holder.postContent, ContentFor(mCurrent));
+                holder.postContent.setMaxLines(open ? Integer.MAX_VALUE : COLLAPSED_LINES);
+                holder.postExpand.setVisibility(!open && mCurrent.Content.length() > PREVIEW_CHARS ? View.VISIBLE : View.GONE);
+                break;
+            case TYPE_REPLY:
+                // Replies are shown in full, so they're the ones that really need measuring ahead
+                precomputer.Bind(holder.postContent, mCurrent.Content);
+                int depth = thread == null ? 1 : Math.max(1, Math.min(MAX_INDENT, thread.Depth(mCurrent.Id)));
+                holder.itemView.setPadding((depth - 1) * holder.itemView.getResources().getDimensionPixelSize(R.dimen.reply_indent), 0, 0, 0);
+                break;
+            default:
+                // Styled differently, and only ever one or two of them
+                holder.postContent.setText(ContentFor(mCurrent));
+                break;
+        }
+        if (holder.postId != null) {
+            holder.postId.setText(""+mCurrent.Id);
+            holder.postHash.setText(mCurrent.Hash);
+        }
+        // Item animations leave this at 1, so it's set every time
+        holder.itemView.setAlpha(holder.type == TYPE_PENDING ? 0.5f : 1f);
+        if (holder.type != TYPE_OP) {
+            // Alternating background colors
+            holder.itemView.setBackgroundColor(position % 2 == 1 ? Color.LTGRAY : Color.WHITE);
+        }
+        precomputer.Ahead(rowText, position);
+        Metrics.Get().Bound(System.nanoTime() - start);
+    }
+
+    /**
+     * On binding a row that only needs part of it redone
+     * @param holder {@link PostHolder} that we are modifying
+     * @param position Position of it in the list
+     * @param payloads What changed, see {@link PostListDiffer}
+     */
+    @Override
+    public void onBindViewHolder(PostHolder holder, int position, List<Object> payloads) {
+        if (PostListDiffer.OnlyBackground(payloads)) {
+            if (holder.type != TYPE_OP && holder.type != TYPE_LOAD_MORE) {
+                holder.itemView.setBackgroundColor(position % 2 == 1 ? Color.LTGRAY : Color.WHITE);
+            }
+        } else {
+            onBindViewHolder(holder, position);
+        }
+    }
+
+    /**
+     * Rows in the shared pool outlive the screen, so they mustn't keep its adapter (and through
+     * the listener, the activity)
+     * @param holder Row going back in the pool
+     */
+    @Override
+    public void onViewRecycled(PostHolder holder) {
+        holder.adapter = null;
+        holder.post = null;
+    }
+
+    /**
+     * Let go of rows still on screen when the list goes away. Recycling on detach usually gets
+     * there first.
+     * @param list The list
+     */
+    @Override
+    public void onDetachedFromRecyclerView(RecyclerView list) {
+        for (int i = 0; i < list.getChildCount(); i++) {
+            RecyclerView.ViewHolder holder = list.getChildViewHolder(list.getChildAt(i));
+            if (holder instanceof PostHolder && ((PostHolder) holder).adapter == this) {
+                ((PostHolder) holder).adapter = null;
+            }
+        }
+    }
+
+    /**
+     * @return the amount of rows in the list, load more included
+     */
+    @Override
+    public int getItemCount() {
+        return differ.Current().size() + (showLoadMore ? 1 : 0);
+    }
+
+    /**
+     * Empty the adapter
+     */
+    public void clear() {
+        differ.Submit(new ArrayList<>());
+    }
+
+    /**
+     * Holds one row, of any type. Fields a type doesn't have are null.
+     */
+    static class PostHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+        final int type;
+        final TextView postContent;
+        final TextView postHash;
+        final TextView postId;
+        final TextView postExpand;
+        final TextView loadMore;
+        Post post;
+        // Whichever list bound it last
+        PostListAdapter adapter;
+
+        /**
+         * Constructor
+         * @param itemView The row
+         * @param type Its type
+         */
+        PostHolder(View itemView, int type) {
+            super(itemView);
+            this.type = type;
+            switch (type) {
+                case TYPE_REPLY:
+                    postContent = itemView.findViewById(R.id.sp_content);
+                    postHash = itemView.findViewById(R.id.sp_hash);
+                    postId = itemView.findViewById(R.id.sp_id);
+                    break;
+                case TYPE_OP:
+                    postContent = itemView.findViewById(R.id.op_content);
+                    postHash = itemView.findViewById(R.id.op_hash);
+                    postId = itemView.findViewById(R.id.op_id);
+                    break;
+                case TYPE_LOAD_MORE:
+                    postContent = null;
+                    postHash = null;
+                    postId = null;
+                    break;
+                default:
+                    // Pending rows have no id or hash to show yet
+                    postContent = itemView.findViewById(R.id.post_content);
+                    postHash = type == TYPE_POST ? itemView.findViewById(R.id.post_hash) : null;
+                    postId = type == TYPE_POST ? itemView.findViewById(R.id.post_id) : null;
+                    break;
+            }
+            postExpand = type == TYPE_POST ? itemView.findViewById(R.id.post_expand) : null;
+            loadMore = type == TYPE_LOAD_MORE ? itemView.findViewById(R.id.load_more_text) : null;
+
+            itemView.setOnClickListener(this);
+            if (postExpand != null) {
+                postExpand.setOnClickListener(v -> {
+                    int position = getAdapterPosition();
+                    if (position != RecyclerView.NO_POSITION && adapter != null) {
+                        adapter.expanded.add(post.Id);
+                        adapter.notifyItemChanged(position);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Run on tap of the row
+         * @param v View of the row
+         */
+        @Override
+        public void onClick(View v) {
+            if (adapter == null || adapter.listener == null) {
+                return;
+            }
+            if (type == TYPE_LOAD_MORE) {
+                adapter.listener.onLoadMore();
+            } else {
+                adapter.listener.onPostClick(getAdapterPosition(), v, post);
+            }
+        }
+    }
+}
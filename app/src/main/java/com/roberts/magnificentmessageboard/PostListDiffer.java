@@ -0,0 +1,216 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListUpdateCallback;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Works out what changed between two lists of posts off the main thread, then tells the adapter
+ * about just those rows. Keyed on {@link Post#Id}. Callers that already know exactly which rows
+ * changed can {@link #Splice} them in without a diff.
+ */
+public class PostListDiffer implements ListUpdateCallback {
+    /**
+     * Payload for rows that only need their alternating background redone
+     */
+    public static final Object PAYLOAD_BACKGROUND = new Object();
+
+    private static final DiffUtil.ItemCallback<Post> SAME_POST = new DiffUtil.ItemCallback<Post>() {
+        @Override
+        public boolean areItemsTheSame(Post oldPost, Post newPost) {
+            return oldPost.Id == newPost.Id;
+        }
+
+        @Override
+        public boolean areContentsTheSame(Post oldPost, Post newPost) {
+            return oldPost.Reply == newPost.Reply
+                    && oldPost.Hash.equals(newPost.Hash)
+                    && oldPost.Content.equals(newPost.Content);
+        }
+    };
+
+    // Diffs are quick, one thread for every list is plenty
+    private static final Executor BACKGROUND = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "differ");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final RecyclerView.Adapter<?> adapter;
+    private final Handler main = new Handler(Looper.getMainLooper());
+    // Everything below is main thread only
+    private List<Post> current = Collections.emptyList();
+    // Newest list submitted whose diff hasn't landed yet, or null
+    private List<Post> submitted = null;
+    // Bumped on every change, so diffs worked out against an older list get dropped
+    private int generation = 0;
+    // First row whose position changed by an odd amount in the update being applied
+    private int shiftedFrom = Integer.MAX_VALUE;
+
+    /**
+     * Constructor
+     * @param adapter Adapter to tell about changes
+     */
+    public PostListDiffer(RecyclerView.Adapter<?> adapter) {
+        this.adapter = adapter;
+    }
+
+    /**
+     * Show a new list of posts. Must be called on the main thread, and the list must not be
+     * changed afterwards.
+     * @param posts The new posts
+     */
+    public void Submit(List<Post> posts) {
+        int submittedAt = ++generation;
+        List<Post> old = current;
+        if (old.isEmpty() || posts.isEmpty()) {
+            // Nothing to work out
+            submitted = null;
+            current = Collections.unmodifiableList(posts);
+            if (!old.isEmpty()) {
+                onRemoved(0, old.size());
+            }
+            if (!posts.isEmpty()) {
+                onInserted(0, posts.size());
+            }
+            FixBackgrounds();
+            return;
+        }
+        submitted = posts;
+        BACKGROUND.execute(() -> {
+            DiffUtil.DiffResult result = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+                @Override
+                public int getOldListSize() {
+                    return old.size();
+                }
+
+                @Override
+                public int getNewListSize() {
+                    return posts.size();
+                }
+
+                @Override
+                public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                    return SAME_POST.areItemsTheSame(old.get(oldPosition), posts.get(newPosition));
+                }
+
+                @Override
+                public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                    return SAME_POST.areContentsTheSame(old.get(oldPosition), posts.get(newPosition));
+                }
+            });
+            main.post(() -> {
+                if (submittedAt != generation) {
+                    // Something newer came in while this was being worked out
+                    return;
+                }
+                submitted = null;
+                current = Collections.unmodifiableList(posts);
+                result.dispatchUpdatesTo(this);
+                FixBackgrounds();
+            });
+        });
+    }
+
+    /**
+     * Swap some rows for others straight away, without working out a diff. Main thread only.
+     * @param position Where the rows start
+     * @param removed How many rows go
+     * @param inserted Rows that go in their place
+     */
+    public void Splice(int position, int removed, List<Post> inserted) {
+        List<Post> spliced = new ArrayList<>(current.size() - removed + inserted.size());
+        spliced.addAll(current.subList(0, position));
+        spliced.addAll(inserted);
+        spliced.addAll(current.subList(position + removed, current.size()));
+        generation++;
+        current = Collections.unmodifiableList(spliced);
+        if (removed > 0) {
+            onRemoved(position, removed);
+        }
+        if (!inserted.isEmpty()) {
+            onInserted(position, inserted.size());
+        }
+        FixBackgrounds();
+        // A diff still being worked out started from the old rows, so it starts again from these
+        if (submitted != null) {
+            List<Post> posts = submitted;
+            submitted = null;
+            Submit(posts);
+        }
+    }
+
+    /**
+     * @return The list currently on screen. Read-only.
+     */
+    public List<Post> Current() {
+        return current;
+    }
+
+    @Override
+    public void onInserted(int position, int count) {
+        adapter.notifyItemRangeInserted(position, count);
+        if (count % 2 == 1) {
+            shiftedFrom = Math.min(shiftedFrom, position + count);
+        }
+    }
+
+    @Override
+    public void onRemoved(int position, int count) {
+        adapter.notifyItemRangeRemoved(position, count);
+        if (count % 2 == 1) {
+            shiftedFrom = Math.min(shiftedFrom, position);
+        }
+    }
+
+    @Override
+    public void onMoved(int fromPosition, int toPosition) {
+        adapter.notifyItemMoved(fromPosition, toPosition);
+        shiftedFrom = Math.min(shiftedFrom, Math.min(fromPosition, toPosition));
+    }
+
+    @Override
+    public void onChanged(int position, int count, Object payload) {
+        adapter.notifyItemRangeChanged(position, count, payload);
+    }
+
+    /**
+     * Check if a partial bind only needs the background redone
+     * @param payloads Payloads passed to onBindViewHolder
+     * @return true if every payload is {@link #PAYLOAD_BACKGROUND}
+     */
+    public static boolean OnlyBackground(List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            return false;
+        }
+        for (Object payload : payloads) {
+            if (payload != PAYLOAD_BACKGROUND) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rows alternate colors by position, so rows that moved by an odd amount need recoloring.
+     * That's a cheap partial bind, and only happens for rows on screen.
+     */
+    private void FixBackgrounds() {
+        int count = current.size();
+        if (shiftedFrom < count) {
+            adapter.notifyItemRangeChanged(shiftedFrom, count - shiftedFrom, PAYLOAD_BACKGROUND);
+        }
+        shiftedFrom = Integer.MAX_VALUE;
+    }
+}
@@ -0,0 +1,195 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Owns a list of posts shared between background loaders and an adapter. Loaders publish
+ * immutable snapshots from any thread, and the adapter only ever sees them on the main thread,
+ * so nothing it reads can change underneath it.
+ */
+public class PostListHolder {
+
+    /**
+     * An immutable list of posts. Newer snapshots have higher versions.
+     */
+    public static final class Snapshot {
+        public final List<Post> posts;
+        public final long version;
+
+        Snapshot(List<Post> posts, long version) {
+            this.posts = posts;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Gets the newest snapshot on the main thread
+     */
+    public interface Listener {
+        void onSnapshot(Snapshot snapshot);
+    }
+
+    /**
+     * Builds a new list from the current one, see {@link #Update(Mutation)}
+     */
+    public interface Mutation {
+        List<Post> apply(List<Post> current);
+    }
+
+    private final AtomicReference<Snapshot> current =
+            new AtomicReference<>(new Snapshot(Collections.<Post>emptyList(), 0));
+    private final AtomicBoolean deliveryPending = new AtomicBoolean(false);
+    private final Executor uiExecutor;
+    // Only touched on the main thread
+    private Listener listener = null;
+    private long delivered = -1;
+
+    /**
+     * @return A holder that delivers on the main thread
+     */
+    public static PostListHolder OnMainThread() {
+        Handler handler = new Handler(Looper.getMainLooper());
+        return new PostListHolder(handler::post);
+    }
+
+    /**
+     * Constructor
+     * @param uiExecutor Runs things on the thread the listener lives on
+     */
+    PostListHolder(Executor uiExecutor) {
+        this.uiExecutor = uiExecutor;
+    }
+
+    /**
+     * Start sending snapshots to a listener, starting with the current one. Main thread only.
+     * @param listener Gets the snapshots
+     */
+    public void SetListener(Listener listener) {
+        this.listener = listener;
+        delivered = -1;
+        ScheduleDelivery();
+    }
+
+    /**
+     * @return The newest snapshot. Safe from any thread.
+     */
+    public Snapshot Get() {
+        return current.get();
+    }
+
+    /**
+     * Replace the list. Safe from any thread.
+     * @param posts New posts, copied so the caller can keep using the list
+     * @return The new snapshot
+     */
+    public Snapshot Publish(List<Post> posts) {
+        List<Post> copy = Collections.unmodifiableList(new ArrayList<>(posts));
+        Snapshot next;
+        Snapshot previous;
+        do {
+            previous = current.get();
+            next = new Snapshot(copy, previous.version + 1);
+        } while (!current.compareAndSet(previous, next));
+        ScheduleDelivery();
+        return next;
+    }
+
+    /**
+     * Replace the list, but only if nobody else has since a given version. Lets slow sources
+     * like the cache step aside once fresher data has arrived.
+     * @param version Version the caller last saw
+     * @param posts New posts
+     * @return true if they were published
+     */
+    public boolean PublishIf(long version, List<Post> posts) {
+        Snapshot previous = current.get();
+        if (previous.version != version) {
+            return false;
+        }
+        Snapshot next = new Snapshot(Collections.unmodifiableList(new ArrayList<>(posts)), version + 1);
+        if (!current.compareAndSet(previous, next)) {
+            return false;
+        }
+        ScheduleDelivery();
+        return true;
+    }
+
+    /**
+     * Change the list based on what's in it, retrying if another thread got there first
+     * @param mutation Builds the new list. May run more than once, so it shouldn't have side effects.
+     * @return The new snapshot
+     */
+    public Snapshot Update(Mutation mutation) {
+        Snapshot next;
+        Snapshot previous;
+        do {
+            previous = current.get();
+            List<Post> posts = mutation.apply(previous.posts);
+            next = new Snapshot(Collections.unmodifiableList(new ArrayList<>(posts)), previous.version + 1);
+        } while (!current.compareAndSet(previous, next));
+        ScheduleDelivery();
+        return next;
+    }
+
+    /**
+     * Merge posts from a delta refresh into a list. Posts already in the list are replaced, in
+     * place, by the newer copy.
+     * @param current The list now
+     * @param newer Posts from the refresh
+     * @param newestFirst true if new posts go at the top, false for the bottom
+     * @return The merged list
+     */
+    public static List<Post> Merge(List<Post> current, List<Post> newer, boolean newestFirst) {
+        if (newer.isEmpty()) {
+            return current;
+        }
+        Set<Integer> newIds = new HashSet<>();
+        for (Post post : newer) {
+            newIds.add(post.Id);
+        }
+        List<Post> merged = new ArrayList<>(current.size() + newer.size());
+        if (newestFirst) {
+            merged.addAll(newer);
+        }
+        for (Post post : current) {
+            if (!newIds.contains(post.Id)) {
+                merged.add(post);
+            }
+        }
+        if (!newestFirst) {
+            merged.addAll(newer);
+        }
+        return merged;
+    }
+
+    /**
+     * Get the newest snapshot to the listener. Bursts of publishes only cost one delivery.
+     */
+    private void ScheduleDelivery() {
+        if (deliveryPending.compareAndSet(false, true)) {
+            uiExecutor.execute(this::Deliver);
+        }
+    }
+
+    private void Deliver() {
+        // Clear first, so anything published from here on schedules another delivery
+        deliveryPending.set(false);
+        Snapshot snapshot = current.get();
+        if (listener != null && snapshot.version > delivered) {
+            delivered = snapshot.version;
+            listener.onSnapshot(snapshot);
+        }
+    }
+}
@@ -0,0 +1,625 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Where screens get their posts from. The front page and each thread are a feed that screens
+ * watch, getting a {@link Result} every time it changes: first whatever is in memory or the
+ * {@link PostCache}, then the server's answer, then anything new from {@link LiveUpdates}, with
+ * our own posts from the {@link OutboundQueue} alongside. Errors come along as a {@link Failure}
+ * for the screen to show however it likes, instead of toasts from the network code.
+ *
+ * Every screen watching the same feed shares one copy of its posts, one fetch at a time and one
+ * long poll, so opening a thread twice costs the same as opening it once. A feed goes away when
+ * the last screen stops watching; the cache and {@link ReplyPrefetcher} still have it for next
+ * time. Main thread only, apart from {@link #Get(Context)}.
+ */
+public class PostRepository {
+    /**
+     * Feed id of the front page. Threads use the rowid of their OP.
+     */
+    public static final int FRONT_PAGE = -1;
+
+    private static PostRepository instance = null;
+
+    /**
+     * Asks the server for a feed's posts
+     */
+    interface Source {
+        /**
+         * @param rowid {@link #FRONT_PAGE}, or the OP of a thread
+         * @param state What the feed has seen, updated with the answer
+         * @return Posts newer than the state's newest
+         * @throws IOException On any failure, which gets passed on to the screens
+         */
+        NetworkUtils.Delta Fetch(int rowid, NetworkUtils.SyncState state) throws IOException;
+
+        /**
+         * Long poll for new posts, see {@link NetworkUtils#WaitForFrontPage}
+         */
+        NetworkUtils.Delta Wait(int rowid, NetworkUtils.SyncState state, int waitSeconds) throws IOException;
+    }
+
+    /**
+     * The real server
+     */
+    private static final Source NETWORK = new Source() {
+        @Override
+        public NetworkUtils.Delta Fetch(int rowid, NetworkUtils.SyncState state) throws IOException {
+            return rowid == FRONT_PAGE ? NetworkUtils.FetchFrontPageSince(state) : NetworkUtils.FetchRepliesSince(rowid, state);
+        }
+
+        @Override
+        public NetworkUtils.Delta Wait(int rowid, NetworkUtils.SyncState state, int waitSeconds) throws IOException {
+            return rowid == FRONT_PAGE ? NetworkUtils.WaitForFrontPage(state, waitSeconds)
+                    : NetworkUtils.WaitForReplies(rowid, state, waitSeconds);
+        }
+    };
+
+    /**
+     * Gets every change to a feed, on the main thread
+     */
+    public interface Observer {
+        void onResult(Result result);
+    }
+
+    /**
+     * Where a feed's posts came from
+     */
+    public enum Status {
+        /** Nothing yet, it's being fetched */
+        LOADING,
+        /** From the cache or memory, and maybe old */
+        CACHED,
+        /** From the server */
+        FRESH
+    }
+
+    /**
+     * Why the last fetch didn't work
+     */
+    public enum Reason {
+        /** Couldn't reach the server */
+        NETWORK,
+        /** The server has been failing, so it's being left alone for a bit */
+        UNAVAILABLE,
+        /** The server said no, see {@link Failure#message} */
+        REJECTED,
+        /** The server answered with something that isn't posts */
+        MALFORMED
+    }
+
+    /**
+     * A fetch that didn't work
+     */
+    public static class Failure {
+        public final Reason reason;
+        public final String message;
+
+        Failure(Reason reason, String message) {
+            this.reason = reason;
+            this.message = message;
+        }
+
+        static Failure Of(IOException e) {
+            if (e instanceof PostStreamDecoder.ApiErrorException) {
+                return new Failure(Reason.REJECTED, e.getMessage());
+            } else if (e instanceof CircuitBreaker.OpenException) {
+                return new Failure(Reason.UNAVAILABLE, e.getMessage());
+            } else if (e instanceof PostStreamDecoder.MalformedResponseException) {
+                return new Failure(Reason.MALFORMED, e.getMessage());
+            }
+            return new Failure(Reason.NETWORK, e.getMessage());
+        }
+    }
+
+    /**
+     * A feed as it is now. Nothing in it changes, the next change is a new one.
+     */
+    public static class Result {
+        /** Posts from the server, or the cache. Newest first on the front page, oldest first in a thread */
+        public final List<Post> posts;
+        /** Our own posts that aren't in {@link #posts} yet, pending or just sent, in the same order */
+        public final List<Post> local;
+        public final Status status;
+        /** Why the last fetch failed, or null if it didn't. The same object until the next fetch. */
+        public final Failure failure;
+        /** true if {@link #posts} isn't the last result's posts with newer ones added, so should replace them */
+        public final boolean replaced;
+        /** Goes up with every result */
+        public final long version;
+
+        Result(List<Post> posts, List<Post> local, Status status, Failure failure, boolean replaced, long version) {
+            this.posts = posts;
+            this.local = local;
+            this.status = status;
+            this.failure = failure;
+            this.replaced = replaced;
+            this.version = version;
+        }
+    }
+
+    /**
+     * One screen watching a feed. Hang on to it, and {@link #Close()} it when the screen goes away.
+     */
+    public class Subscription {
+        private final Feed feed;
+        private final Observer observer;
+        private boolean foreground = false;
+        private boolean closed = false;
+
+        private Subscription(Feed feed, Observer observer) {
+            this.feed = feed;
+            this.observer = observer;
+        }
+
+        /**
+         * Ask the server for posts newer than the feed has. Screens asking at the same time share
+         * one request.
+         */
+        public void Refresh() {
+            if (!closed) {
+                Fetch(feed, false);
+            }
+        }
+
+        /**
+         * Throw the feed's posts away and fetch them all again
+         */
+        public void Reload() {
+            if (!closed) {
+                feed.startOver = true;
+                Fetch(feed, true);
+            }
+        }
+
+        /**
+         * Tell the feed whether this screen is showing. Live updates hold a connection open
+         * while any screen watching is.
+         * @param foreground true from onStart to onStop
+         */
+        public void SetForeground(boolean foreground) {
+            if (closed || this.foreground == foreground) {
+                return;
+            }
+            this.foreground = foreground;
+            feed.foreground += foreground ? 1 : -1;
+            if (feed.live != null) {
+                feed.live.SetForeground(feed.foreground > 0);
+            }
+        }
+
+        /**
+         * Stop watching, usually from onDestroy
+         */
+        public void Close() {
+            if (closed) {
+                return;
+            }
+            SetForeground(false);
+            closed = true;
+            feed.observers.remove(observer);
+            if (feed.observers.isEmpty()) {
+                Drop(feed);
+            }
+        }
+    }
+
+    /**
+     * The front page or a thread, shared by everyone watching it
+     */
+    private static class Feed {
+        final int rowid;
+        final NetworkUtils.SyncState sync = new NetworkUtils.SyncState();
+        final List<Observer> observers = new ArrayList<>();
+        List<Post> posts = Collections.emptyList();
+        // Our posts that made it to the server, until a fetch brings them in. Same order as posts.
+        final List<Post> sent = new ArrayList<>();
+        Status status = Status.LOADING;
+        Failure failure = null;
+        long version = 0;
+        // Screens showing it right now
+        int foreground = 0;
+        boolean fetching = false;
+        // Asked for again while fetching, to go once the fetch is done
+        boolean fetchAgain = false;
+        boolean reloadAgain = false;
+        // A screen asked to start over, so the next reload replaces the list whatever it brings
+        boolean startOver = false;
+        LiveUpdates live = null;
+        boolean dropped = false;
+
+        Feed(int rowid) {
+            this.rowid = rowid;
+        }
+
+        boolean NewestFirst() {
+            return rowid == FRONT_PAGE;
+        }
+
+        String CacheKey() {
+            return rowid == FRONT_PAGE ? PostCache.FrontPageKey(0) : PostCache.RepliesKey(rowid);
+        }
+    }
+
+    /**
+     * How a fetch went, since the scheduler only hands back a result
+     */
+    private static class Outcome {
+        final NetworkUtils.Delta delta;
+        final IOException error;
+
+        Outcome(NetworkUtils.Delta delta, IOException error) {
+            this.delta = delta;
+            this.error = error;
+        }
+    }
+
+    private final NetworkScheduler scheduler;
+    private final Source source;
+    private final PostCache cache;
+    private final OutboundQueue outbound;
+    private final ReplyPrefetcher prefetcher;
+    private final Executor callbackExecutor;
+    // null for no live updates
+    private final LiveUpdates.Timing timing;
+    private final Map<Integer, Feed> feeds = new HashMap<>();
+
+    private final OutboundQueue.Listener outboundListener = new OutboundQueue.Listener() {
+        @Override
+        public void onQueueChanged() {
+            for (Feed feed : new ArrayList<>(feeds.values())) {
+                Emit(feed, false);
+            }
+        }
+
+        @Override
+        public void onSent(long localId, Post post) {
+            Feed feed = feeds.get(post.Reply);
+            if (feed != null) {
+                feed.sent.add(feed.NewestFirst() ? 0 : feed.sent.size(), post);
+                Emit(feed, false);
+            }
+        }
+
+        @Override
+        public void onRejected(Post post, String error) {
+            // The queue change takes it off the feed, offering the text back is up to the screen
+        }
+    };
+
+    /**
+     * Get the shared repository, creating it if needed
+     * @param context Any context
+     * @return The app-wide {@link PostRepository}
+     */
+    public static synchronized PostRepository Get(Context context) {
+        if (instance == null) {
+            // Every screen's posts come through here, so this is before any of them are fetched
+            Globals.ListenToNetwork();
+            Handler handler = new Handler(Looper.getMainLooper());
+            instance = new PostRepository(NetworkScheduler.Get(), NETWORK, PostCache.Get(context),
+                    OutboundQueue.Get(context), ReplyPrefetcher.Get(), handler::post, LiveUpdates.Timing.DEFAULT);
+        }
+        return instance;
+    }
+
+    /**
+     * Constructor, use {@link #Get(Context)} outside of tests
+     * @param scheduler Runs fetches and cache reads. Its callbacks need to be on the same thread
+     *                  as the outbound queue's and everything else here.
+     * @param source Asks the server
+     * @param cache Where feeds start from, and get saved to
+     * @param outbound Our posts, shown with the feed they belong to
+     * @param prefetcher Threads already in memory
+     * @param callbackExecutor The main thread, for live updates
+     * @param timing For live updates, or null for none
+     */
+    PostRepository(NetworkScheduler scheduler, Source source, PostCache cache, OutboundQueue outbound,
+                   ReplyPrefetcher prefetcher, Executor callbackExecutor, LiveUpdates.Timing timing) {
+        this.scheduler = scheduler;
+        this.source = source;
+        this.cache = cache;
+        this.outbound = outbound;
+        this.prefetcher = prefetcher;
+        this.callbackExecutor = callbackExecutor;
+        this.timing = timing;
+        outbound.AddListener(outboundListener);
+    }
+
+    /**
+     * Start watching a feed. The observer hears about it straight away if anyone else is already
+     * watching, otherwise once the first posts are in.
+     * @param rowid {@link #FRONT_PAGE}, or the OP of a thread
+     * @param observer Gets every change, on the main thread
+     * @return The subscription, to close when done
+     */
+    public Subscription Watch(int rowid, Observer observer) {
+        Feed feed = feeds.get(rowid);
+        boolean fresh = feed == null;
+        if (fresh) {
+            feed = new Feed(rowid);
+            feeds.put(rowid, feed);
+        }
+        feed.observers.add(observer);
+        Subscription subscription = new Subscription(feed, observer);
+        if (fresh) {
+            Load(feed);
+        } else {
+            observer.onResult(Snapshot(feed, true));
+        }
+        return subscription;
+    }
+
+    /**
+     * @return How many feeds somebody is watching
+     */
+    int FeedCount() {
+        return feeds.size();
+    }
+
+    /**
+     * Fill a new feed from memory or the cache, then the server if that's stale
+     */
+    private void Load(Feed feed) {
+        if (feed.rowid != FRONT_PAGE) {
+            ReplyPrefetcher.Entry prefetched = prefetcher.Lookup(feed.rowid);
+            if (prefetched != null) {
+                Restore(feed, prefetched.replies);
+                if (prefetched.IsStale()) {
+                    Fetch(feed, false);
+                }
+                return;
+            }
+        }
+        Emit(feed, true);
+        String key = feed.CacheKey();
+        scheduler.Submit(feed, NetworkScheduler.Lane.DISK, "cache:" + key, () -> cache.Read(key), cached -> {
+            if (feed.dropped) {
+                return;
+            }
+            // Unless the server got there first
+            if (cached != null && feed.status == Status.LOADING) {
+                Restore(feed, cached.posts);
+            }
+            if (cached == null || cached.IsStale()) {
+                // The front page starts over from the top, threads carry on from what's cached
+                Fetch(feed, feed.rowid == FRONT_PAGE);
+            }
+        });
+    }
+
+    private void Restore(Feed feed, List<Post> posts) {
+        feed.posts = Collections.unmodifiableList(new ArrayList<>(posts));
+        feed.sync.Reset();
+        feed.sync.Seen(posts);
+        feed.status = Status.CACHED;
+        Emit(feed, true);
+        // Memory or a fresh cache might mean no fetch, so this can't wait for one
+        StartLive(feed);
+    }
+
+    /**
+     * Ask the server for a feed's posts. Only one fetch runs per feed, asking again while it's
+     * running has another go once it's done.
+     * @param reload true to fetch everything, false for what's new
+     */
+    private void Fetch(Feed feed, boolean reload) {
+        if (feed.fetching) {
+            feed.fetchAgain = true;
+            feed.reloadAgain |= reload;
+            return;
+        }
+        feed.fetching = true;
+        if (reload) {
+            feed.sync.Reset();
+        }
+        int rowid = feed.rowid;
+        NetworkUtils.SyncState sync = feed.sync;
+        scheduler.Submit(feed, NetworkScheduler.Lane.READ, "feed:" + rowid,
+                () -> {
+                    try {
+                        return new Outcome(source.Fetch(rowid, sync), null);
+                    } catch (IOException e) {
+                        return new Outcome(null, e);
+                    }
+                },
+                outcome -> Fetched(feed, reload, outcome));
+    }
+
+    private void Fetched(Feed feed, boolean reload, Outcome outcome) {
+        feed.fetching = false;
+        if (feed.dropped) {
+            return;
+        }
+        if (outcome == null || outcome.delta == null) {
+            // No outcome means the fetch threw something other than an IOException, like bad JSON would
+            feed.failure = outcome != null && outcome.error != null ? Failure.Of(outcome.error) : new Failure(Reason.MALFORMED, null);
+            Emit(feed, false);
+            // Keeps trying with its own backoff, and fills the feed in once the server's back
+            StartLive(feed);
+        } else {
+            NetworkUtils.Delta delta = outcome.delta;
+            // Nothing was showing, or a screen asked to start over, or the server's list isn't
+            // what was showing with newer posts added. Otherwise screens can add the new ones
+            // and keep their place.
+            boolean replaced = feed.status == Status.LOADING
+                    || reload && (feed.startOver || !Extends(feed.posts, delta.posts, feed.NewestFirst()));
+            if (reload) {
+                feed.startOver = false;
+            }
+            feed.failure = null;
+            feed.status = Status.FRESH;
+            if (reload) {
+                feed.posts = Collections.unmodifiableList(delta.posts);
+            } else if (!delta.notModified) {
+                feed.posts = Collections.unmodifiableList(PostListHolder.Merge(feed.posts, delta.posts, feed.NewestFirst()));
+            }
+            Emit(feed, replaced);
+            if (reload || !delta.notModified) {
+                Save(feed);
+            }
+            StartLive(feed);
+        }
+        if (feed.fetchAgain) {
+            boolean again = feed.reloadAgain;
+            feed.fetchAgain = false;
+            feed.reloadAgain = false;
+            Fetch(feed, again);
+        }
+    }
+
+    /**
+     * Check if a list is an older one with newer posts added, going by ids. Where the two
+     * overlap they have to match exactly, so a post gone missing from the middle doesn't count.
+     * @param before Posts that were showing
+     * @param after Posts from the server
+     * @param newestFirst true if newer posts go on top, false if they go on the end
+     * @return true if showing after only takes adding to before
+     */
+    static boolean Extends(List<Post> before, List<Post> after, boolean newestFirst) {
+        if (before.isEmpty()) {
+            return false;
+        }
+        int start = 0;
+        if (newestFirst) {
+            // Skip the new ones on top
+            int top = before.get(0).Id;
+            while (start < after.size() && after.get(start).Id > top) {
+                start++;
+            }
+        }
+        int overlap = Math.min(before.size(), after.size() - start);
+        if (overlap <= 0 || !newestFirst && after.size() < before.size()) {
+            return false;
+        }
+        for (int i = 0; i < overlap; i++) {
+            if (before.get(i).Id != after.get(start + i).Id) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add posts from the live channel
+     * @param posts New posts, in the order the server sent them
+     */
+    private void Arrived(Feed feed, List<Post> posts) {
+        if (feed.dropped) {
+            return;
+        }
+        List<Post> newer = new ArrayList<>(posts);
+        if (feed.NewestFirst()) {
+            // A batch can hold several answers, so put the whole lot newest first
+            Collections.sort(newer, (a, b) -> Integer.compare(b.Id, a.Id));
+        }
+        feed.posts = Collections.unmodifiableList(PostListHolder.Merge(feed.posts, newer, feed.NewestFirst()));
+        feed.status = Status.FRESH;
+        Emit(feed, false);
+        Save(feed);
+    }
+
+    /**
+     * Start listening for new posts once a feed has posts to show or its first fetch failed,
+     * whichever comes first. Does nothing if it's already listening.
+     */
+    private void StartLive(Feed feed) {
+        if (timing == null || feed.live != null) {
+            return;
+        }
+        int rowid = feed.rowid;
+        feed.live = new LiveUpdates((state, wait) -> source.Wait(rowid, state, wait), feed.sync,
+                posts -> Arrived(feed, posts), LiveUpdates.Scheduler(), LiveUpdates.Pollers(),
+                callbackExecutor, timing);
+        feed.live.SetForeground(feed.foreground > 0);
+        feed.live.Start();
+    }
+
+    /**
+     * Write a feed to the cache, and keep threads in memory for the next time they're opened
+     */
+    private void Save(Feed feed) {
+        List<Post> posts = feed.posts;
+        String key = feed.CacheKey();
+        // Owned by the repository, so it still happens if the feed goes away
+        scheduler.Submit(this, NetworkScheduler.Lane.DISK, null,
+                () -> {
+                    cache.Write(key, posts);
+                    return null;
+                }, null);
+        if (feed.rowid != FRONT_PAGE) {
+            prefetcher.Remember(feed.rowid, posts);
+        }
+    }
+
+    /**
+     * Nobody's watching anymore
+     */
+    private void Drop(Feed feed) {
+        feed.dropped = true;
+        feeds.remove(feed.rowid);
+        scheduler.CancelAll(feed);
+        if (feed.live != null) {
+            feed.live.Stop();
+        }
+    }
+
+    /**
+     * Tell everyone watching a feed how it is now
+     * @param replaced true if its posts weren't just added to
+     */
+    private void Emit(Feed feed, boolean replaced) {
+        feed.version++;
+        Result result = Snapshot(feed, replaced);
+        for (Observer observer : new ArrayList<>(feed.observers)) {
+            observer.onResult(result);
+        }
+    }
+
+    private Result Snapshot(Feed feed, boolean replaced) {
+        List<Post> local = new ArrayList<>();
+        List<Post> pending = outbound.Pending(feed.rowid == FRONT_PAGE ? -1 : feed.rowid);
+        if (feed.NewestFirst()) {
+            for (int i = pending.size() - 1; i >= 0; i--) {
+                local.add(pending.get(i));
+            }
+        }
+        // Sent posts are dropped once the feed has the server's copy
+        Iterator<Post> sent = feed.sent.iterator();
+        while (sent.hasNext()) {
+            Post post = sent.next();
+            if (Contains(feed.posts, post.Id)) {
+                sent.remove();
+            } else {
+                local.add(post);
+            }
+        }
+        if (!feed.NewestFirst()) {
+            local.addAll(pending);
+        }
+        return new Result(feed.posts, Collections.unmodifiableList(local), feed.status, feed.failure, replaced, feed.version);
+    }
+
+    private static boolean Contains(List<Post> posts, int id) {
+        for (Post post : posts) {
+            if (post.Id == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,276 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches replies to the posts on screen before anyone taps them, so {@link SinglePostActivity}
+ * can show them without waiting on the network. Posts are fetched in batches, only a few of
+ * those run at once, they stop once a per-minute byte budget is spent, and the replies are kept
+ * in a small in-memory LRU keyed by rowid.
+ */
+public class ReplyPrefetcher {
+    private static final int MAX_THREADS = 64;
+    private static final int MAX_CONCURRENT = 1;
+    // Around a screen's worth either side of the viewport
+    private static final int MAX_BATCH = 20;
+    private static final long BUDGET_BYTES_PER_MINUTE = 256 * 1024;
+    // Younger than this and the thread doesn't need refreshing when it's opened
+    private static final long FRESH_MS = 60 * 1000;
+    private static final long WINDOW_MS = 60 * 1000;
+
+    private static ReplyPrefetcher instance = null;
+
+    /**
+     * Fetches the replies to several posts
+     */
+    interface Fetcher {
+        /**
+         * @param rowids Post ids
+         * @param timings Filled in with how many bytes the whole batch took
+         * @return Replies to the posts. Ones that failed are skipped over.
+         * @throws IOException If the whole batch failed, which is skipped over too
+         */
+        NetworkUtils.RepliesBatch Fetch(List<Integer> rowids, HttpTransport.Timings timings) throws IOException;
+    }
+
+    /**
+     * Replies to a post, from a prefetch or an earlier visit
+     */
+    public static class Entry {
+        public final List<Post> replies;
+        public final long fetchedAt;
+
+        Entry(List<Post> replies, long fetchedAt) {
+            this.replies = replies;
+            this.fetchedAt = fetchedAt;
+        }
+
+        /**
+         * @return true if the replies should be refreshed before being trusted
+         */
+        public boolean IsStale() {
+            return System.currentTimeMillis() - fetchedAt >= FRESH_MS;
+        }
+    }
+
+    /**
+     * What a batch brought back
+     */
+    private static class Result {
+        final NetworkUtils.RepliesBatch batch;
+        final long bytes;
+
+        Result(NetworkUtils.RepliesBatch batch, long bytes) {
+            this.batch = batch;
+            this.bytes = bytes;
+        }
+    }
+
+    private final NetworkScheduler scheduler;
+    private final Fetcher fetcher;
+    private final int maxConcurrent;
+    private final int maxBatch;
+    private final Map<Integer, Entry> threads;
+    // Posts near the viewport that still need fetching, in the order they're on screen
+    private final LinkedHashSet<Integer> wanted = new LinkedHashSet<>();
+    private final Set<Integer> inFlight = new HashSet<>();
+    private int batchesInFlight = 0;
+    private long budgetBytesPerMinute;
+    private long windowStart = 0;
+    private long windowBytes = 0;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * Get the shared prefetcher, creating it if needed
+     * @return The app-wide {@link ReplyPrefetcher}
+     */
+    public static synchronized ReplyPrefetcher Get() {
+        if (instance == null) {
+            instance = new ReplyPrefetcher(NetworkScheduler.Get(), NetworkUtils::PrefetchReplies,
+                    MAX_CONCURRENT, MAX_BATCH, BUDGET_BYTES_PER_MINUTE, MAX_THREADS);
+        }
+        return instance;
+    }
+
+    /**
+     * Constructor, use {@link #Get()} outside of tests
+     * @param scheduler Runs the fetches on its read lane
+     * @param fetcher Fetches replies
+     * @param maxConcurrent Most batches running at once
+     * @param maxBatch Most posts in one batch
+     * @param budgetBytesPerMinute Bytes prefetching may use each minute
+     * @param maxThreads Reply threads kept in memory
+     */
+    ReplyPrefetcher(NetworkScheduler scheduler, Fetcher fetcher, int maxConcurrent, int maxBatch,
+                    long budgetBytesPerMinute, int maxThreads) {
+        this.scheduler = scheduler;
+        this.fetcher = fetcher;
+        this.maxConcurrent = maxConcurrent;
+        this.maxBatch = maxBatch;
+        this.budgetBytesPerMinute = budgetBytesPerMinute;
+        threads = new LinkedHashMap<Integer, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+                return size() > maxThreads;
+            }
+        };
+    }
+
+    /**
+     * Change how much prefetching may download
+     * @param bytesPerMinute Bytes per minute, 0 turns prefetching off
+     */
+    public synchronized void SetBudget(long bytesPerMinute) {
+        budgetBytesPerMinute = bytesPerMinute;
+    }
+
+    /**
+     * Tell the prefetcher what's on screen now. Anything it was going to fetch for posts that
+     * have since scrolled away is dropped.
+     * @param posts Posts in and around the viewport, most important first
+     */
+    public synchronized void Visible(List<Post> posts) {
+        wanted.clear();
+        for (Post post : posts) {
+            if (OutboundQueue.IsPending(post) || inFlight.contains(post.Id)) {
+                continue;
+            }
+            // Don't touch the LRU order, this isn't a use
+            Entry entry = threads.containsKey(post.Id) ? Peek(post.Id) : null;
+            if (entry == null || entry.IsStale()) {
+                wanted.add(post.Id);
+            }
+        }
+        Pump();
+    }
+
+    /**
+     * Get the replies to a post if they're in memory. Counts towards the hit rate.
+     * @param rowid Post id
+     * @return The {@link Entry}, or null
+     */
+    public synchronized Entry Lookup(int rowid) {
+        Entry entry = threads.get(rowid);
+        if (entry != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Keep replies fetched some other way, so opening the thread again is instant
+     * @param rowid Post id
+     * @param replies Replies to the post
+     */
+    public synchronized void Remember(int rowid, List<Post> replies) {
+        threads.put(rowid, new Entry(Collections.unmodifiableList(new ArrayList<>(replies)), System.currentTimeMillis()));
+    }
+
+    /**
+     * @return Share of {@link #Lookup(int)}s that found something, against those plus prefetches
+     * that failed. 0 if there haven't been any.
+     */
+    public float HitRate() {
+        int hit = hits.get();
+        int total = hit + misses.get();
+        return total == 0 ? 0 : (float) hit / total;
+    }
+
+    /**
+     * @return Lookups that found replies in memory
+     */
+    public int Hits() {
+        return hits.get();
+    }
+
+    /**
+     * @return Lookups that had to go to the network, and posts prefetching couldn't get replies for
+     */
+    public int Misses() {
+        return misses.get();
+    }
+
+    /**
+     * @param rowid Post id
+     * @return true if replies to the post are in memory. Doesn't count towards the hit rate.
+     */
+    synchronized boolean Has(int rowid) {
+        return threads.containsKey(rowid);
+    }
+
+    /**
+     * Start batches until we hit the concurrency limit, run out of work or run out of budget.
+     * The budget is checked before each batch and what it took is counted once it's back.
+     */
+    private void Pump() {
+        while (batchesInFlight < maxConcurrent && !wanted.isEmpty() && !OverBudget()) {
+            List<Integer> rowids = new ArrayList<>(Math.min(maxBatch, wanted.size()));
+            Iterator<Integer> next = wanted.iterator();
+            while (rowids.size() < maxBatch && next.hasNext()) {
+                rowids.add(next.next());
+                next.remove();
+            }
+            inFlight.addAll(rowids);
+            batchesInFlight++;
+            scheduler.Submit(this, NetworkScheduler.Lane.READ, null,
+                    () -> {
+                        HttpTransport.Timings timings = new HttpTransport.Timings();
+                        NetworkUtils.RepliesBatch batch = fetcher.Fetch(rowids, timings);
+                        return new Result(batch, timings.bodyBytes);
+                    },
+                    result -> Done(rowids, result));
+        }
+    }
+
+    private synchronized void Done(List<Integer> rowids, Result result) {
+        inFlight.removeAll(rowids);
+        batchesInFlight--;
+        if (result != null) {
+            windowBytes += result.bytes;
+            for (Map.Entry<Integer, ArrayList<Post>> replies : result.batch.replies.entrySet()) {
+                Remember(replies.getKey(), replies.getValue());
+            }
+            // Couldn't have been a hit, so these count against the hit rate straight away
+            misses.addAndGet(result.batch.failures.size());
+        } else {
+            misses.addAndGet(rowids.size());
+        }
+        Pump();
+    }
+
+    private boolean OverBudget() {
+        long now = System.currentTimeMillis();
+        if (now - windowStart >= WINDOW_MS) {
+            windowStart = now;
+            windowBytes = 0;
+        }
+        return windowBytes >= budgetBytesPerMinute;
+    }
+
+    /**
+     * Read an entry without counting it as used
+     */
+    private Entry Peek(int rowid) {
+        for (Map.Entry<Integer, Entry> entry : threads.entrySet()) {
+            if (entry.getKey() == rowid) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+}
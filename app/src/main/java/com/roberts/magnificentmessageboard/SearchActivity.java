@@ -0,0 +1,128 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+import android.content.Intent;
+import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.View;
+import android.widget.EditText;
+import android.widget.TextView;
+
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Searches posts already on the phone with {@link SearchIndex}, updating as you type. Works
+ * offline, but only finds what's been fetched, sent or cached.
+ */
+public class SearchActivity extends AppCompatActivity implements PostListAdapter.Listener {
+    // More than anyone scrolls through, and keeps binding cheap for one letter searches
+    private static final int MAX_RESULTS = 100;
+
+    private PostListAdapter adapter;
+    private EditText query;
+    private TextView status;
+    // Bumped on every search, so answers to older ones get dropped if they come back late
+    private int searchCount = 0;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_search);
+        setTitle(R.string.search_title);
+
+        query = findViewById(R.id.search_query);
+        status = findViewById(R.id.search_status);
+        RecyclerView results = findViewById(R.id.search_results);
+        adapter = new PostListAdapter(this, PostListAdapter.Screen.FRONT_PAGE, this);
+        adapter.AttachTo(results);
+
+        query.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                Search(s.toString());
+            }
+        });
+
+        // Whatever's cached from earlier runs goes in the first time, then search what's typed
+        PostCache cache = PostCache.Get(this);
+        NetworkScheduler.Get().Submit(this, NetworkScheduler.Lane.DISK, "search:cache",
+                () -> {
+                    SearchIndex.Get().LoadCache(cache);
+                    return null;
+                },
+                result -> Search(query.getText().toString()));
+    }
+
+    @Override
+    protected void onDestroy() {
+        NetworkScheduler.Get().CancelAll(this);
+        super.onDestroy();
+    }
+
+    /**
+     * Look up a search in the background and show what comes back, if nothing newer was typed
+     * in the meantime
+     * @param text What's typed so far
+     */
+    private void Search(String text) {
+        int search = ++searchCount;
+        // No key, a newer search must never get handed an older one's results
+        NetworkScheduler.Get().Submit(this, NetworkScheduler.Lane.DISK, null,
+                () -> SearchIndex.Get().Search(text, MAX_RESULTS),
+                found -> {
+                    if (search != searchCount || found == null) {
+                        return;
+                    }
+                    adapter.SubmitPosts(found);
+                    ShowStatus(text, found);
+                });
+    }
+
+    private void ShowStatus(String text, List<Post> found) {
+        if (text.trim().isEmpty()) {
+            status.setText(String.format(Locale.US, "%d posts", SearchIndex.Get().Size()));
+        } else if (found.isEmpty()) {
+            status.setText(R.string.search_empty);
+        } else {
+            status.setText(String.format(Locale.US, "%d%s found", found.size(), found.size() == MAX_RESULTS ? "+" : ""));
+        }
+    }
+
+    /**
+     * Open the thread a result is in, scrolled to the top
+     */
+    @Override
+    public void onPostClick(int item, View itemView, Post post) {
+        // Climb up to the OP through whatever replies we know about
+        Post op = post;
+        for (int hops = 0; op.Reply != -1 && hops < MAX_RESULTS; hops++) {
+            Post parent = SearchIndex.Get().Find(op.Reply);
+            if (parent == null) {
+                break;
+            }
+            op = parent;
+        }
+        Intent intent = new Intent(this, SinglePostActivity.class);
+        PostHandoff.Put(intent, MainActivity.VIEWPOSTID, op);
+        startActivity(intent);
+    }
+
+    @Override
+    public void onLoadMore() {
+        // Results all come in at once
+    }
+}
@@ -0,0 +1,252 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+
+/**
+ * Searches every post the app has seen, without asking the server. An inverted index from words
+ * to the posts they're in, fed whenever posts are fetched or sent, and from the {@link PostCache}
+ * the first time it's needed. Words in the search match any word starting with them, so results
+ * show up while the last one is still being typed, and every word has to match.
+ *
+ * This is where most posts in memory live, so they're kept in a {@link PostStore} rather than as
+ * {@link Post}s, and only the ones a search finds get made into posts again.
+ */
+public class SearchIndex {
+    // Long words are cut down to this, nobody types more of one than that
+    static final int MAX_TERM_CHARS = 24;
+
+    private static SearchIndex instance = null;
+
+    /**
+     * Posts a word is in, by their number in the index, smallest first
+     */
+    private static final class Postings {
+        int[] docs = new int[2];
+        int size = 0;
+
+        void Add(int doc) {
+            // Each post is only indexed once and in order, so checking the end is enough to skip
+            // words it has twice
+            if (size > 0 && docs[size - 1] == doc) {
+                return;
+            }
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+            }
+            docs[size++] = doc;
+        }
+
+        /**
+         * Add a post that might not be the newest, keeping them in order
+         */
+        void Insert(int doc) {
+            int at = Arrays.binarySearch(docs, 0, size, doc);
+            if (at >= 0) {
+                return;
+            }
+            at = -at - 1;
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+            }
+            System.arraycopy(docs, at, docs, at + 1, size - at);
+            docs[at] = doc;
+            size++;
+        }
+    }
+
+    // Everything below is guarded by this. A post's number in the index is its slot in the store.
+    private final PostStore store = new PostStore();
+    // Exact lookups while indexing
+    private final HashMap<String, Postings> terms = new HashMap<>();
+    // The same words in order, for prefix lookups. Only new words pay to go in.
+    private final TreeMap<String, Postings> sorted = new TreeMap<>();
+    private boolean cacheLoaded = false;
+
+    /**
+     * Get the shared index, creating it if needed
+     * @return The app-wide {@link SearchIndex}
+     */
+    public static synchronized SearchIndex Get() {
+        if (instance == null) {
+            instance = new SearchIndex();
+        }
+        return instance;
+    }
+
+    /**
+     * Constructor, the app shares one from {@link #Get()}
+     */
+    public SearchIndex() {
+    }
+
+    /**
+     * Split text into lowercase words, anything that isn't a letter or digit is a gap
+     * @param text Text to split
+     * @return The words, in order
+     */
+    static List<String> Tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i < text.length(); ) {
+            int c = text.codePointAt(i);
+            i += Character.charCount(c);
+            if (Character.isLetterOrDigit(c)) {
+                if (token.length() < MAX_TERM_CHARS) {
+                    token.appendCodePoint(Character.toLowerCase(c));
+                }
+            } else if (token.length() > 0) {
+                tokens.add(token.toString());
+                token.setLength(0);
+            }
+        }
+        if (token.length() > 0) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+
+    /**
+     * Index posts. Ones already in the index are updated in the store but not indexed again,
+     * apart from a hash turning up for one that was sent from here without one.
+     * Pending posts are skipped, they'll be indexed once they're sent.
+     * @param newPosts Posts to add
+     */
+    public synchronized void Add(List<Post> newPosts) {
+        for (int i = 0; i < newPosts.size(); i++) {
+            Post post = newPosts.get(i);
+            if (OutboundQueue.IsPending(post)) {
+                continue;
+            }
+            int found = store.Find(post.Id);
+            String oldHash = found >= 0 ? store.Hash(found) : null;
+            int doc = store.Put(post);
+            if (oldHash != null) {
+                if (oldHash.isEmpty() && !post.Hash.isEmpty()) {
+                    Insert(post.Hash.toLowerCase(Locale.ROOT), doc);
+                }
+                continue;
+            }
+            for (String term : Tokenize(post.Content)) {
+                Index(term, doc);
+            }
+            if (!post.Hash.isEmpty()) {
+                Index(post.Hash.toLowerCase(Locale.ROOT), doc);
+            }
+        }
+    }
+
+    private void Index(String term, int doc) {
+        Postings postings = terms.get(term);
+        if (postings == null) {
+            postings = new Postings();
+            terms.put(term, postings);
+            sorted.put(term, postings);
+        }
+        postings.Add(doc);
+    }
+
+    private void Insert(String term, int doc) {
+        Postings postings = terms.get(term);
+        if (postings == null) {
+            postings = new Postings();
+            terms.put(term, postings);
+            sorted.put(term, postings);
+        }
+        postings.Insert(doc);
+    }
+
+    /**
+     * Index everything in the cache, the first time only. Call off the main thread.
+     * @param cache Cache to read
+     */
+    public void LoadCache(PostCache cache) {
+        synchronized (this) {
+            if (cacheLoaded) {
+                return;
+            }
+            cacheLoaded = true;
+        }
+        for (String key : cache.Keys()) {
+            PostCache.Entry entry = cache.Peek(key);
+            if (entry != null) {
+                Add(entry.posts);
+            }
+        }
+    }
+
+    /**
+     * Find posts with every word of a search in them
+     * @param query What was typed
+     * @param limit Most posts to return
+     * @return Matching posts, newest first
+     */
+    public synchronized List<Post> Search(String query, int limit) {
+        List<String> words = Tokenize(query);
+        int size = store.Size();
+        if (words.isEmpty() || size == 0) {
+            return Collections.emptyList();
+        }
+        BitSet matches = null;
+        for (String word : words) {
+            BitSet found = new BitSet(size);
+            for (Postings postings : sorted.subMap(word, true, word + Character.MAX_VALUE, false).values()) {
+                for (int i = 0; i < postings.size; i++) {
+                    found.set(postings.docs[i]);
+                }
+            }
+            if (matches == null) {
+                matches = found;
+            } else {
+                matches.and(found);
+            }
+            if (matches.isEmpty()) {
+                return Collections.emptyList();
+            }
+        }
+
+        // rowid in the top half and number in the index in the bottom, so sorting puts newest last
+        long[] order = new long[matches.cardinality()];
+        int count = 0;
+        for (int doc = matches.nextSetBit(0); doc >= 0; doc = matches.nextSetBit(doc + 1)) {
+            order[count++] = ((long) store.Id(doc) << 32) | doc;
+        }
+        Arrays.sort(order);
+        List<Post> results = new ArrayList<>(Math.min(limit, count));
+        for (int i = count - 1; i >= 0 && results.size() < limit; i--) {
+            results.add(store.Get((int) order[i]));
+        }
+        return results;
+    }
+
+    /**
+     * @param id rowid of a post
+     * @return A copy of the post, if it's been indexed
+     */
+    public synchronized Post Find(int id) {
+        int doc = store.Find(id);
+        return doc < 0 ? null : store.Get(doc);
+    }
+
+    /**
+     * @return How many posts are indexed
+     */
+    public synchronized int Size() {
+        return store.Size();
+    }
+
+    /**
+     * @return How many different words are indexed
+     */
+    public synchronized int Terms() {
+        return terms.size();
+    }
+}
@@ -0,0 +1,170 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The app's settings, loaded off the main thread. {@link SharedPreferences} reads the whole file
+ * the first time anything asks it for anything, and before this the main thread did that (and a
+ * commit) before the front page could show. Now the file is read on a thread of its own, next to
+ * the front page's cache read rather than queued behind or ahead of it, the tripcode is made
+ * there on first run, and everyone else reads an in-memory {@link Snapshot}.
+ */
+public class Settings {
+    // The file MainActivity.getPreferences() used to keep, so tripcodes from before carry over
+    private static final String FILE = "MainActivity";
+    static final String TRIPCODE = "com.roberts.magnificentmessageboard.tripcode";
+
+    private static Settings instance = null;
+
+    /**
+     * Where settings are kept
+     */
+    interface Backing {
+        Map<String, ?> Load();
+
+        void Save(String key, String value);
+    }
+
+    /**
+     * Settings as they were at one point in time
+     */
+    public static final class Snapshot {
+        // Sent along with every post, so the server can tell our posts are ours
+        public final String tripcode;
+        // false if the settings couldn't be read or written, so these only last until the app is
+        // restarted
+        public final boolean saved;
+
+        Snapshot(String tripcode, boolean saved) {
+            this.tripcode = tripcode;
+            this.saved = saved;
+        }
+    }
+
+    private final Backing backing;
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private volatile Snapshot snapshot = null;
+
+    /**
+     * Get the shared settings, starting to load them if that hasn't happened yet. Returns straight
+     * away, fine on the main thread.
+     * @param context Any context
+     * @return The app-wide {@link Settings}
+     */
+    public static synchronized Settings Get(Context context) {
+        if (instance == null) {
+            // Even opening the file touches the disk, so that happens on the thread too
+            Context app = context.getApplicationContext();
+            instance = new Settings(new Backing() {
+                @Override
+                public Map<String, ?> Load() {
+                    return app.getSharedPreferences(FILE, Context.MODE_PRIVATE).getAll();
+                }
+
+                @Override
+                public void Save(String key, String value) {
+                    // Already off the main thread, and commit doesn't leave work for onStop to wait on like apply does
+                    app.getSharedPreferences(FILE, Context.MODE_PRIVATE).edit().putString(key, value).commit();
+                }
+            }, NewExecutor());
+        }
+        return instance;
+    }
+
+    /**
+     * One thread, which goes away once there's nothing left to load or save
+     */
+    private static Executor NewExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "settings");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @return The shared settings, or null if nothing has called {@link #Get(Context)} yet
+     */
+    public static synchronized Settings Get() {
+        return instance;
+    }
+
+    /**
+     * Constructor, use {@link #Get(Context)} outside of tests. Starts loading.
+     * @param backing Where settings are kept
+     * @param executor Where they get loaded and saved, in order
+     */
+    Settings(Backing backing, Executor executor) {
+        this.backing = backing;
+        executor.execute(this::Load);
+    }
+
+    private void Load() {
+        try {
+            Map<String, ?> values;
+            try {
+                values = backing.Load();
+            } catch (RuntimeException e) {
+                // A broken file. Posts still go out, with a tripcode just for this run, and saving
+                // it could write over the real one.
+                Metrics.Get().Error(Metrics.Classify(e));
+                snapshot = new Snapshot(UUID.randomUUID().toString(), false);
+                return;
+            }
+            Object tripcode = values.get(TRIPCODE);
+            if (tripcode instanceof String) {
+                snapshot = new Snapshot((String) tripcode, true);
+            } else {
+                // First run
+                String trip = UUID.randomUUID().toString();
+                boolean saved = true;
+                try {
+                    backing.Save(TRIPCODE, trip);
+                } catch (RuntimeException e) {
+                    Metrics.Get().Error(Metrics.Classify(e));
+                    saved = false;
+                }
+                snapshot = new Snapshot(trip, saved);
+            }
+        } finally {
+            loaded.countDown();
+        }
+    }
+
+    /**
+     * Never waits, fine on the main thread
+     * @return The settings, or null if they're still loading
+     */
+    public Snapshot Peek() {
+        return snapshot;
+    }
+
+    /**
+     * Get the settings, waiting for them to load if they haven't. Not for the main thread.
+     * @return The settings. Never null, if they couldn't be loaded these are the defaults, see
+     * {@link Snapshot#saved}
+     * @throws InterruptedIOException If interrupted while waiting
+     */
+    public Snapshot Await() throws InterruptedIOException {
+        try {
+            loaded.await();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for settings");
+        }
+        return snapshot;
+    }
+}
@@ -11,69 +11,172 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.EditText;
-import android.widget.TextView;
 
 
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
-import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import java.util.ArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Collections;
+import java.util.List;
 
 
 /**
  * Activity for viewing a {@link Post} and it's replies
  */
-public class SinglePostActivity extends AppCompatActivity {
-    private SinglePostAdapter replyAdapter;
+public class SinglePostActivity extends AppCompatActivity implements PostListAdapter.Listener {
+    private PostListAdapter replyAdapter;
     private Post originalPost;
+    // Which reply answers which, fed from the replies as they come in. Main thread only.
+    private ThreadIndex thread;
+    // The thread as the repository has it, shared with anything else showing it
+    private PostRepository.Subscription replyFeed;
+    // Our replies that aren't in the thread yet, shown at the end
+    private List<Post> local = Collections.emptyList();
+    private PostRepository.Failure failureShown = null;
+    // For timing how long the replies take to show up
+    private long createdAt;
+    private boolean firstPostShown = false;
+    private OutboundQueue outbound;
+    private final OutboundQueue.Listener outboundListener = new OutboundQueue.Listener() {
+        @Override
+        public void onQueueChanged() {
+            // The repository tells us
+        }
+
+        @Override
+        public void onSent(long localId, Post post) {
+        }
+
+        @Override
+        public void onRejected(Post post, String error) {
+            if (post.Reply == originalPost.Id) {
+                NewReplyDialog(post.Content);
+            }
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        createdAt = System.nanoTime();
         setContentView(R.layout.activity_singlepost);
         Intent intent = getIntent();
 
         RecyclerView reply_list = findViewById(R.id.sp_replies);
 
-        // Load up the OP's data
-        originalPost = (Post) intent.getSerializableExtra(MainActivity.VIEWPOSTID);
-        ((TextView) findViewById(R.id.op_id)).setText(""+originalPost.Id);
-        ((TextView) findViewById(R.id.op_hash)).setText(originalPost.Hash);
-        TextView content = findViewById(R.id.op_content);
-        content.setText(originalPost.Content);
+        originalPost = PostHandoff.Get(intent, MainActivity.VIEWPOSTID);
 
-        // Initialize Recyclerview stuff
-        replyAdapter = new SinglePostAdapter(this, new ArrayList<>());
+        // Initialize Recyclerview stuff. Rows come from the shared pool when the front page left some.
+        thread = new ThreadIndex(originalPost.Id);
+        thread.Add(originalPost);
+        replyAdapter = new PostListAdapter(this, PostListAdapter.Screen.THREAD, this);
+        replyAdapter.SetThread(thread);
+        replyAdapter.AttachTo(reply_list);
+        // The OP shows straight away, replies fill in under it
+        replyAdapter.SubmitPosts(Collections.singletonList(originalPost));
 
-        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
-        reply_list.setLayoutManager(layoutManager);
-        reply_list.setAdapter(replyAdapter);
+        outbound = OutboundQueue.Get(this);
+        outbound.AddListener(outboundListener);
+        // Replies might already be in memory, from a prefetch, an earlier visit or another screen
+        replyFeed = PostRepository.Get(this).Watch(originalPost.Id, this::ShowFeed);
 
-        getPosts(originalPost.Id);
+    }
 
+    /**
+     * Take in the thread as the repository has it now
+     * @param result The thread now
+     */
+    private void ShowFeed(PostRepository.Result result) {
+        local = result.local;
+        ShowReplies(result.posts);
+        // Counts a thread with no replies too, once we know it has none
+        if (!firstPostShown && result.status != PostRepository.Status.LOADING) {
+            firstPostShown = true;
+            Metrics.Get().FirstPost(Metrics.SCREEN_THREAD, System.nanoTime() - createdAt);
+        }
+        if (result.failure != null && result.failure != failureShown) {
+            failureShown = result.failure;
+            MainActivity.ShowFailure(this, result.failure);
+        }
     }
 
     /**
-     * Get replies to the post
-     * @param rowid ID of the original post
+     * Show the OP and its replies in thread order, with our own that aren't in the thread yet at
+     * the end
+     * @param replies Replies from the repository. Ones the thread already has cost nothing.
      */
-    public void getPosts(int rowid) {
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        // See the getPosts in MainActivity
-        executor.execute(() -> {
-            ArrayList<Post> posts =  NetworkUtils.GetReplies(rowid);
-
-            if (posts != null) {
-                for (Post post: posts) {
-                    replyAdapter.AddPost(post);
-                }
-                runOnUiThread(() -> replyAdapter.UpdateSize());
-            }
-        });
+    private void ShowReplies(List<Post> replies) {
+        // Only replies it hasn't seen cost anything more than a lookup
+        thread.AddAll(replies);
+        List<Post> posts = new ArrayList<>();
+        posts.add(originalPost);
+        posts.addAll(thread.Visible());
+        posts.addAll(local);
+        replyAdapter.SubmitPosts(posts);
+    }
+
+    /**
+     * Tapping a reply with replies under it hides or shows them
+     * @param position Position of the row
+     * @param itemView View of the row
+     * @param post The row's post
+     */
+    @Override
+    public void onPostClick(int position, View itemView, Post post) {
+        if (post.Id == originalPost.Id || OutboundQueue.IsPending(post)) {
+            return;
+        }
+        boolean expanding = thread.IsCollapsed(post.Id);
+        int rows = expanding ? thread.Expand(post.Id) : thread.Collapse(post.Id);
+        if (rows == 0) {
+            // Nothing under it
+            return;
+        }
+        // Only the rows under it change, so they're spliced in or out without walking the thread
+        List<Post> shown = replyAdapter.Posts();
+        if (position < 0 || position >= shown.size() || shown.get(position).Id != post.Id) {
+            // Tapped just as the list changed, so there's nothing to splice against
+            ShowReplies(Collections.<Post>emptyList());
+        } else if (expanding) {
+            replyAdapter.SplicePosts(position + 1, 0, thread.VisibleBelow(post.Id));
+        } else {
+            replyAdapter.SplicePosts(position + 1, rows, Collections.<Post>emptyList());
+        }
+    }
+
+    /**
+     * Threads come in one go, there's never more to load
+     */
+    @Override
+    public void onLoadMore() {
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        replyFeed.SetForeground(true);
+    }
+
+    /**
+     * Nobody's watching, so stop holding a connection open for new replies
+     */
+    @Override
+    protected void onStop() {
+        replyFeed.SetForeground(false);
+        super.onStop();
+    }
+
+    /**
+     * Drop any requests still waiting to deliver to this activity
+     */
+    @Override
+    protected void onDestroy() {
+        NetworkScheduler.Get().CancelAll(this);
+        outbound.RemoveListener(outboundListener);
+        replyFeed.Close();
+        super.onDestroy();
     }
 
     /**
@@ -81,11 +184,20 @@ public class SinglePostActivity extends AppCompatActivity {
      * @param view View of the button that we tapped
      */
     public void NewReplyButton(View view) {
+        NewReplyDialog("");
+    }
+
+    /**
+     * Ask for the content of a new reply
+     * @param text What to start the box off with
+     */
+    private void NewReplyDialog(String text) {
         // Credit to https://stackoverflow.com/a/10904665
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setTitle("New Reply");
         // Load the text editor
         final EditText input = new EditText(this);
+        input.setText(text);
         // Specifically allow multiline
         input.setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_FLAG_MULTI_LINE);
         builder.setView(input);
@@ -105,29 +217,26 @@ public class SinglePostActivity extends AppCompatActivity {
     public boolean onCreateOptionsMenu(Menu menu) {
         MenuInflater inflater = getMenuInflater();
         inflater.inflate(R.menu.frontpage_menu, menu);
+        // Front page only
+        menu.removeItem(R.id.action_fp_metrics);
+        menu.removeItem(R.id.action_fp_search);
         return true;
     }
 
     /**
-     * Create a new reply to the post
+     * Create a new reply to the post. It shows up as pending straight away, and goes out in the
+     * background.
      * @param content String content of the reply
      */
     private void CreateNewReply(String content) {
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        executor.execute(() -> {
-            int pid = NetworkUtils.CreateNewPost(content, originalPost.Id);
-            if (pid != -1) {
-                runOnUiThread(this::RefreshPosts);
-            }
-        });
+        outbound.Enqueue(content, originalPost.Id);
     }
 
     /**
-     * Clear replies and reload
+     * Reload replies. The old ones stay up until the new ones arrive.
      */
     private void RefreshPosts() {
-        replyAdapter.clear();
-        getPosts(originalPost.Id);
+        replyFeed.Refresh();
     }
     /**
      * Clear replies and reload
@@ -0,0 +1,172 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Trace;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Times the front page coming up, from onCreate to the first frame and then the first posts.
+ * Each phase of onCreate is a section, which shows up in systrace and Perfetto as startup:name
+ * and in {@link Metrics}. Work that isn't needed to show posts goes in {@link #Defer(Runnable)}
+ * and waits until after the first frame, when the main thread has nothing better to do.
+ *
+ * The startup benchmark holds every launch to {@link #FIRST_FRAME_BUDGET_MS} and
+ * {@link #FIRST_POST_BUDGET_MS}. Main thread only, apart from reading the marks.
+ */
+public class StartupTrace {
+    public static final String FIRST_FRAME = "first_frame";
+    public static final String FIRST_POST = "first_post";
+    // From onCreate, on a mid-range phone with the front page cached
+    public static final long FIRST_FRAME_BUDGET_MS = 500;
+    public static final long FIRST_POST_BUDGET_MS = 800;
+
+    private static final String PREFIX = "startup:";
+
+    private static volatile StartupTrace latest = null;
+
+    private final long startedAt = System.nanoTime();
+    // Section and mark times, in the order they happened. Guarded by itself.
+    private final Map<String, Long> marks = new LinkedHashMap<>();
+    private String section = null;
+    private long sectionStart;
+    private final List<Runnable> deferred = new ArrayList<>();
+    private boolean settled = false;
+
+    /**
+     * Start timing, first thing in onCreate
+     * @return The trace for this launch
+     */
+    public static StartupTrace Begin() {
+        StartupTrace trace = new StartupTrace();
+        latest = trace;
+        Choreographer.getInstance().postFrameCallback(frameTimeNanos -> {
+            // Called as the frame starts, this runs once it's been drawn
+            new Handler(Looper.getMainLooper()).postAtFrontOfQueue(trace::FirstFrame);
+        });
+        return trace;
+    }
+
+    /**
+     * @return The trace of the newest launch, or null if there hasn't been one. For the benchmark.
+     */
+    public static StartupTrace Latest() {
+        return latest;
+    }
+
+    /**
+     * Start a phase, ending the one before
+     * @param name What's happening, like "inflate"
+     */
+    public void Section(String name) {
+        EndSection();
+        Trace.beginSection(PREFIX + name);
+        section = name;
+        sectionStart = System.nanoTime();
+    }
+
+    /**
+     * End the phase that's running, if there is one
+     */
+    public void EndSection() {
+        if (section == null) {
+            return;
+        }
+        Trace.endSection();
+        long nanos = System.nanoTime() - sectionStart;
+        Metrics.Get().Startup(section, nanos);
+        synchronized (marks) {
+            marks.put(section, nanos);
+        }
+        section = null;
+    }
+
+    private void FirstFrame() {
+        long nanos = Mark(FIRST_FRAME);
+        Metrics.Get().Startup(FIRST_FRAME, nanos);
+        settled = true;
+        List<Runnable> tasks = new ArrayList<>(deferred);
+        deferred.clear();
+        RunWhenIdle(tasks);
+    }
+
+    /**
+     * The front page showed posts. Only the first call counts.
+     * @param activity Reported as fully drawn, so the system's startup timing stops here too
+     */
+    public void FirstPost(Activity activity) {
+        synchronized (marks) {
+            if (marks.containsKey(FIRST_POST)) {
+                return;
+            }
+        }
+        long nanos = Mark(FIRST_POST);
+        Metrics.Get().FirstPost(Metrics.SCREEN_FRONT_PAGE, nanos);
+        activity.reportFullyDrawn();
+    }
+
+    private long Mark(String name) {
+        long nanos = System.nanoTime() - startedAt;
+        synchronized (marks) {
+            marks.put(name, nanos);
+        }
+        return nanos;
+    }
+
+    /**
+     * Run something once the first frame is up and the main thread is idle, or as soon as it's
+     * idle if that's already happened. Anything slow should hand itself off to a background
+     * thread from there.
+     * @param task The work
+     */
+    public void Defer(Runnable task) {
+        if (settled) {
+            RunWhenIdle(Collections.singletonList(task));
+        } else {
+            deferred.add(task);
+        }
+    }
+
+    /**
+     * One task per idle moment, so none of them hold up a frame for long
+     */
+    private static void RunWhenIdle(List<Runnable> tasks) {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        List<Runnable> left = new ArrayList<>(tasks);
+        Looper.myQueue().addIdleHandler(() -> {
+            left.remove(0).run();
+            return !left.isEmpty();
+        });
+    }
+
+    /**
+     * @param name {@link #FIRST_FRAME}, {@link #FIRST_POST} or a section
+     * @return Nanoseconds from onCreate to a mark, or how long a section took. -1 if it hasn't happened.
+     */
+    public long Get(String name) {
+        synchronized (marks) {
+            Long nanos = marks.get(name);
+            return nanos != null ? nanos : -1;
+        }
+    }
+
+    /**
+     * @return Every section and mark so far, in order
+     */
+    public Map<String, Long> Marks() {
+        synchronized (marks) {
+            return new LinkedHashMap<>(marks);
+        }
+    }
+}
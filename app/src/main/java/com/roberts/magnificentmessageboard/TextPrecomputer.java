@@ -0,0 +1,146 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+import android.widget.TextView;
+
+import androidx.core.text.PrecomputedTextCompat;
+import androidx.core.widget.TextViewCompat;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures post text for rows that are about to scroll on, so binding them is cheap. Measuring a
+ * long post is most of what a bind costs, and doing it on the main thread drops frames, so each
+ * adapter asks for the next few rows ahead of the one it's binding and they get measured on a
+ * background thread with {@link PrecomputedTextCompat}. A row that shows up before its text is
+ * ready just measures it the old way.
+ */
+public class TextPrecomputer {
+    // Rows past the one being bound to get ready
+    static final int LOOKAHEAD = 8;
+    private static final int CACHE_SIZE = 64;
+
+    // One thread for every adapter, it only needs to stay a few rows ahead of the finger
+    private static final Executor measurer = CreateMeasurer();
+
+    // Guarded by this
+    private final Map<CharSequence, PrecomputedTextCompat> measured = new LinkedHashMap<CharSequence, PrecomputedTextCompat>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<CharSequence, PrecomputedTextCompat> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    private final Set<CharSequence> queued = new HashSet<>();
+    // How the content TextView draws, taken from the first one bound. Main thread only.
+    private PrecomputedTextCompat.Params params = null;
+    private int lastPosition = 0;
+
+    /**
+     * Where rows get their text from
+     */
+    public interface Source {
+        /**
+         * @param position Row in the adapter
+         * @return What that row's content TextView will show
+         */
+        CharSequence TextAt(int position);
+
+        /**
+         * @return Amount of rows
+         */
+        int Count();
+    }
+
+    private static Executor CreateMeasurer() {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "text-measure");
+            thread.setDaemon(true);
+            // Below the network threads, it's only ever getting ahead
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Put text in a row, measured already if it was got ready in time. Main thread only.
+     * @param view The row's content TextView
+     * @param text What to show
+     */
+    public void Bind(TextView view, CharSequence text) {
+        if (params == null) {
+            params = TextViewCompat.getTextMetricsParams(view);
+        }
+        PrecomputedTextCompat ready;
+        synchronized (this) {
+            ready = measured.get(text);
+        }
+        if (ready != null && ready.getParams().equals(params)) {
+            TextViewCompat.setPrecomputedText(view, ready);
+        } else {
+            view.setText(text);
+        }
+    }
+
+    /**
+     * Get the rows past this one ready, in whichever way the list is scrolling. Main thread only.
+     * @param source Where the rows' text comes from
+     * @param position Row that was just bound
+     */
+    public void Ahead(Source source, int position) {
+        int step = position >= lastPosition ? 1 : -1;
+        lastPosition = position;
+        int count = source.Count();
+        for (int i = 1; i <= LOOKAHEAD; i++) {
+            int next = position + i * step;
+            if (next < 0 || next >= count) {
+                break;
+            }
+            Prepare(source.TextAt(next));
+        }
+    }
+
+    /**
+     * Measure some text in the background, unless it's done or on its way. Main thread only.
+     * @param text Text a row is going to show
+     */
+    public void Prepare(CharSequence text) {
+        PrecomputedTextCompat.Params current = params;
+        if (current == null) {
+            // Nothing bound yet, so nothing to measure against
+            return;
+        }
+        synchronized (this) {
+            PrecomputedTextCompat ready = measured.get(text);
+            if ((ready != null && ready.getParams().equals(current)) || !queued.add(text)) {
+                return;
+            }
+        }
+        measurer.execute(() -> {
+            PrecomputedTextCompat result = PrecomputedTextCompat.create(text, current);
+            synchronized (this) {
+                measured.put(text, result);
+                queued.remove(text);
+            }
+        });
+    }
+
+    /**
+     * Forget everything measured, like when the text size changes
+     */
+    public void Clear() {
+        synchronized (this) {
+            measured.clear();
+        }
+        params = null;
+    }
+}
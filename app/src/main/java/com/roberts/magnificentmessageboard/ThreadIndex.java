@@ -0,0 +1,367 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Which reply answers which in a thread, built up as replies come in. Each post gets a slot, and
+ * the tree is kept as int arrays of parent, first child, last child and next sibling slots, so
+ * adding a reply is a hash lookup and a couple of writes no matter how big or deep the thread is.
+ * Replies can turn up before the post they answer; they wait, with their own replies hanging off
+ * them, until it does.
+ *
+ * Collapsing or expanding a reply only walks the replies under it. Not thread safe, it belongs to
+ * whichever screen is showing the thread.
+ */
+public class ThreadIndex {
+    private static final int NONE = -1;
+    // The OP's slot
+    private static final int ROOT = 0;
+
+    private final int rootId;
+    private Post root = null;
+    // Slots in use, the OP's included
+    private int size = 1;
+    private int[] ids;
+    private int[] parents;
+    private int[] firstChild;
+    private int[] lastChild;
+    private int[] nextSibling;
+    // Levels below the OP, or NONE while waiting on a missing parent
+    private int[] depths;
+    private boolean[] collapsed;
+    private Post[] posts;
+    // Post id to slot
+    private final IntMap slots = new IntMap();
+    // Id of a post that hasn't turned up to the first slot waiting on it, chained by nextSibling
+    private final IntMap waiting = new IntMap();
+    private final IntMap lastWaiting = new IntMap();
+
+    /**
+     * Constructor
+     * @param rootId rowid of the OP
+     */
+    public ThreadIndex(int rootId) {
+        this(rootId, 16);
+    }
+
+    /**
+     * Constructor
+     * @param rootId rowid of the OP
+     * @param expected About how many replies there'll be, so the arrays start big enough
+     */
+    public ThreadIndex(int rootId, int expected) {
+        this.rootId = rootId;
+        int capacity = Math.max(expected + 1, 4);
+        ids = new int[capacity];
+        parents = new int[capacity];
+        firstChild = new int[capacity];
+        lastChild = new int[capacity];
+        nextSibling = new int[capacity];
+        depths = new int[capacity];
+        collapsed = new boolean[capacity];
+        posts = new Post[capacity];
+        ids[ROOT] = rootId;
+        parents[ROOT] = NONE;
+        firstChild[ROOT] = NONE;
+        lastChild[ROOT] = NONE;
+        nextSibling[ROOT] = NONE;
+        depths[ROOT] = 0;
+        slots.Put(rootId, ROOT);
+    }
+
+    /**
+     * Add a post to the thread. Adding one that's already there swaps in the new copy.
+     * @param post The OP, or a reply to it or to any reply in the thread
+     * @return true if it's new
+     */
+    public boolean Add(Post post) {
+        int slot = slots.Get(post.Id);
+        if (slot == ROOT) {
+            boolean first = root == null;
+            root = post;
+            return first;
+        }
+        if (slot != NONE) {
+            posts[slot] = post;
+            return false;
+        }
+        slot = NewSlot(post);
+        // Anything that was waiting on this one hangs off it now
+        int adopted = waiting.Remove(post.Id);
+        if (adopted != NONE) {
+            lastWaiting.Remove(post.Id);
+            firstChild[slot] = adopted;
+            int last = adopted;
+            for (int child = adopted; child != NONE; child = nextSibling[child]) {
+                parents[child] = slot;
+                last = child;
+            }
+            lastChild[slot] = last;
+        }
+
+        int parent = slots.Get(post.Reply);
+        if (parent == NONE || parent == slot) {
+            // Its parent hasn't turned up yet
+            depths[slot] = NONE;
+            int tail = lastWaiting.Get(post.Reply);
+            if (tail == NONE) {
+                waiting.Put(post.Reply, slot);
+            } else {
+                nextSibling[tail] = slot;
+            }
+            lastWaiting.Put(post.Reply, slot);
+            return true;
+        }
+        parents[slot] = parent;
+        if (lastChild[parent] == NONE) {
+            firstChild[parent] = slot;
+        } else {
+            nextSibling[lastChild[parent]] = slot;
+        }
+        lastChild[parent] = slot;
+        if (depths[parent] != NONE) {
+            depths[slot] = depths[parent] + 1;
+            if (adopted != NONE) {
+                // It brought replies with it, which are in the thread now too
+                FixDepths(slot);
+            }
+        } else {
+            depths[slot] = NONE;
+        }
+        return true;
+    }
+
+    /**
+     * Add several posts, see {@link #Add(Post)}
+     * @param posts Posts to add, in any order
+     * @return How many were new
+     */
+    public int AddAll(List<Post> posts) {
+        int added = 0;
+        for (int i = 0; i < posts.size(); i++) {
+            if (Add(posts.get(i))) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Take the next slot, growing the arrays if they're full
+     */
+    private int NewSlot(Post post) {
+        if (size == ids.length) {
+            int capacity = size * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            parents = Arrays.copyOf(parents, capacity);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            lastChild = Arrays.copyOf(lastChild, capacity);
+            nextSibling = Arrays.copyOf(nextSibling, capacity);
+            depths = Arrays.copyOf(depths, capacity);
+            collapsed = Arrays.copyOf(collapsed, capacity);
+            posts = Arrays.copyOf(posts, capacity);
+        }
+        int slot = size++;
+        ids[slot] = post.Id;
+        parents[slot] = NONE;
+        firstChild[slot] = NONE;
+        lastChild[slot] = NONE;
+        nextSibling[slot] = NONE;
+        posts[slot] = post;
+        slots.Put(post.Id, slot);
+        return slot;
+    }
+
+    /**
+     * Work out depths under a reply whose replies were waiting on it. Each reply only ever joins
+     * the thread once, so this stays linear overall.
+     */
+    private void FixDepths(int top) {
+        for (int slot = firstChild[top]; slot != NONE; slot = Next(slot, top, false)) {
+            depths[slot] = depths[parents[slot]] + 1;
+        }
+    }
+
+    /**
+     * Next slot after this one in thread order, without recursing, so deep threads can't blow
+     * the stack
+     * @param slot Current slot
+     * @param top Slot whose replies are being walked, never left
+     * @param skipCollapsed true to skip the replies under collapsed ones
+     * @return The next slot, or NONE once everything under top has been seen
+     */
+    private int Next(int slot, int top, boolean skipCollapsed) {
+        if (firstChild[slot] != NONE && !(skipCollapsed && collapsed[slot])) {
+            return firstChild[slot];
+        }
+        while (slot != top) {
+            if (nextSibling[slot] != NONE) {
+                return nextSibling[slot];
+            }
+            slot = parents[slot];
+        }
+        return NONE;
+    }
+
+    /**
+     * Count rows showing under a slot, as if it were expanded
+     */
+    private int CountBelow(int top) {
+        int count = 0;
+        for (int slot = firstChild[top]; slot != NONE; slot = Next(slot, top, true)) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Hide the replies under a reply
+     * @param id rowid of the reply
+     * @return How many rows went away from under it, 0 if it was already collapsed or has none
+     */
+    public int Collapse(int id) {
+        int slot = slots.Get(id);
+        if (slot == NONE || depths[slot] == NONE || collapsed[slot] || firstChild[slot] == NONE) {
+            return 0;
+        }
+        collapsed[slot] = true;
+        return CountBelow(slot);
+    }
+
+    /**
+     * Show the replies under a reply again, as they were before it was collapsed
+     * @param id rowid of the reply
+     * @return How many rows came back under it, 0 if it wasn't collapsed
+     */
+    public int Expand(int id) {
+        int slot = slots.Get(id);
+        if (slot == NONE || depths[slot] == NONE || !collapsed[slot]) {
+            return 0;
+        }
+        collapsed[slot] = false;
+        return CountBelow(slot);
+    }
+
+    /**
+     * @param id rowid of a post
+     * @return true if the replies under it are hidden
+     */
+    public boolean IsCollapsed(int id) {
+        int slot = slots.Get(id);
+        return slot != NONE && collapsed[slot];
+    }
+
+    /**
+     * @param id rowid of a post
+     * @return true if it's been added, even if it's still waiting on its parent
+     */
+    public boolean Contains(int id) {
+        return slots.Get(id) != NONE;
+    }
+
+    /**
+     * @param id rowid of a post
+     * @return Levels below the OP, 1 for a direct reply, or -1 if it isn't in the thread (yet)
+     */
+    public int Depth(int id) {
+        int slot = slots.Get(id);
+        return slot == NONE ? NONE : depths[slot];
+    }
+
+    /**
+     * @param id rowid of a post
+     * @return How many replies it has directly
+     */
+    public int ChildCount(int id) {
+        int slot = slots.Get(id);
+        if (slot == NONE) {
+            return 0;
+        }
+        int count = 0;
+        for (int child = firstChild[slot]; child != NONE; child = nextSibling[child]) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @param id rowid of a post
+     * @return rowids of its direct replies, in the order they came in
+     */
+    public int[] Children(int id) {
+        int[] children = new int[ChildCount(id)];
+        int slot = slots.Get(id);
+        int i = 0;
+        for (int child = slot == NONE ? NONE : firstChild[slot]; child != NONE; child = nextSibling[child]) {
+            children[i++] = ids[child];
+        }
+        return children;
+    }
+
+    /**
+     * @return The OP, if it's been added
+     */
+    public Post Root() {
+        return root;
+    }
+
+    /**
+     * @return rowid of the OP
+     */
+    public int RootId() {
+        return rootId;
+    }
+
+    /**
+     * @return Replies added so far, including ones still waiting on their parent
+     */
+    public int Size() {
+        return size - 1;
+    }
+
+    /**
+     * @return Replies whose parent hasn't turned up, with everything under them
+     */
+    public int Waiting() {
+        int inThread = 0;
+        for (int slot = 1; slot < size; slot++) {
+            if (depths[slot] != NONE) {
+                inThread++;
+            }
+        }
+        return size - 1 - inThread;
+    }
+
+    /**
+     * @return Replies to show, in thread order: each one followed by the replies under it,
+     * skipping those under collapsed ones. The OP isn't included.
+     */
+    public List<Post> Visible() {
+        List<Post> visible = new ArrayList<>();
+        for (int slot = firstChild[ROOT]; slot != NONE; slot = Next(slot, ROOT, true)) {
+            visible.add(posts[slot]);
+        }
+        return visible;
+    }
+
+    /**
+     * @param id rowid of a post
+     * @return Replies showing under it, in the same order as {@link #Visible()}, as if it were
+     * expanded. Only walks the replies under it.
+     */
+    public List<Post> VisibleBelow(int id) {
+        int top = slots.Get(id);
+        List<Post> visible = new ArrayList<>();
+        if (top == NONE || depths[top] == NONE) {
+            return visible;
+        }
+        for (int slot = firstChild[top]; slot != NONE; slot = Next(slot, top, true)) {
+            visible.add(posts[slot]);
+        }
+        return visible;
+    }
+}
@@ -0,0 +1,164 @@
+package com.roberts.magnificentmessageboard;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks delta refreshes of {@link NetworkUtils} against a stand-in server implementing the
+ * delta contract: "since" only returns newer posts, and a matching If-None-Match gets a 304
+ */
+public class DeltaSyncTest {
+    private static final int THREAD = 1;
+
+    /**
+     * A reply thread that only ever grows, served like getReplies.php
+     */
+    private static class ReplyThread {
+        final List<Post> replies = new ArrayList<>();
+        final AtomicLong bytesSent = new AtomicLong();
+        final boolean understandsSince;
+
+        ReplyThread(int count, boolean understandsSince) {
+            this.understandsSince = understandsSince;
+            Add(count);
+        }
+
+        synchronized void Add(int count) {
+            int next = replies.size() + 2;
+            for (int i = 0; i < count; i++) {
+                replies.add(new Post(Integer.toHexString(next * 7919), "Reply number " + (next + i), next + i, THREAD));
+            }
+        }
+
+        synchronized void Serve(HttpExchange exchange) throws IOException {
+            Map<String, String> query = new HashMap<>();
+            for (String pair : exchange.getRequestURI().getQuery().split("&")) {
+                String[] parts = pair.split("=", 2);
+                query.put(parts[0], parts[1]);
+            }
+            assertEquals(Integer.toString(THREAD), query.get("rowid"));
+            String etag = "\"" + replies.size() + "\"";
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                StandInServer.Send(exchange, 304, new byte[0]);
+                return;
+            }
+            int since = understandsSince && query.containsKey("since") ? Integer.parseInt(query.get("since")) : -1;
+            StringBuilder body = new StringBuilder("{\"response\":[");
+            String separator = "";
+            for (Post post : replies) {
+                if (post.Id > since) {
+                    body.append(separator).append("{\"rowid\":\"").append(post.Id)
+                            .append("\",\"hash\":\"").append(post.Hash)
+                            .append("\",\"reply\":\"").append(post.Reply)
+                            .append("\",\"content\":\"").append(post.Content).append("\"}");
+                    separator = ",";
+                }
+            }
+            body.append("]}");
+            byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+            bytesSent.addAndGet(bytes.length);
+            exchange.getResponseHeaders().add("ETag", etag);
+            StandInServer.Send(exchange, 200, bytes);
+        }
+    }
+
+    @After
+    public void pointBackAtRealServer() {
+        NetworkUtils.SetApiBase("http://messageboard.hoppy.haus/");
+    }
+
+    @Test
+    public void refreshesOnlyCostWhatsNew() throws Exception {
+        ReplyThread thread = new ReplyThread(2000, true);
+        try (StandInServer server = new StandInServer()) {
+            server.Handle("/getReplies.php", thread::Serve);
+            NetworkUtils.SetApiBase(server.Url() + "/");
+            NetworkUtils.SyncState state = new NetworkUtils.SyncState();
+
+            NetworkUtils.Delta first = NetworkUtils.GetRepliesSince(THREAD, state);
+            assertNotNull(first);
+            assertEquals(2000, first.posts.size());
+            long fullBytes = thread.bytesSent.get();
+            List<Post> shown = PostListHolder.Merge(new ArrayList<>(), first.posts, false);
+
+            // Nothing new: the server answers 304 without a body
+            NetworkUtils.Delta unchanged = NetworkUtils.GetRepliesSince(THREAD, state);
+            assertTrue(unchanged.notModified);
+            assertEquals(fullBytes, thread.bytesSent.get());
+
+            thread.Add(3);
+            NetworkUtils.Delta delta = NetworkUtils.GetRepliesSince(THREAD, state);
+            assertFalse(delta.notModified);
+            assertEquals(3, delta.posts.size());
+            assertTrue(thread.bytesSent.get() - fullBytes < fullBytes / 100);
+
+            shown = PostListHolder.Merge(shown, delta.posts, false);
+            assertEquals(2003, shown.size());
+            for (int i = 1; i < shown.size(); i++) {
+                assertEquals(shown.get(i - 1).Id + 1, shown.get(i).Id);
+            }
+            assertEquals(shown.get(shown.size() - 1).Id, state.NewestId());
+        }
+    }
+
+    @Test
+    public void pollsTheServerDoesntHoldAreValidatedToo() throws Exception {
+        ReplyThread thread = new ReplyThread(500, true);
+        try (StandInServer server = new StandInServer()) {
+            server.Handle("/getReplies.php", thread::Serve);
+            NetworkUtils.SetApiBase(server.Url() + "/");
+            NetworkUtils.SyncState state = new NetworkUtils.SyncState();
+
+            assertEquals(500, NetworkUtils.WaitForReplies(THREAD, state, 25).posts.size());
+            long fullBytes = thread.bytesSent.get();
+            // This server doesn't wait, so it answers straight away, but only with a 304
+            assertTrue(NetworkUtils.WaitForReplies(THREAD, state, 25).notModified);
+            assertEquals(fullBytes, thread.bytesSent.get());
+        }
+    }
+
+    @Test
+    public void oldServersStillOnlyAddNewPosts() throws Exception {
+        ReplyThread thread = new ReplyThread(50, false);
+        try (StandInServer server = new StandInServer()) {
+            server.Handle("/getReplies.php", thread::Serve);
+            NetworkUtils.SetApiBase(server.Url() + "/");
+            NetworkUtils.SyncState state = new NetworkUtils.SyncState();
+
+            assertEquals(50, NetworkUtils.GetRepliesSince(THREAD, state).posts.size());
+            thread.Add(2);
+            // The whole thread comes back, but only the two new replies get through
+            NetworkUtils.Delta delta = NetworkUtils.GetRepliesSince(THREAD, state);
+            assertEquals(2, delta.posts.size());
+            assertEquals(state.NewestId(), delta.posts.get(1).Id);
+        }
+    }
+
+    @Test
+    public void mergeReplacesKnownPostsInPlace() {
+        List<Post> current = new ArrayList<>();
+        current.add(new Post("a", "one", 3, -1));
+        current.add(new Post("a", "two", 2, -1));
+        List<Post> newer = new ArrayList<>();
+        newer.add(new Post("a", "four", 4, -1));
+        newer.add(new Post("a", "three", 3, -1));
+
+        List<Post> merged = PostListHolder.Merge(current, newer, true);
+        assertEquals(3, merged.size());
+        assertEquals("four", merged.get(0).Content);
+        assertEquals("three", merged.get(1).Content);
+        assertEquals(2, merged.get(2).Id);
+    }
+}
@@ -0,0 +1,138 @@
+package com.roberts.magnificentmessageboard;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks paging, deduplication and the memory window of {@link FrontPagePager}
+ */
+public class FrontPagePagerTest {
+    private static final int PAGE_SIZE = 20;
+
+    /**
+     * Mirrors the pager like an adapter would
+     */
+    private static class MirrorList implements FrontPagePager.Listener {
+        final List<Post> posts = new ArrayList<>();
+
+        @Override
+        public void onPostsInserted(int position, List<Post> inserted) {
+            posts.addAll(position, inserted);
+        }
+
+        @Override
+        public void onPostsRemoved(int position, int count) {
+            posts.subList(position, position + count).clear();
+        }
+
+        @Override
+        public void onPostsReset(List<Post> reset) {
+            posts.clear();
+            posts.addAll(reset);
+        }
+    }
+
+    /**
+     * A page of the board, newest first, with ids counting down from newestId
+     */
+    private static List<Post> Page(int newestId, int offset, int size) {
+        List<Post> page = new ArrayList<>();
+        for (int i = offset; i < offset + size && newestId - i > 0; i++) {
+            page.add(new Post("h", "post", newestId - i, -1));
+        }
+        return page;
+    }
+
+    @Test
+    public void pagesThroughHistoryWithBoundedWindow() {
+        MirrorList mirror = new MirrorList();
+        FrontPagePager pager = new FrontPagePager(3, mirror);
+        int total = 5000;
+
+        pager.Reset(0, Page(total, 0, PAGE_SIZE));
+        int pages = 1;
+        while (pager.NextOffset() >= 0) {
+            int offset = pager.NextOffset();
+            assertTrue(pager.AppendPage(offset, Page(total, offset, PAGE_SIZE)));
+            pages++;
+            assertTrue(pager.PageCount() <= 3);
+            assertEquals(pager.Posts(), mirror.posts);
+        }
+
+        // The last request comes back empty and ends the paging
+        assertEquals(total / PAGE_SIZE + 1, pages);
+        assertEquals(3 * PAGE_SIZE, mirror.posts.size());
+        assertEquals(1, mirror.posts.get(mirror.posts.size() - 1).Id);
+    }
+
+    @Test
+    public void scrollingBackReloadsDroppedPages() {
+        MirrorList mirror = new MirrorList();
+        FrontPagePager pager = new FrontPagePager(2, mirror);
+        pager.Reset(0, Page(100, 0, PAGE_SIZE));
+        pager.AppendPage(20, Page(100, 20, PAGE_SIZE));
+        pager.AppendPage(40, Page(100, 40, PAGE_SIZE));
+
+        assertEquals(0, pager.PreviousOffset());
+        assertEquals(60, pager.NextOffset());
+        assertFalse("Out of place pages are ignored", pager.PrependPage(20, Page(100, 20, PAGE_SIZE)));
+
+        assertTrue(pager.PrependPage(0, Page(100, 0, PAGE_SIZE)));
+        assertEquals(-1, pager.PreviousOffset());
+        assertEquals(40, pager.NextOffset());
+        assertEquals(100, mirror.posts.get(0).Id);
+        assertEquals(2 * PAGE_SIZE, mirror.posts.size());
+        assertEquals(pager.Posts(), mirror.posts);
+    }
+
+    @Test
+    public void dropsPostsSeenOnAnEarlierPage() {
+        MirrorList mirror = new MirrorList();
+        FrontPagePager pager = new FrontPagePager(5, mirror);
+        pager.Reset(0, Page(100, 0, PAGE_SIZE));
+        // Five new posts came in, so the server's second page starts five posts earlier
+        pager.AppendPage(20, Page(105, 20, PAGE_SIZE));
+
+        assertEquals(35, mirror.posts.size());
+        for (int i = 1; i < mirror.posts.size(); i++) {
+            assertEquals(mirror.posts.get(i - 1).Id - 1, mirror.posts.get(i).Id);
+        }
+        assertEquals(40, pager.NextOffset());
+    }
+
+    @Test
+    public void newPostsGoOnTopAndPushPagesDown() {
+        MirrorList mirror = new MirrorList();
+        FrontPagePager pager = new FrontPagePager(5, mirror);
+        pager.Reset(0, Page(100, 0, PAGE_SIZE));
+        pager.AppendPage(20, Page(100, 20, PAGE_SIZE));
+
+        // Three new posts, so the page after the window now starts three later on the server
+        List<Post> top = pager.MergeNewest(Page(103, 0, 3));
+        assertNotNull(top);
+        assertEquals(PAGE_SIZE + 3, top.size());
+        assertEquals(103, mirror.posts.get(0).Id);
+        assertEquals(2 * PAGE_SIZE + 3, mirror.posts.size());
+        assertEquals(43, pager.NextOffset());
+        assertTrue(pager.AppendPage(43, Page(103, 43, PAGE_SIZE)));
+        for (int i = 1; i < mirror.posts.size(); i++) {
+            assertEquals(mirror.posts.get(i - 1).Id - 1, mirror.posts.get(i).Id);
+        }
+    }
+
+    @Test
+    public void newPostsNeedTheTopOfTheWindow() {
+        MirrorList mirror = new MirrorList();
+        FrontPagePager pager = new FrontPagePager(2, mirror);
+        pager.Reset(0, Page(100, 0, PAGE_SIZE));
+        pager.AppendPage(20, Page(100, 20, PAGE_SIZE));
+        pager.AppendPage(40, Page(100, 40, PAGE_SIZE));
+
+        assertNull(pager.MergeNewest(Page(101, 0, 1)));
+        assertEquals(2 * PAGE_SIZE, mirror.posts.size());
+    }
+}
@@ -0,0 +1,311 @@
+package com.roberts.magnificentmessageboard;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link LiveUpdates} against a stand-in server that holds polls open until there's
+ * something new, drops them, or answers straight away like a server that doesn't long poll
+ */
+public class LiveUpdatesTest {
+    // Short everything, so the tests don't take all day
+    private static final LiveUpdates.Timing QUICK = new LiveUpdates.Timing(2, 300, 300, 1200, 50, 200, 100, 800);
+
+    /**
+     * Front page that long polls. Posts only ever get added.
+     */
+    private static class LiveBoard {
+        private final List<Post> posts = new ArrayList<>();
+        // "since" and "wait" of every poll, in order
+        final List<Integer> sinces = Collections.synchronizedList(new ArrayList<>());
+        final List<Integer> waits = Collections.synchronizedList(new ArrayList<>());
+        // false to answer straight away, like the real server
+        volatile boolean holds = true;
+        volatile boolean failing = false;
+        private boolean dropping = false;
+
+        synchronized void Add(int count) {
+            for (int i = 0; i < count; i++) {
+                int id = posts.size() + 1;
+                posts.add(new Post("h" + id, "Post number " + id, id, -1));
+            }
+            notifyAll();
+        }
+
+        /**
+         * Cut off the poll that's waiting, without an answer
+         */
+        synchronized void Drop() {
+            dropping = true;
+            notifyAll();
+        }
+
+        synchronized List<Post> Posts() {
+            return new ArrayList<>(posts);
+        }
+
+        private List<Post> Newer(int since) {
+            List<Post> newer = new ArrayList<>();
+            for (int i = posts.size() - 1; i >= 0 && posts.get(i).Id > since; i--) {
+                newer.add(posts.get(i));
+            }
+            return newer;
+        }
+
+        void Serve(HttpExchange exchange) throws IOException {
+            Map<String, String> query = StandInServer.Query(exchange);
+            int since = query.containsKey("since") ? Integer.parseInt(query.get("since")) : -1;
+            int wait = Integer.parseInt(query.get("wait"));
+            sinces.add(since);
+            waits.add(wait);
+            if (failing) {
+                StandInServer.Send(exchange, 500, "busy");
+                return;
+            }
+            List<Post> newer;
+            synchronized (this) {
+                long until = System.currentTimeMillis() + (holds ? wait * 1000L : 0);
+                while ((newer = Newer(since)).isEmpty() && !dropping && System.currentTimeMillis() < until) {
+                    try {
+                        wait(Math.max(1, until - System.currentTimeMillis()));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (dropping) {
+                    dropping = false;
+                    throw new IOException("Dropped");
+                }
+            }
+            if (newer.isEmpty()) {
+                StandInServer.Send(exchange, 204, new byte[0]);
+            } else {
+                StandInServer.Send(exchange, 200, StandInServer.Json(newer));
+            }
+        }
+    }
+
+    /**
+     * Collects what the listener gets
+     */
+    private static class Batches implements LiveUpdates.Listener {
+        private final List<List<Post>> batches = new ArrayList<>();
+
+        @Override
+        public synchronized void onPosts(List<Post> posts) {
+            batches.add(posts);
+            notifyAll();
+        }
+
+        synchronized List<Integer> Ids() {
+            List<Integer> ids = new ArrayList<>();
+            for (List<Post> batch : batches) {
+                for (Post post : batch) {
+                    ids.add(post.Id);
+                }
+            }
+            return ids;
+        }
+
+        synchronized int Count() {
+            return batches.size();
+        }
+
+        /**
+         * Wait for this many posts in total
+         */
+        synchronized void AwaitPosts(int count) throws InterruptedException {
+            long until = System.currentTimeMillis() + 5000;
+            while (Ids().size() < count && System.currentTimeMillis() < until) {
+                wait(until - System.currentTimeMillis());
+            }
+            assertEquals(count, Ids().size());
+        }
+    }
+
+    private static LiveUpdates Live(NetworkUtils.SyncState state, Batches batches) {
+        return new LiveUpdates(NetworkUtils::WaitForFrontPage, state, batches, LiveUpdates.Scheduler(),
+                LiveUpdates.Pollers(), Runnable::run, QUICK);
+    }
+
+    private static StandInServer Serve(LiveBoard board) throws IOException {
+        StandInServer server = new StandInServer();
+        server.Handle("/getFrontPage.php", board::Serve);
+        NetworkUtils.SetApiBase(server.Url() + "/");
+        return server;
+    }
+
+    @After
+    public void pointBackAtRealServer() {
+        NetworkUtils.SetApiBase("http://messageboard.hoppy.haus/");
+    }
+
+    @Test
+    public void pushesNewPostsAndPicksUpWhereItLeftOff() throws Exception {
+        LiveBoard board = new LiveBoard();
+        board.Add(3);
+        try (StandInServer server = Serve(board)) {
+            NetworkUtils.SyncState state = new NetworkUtils.SyncState();
+            // The view already has what's there
+            state.Seen(board.Posts());
+            Batches batches = new Batches();
+            LiveUpdates live = Live(state, batches);
+            live.Start();
+            Thread.sleep(100);
+            board.Add(2);
+            batches.AwaitPosts(2);
+            assertEquals(5, state.NewestId());
+
+            // Cut the connection, then post while it's reconnecting
+            Thread.sleep(100);
+            board.Drop();
+            board.Add(1);
+            batches.AwaitPosts(3);
+            live.Stop();
+
+            // Newest first within an answer, and nothing twice
+            assertEquals(Arrays.asList(5, 4, 6), batches.Ids());
+            assertEquals(Integer.valueOf(3), board.sinces.get(0));
+            // The poll after the drop asked from where the last one got to
+            assertTrue(Collections.frequency(board.sinces, 5) >= 2);
+            assertTrue(board.waits.contains(QUICK.waitSeconds));
+        }
+    }
+
+    @Test
+    public void burstsAreBatched() throws Exception {
+        LiveBoard board = new LiveBoard();
+        try (StandInServer server = Serve(board)) {
+            Batches batches = new Batches();
+            LiveUpdates live = Live(new NetworkUtils.SyncState(), batches);
+            live.Start();
+            Thread.sleep(100);
+            int count = 40;
+            for (int i = 0; i < count; i++) {
+                board.Add(1);
+                Thread.sleep(10);
+            }
+            batches.AwaitPosts(count);
+            live.Stop();
+
+            Set<Integer> unique = new HashSet<>(batches.Ids());
+            assertEquals(count, unique.size());
+            System.out.println(String.format("Live updates: %d posts in %d polls, handed over in %d batches",
+                    count, board.sinces.size(), batches.Count()));
+            // Most of the burst should go in a handful of main thread updates
+            assertTrue(batches.Count() < count / 4);
+        }
+    }
+
+    @Test
+    public void backsOffInTheBackgroundAndWhenItsNotHeldOpen() throws Exception {
+        LiveBoard board = new LiveBoard();
+        // Answers straight away, so polling has to pace itself
+        board.holds = false;
+        try (StandInServer server = Serve(board)) {
+            Batches batches = new Batches();
+            LiveUpdates live = Live(new NetworkUtils.SyncState(), batches);
+            live.Start();
+            Thread.sleep(1000);
+            int foreground = board.sinces.size();
+            // One every QUICK.minIntervalMs at most
+            assertTrue("Polled " + foreground + " times", foreground >= 2 && foreground <= 5);
+
+            live.SetForeground(false);
+            Thread.sleep(2000);
+            int background = board.sinces.size() - foreground;
+            // 100, 200, 400, 800 ms apart
+            assertTrue("Polled " + background + " times", background <= 5);
+            assertEquals(Integer.valueOf(0), board.waits.get(board.waits.size() - 1));
+
+            // Coming back asks straight away, rather than waiting out the background delay
+            int before = board.sinces.size();
+            live.SetForeground(true);
+            Thread.sleep(150);
+            assertTrue(board.sinces.size() > before);
+            live.Stop();
+        }
+    }
+
+    @Test
+    public void serversThatDontHoldPollsGetAskedLikeRefreshes() throws Exception {
+        LiveBoard board = new LiveBoard();
+        board.holds = false;
+        try (StandInServer server = Serve(board)) {
+            Batches batches = new Batches();
+            LiveUpdates live = Live(new NetworkUtils.SyncState(), batches);
+            live.Start();
+            Thread.sleep(3000);
+            int polls = board.sinces.size();
+            // 300, 600, 1200 ms apart. Every QUICK.minIntervalMs would be 10.
+            assertTrue("Polled " + polls + " times", polls >= 3 && polls <= 5);
+
+            // Something new puts it back to asking often
+            board.Add(1);
+            batches.AwaitPosts(1);
+            int before = board.sinces.size();
+            Thread.sleep(1000);
+            assertTrue(board.sinces.size() - before >= 2);
+            live.Stop();
+        }
+    }
+
+    @Test
+    public void failuresBackOff() throws Exception {
+        LiveBoard board = new LiveBoard();
+        board.failing = true;
+        try (StandInServer server = Serve(board)) {
+            Batches batches = new Batches();
+            LiveUpdates live = Live(new NetworkUtils.SyncState(), batches);
+            live.Start();
+            Thread.sleep(1000);
+            live.Stop();
+            int polls = board.sinces.size();
+            // Without a backoff this would be hundreds
+            assertTrue("Polled " + polls + " times", polls >= 2 && polls <= 15);
+            assertEquals(0, batches.Count());
+            assertFalse(live.IsRunning());
+        }
+    }
+
+    @Test
+    public void stoppingLetsGoOfThePoll() throws Exception {
+        LiveBoard board = new LiveBoard();
+        try (StandInServer server = Serve(board)) {
+            ThreadPoolExecutor pollers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+                    new SynchronousQueue<>());
+            Batches batches = new Batches();
+            LiveUpdates live = new LiveUpdates(NetworkUtils::WaitForFrontPage, new NetworkUtils.SyncState(), batches,
+                    LiveUpdates.Scheduler(), pollers, Runnable::run, QUICK);
+            live.Start();
+            Thread.sleep(200);
+            assertEquals(1, pollers.getActiveCount());
+
+            // The server would hold it for QUICK.waitSeconds, it shouldn't take anything like that
+            live.Stop();
+            long until = System.currentTimeMillis() + 500;
+            while (pollers.getActiveCount() > 0 && System.currentTimeMillis() < until) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, pollers.getActiveCount());
+            assertEquals(1, board.sinces.size());
+            pollers.shutdown();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.roberts.magnificentmessageboard;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks thread bounds, coalescing and cancellation of {@link NetworkScheduler}
+ */
+public class NetworkSchedulerTest {
+
+    @Test
+    public void threadCountStaysFlatUnderManyRefreshes() throws InterruptedException {
+        NetworkScheduler scheduler = new NetworkScheduler(3, Runnable::run);
+        CountDownLatch done = new CountDownLatch(500);
+        for (int i = 0; i < 500; i++) {
+            int rowid = i;
+            scheduler.Submit(this, NetworkScheduler.Lane.READ, "replies:" + rowid, () -> {
+                Thread.sleep(1);
+                return rowid;
+            }, result -> done.countDown());
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        // 3 readers plus the single writer, however many requests were made
+        assertTrue(scheduler.LargestPoolSize() <= 4);
+    }
+
+    @Test
+    public void duplicateReadsShareOneRun() throws InterruptedException {
+        NetworkScheduler scheduler = new NetworkScheduler(3, Runnable::run);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(2);
+        AtomicInteger runs = new AtomicInteger();
+        List<Integer> results = Collections.synchronizedList(new ArrayList<>());
+        Object first = new Object();
+        Object second = new Object();
+
+        for (Object owner : new Object[]{first, second}) {
+            scheduler.Submit(owner, NetworkScheduler.Lane.READ, "frontpage:0", () -> {
+                runs.incrementAndGet();
+                release.await();
+                return 42;
+            }, result -> {
+                results.add(result);
+                done.countDown();
+            });
+        }
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, runs.get());
+        assertEquals(2, results.size());
+        assertEquals(Integer.valueOf(42), results.get(1));
+    }
+
+    @Test
+    public void sameOwnerRefreshingTwiceHearsBackOnce() throws InterruptedException {
+        NetworkScheduler scheduler = new NetworkScheduler(3, Runnable::run);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicInteger deliveries = new AtomicInteger();
+
+        for (int i = 0; i < 2; i++) {
+            scheduler.Submit(this, NetworkScheduler.Lane.READ, "frontpage:0", () -> {
+                release.await();
+                return 1;
+            }, result -> {
+                deliveries.incrementAndGet();
+                done.countDown();
+            });
+        }
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(1, deliveries.get());
+    }
+
+    @Test
+    public void cancelledOwnersGetNothing() throws InterruptedException {
+        NetworkScheduler scheduler = new NetworkScheduler(3, Runnable::run);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch written = new CountDownLatch(1);
+        AtomicInteger delivered = new AtomicInteger();
+        Object activity = new Object();
+
+        scheduler.Submit(activity, NetworkScheduler.Lane.READ, "replies:1", () -> {
+            started.countDown();
+            release.await();
+            return 1;
+        }, result -> delivered.incrementAndGet());
+        scheduler.Submit(activity, NetworkScheduler.Lane.WRITE, null, () -> {
+            release.await();
+            written.countDown();
+            return 2;
+        }, result -> delivered.incrementAndGet());
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        scheduler.CancelAll(activity);
+        release.countDown();
+
+        // The write still happens, nobody hears about either
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(0, delivered.get());
+    }
+
+    @Test
+    public void failuresReachTheCallback() throws InterruptedException {
+        NetworkScheduler scheduler = new NetworkScheduler(3, Runnable::run);
+        CountDownLatch done = new CountDownLatch(2);
+        List<Exception> failures = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> results = Collections.synchronizedList(new ArrayList<>());
+
+        scheduler.Submit(this, NetworkScheduler.Lane.READ, "replies:1", () -> {
+            throw new java.io.IOException("No network");
+        }, new NetworkScheduler.Callback<Integer>() {
+            @Override
+            public void onResult(Integer result) {
+                results.add(result);
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                failures.add(e);
+                done.countDown();
+            }
+        });
+        // Callbacks that don't care why just get null
+        scheduler.<Integer>Submit(this, NetworkScheduler.Lane.READ, "replies:2", () -> {
+            throw new IllegalStateException("Bug");
+        }, result -> {
+            results.add(result);
+            done.countDown();
+        });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, failures.size());
+        assertEquals("No network", failures.get(0).getMessage());
+        assertEquals(Collections.singletonList((Integer) null), results);
+    }
+}
@@ -0,0 +1,229 @@
+package com.roberts.magnificentmessageboard;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link OutboundQueue} keeps posts across restarts, retries, and reports back
+ */
+public class OutboundQueueTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<ScheduledExecutorService> executors = new ArrayList<>();
+
+    /**
+     * Records what listeners hear, so tests can wait on it
+     */
+    private static class Events implements OutboundQueue.Listener {
+        final BlockingQueue<Post> sent = new LinkedBlockingQueue<>();
+        final BlockingQueue<String> rejected = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onQueueChanged() {
+        }
+
+        @Override
+        public void onSent(long localId, Post post) {
+            sent.add(post);
+        }
+
+        @Override
+        public void onRejected(Post post, String error) {
+            rejected.add(error);
+        }
+    }
+
+    private OutboundQueue Queue(File dir, OutboundQueue.Sender sender, Events events) {
+        ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(1);
+        executors.add(executor);
+        // Hold the queue thread until the listener is on, so it can't miss the first send
+        CountDownLatch listening = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                listening.await();
+            } catch (InterruptedException ignored) {
+            }
+        });
+        OutboundQueue queue = new OutboundQueue(dir, sender, executor, Runnable::run, 5, 50);
+        queue.AddListener(events);
+        listening.countDown();
+        return queue;
+    }
+
+    @After
+    public void stopQueues() {
+        for (ScheduledExecutorService executor : executors) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void postsSurviveARestartAndGoOutInOrder() throws Exception {
+        File dir = folder.newFolder();
+        Events offline = new Events();
+        OutboundQueue before = Queue(dir, (content, reply) -> {
+            throw new ConnectException("No network");
+        }, offline);
+        Post pending = before.Enqueue("first", -1);
+        before.Enqueue("second", 12);
+        before.Enqueue("third", -1);
+        assertTrue(OutboundQueue.IsPending(pending));
+        assertEquals(2, before.Pending(-1).size());
+        assertEquals("first", before.Pending(-1).get(0).Content);
+
+        // Let them reach the disk, then kill the process. Saves run ahead of anything queued after.
+        executors.get(0).submit(() -> { }).get();
+        executors.get(0).shutdownNow();
+        assertTrue(executors.get(0).awaitTermination(5, TimeUnit.SECONDS));
+
+        List<String> posted = new ArrayList<>();
+        Events online = new Events();
+        OutboundQueue after = Queue(dir, (content, reply) -> {
+            posted.add(content);
+            return 100 + posted.size();
+        }, online);
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(online.sent.poll(5, TimeUnit.SECONDS));
+        }
+        assertEquals(3, posted.size());
+        assertEquals("first", posted.get(0));
+        assertEquals("second", posted.get(1));
+        assertEquals("third", posted.get(2));
+        // Pending rows go after the real ones are announced
+        executors.get(1).submit(() -> { }).get();
+        assertEquals(0, after.Size());
+        File[] left = dir.listFiles((d, name) -> name.endsWith(".post"));
+        assertEquals(0, left.length);
+    }
+
+    @Test
+    public void postsQueuedWhileLoadingGetTheirOwnIds() throws Exception {
+        File dir = folder.newFolder();
+        OutboundQueue.Sender offline = (content, reply) -> {
+            throw new ConnectException("No network");
+        };
+        OutboundQueue before = Queue(dir, offline, new Events());
+        before.Enqueue("first", -1);
+        before.Enqueue("second", -1);
+        executors.get(0).submit(() -> { }).get();
+        executors.get(0).shutdownNow();
+        assertTrue(executors.get(0).awaitTermination(5, TimeUnit.SECONDS));
+
+        // The queue thread is held, so this one is queued before the others are loaded
+        OutboundQueue after = Queue(dir, offline, new Events());
+        Post third = after.Enqueue("third", -1);
+        executors.get(1).submit(() -> { }).get();
+
+        List<Post> pending = after.Pending(-1);
+        assertEquals(3, pending.size());
+        assertEquals("first", pending.get(0).Content);
+        assertEquals("second", pending.get(1).Content);
+        assertEquals(third.Id, pending.get(2).Id);
+        assertNotEquals(pending.get(0).Id, pending.get(1).Id);
+        assertNotEquals(pending.get(0).Id, third.Id);
+        assertNotEquals(pending.get(1).Id, third.Id);
+        assertEquals(3, dir.listFiles((d, name) -> name.endsWith(".post")).length);
+    }
+
+    @Test
+    public void retriesWithBackoffThenReconciles() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        Events events = new Events();
+        OutboundQueue queue = Queue(folder.newFolder(), (content, reply) -> {
+            if (attempts.incrementAndGet() < 4) {
+                throw new ConnectException("Flaky network");
+            }
+            return 42;
+        }, events);
+
+        Post pending = queue.Enqueue("hello", 7);
+        Post sent = events.sent.poll(5, TimeUnit.SECONDS);
+        assertNotNull(sent);
+        assertEquals(42, sent.Id);
+        assertEquals(7, sent.Reply);
+        assertEquals(pending.Content, sent.Content);
+        // One POST that worked, no reloads
+        assertEquals(4, attempts.get());
+        executors.get(0).submit(() -> { }).get();
+        assertTrue(queue.Pending(7).isEmpty());
+    }
+
+    @Test
+    public void rejectedPostsLeaveTheQueue() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        Events events = new Events();
+        OutboundQueue queue = Queue(folder.newFolder(), (content, reply) -> {
+            attempts.incrementAndGet();
+            throw new PostStreamDecoder.ApiErrorException("Post is empty");
+        }, events);
+
+        queue.Enqueue("", -1);
+        assertEquals("Post is empty", events.rejected.poll(5, TimeUnit.SECONDS));
+        assertEquals(0, queue.Size());
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void postsThatMightHaveGoneOutArentSentTwice() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        Events events = new Events();
+        OutboundQueue queue = Queue(folder.newFolder(), (content, reply) -> {
+            // The server might have made the post before this
+            if (attempts.incrementAndGet() == 1) {
+                throw new SocketTimeoutException("timeout");
+            }
+            throw new IllegalStateException("Broken every time");
+        }, events);
+
+        queue.Enqueue("maybe posted", -1);
+        queue.Enqueue("can't ever go", -1);
+        assertEquals(OutboundQueue.MAYBE_SENT, events.rejected.poll(5, TimeUnit.SECONDS));
+        // Doesn't hold up what's behind it either
+        assertEquals(OutboundQueue.MAYBE_SENT, events.rejected.poll(5, TimeUnit.SECONDS));
+        assertEquals(2, attempts.get());
+        assertEquals(0, queue.Size());
+    }
+
+    @Test
+    public void retriesStopEventually() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        Events events = new Events();
+        OutboundQueue queue = Queue(folder.newFolder(), (content, reply) -> {
+            attempts.incrementAndGet();
+            throw new CircuitBreaker.OpenException("server");
+        }, events);
+        queue.Enqueue("into the void", -1);
+        assertEquals(OutboundQueue.GAVE_UP, events.rejected.poll(30, TimeUnit.SECONDS));
+        assertEquals(OutboundQueue.MAX_ATTEMPTS, attempts.get());
+        assertEquals(0, queue.Size());
+    }
+
+    @Test
+    public void backoffGrowsButStaysCapped() throws Exception {
+        OutboundQueue queue = Queue(folder.newFolder(), (content, reply) -> 1, new Events());
+        for (int attempt = 1; attempt < 40; attempt++) {
+            long delay = queue.Backoff(attempt);
+            assertTrue(delay <= 50);
+            assertTrue(delay >= Math.min(5L << (attempt - 1), 50) / 2);
+        }
+    }
+}
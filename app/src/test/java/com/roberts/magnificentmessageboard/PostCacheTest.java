@@ -0,0 +1,89 @@
+package com.roberts.magnificentmessageboard;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks round trips, staleness and eviction of {@link PostCache}
+ */
+public class PostCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<Post> Posts(int count, int contentLength) {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < contentLength; i++) {
+            content.append((char) ('a' + i % 26));
+        }
+        List<Post> posts = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            posts.add(new Post("hash" + i, content.toString() + " \u00e9\u4e2d", i + 1, -1));
+        }
+        return posts;
+    }
+
+    @Test
+    public void roundTripsPosts() {
+        PostCache cache = new PostCache(folder.getRoot(), 60000, 1 << 20);
+        // Longer than writeUTF() could manage
+        List<Post> posts = Posts(3, 70000);
+        cache.Write(PostCache.RepliesKey(7), posts);
+
+        PostCache.Entry entry = cache.Read(PostCache.RepliesKey(7));
+        assertNotNull(entry);
+        assertFalse(entry.IsStale());
+        assertEquals(3, entry.posts.size());
+        for (int i = 0; i < posts.size(); i++) {
+            assertEquals(posts.get(i).Id, entry.posts.get(i).Id);
+            assertEquals(posts.get(i).Reply, entry.posts.get(i).Reply);
+            assertEquals(posts.get(i).Hash, entry.posts.get(i).Hash);
+            assertEquals(posts.get(i).Content, entry.posts.get(i).Content);
+        }
+        assertNull(cache.Read(PostCache.FrontPageKey(0)));
+    }
+
+    @Test
+    public void staleEntriesAreStillServed() {
+        PostCache cache = new PostCache(folder.getRoot(), 0, 1 << 20);
+        cache.Write(PostCache.FrontPageKey(0), Posts(2, 10));
+        PostCache.Entry entry = cache.Read(PostCache.FrontPageKey(0));
+        assertNotNull(entry);
+        assertTrue(entry.IsStale());
+        assertEquals(2, entry.posts.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedBySize() throws Exception {
+        PostCache cache = new PostCache(folder.getRoot(), 60000, 35000);
+        for (int i = 0; i < 3; i++) {
+            cache.Write(PostCache.RepliesKey(i), Posts(10, 1000));
+            Thread.sleep(20);
+        }
+        // Touch the oldest so the middle one goes first
+        new File(folder.getRoot(), "replies_0.posts").setLastModified(System.currentTimeMillis() + 1000);
+        cache.Write(PostCache.RepliesKey(3), Posts(10, 1000));
+
+        assertTrue(cache.Size() <= 35000);
+        assertNotNull(cache.Read(PostCache.RepliesKey(0)));
+        assertNull(cache.Read(PostCache.RepliesKey(1)));
+        assertNotNull(cache.Read(PostCache.RepliesKey(3)));
+    }
+
+    @Test
+    public void dropsCorruptEntries() throws Exception {
+        PostCache cache = new PostCache(folder.getRoot(), 60000, 1 << 20);
+        try (FileOutputStream out = new FileOutputStream(new File(folder.getRoot(), "front_0.posts"))) {
+            out.write(new byte[]{1, 2, 3});
+        }
+        assertNull(cache.Read(PostCache.FrontPageKey(0)));
+        assertFalse(new File(folder.getRoot(), "front_0.posts").exists());
+    }
+}
@@ -0,0 +1,112 @@
+package com.roberts.magnificentmessageboard;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Hammers {@link PostListHolder} with concurrent refreshes while a fake main thread reads
+ */
+public class PostListHolderTest {
+
+    /**
+     * A refresh result: posts with ids start..start+count-1, so a torn list is easy to spot
+     */
+    private static List<Post> Refresh(int start, int count) {
+        List<Post> posts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            posts.add(new Post("h", "c", start + i, -1));
+        }
+        return posts;
+    }
+
+    @Test
+    public void concurrentRefreshesOnlyHandOutWholeSnapshots() throws Exception {
+        ExecutorService mainThread = Executors.newSingleThreadExecutor();
+        PostListHolder holder = new PostListHolder(mainThread);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicInteger delivered = new AtomicInteger();
+        long[] lastVersion = {-1};
+
+        mainThread.submit(() -> holder.SetListener(snapshot -> {
+            try {
+                // Walk the list like a RecyclerView binding rows would
+                assertTrue(snapshot.version > lastVersion[0]);
+                lastVersion[0] = snapshot.version;
+                List<Post> posts = snapshot.posts;
+                for (int i = 1; i < posts.size(); i++) {
+                    assertEquals(posts.get(i - 1).Id + 1, posts.get(i).Id);
+                }
+                delivered.incrementAndGet();
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+        })).get();
+
+        int threads = 8;
+        int refreshes = 2000;
+        ExecutorService loaders = Executors.newFixedThreadPool(threads);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            loaders.execute(() -> {
+                for (int i = 0; i < refreshes; i++) {
+                    if (i % 3 == 0) {
+                        // Append a post onto whatever is there
+                        holder.Update(current -> {
+                            List<Post> next = new ArrayList<>(current);
+                            int id = current.isEmpty() ? 0 : current.get(current.size() - 1).Id + 1;
+                            next.add(new Post("h", "c", id, -1));
+                            return next;
+                        });
+                    } else if (i % 3 == 1) {
+                        holder.PublishIf(holder.Get().version, Refresh(seed * 1000, 30));
+                    } else {
+                        holder.Publish(Refresh(i, 1 + (i % 50)));
+                    }
+                }
+                done.countDown();
+            });
+        }
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        loaders.shutdown();
+        // Let the last delivery land
+        mainThread.submit(() -> { }).get();
+        mainThread.shutdown();
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(holder.Get().version, lastVersion[0]);
+        // Bursts get coalesced, so the main thread sees far fewer snapshots than were published
+        assertTrue(delivered.get() > 0);
+        assertTrue(delivered.get() <= holder.Get().version + 1);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void snapshotsCantBeChanged() {
+        PostListHolder holder = new PostListHolder(Runnable::run);
+        holder.Publish(Refresh(0, 3));
+        holder.Get().posts.add(new Post("h", "c", 4, -1));
+    }
+
+    @Test
+    public void staleSourcesStepAside() {
+        PostListHolder holder = new PostListHolder(Runnable::run);
+        long seen = holder.Get().version;
+        holder.Publish(Refresh(100, 2));
+        // The cache read started before the network answered, so it loses
+        assertFalse(holder.PublishIf(seen, Refresh(0, 5)));
+        assertEquals(100, holder.Get().posts.get(0).Id);
+    }
+}
@@ -0,0 +1,482 @@
+package com.roberts.magnificentmessageboard;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link PostRepository} shares fetches between screens, merges the cache, the server and
+ * the outbound queue, and hands errors over as {@link PostRepository.Failure}s
+ */
+public class PostRepositoryTest {
+    private static final int THREAD = 7;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Stands in for the main thread, everything in the repository happens here
+    private final ExecutorService main = Executors.newSingleThreadExecutor();
+    private final ScheduledThreadPoolExecutor queueThread = new ScheduledThreadPoolExecutor(1);
+
+    // Short everything, so live updates don't take all day
+    private static final LiveUpdates.Timing QUICK = new LiveUpdates.Timing(1, 50, 50, 200, 50, 200, 100, 800);
+
+    /**
+     * A thread on the server, which can be held up or made to fail. Long polls wait for a reply
+     * newer than the poller has, like the real one.
+     */
+    private static class FakeServer implements PostRepository.Source {
+        final List<Post> replies = new ArrayList<>();
+        final AtomicInteger fetches = new AtomicInteger();
+        // "since" of every fetch
+        final List<Integer> sinces = new ArrayList<>();
+        volatile CountDownLatch hold = new CountDownLatch(0);
+        volatile IOException failure = null;
+
+        synchronized void Add(int id) {
+            replies.add(new Post("h", "Reply " + id, id, THREAD));
+            notifyAll();
+        }
+
+        private ArrayList<Post> Newer(int since) {
+            ArrayList<Post> newer = new ArrayList<>();
+            for (Post post : replies) {
+                if (post.Id > since) {
+                    newer.add(post);
+                }
+            }
+            return newer;
+        }
+
+        /**
+         * Wait for this many fetches to have started, even if they're held up
+         */
+        synchronized void AwaitFetches(int count) throws InterruptedException {
+            long until = System.currentTimeMillis() + 5000;
+            while (fetches.get() < count && System.currentTimeMillis() < until) {
+                wait(Math.max(1, until - System.currentTimeMillis()));
+            }
+            assertTrue(fetches.get() >= count);
+        }
+
+        @Override
+        public NetworkUtils.Delta Fetch(int rowid, NetworkUtils.SyncState state) throws IOException {
+            synchronized (this) {
+                fetches.incrementAndGet();
+                notifyAll();
+            }
+            try {
+                hold.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            int since = state.NewestId();
+            ArrayList<Post> newer;
+            synchronized (this) {
+                sinces.add(since);
+                newer = Newer(since);
+            }
+            state.Seen(newer);
+            return new NetworkUtils.Delta(newer, false);
+        }
+
+        @Override
+        public synchronized NetworkUtils.Delta Wait(int rowid, NetworkUtils.SyncState state, int waitSeconds) throws IOException {
+            long until = System.currentTimeMillis() + waitSeconds * 1000L;
+            while (true) {
+                if (failure != null) {
+                    throw failure;
+                }
+                ArrayList<Post> newer = Newer(state.NewestId());
+                long left = until - System.currentTimeMillis();
+                if (!newer.isEmpty() || left <= 0) {
+                    state.Seen(newer);
+                    return new NetworkUtils.Delta(newer, newer.isEmpty());
+                }
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted waiting for replies");
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects what an observer hears
+     */
+    private static class Results implements PostRepository.Observer {
+        private final List<PostRepository.Result> results = new ArrayList<>();
+
+        @Override
+        public synchronized void onResult(PostRepository.Result result) {
+            results.add(result);
+            notifyAll();
+        }
+
+        synchronized PostRepository.Result Last() {
+            return results.get(results.size() - 1);
+        }
+
+        /**
+         * Wait for a result with this status and as many posts
+         */
+        synchronized PostRepository.Result Await(PostRepository.Status status, int posts) throws InterruptedException {
+            long until = System.currentTimeMillis() + 5000;
+            while (System.currentTimeMillis() < until) {
+                if (!results.isEmpty() && Last().status == status && Last().posts.size() == posts) {
+                    return Last();
+                }
+                wait(Math.max(1, until - System.currentTimeMillis()));
+            }
+            fail("Never got " + posts + " " + status + " posts");
+            return null;
+        }
+
+        synchronized PostRepository.Result AwaitFailure() throws InterruptedException {
+            long until = System.currentTimeMillis() + 5000;
+            while ((results.isEmpty() || Last().failure == null) && System.currentTimeMillis() < until) {
+                wait(Math.max(1, until - System.currentTimeMillis()));
+            }
+            assertNotNull(Last().failure);
+            return Last();
+        }
+    }
+
+    private NetworkScheduler scheduler;
+    private PostCache cache;
+    private OutboundQueue outbound;
+    private ReplyPrefetcher prefetcher;
+
+    private <T> T OnMain(Callable<T> task) throws Exception {
+        return main.submit(task).get(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Wait for everything the repository set off to land: the scheduler's requests, and whatever
+     * they and the queue posted back to the main thread
+     */
+    private void Settle() throws Exception {
+        OnMain(() -> null);
+        assertTrue(scheduler.AwaitIdle(5000));
+        OnMain(() -> null);
+    }
+
+    private PostRepository Repository(FakeServer server, long cacheTtlMs, OutboundQueue.Sender sender) throws Exception {
+        return Repository(server, cacheTtlMs, sender, null);
+    }
+
+    private PostRepository Repository(FakeServer server, long cacheTtlMs, OutboundQueue.Sender sender,
+                                      LiveUpdates.Timing timing) throws Exception {
+        scheduler = new NetworkScheduler(3, main);
+        cache = new PostCache(folder.newFolder(), cacheTtlMs, 1 << 20);
+        outbound = new OutboundQueue(folder.newFolder(), sender, queueThread, main, 5, 50);
+        prefetcher = new ReplyPrefetcher(scheduler, (rowids, timings) -> new NetworkUtils.RepliesBatch(), 1, 1, 0, 64);
+        return OnMain(() -> new PostRepository(scheduler, server, cache, outbound, prefetcher, main, timing));
+    }
+
+    private PostRepository Repository(FakeServer server) throws Exception {
+        return Repository(server, 0, (content, reply) -> {
+            throw new ConnectException("Offline");
+        });
+    }
+
+    private static List<Integer> Ids(List<Post> posts) {
+        List<Integer> ids = new ArrayList<>();
+        for (Post post : posts) {
+            ids.add(post.Id);
+        }
+        return ids;
+    }
+
+    @After
+    public void stopThreads() {
+        queueThread.shutdownNow();
+        main.shutdownNow();
+    }
+
+    @Test
+    public void screensOnTheSameThreadShareOneFetch() throws Exception {
+        FakeServer server = new FakeServer();
+        server.Add(10);
+        server.Add(11);
+        server.hold = new CountDownLatch(1);
+        PostRepository repository = Repository(server);
+
+        Results first = new Results();
+        Results second = new Results();
+        PostRepository.Subscription a = OnMain(() -> repository.Watch(THREAD, first));
+        server.AwaitFetches(1);
+        PostRepository.Subscription b = OnMain(() -> repository.Watch(THREAD, second));
+        // Both refreshing while the first fetch is still out only makes one more
+        OnMain(() -> {
+            a.Refresh();
+            b.Refresh();
+            return null;
+        });
+        server.hold.countDown();
+        PostRepository.Result one = first.Await(PostRepository.Status.FRESH, 2);
+        PostRepository.Result two = second.Await(PostRepository.Status.FRESH, 2);
+        // One copy in memory
+        assertSame(one.posts, two.posts);
+        assertEquals(1, (int) OnMain(repository::FeedCount));
+        Settle();
+        assertEquals(2, server.fetches.get());
+        // The second one only asked for what's new
+        assertEquals(Arrays.asList(-1, 11), server.sinces);
+
+        // Another screen opening it later gets it straight away, without asking
+        Results third = new Results();
+        PostRepository.Subscription c = OnMain(() -> repository.Watch(THREAD, third));
+        assertEquals(Arrays.asList(10, 11), Ids(third.Last().posts));
+        assertEquals(2, server.fetches.get());
+
+        // The feed goes once the last screen does, but the thread stays in memory
+        OnMain(() -> {
+            a.Close();
+            b.Close();
+            c.Close();
+            return null;
+        });
+        assertEquals(0, (int) OnMain(repository::FeedCount));
+        assertEquals(Arrays.asList(10, 11), Ids(prefetcher.Lookup(THREAD).replies));
+    }
+
+    @Test
+    public void cacheFirstThenWhatsNew() throws Exception {
+        FakeServer server = new FakeServer();
+        for (int id = 10; id <= 14; id++) {
+            server.Add(id);
+        }
+        PostRepository repository = Repository(server);
+        cache.Write(PostCache.RepliesKey(THREAD), server.replies.subList(0, 3));
+        server.hold = new CountDownLatch(1);
+
+        Results results = new Results();
+        OnMain(() -> repository.Watch(THREAD, results));
+        PostRepository.Result cached = results.Await(PostRepository.Status.CACHED, 3);
+        assertTrue(cached.replaced);
+        server.hold.countDown();
+        PostRepository.Result fresh = results.Await(PostRepository.Status.FRESH, 5);
+        assertFalse(fresh.replaced);
+        assertEquals(Arrays.asList(10, 11, 12, 13, 14), Ids(fresh.posts));
+        // Carried on from the cache
+        assertEquals(Arrays.asList(12), server.sinces);
+
+        // And it's saved for next time
+        Settle();
+        assertEquals(5, cache.Read(PostCache.RepliesKey(THREAD)).posts.size());
+    }
+
+    @Test
+    public void frontPageOnlyStartsOverWhenItChanged() throws Exception {
+        FakeServer server = new FakeServer();
+        // Newest first, like the front page
+        for (int id = 14; id >= 10; id--) {
+            server.Add(id);
+        }
+        PostRepository repository = Repository(server);
+        cache.Write(PostCache.FrontPageKey(0), server.replies.subList(2, 5));
+
+        // The cache is stale, so it's reloaded, but that only put two on top of it
+        Results results = new Results();
+        PostRepository.Subscription subscription = OnMain(() -> repository.Watch(PostRepository.FRONT_PAGE, results));
+        assertTrue(results.Await(PostRepository.Status.CACHED, 3).replaced);
+        PostRepository.Result fresh = results.Await(PostRepository.Status.FRESH, 5);
+        assertFalse(fresh.replaced);
+        assertEquals(Arrays.asList(14, 13, 12, 11, 10), Ids(fresh.posts));
+
+        // Asking to start over does, whatever comes back
+        OnMain(() -> {
+            subscription.Reload();
+            return null;
+        });
+        Settle();
+        assertTrue(results.Last().replaced);
+        OnMain(() -> {
+            subscription.Close();
+            return null;
+        });
+    }
+
+    @Test
+    public void extendsGoesByIds() {
+        List<Post> before = Arrays.asList(new Post("h", "", 12, -1), new Post("h", "", 11, -1));
+        assertTrue(PostRepository.Extends(before, Arrays.asList(new Post("h", "", 13, -1), new Post("h", "", 12, -1)), true));
+        // 11 went missing
+        assertFalse(PostRepository.Extends(before, Arrays.asList(new Post("h", "", 12, -1), new Post("h", "", 10, -1)), true));
+        // Too many new ones to tell
+        assertFalse(PostRepository.Extends(before, Arrays.asList(new Post("h", "", 14, -1), new Post("h", "", 13, -1)), true));
+
+        List<Post> thread = Arrays.asList(new Post("h", "", 11, 7), new Post("h", "", 12, 7));
+        assertTrue(PostRepository.Extends(thread, Arrays.asList(new Post("h", "", 11, 7), new Post("h", "", 12, 7),
+                new Post("h", "", 13, 7)), false));
+        assertFalse(PostRepository.Extends(thread, Arrays.asList(new Post("h", "", 11, 7)), false));
+    }
+
+    @Test
+    public void errorsAreHandedOverNotToasted() throws Exception {
+        FakeServer server = new FakeServer();
+        server.Add(10);
+        PostRepository repository = Repository(server);
+        Results results = new Results();
+        PostRepository.Subscription subscription = OnMain(() -> repository.Watch(THREAD, results));
+        results.Await(PostRepository.Status.FRESH, 1);
+
+        server.failure = new PostStreamDecoder.ApiErrorException("No such post");
+        OnMain(() -> {
+            subscription.Refresh();
+            return null;
+        });
+        PostRepository.Result rejected = results.AwaitFailure();
+        assertEquals(PostRepository.Reason.REJECTED, rejected.failure.reason);
+        assertEquals("No such post", rejected.failure.message);
+        // What was there stays
+        assertEquals(1, rejected.posts.size());
+        assertEquals(PostRepository.Status.FRESH, rejected.status);
+
+        server.failure = new CircuitBreaker.OpenException("server");
+        OnMain(() -> {
+            subscription.Refresh();
+            return null;
+        });
+        Settle();
+        assertEquals(PostRepository.Reason.UNAVAILABLE, results.Last().failure.reason);
+        server.failure = new IOException("Connection reset");
+        OnMain(() -> {
+            subscription.Refresh();
+            return null;
+        });
+        Settle();
+        assertEquals(PostRepository.Reason.NETWORK, results.Last().failure.reason);
+
+        // Working again clears it
+        server.failure = null;
+        server.Add(11);
+        OnMain(() -> {
+            subscription.Refresh();
+            return null;
+        });
+        assertNull(results.Await(PostRepository.Status.FRESH, 2).failure);
+    }
+
+    @Test
+    public void ourPostsShowUntilTheServersCopyArrives() throws Exception {
+        FakeServer server = new FakeServer();
+        server.Add(10);
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch online = new CountDownLatch(1);
+        PostRepository repository = Repository(server, 0, (content, reply) -> {
+            sending.countDown();
+            try {
+                online.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return 11;
+        });
+        Results results = new Results();
+        PostRepository.Subscription subscription = OnMain(() -> repository.Watch(THREAD, results));
+        results.Await(PostRepository.Status.FRESH, 1);
+
+        OnMain(() -> outbound.Enqueue("My reply", THREAD));
+        Settle();
+        List<Post> local = results.Last().local;
+        assertEquals(1, local.size());
+        assertTrue(OutboundQueue.IsPending(local.get(0)));
+
+        // Sent, but the thread hasn't been fetched since
+        assertTrue(sending.await(5, TimeUnit.SECONDS));
+        online.countDown();
+        queueThread.submit(() -> { }).get(5, TimeUnit.SECONDS);
+        Settle();
+        assertEquals(Arrays.asList(11), Ids(results.Last().local));
+
+        server.Add(11);
+        OnMain(() -> {
+            subscription.Refresh();
+            return null;
+        });
+        PostRepository.Result fetched = results.Await(PostRepository.Status.FRESH, 2);
+        assertTrue(fetched.local.isEmpty());
+        assertEquals(Arrays.asList(10, 11), Ids(fetched.posts));
+    }
+
+    @Test
+    public void liveUpdatesStartWithoutAFetch() throws Exception {
+        FakeServer server = new FakeServer();
+        server.Add(10);
+        server.Add(11);
+        // Cached a moment ago, so nothing needs fetching
+        PostRepository repository = Repository(server, 60000, (content, reply) -> {
+            throw new ConnectException("Offline");
+        }, QUICK);
+        cache.Write(PostCache.RepliesKey(THREAD), server.replies);
+
+        Results results = new Results();
+        PostRepository.Subscription subscription = OnMain(() -> repository.Watch(THREAD, results));
+        OnMain(() -> {
+            subscription.SetForeground(true);
+            return null;
+        });
+        results.Await(PostRepository.Status.CACHED, 2);
+
+        server.Add(12);
+        PostRepository.Result live = results.Await(PostRepository.Status.FRESH, 3);
+        assertEquals(Arrays.asList(10, 11, 12), Ids(live.posts));
+        assertEquals(0, server.fetches.get());
+        OnMain(() -> {
+            subscription.Close();
+            return null;
+        });
+    }
+
+    @Test
+    public void liveUpdatesStartEvenIfTheFirstFetchFails() throws Exception {
+        FakeServer server = new FakeServer();
+        server.Add(10);
+        server.failure = new IOException("Offline");
+        PostRepository repository = Repository(server, 0, (content, reply) -> {
+            throw new ConnectException("Offline");
+        }, QUICK);
+
+        Results results = new Results();
+        PostRepository.Subscription subscription = OnMain(() -> repository.Watch(THREAD, results));
+        OnMain(() -> {
+            subscription.SetForeground(true);
+            return null;
+        });
+        assertEquals(PostRepository.Reason.NETWORK, results.AwaitFailure().failure.reason);
+
+        // Back online, and nobody tapped refresh
+        server.failure = null;
+        server.Add(11);
+        PostRepository.Result live = results.Await(PostRepository.Status.FRESH, 2);
+        assertEquals(Arrays.asList(10, 11), Ids(live.posts));
+        assertEquals(1, server.fetches.get());
+        OnMain(() -> {
+            subscription.Close();
+            return null;
+        });
+    }
+}
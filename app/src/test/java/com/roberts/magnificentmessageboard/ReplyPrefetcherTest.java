@@ -0,0 +1,164 @@
+package com.roberts.magnificentmessageboard;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks batching, budget and hit counting of {@link ReplyPrefetcher} with a fake network
+ */
+public class ReplyPrefetcherTest {
+
+    /**
+     * Stands in for getReplies.php, recording each batch asked for and how many ran at once
+     */
+    private static class FakeReplies implements ReplyPrefetcher.Fetcher {
+        final List<List<Integer>> batches = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger mostRunning = new AtomicInteger();
+        // Posts the server can't find
+        final Set<Integer> missing = Collections.synchronizedSet(new HashSet<>());
+        final CountDownLatch release;
+        final long bytes;
+
+        FakeReplies(CountDownLatch release, long bytes) {
+            this.release = release;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public NetworkUtils.RepliesBatch Fetch(List<Integer> rowids, HttpTransport.Timings timings) throws java.io.IOException {
+            batches.add(new ArrayList<>(rowids));
+            int now = running.incrementAndGet();
+            mostRunning.accumulateAndGet(now, Math::max);
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new java.io.IOException(e);
+            } finally {
+                running.decrementAndGet();
+            }
+            timings.bodyBytes = bytes;
+            NetworkUtils.RepliesBatch batch = new NetworkUtils.RepliesBatch();
+            batch.requests = 1;
+            for (int rowid : rowids) {
+                if (missing.contains(rowid)) {
+                    batch.failures.put(rowid, new PostStreamDecoder.ApiErrorException("No such post"));
+                    continue;
+                }
+                ArrayList<Post> replies = new ArrayList<>();
+                replies.add(new Post("h", "reply", rowid * 100, rowid));
+                batch.replies.put(rowid, replies);
+            }
+            return batch;
+        }
+    }
+
+    private static List<Post> Posts(int from, int to) {
+        List<Post> posts = new ArrayList<>();
+        for (int id = from; id <= to; id++) {
+            posts.add(new Post("h", "post", id, -1));
+        }
+        return posts;
+    }
+
+    private static void AwaitCached(ReplyPrefetcher prefetcher, int rowid) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!prefetcher.Has(rowid)) {
+            assertTrue("Replies to " + rowid + " never arrived", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void fetchesVisibleThreadsInBatches() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        FakeReplies network = new FakeReplies(release, 100);
+        NetworkScheduler scheduler = new NetworkScheduler(8, Runnable::run);
+        ReplyPrefetcher prefetcher = new ReplyPrefetcher(scheduler, network, 1, 4, 1 << 20, 64);
+
+        prefetcher.Visible(Posts(1, 10));
+        Thread.sleep(100);
+        assertEquals(1, network.batches.size());
+        release.countDown();
+        for (int id = 1; id <= 10; id++) {
+            AwaitCached(prefetcher, id);
+        }
+        assertTrue(scheduler.AwaitIdle(5000));
+        assertEquals(Arrays.asList(Arrays.asList(1, 2, 3, 4), Arrays.asList(5, 6, 7, 8), Arrays.asList(9, 10)),
+                network.batches);
+        assertEquals(1, network.mostRunning.get());
+
+        // Opening a prefetched thread is a hit, anything else a miss
+        ReplyPrefetcher.Entry entry = prefetcher.Lookup(3);
+        assertNotNull(entry);
+        assertEquals(300, entry.replies.get(0).Id);
+        assertFalse(entry.IsStale());
+        assertNull(prefetcher.Lookup(11));
+        assertEquals(0.5f, prefetcher.HitRate(), 0.001f);
+
+        // Already fresh, so nothing goes out again
+        prefetcher.Visible(Posts(1, 10));
+        assertTrue(scheduler.AwaitIdle(5000));
+        assertEquals(3, network.batches.size());
+    }
+
+    @Test
+    public void stopsWhenTheBudgetIsSpent() throws Exception {
+        CountDownLatch release = new CountDownLatch(0);
+        FakeReplies network = new FakeReplies(release, 1000);
+        NetworkScheduler scheduler = new NetworkScheduler(8, Runnable::run);
+        ReplyPrefetcher prefetcher = new ReplyPrefetcher(scheduler, network, 1, 2, 2500, 64);
+
+        // Each batch costs 1000 bytes whatever is in it, so the third one spends the budget
+        prefetcher.Visible(Posts(1, 10));
+        AwaitCached(prefetcher, 6);
+        assertTrue(scheduler.AwaitIdle(5000));
+        assertEquals(3, network.batches.size());
+        assertFalse(prefetcher.Has(7));
+    }
+
+    @Test
+    public void dropsPostsThatScrolledAway() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        FakeReplies network = new FakeReplies(release, 10);
+        NetworkScheduler scheduler = new NetworkScheduler(8, Runnable::run);
+        ReplyPrefetcher prefetcher = new ReplyPrefetcher(scheduler, network, 1, 2, 1 << 20, 64);
+
+        prefetcher.Visible(Posts(1, 5));
+        Thread.sleep(50);
+        prefetcher.Visible(Posts(20, 21));
+        release.countDown();
+        AwaitCached(prefetcher, 21);
+        assertTrue(scheduler.AwaitIdle(5000));
+
+        assertEquals(Arrays.asList(Arrays.asList(1, 2), Arrays.asList(20, 21)), network.batches);
+    }
+
+    @Test
+    public void failedPostsCountAsMisses() throws Exception {
+        FakeReplies network = new FakeReplies(new CountDownLatch(0), 10);
+        network.missing.add(2);
+        NetworkScheduler scheduler = new NetworkScheduler(8, Runnable::run);
+        ReplyPrefetcher prefetcher = new ReplyPrefetcher(scheduler, network, 1, 4, 1 << 20, 64);
+
+        prefetcher.Visible(Posts(1, 3));
+        AwaitCached(prefetcher, 3);
+        assertTrue(scheduler.AwaitIdle(5000));
+        assertFalse(prefetcher.Has(2));
+        assertEquals(1, prefetcher.Misses());
+
+        assertNotNull(prefetcher.Lookup(1));
+        assertEquals(0.5f, prefetcher.HitRate(), 0.001f);
+    }
+}
@@ -0,0 +1,155 @@
+package com.roberts.magnificentmessageboard;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link SearchIndex} finds what it should, and stays fast with a lot of posts in it
+ */
+public class SearchIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<Integer> Ids(List<Post> posts) {
+        List<Integer> ids = new ArrayList<>();
+        for (Post post : posts) {
+            ids.add(post.Id);
+        }
+        return ids;
+    }
+
+    private static SearchIndex Index() {
+        SearchIndex index = new SearchIndex();
+        index.Add(Arrays.asList(
+                new Post("a1b2", "The board is MAGNIFICENT today", 1, -1),
+                new Post("c3d4", "Magnets, how do they work?", 2, -1),
+                new Post("e5f6", "Café opens at 9", 3, 1),
+                new Post("a1b2", "magnificent board, again", 4, 2)));
+        return index;
+    }
+
+    @Test
+    public void tokenizesOnAnythingButLettersAndDigits() {
+        assertEquals(Arrays.asList("the", "café", "opens", "at", "9am"), SearchIndex.Tokenize("The CAFÉ—opens at 9am!"));
+        assertEquals(Collections.emptyList(), SearchIndex.Tokenize("  ...  "));
+        assertEquals(SearchIndex.MAX_TERM_CHARS, SearchIndex.Tokenize("supercalifragilisticexpialidocious").get(0).length());
+    }
+
+    @Test
+    public void everyWordHasToMatchTheStartOfOne() {
+        SearchIndex index = Index();
+        // Newest first
+        assertEquals(Arrays.asList(4, 2, 1), Ids(index.Search("magn", 10)));
+        assertEquals(Arrays.asList(4, 1), Ids(index.Search("Board magnif", 10)));
+        assertEquals(Collections.singletonList(3), Ids(index.Search("CAFÉ", 10)));
+        assertTrue(index.Search("board magnets", 10).isEmpty());
+        assertTrue(index.Search("oard", 10).isEmpty());
+        assertTrue(index.Search("", 10).isEmpty());
+        assertEquals(Collections.singletonList(4), Ids(index.Search("magn", 1)));
+    }
+
+    @Test
+    public void findsPostsByHash() {
+        SearchIndex index = Index();
+        assertEquals(Arrays.asList(4, 1), Ids(index.Search("A1B2", 10)));
+        assertEquals(Collections.singletonList(2), Ids(index.Search("c3", 10)));
+    }
+
+    @Test
+    public void addingAgainUpdatesThePostButDoesntIndexIt() {
+        SearchIndex index = Index();
+        Post edited = new Post("c3d4", "something else", 2, -1);
+        index.Add(Collections.singletonList(edited));
+        assertEquals(4, index.Size());
+        assertEquals("something else", index.Find(2).Content);
+        assertEquals("something else", index.Search("magnets", 10).get(0).Content);
+        assertNull(index.Find(99));
+    }
+
+    @Test
+    public void skipsPendingPosts() {
+        SearchIndex index = new SearchIndex();
+        // Pending posts have negative ids until the server gives them one
+        index.Add(Collections.singletonList(new Post("", "not sent yet", -5, -1)));
+        assertEquals(0, index.Size());
+        assertTrue(index.Search("sent", 10).isEmpty());
+    }
+
+    @Test
+    public void hashesTurnUpForPostsSentFromHere() {
+        SearchIndex index = new SearchIndex();
+        index.Add(Collections.singletonList(new Post("", "hello from here", 3, -1)));
+        index.Add(Collections.singletonList(new Post("aa", "older post", 1, -1)));
+        assertTrue(index.Search("beef", 10).isEmpty());
+
+        // The server's copy comes back in a later fetch
+        index.Add(Collections.singletonList(new Post("BEEF", "hello from here", 3, -1)));
+        assertEquals(Arrays.asList(3), Ids(index.Search("beef", 10)));
+        assertEquals("BEEF", index.Find(3).Hash);
+        assertEquals(2, index.Size());
+    }
+
+    @Test
+    public void loadsTheCacheOnce() {
+        PostCache cache = new PostCache(folder.getRoot(), 60000, 1 << 20);
+        cache.Write(PostCache.FrontPageKey(0), Arrays.asList(new Post("h", "cached front page", 1, -1)));
+        cache.Write(PostCache.RepliesKey(1), Arrays.asList(new Post("h", "cached reply", 2, 1)));
+        SearchIndex index = new SearchIndex();
+        index.LoadCache(cache);
+        assertEquals(Arrays.asList(2, 1), Ids(index.Search("cached", 10)));
+
+        cache.Write(PostCache.FrontPageKey(15), Arrays.asList(new Post("h", "cached later", 3, -1)));
+        index.LoadCache(cache);
+        assertEquals(2, index.Size());
+    }
+
+    @Test
+    public void searchesAHundredThousandPostsInMilliseconds() {
+        String[] words = {"board", "magnificent", "thread", "reply", "post", "hoppy", "haus", "today", "again", "what"};
+        Random random = new Random(19);
+        int count = 100000;
+        List<Post> posts = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+            StringBuilder content = new StringBuilder("post").append(i);
+            for (int word = 0; word < 12; word++) {
+                content.append(' ').append(words[random.nextInt(words.length)]).append(random.nextInt(500));
+            }
+            posts.add(new Post(Integer.toHexString(i * 7919), content.toString(), i, i % 3 == 0 ? i - 1 : -1));
+        }
+
+        long start = System.nanoTime();
+        SearchIndex index = new SearchIndex();
+        index.Add(posts);
+        long built = System.nanoTime() - start;
+        assertEquals(count, index.Size());
+
+        String[] queries = {"magnificent", "mag", "board12 today", "post12345", "r", "hoppy haus what"};
+        // Warm up once, then time the lot
+        for (String query : queries) {
+            index.Search(query, 100);
+        }
+        start = System.nanoTime();
+        int rounds = 20;
+        for (int round = 0; round < rounds; round++) {
+            for (String query : queries) {
+                index.Search(query, 100);
+            }
+        }
+        double perSearch = (System.nanoTime() - start) / 1e6 / (rounds * queries.length);
+        assertEquals(Collections.singletonList(12345), Ids(index.Search("post12345", 100)));
+        assertEquals(100, index.Search("r", 100).size());
+
+        System.out.println(String.format("Search index: %d posts, %d terms, built in %.0f ms, %.2f ms per search",
+                count, index.Terms(), built / 1e6, perSearch));
+        assertTrue(perSearch < 50);
+    }
+}
@@ -0,0 +1,108 @@
+package com.roberts.magnificentmessageboard;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link Settings} loads in the background and only makes a tripcode when there isn't one
+ */
+public class SettingsTest {
+    /**
+     * Settings in a map, slow to read like a file on a busy phone
+     */
+    private static class SlowBacking implements Settings.Backing {
+        final Map<String, String> values = new HashMap<>();
+        final long delayMs;
+        int saves = 0;
+
+        SlowBacking(long delayMs) {
+            this.delayMs = delayMs;
+        }
+
+        @Override
+        public synchronized Map<String, ?> Load() {
+            try {
+                Thread.sleep(delayMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new HashMap<>(values);
+        }
+
+        @Override
+        public synchronized void Save(String key, String value) {
+            values.put(key, value);
+            saves++;
+        }
+    }
+
+    @Test
+    public void firstRunMakesATripcode() throws Exception {
+        SlowBacking backing = new SlowBacking(0);
+        Settings settings = new Settings(backing, Runnable::run);
+        String tripcode = settings.Peek().tripcode;
+        assertEquals(36, tripcode.length());
+        assertEquals(tripcode, backing.values.get(Settings.TRIPCODE));
+        assertEquals(1, backing.saves);
+
+        // Next launch finds it
+        Settings again = new Settings(backing, Runnable::run);
+        assertEquals(tripcode, again.Await().tripcode);
+        assertEquals(1, backing.saves);
+    }
+
+    @Test
+    public void loadingDoesntHoldUpTheCaller() throws Exception {
+        SlowBacking backing = new SlowBacking(300);
+        backing.values.put(Settings.TRIPCODE, "from-last-time");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            long start = System.nanoTime();
+            Settings settings = new Settings(backing, executor);
+            long took = (System.nanoTime() - start) / 1000000;
+            assertTrue("Took " + took + "ms", took < 100);
+            assertNull(settings.Peek());
+
+            // Someone sending a post waits for it
+            assertEquals("from-last-time", settings.Await().tripcode);
+            assertEquals("from-last-time", settings.Peek().tripcode);
+            assertEquals(0, backing.saves);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void brokenSettingsFallBackToATripcodeForNow() throws Exception {
+        SlowBacking broken = new SlowBacking(0) {
+            @Override
+            public synchronized Map<String, ?> Load() {
+                throw new ClassCastException("Not a string");
+            }
+        };
+        Settings settings = new Settings(broken, Runnable::run);
+        Settings.Snapshot snapshot = settings.Await();
+        assertNotNull(snapshot);
+        assertEquals(36, snapshot.tripcode.length());
+        assertFalse(snapshot.saved);
+        // Whatever was there is left alone
+        assertEquals(0, broken.saves);
+
+        SlowBacking readOnly = new SlowBacking(0) {
+            @Override
+            public synchronized void Save(String key, String value) {
+                throw new IllegalStateException("Disk full");
+            }
+        };
+        Settings.Snapshot unsaved = new Settings(readOnly, Runnable::run).Await();
+        assertEquals(36, unsaved.tripcode.length());
+        assertFalse(unsaved.saved);
+        assertTrue(new Settings(new SlowBacking(0), Runnable::run).Await().saved);
+    }
+}
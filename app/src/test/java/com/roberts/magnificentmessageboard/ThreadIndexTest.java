@@ -0,0 +1,168 @@
+package com.roberts.magnificentmessageboard;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link ThreadIndex} builds the same tree whatever order replies come in, and that it
+ * stays linear on big and deep threads
+ */
+public class ThreadIndexTest {
+    private static final int OP = 100;
+
+    private static Post Reply(int id, int parent) {
+        return new Post("h", "reply " + id, id, parent);
+    }
+
+    private static List<Integer> Ids(List<Post> posts) {
+        List<Integer> ids = new ArrayList<>();
+        for (Post post : posts) {
+            ids.add(post.Id);
+        }
+        return ids;
+    }
+
+    /**
+     * OP
+     * ├ 101
+     * │ ├ 103
+     * │ │ └ 106
+     * │ └ 105
+     * ├ 102
+     * └ 104
+     *   └ 107
+     */
+    private static List<Post> Tree() {
+        List<Post> posts = new ArrayList<>();
+        posts.add(Reply(101, OP));
+        posts.add(Reply(102, OP));
+        posts.add(Reply(103, 101));
+        posts.add(Reply(104, OP));
+        posts.add(Reply(105, 101));
+        posts.add(Reply(106, 103));
+        posts.add(Reply(107, 104));
+        return posts;
+    }
+
+    private static final List<Integer> TREE_ORDER = Arrays.asList(101, 103, 106, 105, 102, 104, 107);
+
+    @Test
+    public void repliesComeOutInThreadOrder() {
+        ThreadIndex index = new ThreadIndex(OP);
+        assertTrue(index.Add(new Post("h", "op", OP, -1)));
+        assertEquals(7, index.AddAll(Tree()));
+        assertEquals(TREE_ORDER, Ids(index.Visible()));
+        assertEquals(1, index.Depth(101));
+        assertEquals(3, index.Depth(106));
+        assertEquals(2, index.ChildCount(101));
+        assertArrayEquals(new int[]{103, 105}, index.Children(101));
+        assertEquals(OP, index.Root().Id);
+        assertEquals(0, index.Waiting());
+
+        // Adding again swaps in the new copy but isn't new
+        Post edited = new Post("h", "edited", 105, 101);
+        assertFalse(index.Add(edited));
+        assertSame(edited, index.Visible().get(3));
+        assertEquals(7, index.Size());
+    }
+
+    @Test
+    public void repliesBeforeTheirParentsWaitForThem() {
+        List<Post> posts = Tree();
+        // Grandchild first, then child, then everything else backwards
+        Collections.reverse(posts);
+        ThreadIndex index = new ThreadIndex(OP);
+        for (Post post : posts) {
+            index.Add(post);
+        }
+        assertEquals(0, index.Waiting());
+        // Children are in the order they came in, so siblings come out reversed
+        assertEquals(Arrays.asList(104, 107, 102, 101, 105, 103, 106), Ids(index.Visible()));
+        assertEquals(3, index.Depth(106));
+
+        ThreadIndex partial = new ThreadIndex(OP);
+        partial.Add(Reply(106, 103));
+        partial.Add(Reply(103, 101));
+        assertEquals(2, partial.Waiting());
+        assertEquals(-1, partial.Depth(106));
+        assertTrue(partial.Visible().isEmpty());
+        partial.Add(Reply(101, OP));
+        assertEquals(0, partial.Waiting());
+        assertEquals(Arrays.asList(101, 103, 106), Ids(partial.Visible()));
+        assertEquals(3, partial.Depth(106));
+    }
+
+    @Test
+    public void collapsingOnlyHidesWhatsUnderneath() {
+        ThreadIndex index = new ThreadIndex(OP);
+        index.AddAll(Tree());
+        assertEquals(1, index.Collapse(103));
+        assertEquals(Arrays.asList(101, 103, 105, 102, 104, 107), Ids(index.Visible()));
+        // 103 is already collapsed, so only 103 and 105 go
+        assertEquals(2, index.Collapse(101));
+        assertEquals(Arrays.asList(101, 102, 104, 107), Ids(index.Visible()));
+        assertEquals(0, index.Collapse(101));
+        assertEquals(0, index.Collapse(102));
+
+        // Replies keep coming in while collapsed
+        index.Add(Reply(108, 105));
+        assertEquals(Arrays.asList(101, 102, 104, 107), Ids(index.Visible()));
+        assertEquals(Arrays.asList(103, 105, 108), Ids(index.VisibleBelow(101)));
+        assertEquals(3, index.Expand(101));
+        assertEquals(Arrays.asList(101, 103, 105, 108, 102, 104, 107), Ids(index.Visible()));
+        assertTrue(index.VisibleBelow(999).isEmpty());
+        assertTrue(index.IsCollapsed(103));
+        assertEquals(1, index.Expand(103));
+        assertEquals(0, index.Expand(103));
+        assertFalse(index.IsCollapsed(103));
+    }
+
+    @Test
+    public void deepThreadsDontBlowTheStack() {
+        int depth = 200000;
+        ThreadIndex index = new ThreadIndex(OP, depth);
+        // Backwards, so every reply waits and the whole chain joins at the end
+        for (int i = depth; i >= 1; i--) {
+            index.Add(Reply(OP + i, OP + i - 1));
+        }
+        assertEquals(depth, index.Visible().size());
+        assertEquals(depth, index.Depth(OP + depth));
+        assertEquals(depth - 1, index.Collapse(OP + 1));
+        assertEquals(1, index.Visible().size());
+    }
+
+    @Test
+    public void bigThreadsBuildInLinearTime() {
+        Random random = new Random(18);
+        int[] sizes = {100000, 1000000};
+        long[] took = new long[sizes.length];
+        for (int round = 0; round < sizes.length; round++) {
+            int count = sizes[round];
+            List<Post> posts = new ArrayList<>(count);
+            for (int i = 1; i <= count; i++) {
+                // Mostly replies to recent posts, like a busy thread
+                int parent = random.nextInt(4) == 0 ? OP : OP + Math.max(1, i - random.nextInt(50) - 1);
+                posts.add(Reply(OP + i, i == 1 ? OP : parent));
+            }
+            // Warm up once
+            new ThreadIndex(OP).AddAll(posts);
+            long start = System.nanoTime();
+            ThreadIndex index = new ThreadIndex(OP);
+            index.AddAll(posts);
+            List<Post> visible = index.Visible();
+            took[round] = System.nanoTime() - start;
+            assertEquals(count, visible.size());
+        }
+        System.out.println(String.format("Thread index: %d replies in %.1f ms, %d replies in %.1f ms",
+                sizes[0], took[0] / 1e6, sizes[1], took[1] / 1e6));
+        // Ten times the replies shouldn't take anywhere near a hundred times as long
+        assertTrue(took[1] < took[0] * 40);
+    }
+}
@@ -0,0 +1,58 @@
+package com.roberts.magnificentmessageboard.benchmark;
+/*
+ * @author Robert Roberts
+ */
+import android.content.Context;
+import android.widget.FrameLayout;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.roberts.magnificentmessageboard.PostListAdapter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Collection;
+
+/**
+ * Binding front page rows, like scrolling through that many posts
+ */
+@RunWith(Parameterized.class)
+public class BindBenchmark {
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private final int posts;
+
+    @Parameterized.Parameters(name = "posts={0}")
+    public static Collection<Object[]> Sizes() {
+        return Payloads.Sizes();
+    }
+
+    public BindBenchmark(int posts) {
+        this.posts = posts;
+    }
+
+    @Test
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void bindRows() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        PostListAdapter adapter = new PostListAdapter(context, PostListAdapter.Screen.FRONT_PAGE, null);
+        adapter.SubmitPosts(Payloads.Posts(posts));
+        // Raw, since the holder class isn't visible from here
+        RecyclerView.Adapter raw = adapter;
+        RecyclerView.ViewHolder holder = raw.onCreateViewHolder(new FrameLayout(context), PostListAdapter.TYPE_POST);
+
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            for (int position = 0; position < posts; position++) {
+                raw.onBindViewHolder(holder, position);
+            }
+        }
+    }
+}
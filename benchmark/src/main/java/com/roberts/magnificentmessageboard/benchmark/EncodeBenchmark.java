@@ -0,0 +1,52 @@
+package com.roberts.magnificentmessageboard.benchmark;
+/*
+ * @author Robert Roberts
+ */
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+
+import com.roberts.magnificentmessageboard.NetworkUtils;
+import com.roberts.magnificentmessageboard.Post;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Encoding newPost.php form bodies, one per post, like the outbound queue does
+ */
+@RunWith(Parameterized.class)
+public class EncodeBenchmark {
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private final List<HashMap<String, String>> forms = new ArrayList<>();
+
+    @Parameterized.Parameters(name = "posts={0}")
+    public static Collection<Object[]> Sizes() {
+        return Payloads.Sizes();
+    }
+
+    public EncodeBenchmark(int posts) {
+        for (Post post : Payloads.Posts(posts)) {
+            forms.add(Payloads.Form(post));
+        }
+    }
+
+    @Test
+    public void encodeForm() throws IOException {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            for (HashMap<String, String> form : forms) {
+                NetworkUtils.EncodeForm(form);
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.roberts.magnificentmessageboard.benchmark;
+/*
+ * @author Robert Roberts
+ */
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+
+import com.roberts.magnificentmessageboard.HttpTransport;
+import com.roberts.magnificentmessageboard.NetworkUtils;
+import com.roberts.magnificentmessageboard.Post;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.IOException;
+import java.util.Collection;
+
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Reading and parsing front page responses, from bytes already off the network
+ */
+@RunWith(Parameterized.class)
+public class ParseBenchmark {
+    private static final MediaType JSON = MediaType.parse("application/json");
+    private static final Request REQUEST = new Request.Builder().url("http://localhost/getFrontPage.php").build();
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private final int posts;
+    private final byte[] payload;
+
+    @Parameterized.Parameters(name = "posts={0}")
+    public static Collection<Object[]> Sizes() {
+        return Payloads.Sizes();
+    }
+
+    public ParseBenchmark(int posts) {
+        this.posts = posts;
+        payload = Payloads.FrontPage(posts);
+    }
+
+    /**
+     * A response that's already arrived, so only reading it gets measured
+     */
+    private NetworkUtils.QuickRequestResponse Response() {
+        Response response = new Response.Builder()
+                .request(REQUEST)
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .body(ResponseBody.create(JSON, payload))
+                .build();
+        return new NetworkUtils.QuickRequestResponse(response, new HttpTransport.Timings());
+    }
+
+    @Test
+    public void readBody() {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            NetworkUtils.QuickRequestResponse response = Response();
+            state.resumeTiming();
+            response.getData();
+        }
+    }
+
+    @Test
+    public void decodePosts() throws IOException {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            NetworkUtils.QuickRequestResponse response = Response();
+            state.resumeTiming();
+            assertEquals(posts, response.decodePosts().size());
+        }
+    }
+
+    /**
+     * The old way, the whole body as a String and then the framework's JSON tree
+     */
+    @Test
+    public void toJson() throws JSONException {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            NetworkUtils.QuickRequestResponse response = Response();
+            state.resumeTiming();
+            new JSONObject(response.getData());
+        }
+    }
+
+    @Test
+    public void postFromJson() throws JSONException {
+        JSONArray content = new JSONObject(Response().getData()).getJSONArray("response");
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            for (int i = 0; i < content.length(); i++) {
+                JSONObject post = content.getJSONObject(i);
+                new Post(post.getString("hash"), post.getString("content"), post.getInt("rowid"), post.getInt("reply"));
+            }
+        }
+    }
+}
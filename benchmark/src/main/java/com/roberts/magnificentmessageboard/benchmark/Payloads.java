@@ -0,0 +1,103 @@
+package com.roberts.magnificentmessageboard.benchmark;
+/*
+ * @author Robert Roberts
+ */
+import com.roberts.magnificentmessageboard.Post;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic data shaped like what messageboard.hoppy.haus sends
+ */
+final class Payloads {
+    private Payloads() {
+    }
+
+    /**
+     * @return Post counts every benchmark runs at, as JUnit parameters
+     */
+    static Collection<Object[]> Sizes() {
+        return Arrays.asList(new Object[][]{{10}, {100}, {1000}, {10000}, {100000}});
+    }
+
+    /**
+     * @param count Amount of posts
+     * @return A getFrontPage.php response body with that many posts
+     */
+    static byte[] FrontPage(int count) {
+        StringBuilder body = new StringBuilder(count * 130 + 16).append("{\"response\":[\n");
+        for (int i = 0; i < count; i++) {
+            body.append("{\"rowid\":\"").append(i + 1)
+                    .append("\",\"hash\":\"").append(Integer.toHexString(i * 7919))
+                    .append("\",\"reply\":\"-1\",\"content\":\"Post number ").append(i)
+                    .append(" with some \\\"quoted\\\" text and a unicode \\u00e9 escape\"}");
+            body.append(i + 1 < count ? ",\n" : "\n");
+        }
+        return body.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param count Amount of posts
+     * @return Posts like the ones in {@link #FrontPage(int)}
+     */
+    static List<Post> Posts(int count) {
+        List<Post> posts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            posts.add(new Post(Integer.toHexString(i * 7919), "Post number " + i + " with some \"quoted\" text and a unicode é escape", i + 1, -1));
+        }
+        return posts;
+    }
+
+    /**
+     * @param op rowid of the OP
+     * @param count Amount of replies
+     * @return Replies to the OP and to each other, a quarter straight to the OP and the rest to
+     * one of the fifty before them, in the order they were posted
+     */
+    static List<Post> Thread(int op, int count) {
+        Random random = new Random(count);
+        List<Post> posts = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+            int parent = i == 1 || random.nextInt(4) == 0 ? op : op + Math.max(1, i - 1 - random.nextInt(50));
+            posts.add(new Post(Integer.toHexString(i * 7919), "Reply number " + i, op + i, parent));
+        }
+        return posts;
+    }
+
+    /**
+     * @param count Amount of posts
+     * @param chars Roughly how long each one is
+     * @param thread true to make every post after the first a reply to it
+     * @return Wordy posts with a line break now and then, so laying them out is real work
+     */
+    static List<Post> LongPosts(int count, int chars, boolean thread) {
+        String[] words = {"the", "board", "is", "magnificent", "and", "posting", "here", "every", "day", "é", "thread"};
+        List<Post> posts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            StringBuilder content = new StringBuilder(chars + 16).append("Post ").append(i);
+            for (int word = i; content.length() < chars; word++) {
+                content.append(word % 17 == 0 ? '\n' : ' ').append(words[word % words.length]);
+            }
+            posts.add(new Post(Integer.toHexString(i * 7919), content.toString(), i + 1, thread && i > 0 ? 1 : -1));
+        }
+        return posts;
+    }
+
+    /**
+     * @param post A post
+     * @return The fields newPost.php gets for it
+     */
+    static HashMap<String, String> Form(Post post) {
+        HashMap<String, String> form = new HashMap<>();
+        form.put("content", post.Content);
+        form.put("reply", Integer.toString(post.Reply));
+        form.put("tripcode", "0f8fad5b-d9cb-469f-a165-70867728950e");
+        return form;
+    }
+}
@@ -0,0 +1,117 @@
+package com.roberts.magnificentmessageboard.benchmark;
+/*
+ * @author Robert Roberts
+ */
+import android.app.Instrumentation;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.view.ContextThemeWrapper;
+import android.view.View;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.roberts.magnificentmessageboard.PostListAdapter;
+import com.roberts.magnificentmessageboard.R;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Locale;
+
+/**
+ * Scrolling a list of long posts one frame at a time, on the main thread, waiting out the rest of
+ * each 60Hz frame in between like a real fling would. The timed part of each frame is what
+ * RecyclerView does to move the list along: binding and laying out rows coming on screen. Besides
+ * the usual benchmark output, the share of frames that ran over budget is sent as instrumentation
+ * status, since a steady frame rate is the point.
+ */
+@RunWith(Parameterized.class)
+public class ScrollBenchmark {
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+    // About how far a quick fling moves in one frame
+    private static final int STEP = 80;
+    private static final long FRAME_NS = 16_666_667;
+    private static final int POSTS = 500;
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private final int chars;
+
+    @Parameterized.Parameters(name = "chars={0}")
+    public static Collection<Object[]> Lengths() {
+        return Arrays.asList(new Object[][]{{100}, {2000}, {20000}});
+    }
+
+    public ScrollBenchmark(int chars) {
+        this.chars = chars;
+    }
+
+    @Test
+    public void scrollFrontPage() {
+        Scroll("frontpage", PostListAdapter.Screen.FRONT_PAGE);
+    }
+
+    @Test
+    public void scrollThread() {
+        Scroll("thread", PostListAdapter.Screen.THREAD);
+    }
+
+    /**
+     * Scroll a list up and down until the benchmark has enough frames
+     */
+    private void Scroll(String name, PostListAdapter.Screen screen) {
+        Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        Context context = new ContextThemeWrapper(instrumentation.getTargetContext(), R.style.Theme_MagnificentMessageboard);
+        long[] frames = new long[2];
+        instrumentation.runOnMainSync(() -> {
+            PostListAdapter adapter = new PostListAdapter(context, screen, null);
+            adapter.SubmitPosts(Payloads.LongPosts(POSTS, chars, screen == PostListAdapter.Screen.THREAD));
+            RecyclerView list = new RecyclerView(context);
+            adapter.AttachTo(list);
+            list.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                    View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+            list.layout(0, 0, WIDTH, HEIGHT);
+
+            BenchmarkState state = benchmarkRule.getState();
+            int direction = 1;
+            while (state.keepRunning()) {
+                if (!list.canScrollVertically(direction)) {
+                    // Hit an end, come back the other way
+                    direction = -direction;
+                }
+                long start = System.nanoTime();
+                list.scrollBy(0, STEP * direction);
+                long took = System.nanoTime() - start;
+
+                state.pauseTiming();
+                frames[0]++;
+                if (took > FRAME_NS) {
+                    frames[1]++;
+                }
+                // Give the rest of the frame to the background threads, like waiting on vsync
+                long left = (FRAME_NS - took) / 1_000_000;
+                if (left > 0) {
+                    SystemClock.sleep(left);
+                }
+                state.resumeTiming();
+            }
+        });
+
+        Bundle status = new Bundle();
+        String key = name + "_chars" + chars;
+        status.putLong(key + "_frames", frames[0]);
+        status.putLong(key + "_slow_frames", frames[1]);
+        status.putString(key + "_slow_percent", String.format(Locale.US, "%.2f", frames[0] == 0 ? 0 : 100.0 * frames[1] / frames[0]));
+        instrumentation.sendStatus(0, status);
+    }
+}
@@ -0,0 +1,72 @@
+package com.roberts.magnificentmessageboard.benchmark;
+/*
+ * @author Robert Roberts
+ */
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+
+import com.roberts.magnificentmessageboard.Post;
+import com.roberts.magnificentmessageboard.SearchIndex;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Indexing that many posts with {@link SearchIndex}, and searching them the way someone typing
+ * would: a short prefix, a whole word, and two words together
+ */
+@RunWith(Parameterized.class)
+public class SearchBenchmark {
+    private static final int LIMIT = 100;
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private final List<Post> posts;
+
+    @Parameterized.Parameters(name = "posts={0}")
+    public static Collection<Object[]> Sizes() {
+        return Payloads.Sizes();
+    }
+
+    public SearchBenchmark(int posts) {
+        this.posts = Payloads.LongPosts(posts, 200, false);
+    }
+
+    @Test
+    public void build() {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            new SearchIndex().Add(posts);
+        }
+    }
+
+    @Test
+    public void searchPrefix() {
+        Search("mag");
+    }
+
+    @Test
+    public void searchWord() {
+        Search("thread");
+    }
+
+    @Test
+    public void searchTwoWords() {
+        Search("board magnificent");
+    }
+
+    private void Search(String query) {
+        SearchIndex index = new SearchIndex();
+        index.Add(posts);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            index.Search(query, LIMIT);
+        }
+    }
+}
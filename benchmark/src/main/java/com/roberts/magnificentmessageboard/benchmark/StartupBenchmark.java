@@ -0,0 +1,105 @@
+package com.roberts.magnificentmessageboard.benchmark;
+/*
+ * @author Robert Roberts
+ */
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.roberts.magnificentmessageboard.MainActivity;
+import com.roberts.magnificentmessageboard.PostCache;
+import com.roberts.magnificentmessageboard.StartupTrace;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Launches the front page over and over with a fresh cache, reading each launch's
+ * {@link StartupTrace}, and fails if the median time to first frame or first post goes over
+ * budget. The process stays up between launches, so this is a warm start: it covers everything
+ * MainActivity does but not process creation. Medians, 90th percentiles and the time each phase
+ * of onCreate took are sent as instrumentation status.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StartupBenchmark {
+    private static final int LAUNCHES = 15;
+    private static final long TIMEOUT_MS = 10000;
+    // About a page's worth, so the first post comes from disk rather than the network
+    private static final int CACHED_POSTS = 20;
+
+    @Test
+    public void launchFrontPage() {
+        Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        Context context = instrumentation.getTargetContext();
+        long[] firstFrame = new long[LAUNCHES];
+        long[] firstPost = new long[LAUNCHES];
+        Map<String, Long> phases = new LinkedHashMap<>();
+
+        for (int i = 0; i < LAUNCHES; i++) {
+            // Fresh, so nothing goes to the network
+            PostCache.Get(context).Write(PostCache.FrontPageKey(0), Payloads.Posts(CACHED_POSTS));
+
+            Intent intent = new Intent(context, MainActivity.class);
+            intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            Activity activity = instrumentation.startActivitySync(intent);
+            StartupTrace trace = StartupTrace.Latest();
+            long until = SystemClock.uptimeMillis() + TIMEOUT_MS;
+            while (trace.Get(StartupTrace.FIRST_POST) < 0 && SystemClock.uptimeMillis() < until) {
+                SystemClock.sleep(5);
+            }
+            firstFrame[i] = trace.Get(StartupTrace.FIRST_FRAME);
+            firstPost[i] = trace.Get(StartupTrace.FIRST_POST);
+            assertTrue("Launch " + i + " never showed a post", firstPost[i] >= 0);
+            for (Map.Entry<String, Long> mark : trace.Marks().entrySet()) {
+                Long total = phases.get(mark.getKey());
+                phases.put(mark.getKey(), (total == null ? 0 : total) + mark.getValue());
+            }
+
+            instrumentation.runOnMainSync(activity::finish);
+            instrumentation.waitForIdleSync();
+        }
+
+        double frameMs = PercentileMs(firstFrame, 50);
+        double postMs = PercentileMs(firstPost, 50);
+        Bundle status = new Bundle();
+        status.putString("startup_first_frame_median_ms", String.format(Locale.US, "%.1f", frameMs));
+        status.putString("startup_first_frame_p90_ms", String.format(Locale.US, "%.1f", PercentileMs(firstFrame, 90)));
+        status.putString("startup_first_post_median_ms", String.format(Locale.US, "%.1f", postMs));
+        status.putString("startup_first_post_p90_ms", String.format(Locale.US, "%.1f", PercentileMs(firstPost, 90)));
+        for (Map.Entry<String, Long> phase : phases.entrySet()) {
+            status.putString("startup_" + phase.getKey() + "_mean_ms",
+                    String.format(Locale.US, "%.2f", phase.getValue() / 1e6 / LAUNCHES));
+        }
+        instrumentation.sendStatus(0, status);
+
+        assertTrue(String.format(Locale.US, "First frame took %.1fms, budget is %dms", frameMs, StartupTrace.FIRST_FRAME_BUDGET_MS),
+                frameMs <= StartupTrace.FIRST_FRAME_BUDGET_MS);
+        assertTrue(String.format(Locale.US, "First post took %.1fms, budget is %dms", postMs, StartupTrace.FIRST_POST_BUDGET_MS),
+                postMs <= StartupTrace.FIRST_POST_BUDGET_MS);
+    }
+
+    /**
+     * @param nanos One time per launch
+     * @param percentile Between 0 and 100
+     * @return The percentile, in milliseconds
+     */
+    private static double PercentileMs(long[] nanos, int percentile) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        int index = Math.min(sorted.length - 1, (int) Math.ceil(percentile / 100.0 * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
@@ -0,0 +1,81 @@
+package com.roberts.magnificentmessageboard.benchmark;
+/*
+ * @author Robert Roberts
+ */
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+
+import com.roberts.magnificentmessageboard.Post;
+import com.roberts.magnificentmessageboard.ThreadIndex;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Building a {@link ThreadIndex} for threads of that many replies. Time per reply should stay
+ * flat as the thread grows.
+ */
+@RunWith(Parameterized.class)
+public class ThreadBenchmark {
+    private static final int OP = 1;
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private final List<Post> replies;
+
+    @Parameterized.Parameters(name = "posts={0}")
+    public static Collection<Object[]> Sizes() {
+        return Payloads.Sizes();
+    }
+
+    public ThreadBenchmark(int posts) {
+        replies = Payloads.Thread(OP, posts);
+    }
+
+    @Test
+    public void buildInOrder() {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            ThreadIndex index = new ThreadIndex(OP);
+            index.AddAll(replies);
+            index.Visible();
+        }
+    }
+
+    @Test
+    public void buildBackwards() {
+        // Every reply shows up before the one it answers, the worst case for waiting
+        List<Post> backwards = new ArrayList<>(replies);
+        Collections.reverse(backwards);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            ThreadIndex index = new ThreadIndex(OP);
+            index.AddAll(backwards);
+            index.Visible();
+        }
+    }
+
+    @Test
+    public void collapseAndExpand() {
+        ThreadIndex index = new ThreadIndex(OP);
+        index.AddAll(replies);
+        int[] top = index.Children(OP);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            for (int id : top) {
+                index.Collapse(id);
+            }
+            for (int id : top) {
+                index.Expand(id);
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+import java.io.IOException;
+
+/**
+ * Stops sending requests to a server that keeps failing. After enough failures in a row it opens,
+ * and requests fail straight away instead of waiting on timeouts, so screens go back to what's
+ * cached. Once it's been open a while, one request is let through to see if things are better.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        // Requests go through as normal
+        CLOSED,
+        // Requests fail straight away
+        OPEN,
+        // One request is out seeing if the server is back
+        HALF_OPEN
+    }
+
+    /**
+     * Thrown instead of sending a request while the breaker is open
+     */
+    public static class OpenException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public OpenException(String server) {
+            super(server + " is failing, not trying it for now");
+        }
+    }
+
+    private final int failureThreshold;
+    private final long openMs;
+    // Guarded by this
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long openedAt = 0;
+    private int opened = 0;
+
+    /**
+     * Constructor
+     * @param failureThreshold Failures in a row before it opens
+     * @param openMs How long it stays open before letting a request through to try
+     */
+    public CircuitBreaker(int failureThreshold, long openMs) {
+        this.failureThreshold = failureThreshold;
+        this.openMs = openMs;
+    }
+
+    /**
+     * Ask before sending a request
+     * @return true if it can go, false to fail it straight away
+     */
+    public synchronized boolean Allow() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt >= openMs) {
+                    // This one gets to find out
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                // Someone's already finding out
+                return false;
+        }
+    }
+
+    /**
+     * A request that was allowed got an answer
+     */
+    public synchronized void Success() {
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    /**
+     * A request that was allowed failed, or the server said it's in trouble
+     */
+    public synchronized void Failure() {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            opened++;
+        }
+    }
+
+    /**
+     * @return What it's doing now
+     */
+    public synchronized State GetState() {
+        return state;
+    }
+
+    /**
+     * @return How many times it has opened
+     */
+    public synchronized int TimesOpened() {
+        return opened;
+    }
+}
@@ -0,0 +1,185 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+import java.io.IOException;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * Builds application/x-www-form-urlencoded bodies straight into a byte buffer that gets reused
+ * from one request to the next, so posting a message doesn't leave a trail of throwaway strings.
+ * Encodes the same way {@link java.net.URLEncoder} does with UTF-8.
+ *
+ * Not thread safe. Keep one per thread, and don't {@link #Reset()} it until the request using
+ * its body is done.
+ */
+public final class FormEncoder {
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+    // Bigger than this and the buffer is dropped on reset, rather than kept around for good
+    private static final int MAX_KEPT_BYTES = 64 * 1024;
+
+    private byte[] buffer = new byte[256];
+    private int length = 0;
+
+    /**
+     * Start a new body, keeping the buffer
+     * @return this
+     */
+    public FormEncoder Reset() {
+        if (buffer.length > MAX_KEPT_BYTES) {
+            buffer = new byte[256];
+        }
+        length = 0;
+        return this;
+    }
+
+    /**
+     * Add a field
+     * @param name Field name
+     * @param value Field value
+     * @return this
+     */
+    public FormEncoder Add(String name, String value) {
+        Separator();
+        Encode(name);
+        Put((byte) '=');
+        Encode(value);
+        return this;
+    }
+
+    /**
+     * Add a number field, without going through a String
+     * @param name Field name
+     * @param value Field value
+     * @return this
+     */
+    public FormEncoder Add(String name, int value) {
+        Separator();
+        Encode(name);
+        Put((byte) '=');
+        if (value < 0) {
+            Put((byte) '-');
+        }
+        // A long, so MIN_VALUE doesn't overflow
+        long magnitude = value < 0 ? -(long) value : value;
+        int start = length;
+        do {
+            Put((byte) ('0' + magnitude % 10));
+            magnitude /= 10;
+        } while (magnitude != 0);
+        // Digits went in backwards
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            byte swap = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = swap;
+        }
+        return this;
+    }
+
+    /**
+     * @return Bytes in the body so far
+     */
+    public int Length() {
+        return length;
+    }
+
+    /**
+     * @return A copy of the body
+     */
+    public byte[] ToByteArray() {
+        byte[] copy = new byte[length];
+        System.arraycopy(buffer, 0, copy, 0, length);
+        return copy;
+    }
+
+    /**
+     * A request body that writes the buffer straight to the connection. Only valid until the
+     * next {@link #Reset()}.
+     * @param contentType Content type to send
+     * @return The body
+     */
+    public RequestBody ToRequestBody(MediaType contentType) {
+        byte[] bytes = buffer;
+        int count = length;
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return contentType;
+            }
+
+            @Override
+            public long contentLength() {
+                return count;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                sink.write(bytes, 0, count);
+            }
+        };
+    }
+
+    private void Separator() {
+        if (length > 0) {
+            Put((byte) '&');
+        }
+    }
+
+    /**
+     * Percent-encode a string as UTF-8, a character at a time
+     */
+    private void Encode(String str) {
+        int count = str.length();
+        // Worst case is 3 bytes a char, each percent-encoded
+        Ensure(count * 9);
+        for (int i = 0; i < count; i++) {
+            char c = str.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '.' || c == '-' || c == '*' || c == '_') {
+                buffer[length++] = (byte) c;
+            } else if (c == ' ') {
+                buffer[length++] = '+';
+            } else if (c < 0x80) {
+                Escape(c);
+            } else if (c < 0x800) {
+                Escape(0xC0 | (c >> 6));
+                Escape(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(str.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, str.charAt(++i));
+                Escape(0xF0 | (codePoint >> 18));
+                Escape(0x80 | ((codePoint >> 12) & 0x3F));
+                Escape(0x80 | ((codePoint >> 6) & 0x3F));
+                Escape(0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Half a pair can't be encoded, URLEncoder sends a question mark instead
+                Escape('?');
+            } else {
+                Escape(0xE0 | (c >> 12));
+                Escape(0x80 | ((c >> 6) & 0x3F));
+                Escape(0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private void Escape(int b) {
+        buffer[length++] = '%';
+        buffer[length++] = HEX[(b >> 4) & 0xF];
+        buffer[length++] = HEX[b & 0xF];
+    }
+
+    private void Put(byte b) {
+        Ensure(1);
+        buffer[length++] = b;
+    }
+
+    private void Ensure(int extra) {
+        if (length + extra > buffer.length) {
+            byte[] bigger = new byte[Math.max(buffer.length * 2, length + extra)];
+            System.arraycopy(buffer, 0, bigger, 0, length);
+            buffer = bigger;
+        }
+    }
+}
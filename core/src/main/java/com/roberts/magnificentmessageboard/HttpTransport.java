@@ -0,0 +1,576 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Inflater;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.EventListener;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+import okio.GzipSource;
+import okio.InflaterSource;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * Transport that {@link NetworkUtils} sends everything through. Keeps connections to the server
+ * alive in a bounded pool, asks for compressed responses, and times each request. Each request can
+ * bring a {@link RequestPolicy} for its timeouts, retries and hedging, and every server gets a
+ * {@link CircuitBreaker} so one that's down fails fast.
+ */
+public class HttpTransport {
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    private static final int BREAKER_FAILURES = 5;
+    private static final long BREAKER_OPEN_MS = 30 * 1000;
+
+    private static HttpTransport instance = null;
+
+    private final ConnectionPool pool;
+    private final OkHttpClient client;
+    private final OkHttpClient redirectClient;
+    private final int breakerFailures;
+    private final long breakerOpenMs;
+    // Keyed by host and port
+    private final ConcurrentHashMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    // Calls threads are blocked on, so Cancel() can reach them
+    private final ConcurrentHashMap<Thread, Call> waiting = new ConcurrentHashMap<>();
+    private final Random jitter = new Random();
+
+    /**
+     * How long each phase of a request took. Phases that didn't happen, like DNS and connect on a
+     * reused connection, stay at 0.
+     */
+    public static class Timings {
+        private volatile long callStart;
+        private volatile long dnsStart;
+        private volatile long connectStart;
+        private volatile long requestEnd;
+        private volatile long headersEnd;
+
+        public volatile long dnsNanos = 0;
+        public volatile long connectNanos = 0;
+        public volatile long firstByteNanos = 0;
+        public volatile long bodyNanos = 0;
+        public volatile long totalNanos = 0;
+        // Body bytes that came over the wire, before decompressing
+        public volatile long bodyBytes = 0;
+        public volatile boolean reusedConnection = true;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "dns %.1fms, connect %.1fms, first byte %.1fms, body %.1fms%s",
+                    dnsNanos / 1e6, connectNanos / 1e6, firstByteNanos / 1e6, bodyNanos / 1e6,
+                    reusedConnection ? " (reused)" : "");
+        }
+    }
+
+    /**
+     * Fills in the {@link Timings} tagged onto each request, and hands them to {@link Metrics}
+     * once the call is over
+     */
+    private static class TimingListener extends EventListener {
+        private final Timings timings;
+        private final String endpoint;
+        private volatile long bytesOut = 0;
+        private volatile int status = 0;
+
+        TimingListener(Timings timings, String endpoint) {
+            this.timings = timings;
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public void callStart(Call call) {
+            timings.callStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsStart(Call call, String domainName) {
+            timings.dnsStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsEnd(Call call, String domainName, List<InetAddress> addresses) {
+            timings.dnsNanos = System.nanoTime() - timings.dnsStart;
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress address, Proxy proxy) {
+            timings.connectStart = System.nanoTime();
+            timings.reusedConnection = false;
+        }
+
+        @Override
+        public void connectEnd(Call call, InetSocketAddress address, Proxy proxy, Protocol protocol) {
+            timings.connectNanos = System.nanoTime() - timings.connectStart;
+        }
+
+        @Override
+        public void requestHeadersEnd(Call call, Request request) {
+            timings.requestEnd = System.nanoTime();
+        }
+
+        @Override
+        public void requestBodyEnd(Call call, long byteCount) {
+            timings.requestEnd = System.nanoTime();
+            bytesOut = byteCount;
+        }
+
+        @Override
+        public void responseHeadersEnd(Call call, Response response) {
+            timings.headersEnd = System.nanoTime();
+            status = response.code();
+            timings.firstByteNanos = timings.headersEnd - timings.requestEnd;
+        }
+
+        @Override
+        public void responseBodyEnd(Call call, long byteCount) {
+            timings.bodyNanos = System.nanoTime() - timings.headersEnd;
+            timings.bodyBytes = byteCount;
+        }
+
+        @Override
+        public void callEnd(Call call) {
+            timings.totalNanos = System.nanoTime() - timings.callStart;
+            Metrics.Get().RequestDone(endpoint, timings.totalNanos, timings.bodyBytes, bytesOut, status);
+        }
+
+        @Override
+        public void callFailed(Call call, IOException ioe) {
+            timings.totalNanos = System.nanoTime() - timings.callStart;
+            Metrics.Get().RequestFailed(endpoint, timings.totalNanos, timings.bodyBytes, bytesOut, ioe);
+        }
+    }
+
+    /**
+     * Applies the connect and read timeouts of the request's {@link RequestPolicy}
+     */
+    private static class TimeoutInterceptor implements Interceptor {
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            RequestPolicy policy = chain.request().tag(RequestPolicy.class);
+            if (policy == null) {
+                return chain.proceed(chain.request());
+            }
+            return chain.withConnectTimeout((int) policy.connectTimeoutMs, TimeUnit.MILLISECONDS)
+                    .withReadTimeout((int) policy.readTimeoutMs, TimeUnit.MILLISECONDS)
+                    .withWriteTimeout((int) policy.readTimeoutMs, TimeUnit.MILLISECONDS)
+                    .proceed(chain.request());
+        }
+    }
+
+    /**
+     * How one call of a hedged request went
+     */
+    private static class Outcome {
+        final Call call;
+        final Response response;
+        final IOException error;
+
+        Outcome(Call call, Response response, IOException error) {
+            this.call = call;
+            this.response = response;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Where the calls of a hedged request report back. Whatever turns up after someone has
+     * won gets closed, so no connection is left hanging.
+     */
+    private static class Race implements Callback {
+        private final LinkedBlockingQueue<Outcome> outcomes = new LinkedBlockingQueue<>();
+        private boolean settled = false;
+
+        @Override
+        public void onFailure(Call call, IOException e) {
+            Finish(new Outcome(call, null, e));
+        }
+
+        @Override
+        public void onResponse(Call call, Response response) {
+            Finish(new Outcome(call, response, null));
+        }
+
+        private void Finish(Outcome outcome) {
+            synchronized (this) {
+                if (!settled) {
+                    outcomes.add(outcome);
+                    return;
+                }
+            }
+            if (outcome.response != null) {
+                outcome.response.close();
+            }
+        }
+
+        /**
+         * @param timeoutMs How long to wait, or -1 for as long as it takes
+         * @return The next call to finish, or null if none did in time
+         */
+        Outcome Next(long timeoutMs) throws InterruptedException {
+            return timeoutMs < 0 ? outcomes.take() : outcomes.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Stop taking results, closing any that weren't used
+         * @param winner The response being kept, if any
+         */
+        void Settle(Response winner) {
+            synchronized (this) {
+                settled = true;
+            }
+            Outcome late;
+            while ((late = outcomes.poll()) != null) {
+                if (late.response != null && late.response != winner) {
+                    late.response.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Asks for gzip or deflate and unpacks whichever the server picked
+     */
+    private static class CompressionInterceptor implements Interceptor {
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            if (request.header("Accept-Encoding") != null) {
+                return chain.proceed(request);
+            }
+            Response response = chain.proceed(request.newBuilder()
+                    .header("Accept-Encoding", "gzip, deflate")
+                    .build());
+
+            String encoding = response.header("Content-Encoding");
+            ResponseBody body = response.body();
+            if (encoding == null || body == null) {
+                return response;
+            }
+
+            Source decoded;
+            if (encoding.equalsIgnoreCase("gzip")) {
+                decoded = new GzipSource(body.source());
+            } else if (encoding.equalsIgnoreCase("deflate")) {
+                BufferedSource source = body.source();
+                // "deflate" is meant to be zlib-wrapped, but plenty of servers send it raw
+                boolean raw = !source.request(2) || !IsZlibHeader(source.getBuffer().getByte(0), source.getBuffer().getByte(1));
+                decoded = new InflaterSource(source, new Inflater(raw));
+            } else {
+                return response;
+            }
+
+            return response.newBuilder()
+                    .removeHeader("Content-Encoding")
+                    .removeHeader("Content-Length")
+                    .body(ResponseBody.create(body.contentType(), -1, Okio.buffer(decoded)))
+                    .build();
+        }
+
+        /**
+         * Check if two bytes make a zlib header (RFC 1950)
+         */
+        private static boolean IsZlibHeader(byte cmf, byte flg) {
+            return (cmf & 0x0F) == 8 && (((cmf & 0xFF) << 8) | (flg & 0xFF)) % 31 == 0;
+        }
+    }
+
+    /**
+     * Get the shared transport, creating it if needed
+     * @return The app-wide {@link HttpTransport}
+     */
+    public static synchronized HttpTransport Get() {
+        if (instance == null) {
+            instance = new HttpTransport(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_SECONDS, BREAKER_FAILURES, BREAKER_OPEN_MS);
+        }
+        return instance;
+    }
+
+    /**
+     * Constructor, use {@link #Get()} outside of tests
+     * @param maxIdleConnections Most connections kept open while unused
+     * @param keepAliveSeconds How long an unused connection is kept before being closed
+     */
+    HttpTransport(int maxIdleConnections, long keepAliveSeconds) {
+        this(maxIdleConnections, keepAliveSeconds, BREAKER_FAILURES, BREAKER_OPEN_MS);
+    }
+
+    /**
+     * Constructor, use {@link #Get()} outside of tests
+     * @param maxIdleConnections Most connections kept open while unused
+     * @param keepAliveSeconds How long an unused connection is kept before being closed
+     * @param breakerFailures Failures in a row before a server's breaker opens
+     * @param breakerOpenMs How long a breaker stays open before trying again
+     */
+    HttpTransport(int maxIdleConnections, long keepAliveSeconds, int breakerFailures, long breakerOpenMs) {
+        this.breakerFailures = breakerFailures;
+        this.breakerOpenMs = breakerOpenMs;
+        pool = new ConnectionPool(maxIdleConnections, keepAliveSeconds, TimeUnit.SECONDS);
+        client = new OkHttpClient.Builder()
+                .connectionPool(pool)
+                .followRedirects(false)
+                .followSslRedirects(false)
+                // Used when a request doesn't bring a policy of its own
+                .connectTimeout(RequestPolicy.DEFAULT.connectTimeoutMs, TimeUnit.MILLISECONDS)
+                .readTimeout(RequestPolicy.DEFAULT.readTimeoutMs, TimeUnit.MILLISECONDS)
+                .writeTimeout(RequestPolicy.DEFAULT.readTimeoutMs, TimeUnit.MILLISECONDS)
+                .callTimeout(RequestPolicy.DEFAULT.callTimeoutMs, TimeUnit.MILLISECONDS)
+                .addInterceptor(new TimeoutInterceptor())
+                .addInterceptor(new CompressionInterceptor())
+                .eventListenerFactory(call -> {
+                    // Every call gets timed for the metrics, even when the caller doesn't want them
+                    Timings timings = call.request().tag(Timings.class);
+                    List<String> path = call.request().url().pathSegments();
+                    String endpoint = path.get(path.size() - 1);
+                    return new TimingListener(timings != null ? timings : new Timings(), endpoint.isEmpty() ? "/" : endpoint);
+                })
+                .build();
+        // Shares the pool and dispatcher with the client above
+        redirectClient = client.newBuilder()
+                .followRedirects(true)
+                .followSslRedirects(true)
+                .build();
+    }
+
+    /**
+     * Send a request with the default policy, once. The body of the response must be closed to
+     * give the connection back.
+     * @param request Request to send
+     * @param redirects Follow redirects?
+     * @param timings Filled in as the request goes, may be null
+     * @return The response
+     * @throws IOException Upon network error
+     */
+    public Response Execute(Request request, boolean redirects, Timings timings) throws IOException {
+        return Execute(request, redirects, timings, RequestPolicy.DEFAULT);
+    }
+
+    /**
+     * Send a request, retrying and hedging GETs as the policy says. Failures, including 5xx and
+     * 429 answers, count against the server's {@link CircuitBreaker}. The body of the response
+     * must be closed to give the connection back.
+     * @param request Request to send
+     * @param redirects Follow redirects?
+     * @param timings Filled in as the request goes, may be null. If a hedge or retry wins, these
+     *                are the timings of the first attempt.
+     * @param policy Timeouts, retries and hedging
+     * @return The response. Can still be a 5xx if retrying didn't help.
+     * @throws CircuitBreaker.OpenException If the server has been failing and isn't being tried
+     * @throws IOException Upon network error, after any retries
+     */
+    public Response Execute(Request request, boolean redirects, Timings timings, RequestPolicy policy) throws IOException {
+        OkHttpClient client = redirects ? redirectClient : this.client;
+        CircuitBreaker breaker = Breaker(request.url());
+        boolean idempotent = RequestPolicy.IsIdempotent(request.method());
+        int attempts = idempotent ? policy.maxAttempts : 1;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(policy.budgetMs);
+        request = request.newBuilder().tag(RequestPolicy.class, policy).build();
+
+        for (int attempt = 1; ; attempt++) {
+            if (!breaker.Allow()) {
+                Metrics.Get().Error(Metrics.Cause.CIRCUIT);
+                throw new CircuitBreaker.OpenException(request.url().host());
+            }
+            Request sending = request;
+            if (attempt == 1 && timings != null) {
+                sending = request.newBuilder().tag(Timings.class, timings).build();
+            }
+            boolean last = attempt >= attempts;
+            Response response;
+            try {
+                if (idempotent && policy.hedgeAfterMs > 0) {
+                    response = Hedged(client, sending, policy);
+                } else {
+                    response = Waiting(NewCall(client, sending, policy));
+                }
+            } catch (IOException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    // Given up on, which says nothing about the server
+                    throw e;
+                }
+                breaker.Failure();
+                if (last || e instanceof InterruptedIOException && Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                if (!Backoff(policy, attempt, deadline)) {
+                    throw e;
+                }
+                continue;
+            }
+            if (response.code() < 500 && response.code() != 429) {
+                breaker.Success();
+                return response;
+            }
+            // The server answered, but it's struggling
+            breaker.Failure();
+            if (last) {
+                return response;
+            }
+            response.close();
+            if (!Backoff(policy, attempt, deadline)) {
+                // Out of time, so one more try would only go over
+                throw new IOException("Server error " + response.code());
+            }
+        }
+    }
+
+    /**
+     * Wait before a retry, unless that would go past the deadline
+     * @return false if there's no time left for another attempt
+     */
+    private boolean Backoff(RequestPolicy policy, int attempt, long deadline) throws InterruptedIOException {
+        long wait;
+        synchronized (jitter) {
+            wait = policy.Backoff(attempt, jitter);
+        }
+        if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(wait) >= deadline) {
+            return false;
+        }
+        Metrics.Get().Retried();
+        try {
+            Thread.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to retry");
+        }
+        return true;
+    }
+
+    /**
+     * Send a request, and if it hasn't answered after a while, send it again and take whichever
+     * answers first. Cuts the tail off slow requests for the price of a few extra ones.
+     */
+    private Response Hedged(OkHttpClient client, Request request, RequestPolicy policy) throws IOException {
+        Race race = new Race();
+        Call first = NewCall(client, request, policy);
+        Call second = null;
+        first.enqueue(race);
+        Outcome winner = null;
+        try {
+            Outcome outcome = race.Next(policy.hedgeAfterMs);
+            if (outcome == null || outcome.error != null) {
+                // Slow or already failed, so send a copy. It gets its own timings, the caller's
+                // are the first's.
+                Metrics.Get().Hedged();
+                second = NewCall(client, request.newBuilder().tag(Timings.class, new Timings()).build(), policy);
+                second.enqueue(race);
+            }
+            int outstanding = second != null ? 2 : 1;
+            IOException failure = null;
+            while (outstanding > 0) {
+                if (outcome == null) {
+                    outcome = race.Next(-1);
+                }
+                outstanding--;
+                if (outcome.response != null) {
+                    winner = outcome;
+                    if (outcome.call == second) {
+                        Metrics.Get().HedgeWon();
+                    }
+                    return outcome.response;
+                }
+                failure = outcome.error;
+                outcome = null;
+            }
+            throw failure;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting on a hedged request");
+        } finally {
+            race.Settle(winner != null ? winner.response : null);
+            // Only the losers, the winner's body still has to be read
+            if (winner == null || winner.call != first) {
+                first.cancel();
+            }
+            if (second != null && (winner == null || winner.call != second)) {
+                second.cancel();
+            }
+        }
+    }
+
+    /**
+     * Run a call on this thread, where {@link #Cancel(Thread)} can get at it
+     */
+    private Response Waiting(Call call) throws IOException {
+        Thread thread = Thread.currentThread();
+        waiting.put(thread, call);
+        try {
+            // Interrupted before Cancel() could see the call
+            if (thread.isInterrupted()) {
+                call.cancel();
+            }
+            return call.execute();
+        } finally {
+            waiting.remove(thread, call);
+        }
+    }
+
+    /**
+     * Give up on the request an interrupted thread is waiting on, which then fails with an
+     * IOException. Interrupting alone doesn't get a thread out of a socket read, and a long poll
+     * can sit in one for a while.
+     * @param thread Thread that's been interrupted
+     */
+    public void Cancel(Thread thread) {
+        Call call = waiting.get(thread);
+        if (call != null) {
+            call.cancel();
+        }
+    }
+
+    private static Call NewCall(OkHttpClient client, Request request, RequestPolicy policy) {
+        Call call = client.newCall(request);
+        call.timeout().timeout(policy.callTimeoutMs, TimeUnit.MILLISECONDS);
+        return call;
+    }
+
+    /**
+     * @param url Any url on the server
+     * @return The breaker for the server
+     */
+    CircuitBreaker Breaker(HttpUrl url) {
+        String server = url.host() + ":" + url.port();
+        CircuitBreaker breaker = breakers.get(server);
+        if (breaker == null) {
+            breakers.putIfAbsent(server, new CircuitBreaker(breakerFailures, breakerOpenMs));
+            breaker = breakers.get(server);
+        }
+        return breaker;
+    }
+
+    /**
+     * @return Amount of connections sitting open, waiting to be reused
+     */
+    public int IdleConnections() {
+        return pool.idleConnectionCount();
+    }
+
+    /**
+     * @return Amount of connections open, in use or not
+     */
+    public int OpenConnections() {
+        return pool.connectionCount();
+    }
+}
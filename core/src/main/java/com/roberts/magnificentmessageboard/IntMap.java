@@ -0,0 +1,105 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+import java.util.Arrays;
+
+/**
+ * Open addressing map from int to int, for indexes keyed by rowid that would otherwise box every
+ * id. Values can't be -1, since that's what missing keys give back.
+ */
+final class IntMap {
+    private static final int EMPTY = Integer.MIN_VALUE;
+
+    private int[] keys;
+    private int[] values;
+    private int count = 0;
+
+    IntMap() {
+        keys = new int[16];
+        values = new int[16];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * @return How many keys are in it
+     */
+    int Size() {
+        return count;
+    }
+
+    /**
+     * Spread ids out, since rowids are sequential
+     */
+    private static int Hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int Find(int key) {
+        int mask = keys.length - 1;
+        int i = Hash(key) & mask;
+        while (keys[i] != EMPTY && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * @return The value for key, or -1 if there isn't one
+     */
+    int Get(int key) {
+        int i = Find(key);
+        return keys[i] == key ? values[i] : -1;
+    }
+
+    void Put(int key, int value) {
+        int i = Find(key);
+        if (keys[i] != key) {
+            if ((count + 1) * 2 > keys.length) {
+                Grow();
+                i = Find(key);
+            }
+            keys[i] = key;
+            count++;
+        }
+        values[i] = value;
+    }
+
+    /**
+     * @return The value that was there, or -1 if there wasn't one
+     */
+    int Remove(int key) {
+        int i = Find(key);
+        if (keys[i] != key) {
+            return -1;
+        }
+        int value = values[i];
+        keys[i] = EMPTY;
+        count--;
+        // Shift along anything that probed past this slot, so it can still be found
+        int mask = keys.length - 1;
+        for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+            int k = keys[j];
+            int v = values[j];
+            keys[j] = EMPTY;
+            count--;
+            Put(k, v);
+        }
+        return value;
+    }
+
+    private void Grow() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        count = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                Put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
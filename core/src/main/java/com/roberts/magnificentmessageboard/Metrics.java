@@ -0,0 +1,545 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.MalformedJsonException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts what the app is doing: how long requests take per endpoint, bytes each way, how long
+ * decoding and binding take, what went wrong, how long each screen took to show its first
+ * post and how long each phase of startup took. Recording is a few atomic increments, no locks or allocation, so it stays on all the time.
+ * Read it all at once with {@link #Snapshot()}.
+ */
+public class Metrics {
+    public static final String SCREEN_FRONT_PAGE = "frontpage";
+    public static final String SCREEN_THREAD = "thread";
+
+    private static Metrics instance = null;
+
+    /**
+     * Why something failed
+     */
+    public enum Cause {
+        // Couldn't look the server up
+        DNS,
+        // Connecting or reading took too long
+        TIMEOUT,
+        // Couldn't connect, or the connection dropped
+        CONNECT,
+        // The server answered with a 4xx or 5xx
+        HTTP,
+        // The body wasn't what we expected
+        JSON,
+        // The server sent an "error" field
+        API,
+        // Not sent, because the server's circuit breaker was open
+        CIRCUIT,
+        // Anything else
+        OTHER
+    }
+
+    /**
+     * Durations in buckets that double in size, from 1µs up to about half an hour. Percentiles
+     * come out as the top of their bucket, so they're within a factor of two, which is plenty to
+     * spot a regression.
+     */
+    public static final class Histogram {
+        static final int BUCKETS = 32;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sumNanos = new AtomicLong();
+
+        /**
+         * @param nanos How long something took
+         */
+        public void Record(long nanos) {
+            buckets.incrementAndGet(Bucket(nanos));
+            count.incrementAndGet();
+            sumNanos.addAndGet(Math.max(nanos, 0));
+        }
+
+        static int Bucket(long nanos) {
+            long micros = nanos / 1000;
+            if (micros <= 0) {
+                return 0;
+            }
+            return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        }
+
+        /**
+         * @return The counts so far. Taken while others record, so it can be a few counts out.
+         */
+        public HistogramSnapshot Snapshot() {
+            long[] copy = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = buckets.get(i);
+            }
+            return new HistogramSnapshot(copy, count.get(), sumNanos.get());
+        }
+
+        void Reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            sumNanos.set(0);
+        }
+    }
+
+    /**
+     * A {@link Histogram} at one point in time
+     */
+    public static final class HistogramSnapshot {
+        public final long count;
+        public final long sumNanos;
+        private final long[] buckets;
+
+        HistogramSnapshot(long[] buckets, long count, long sumNanos) {
+            this.buckets = buckets;
+            this.count = count;
+            this.sumNanos = sumNanos;
+        }
+
+        /**
+         * @return Average in milliseconds, or 0 with nothing recorded
+         */
+        public double MeanMs() {
+            return count == 0 ? 0 : sumNanos / 1e6 / count;
+        }
+
+        /**
+         * @param percentile Between 0 and 100
+         * @return Upper bound of the bucket the percentile falls in, in milliseconds
+         */
+        public double PercentileMs(double percentile) {
+            long total = 0;
+            for (long bucket : buckets) {
+                total += bucket;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= Math.max(rank, 1)) {
+                    return (1L << i) / 1000.0;
+                }
+            }
+            return (1L << (buckets.length - 1)) / 1000.0;
+        }
+
+        JsonObject ToJson() {
+            JsonArray counts = new JsonArray();
+            for (long bucket : buckets) {
+                counts.add(bucket);
+            }
+            JsonObject json = new JsonObject();
+            json.addProperty("count", count);
+            json.addProperty("mean_ms", MeanMs());
+            json.addProperty("p50_ms", PercentileMs(50));
+            json.addProperty("p90_ms", PercentileMs(90));
+            json.addProperty("p99_ms", PercentileMs(99));
+            json.add("buckets_us_pow2", counts);
+            return json;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "n=%d mean %.1fms p50 %.1fms p90 %.1fms p99 %.1fms",
+                    count, MeanMs(), PercentileMs(50), PercentileMs(90), PercentileMs(99));
+        }
+    }
+
+    /**
+     * Counters for one endpoint, like getFrontPage.php
+     */
+    private static final class Endpoint {
+        final Histogram latency = new Histogram();
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong bytesIn = new AtomicLong();
+        final AtomicLong bytesOut = new AtomicLong();
+    }
+
+    /**
+     * One endpoint at one point in time
+     */
+    public static final class EndpointSnapshot {
+        public final HistogramSnapshot latency;
+        public final long requests;
+        // Requests that never got an answer. HTTP errors count as answers.
+        public final long failures;
+        // Body bytes that came over the wire, before decompressing
+        public final long bytesIn;
+        public final long bytesOut;
+
+        EndpointSnapshot(Endpoint endpoint) {
+            latency = endpoint.latency.Snapshot();
+            requests = endpoint.requests.get();
+            failures = endpoint.failures.get();
+            bytesIn = endpoint.bytesIn.get();
+            bytesOut = endpoint.bytesOut.get();
+        }
+    }
+
+    /**
+     * Everything at one point in time, to show or send off
+     */
+    public static final class Snapshot {
+        // System.currentTimeMillis() when it was taken
+        public final long takenAt;
+        public final Map<String, EndpointSnapshot> endpoints;
+        public final Map<Cause, Long> errors;
+        public final Map<Integer, Long> statuses;
+        public final HistogramSnapshot decode;
+        public final long postsDecoded;
+        public final HistogramSnapshot bind;
+        public final Map<String, HistogramSnapshot> firstPost;
+        public final Map<String, HistogramSnapshot> startup;
+        public final long retries;
+        public final long hedges;
+        // Hedges that answered before the request they were hedging
+        public final long hedgesWon;
+
+        Snapshot(Metrics metrics) {
+            takenAt = System.currentTimeMillis();
+            Map<String, EndpointSnapshot> endpoints = new TreeMap<>();
+            for (Map.Entry<String, Endpoint> entry : metrics.endpoints.entrySet()) {
+                endpoints.put(entry.getKey(), new EndpointSnapshot(entry.getValue()));
+            }
+            this.endpoints = Collections.unmodifiableMap(endpoints);
+            Map<Cause, Long> errors = new TreeMap<>();
+            for (Cause cause : Cause.values()) {
+                errors.put(cause, metrics.errors.get(cause.ordinal()));
+            }
+            this.errors = Collections.unmodifiableMap(errors);
+            Map<Integer, Long> statuses = new TreeMap<>();
+            for (Map.Entry<Integer, AtomicLong> entry : metrics.statuses.entrySet()) {
+                statuses.put(entry.getKey(), entry.getValue().get());
+            }
+            this.statuses = Collections.unmodifiableMap(statuses);
+            decode = metrics.decode.Snapshot();
+            postsDecoded = metrics.postsDecoded.get();
+            bind = metrics.bind.Snapshot();
+            Map<String, HistogramSnapshot> firstPost = new TreeMap<>();
+            for (Map.Entry<String, Histogram> entry : metrics.firstPost.entrySet()) {
+                firstPost.put(entry.getKey(), entry.getValue().Snapshot());
+            }
+            this.firstPost = Collections.unmodifiableMap(firstPost);
+            Map<String, HistogramSnapshot> startup = new TreeMap<>();
+            for (Map.Entry<String, Histogram> entry : metrics.startup.entrySet()) {
+                startup.put(entry.getKey(), entry.getValue().Snapshot());
+            }
+            this.startup = Collections.unmodifiableMap(startup);
+            retries = metrics.retries.get();
+            hedges = metrics.hedges.get();
+            hedgesWon = metrics.hedgesWon.get();
+        }
+
+        /**
+         * @return The snapshot as JSON, to compare between builds
+         */
+        public JsonObject ToJson() {
+            JsonObject json = new JsonObject();
+            json.addProperty("taken_at", takenAt);
+            JsonObject endpointsJson = new JsonObject();
+            for (Map.Entry<String, EndpointSnapshot> entry : endpoints.entrySet()) {
+                EndpointSnapshot endpoint = entry.getValue();
+                JsonObject endpointJson = new JsonObject();
+                endpointJson.addProperty("requests", endpoint.requests);
+                endpointJson.addProperty("failures", endpoint.failures);
+                endpointJson.addProperty("bytes_in", endpoint.bytesIn);
+                endpointJson.addProperty("bytes_out", endpoint.bytesOut);
+                endpointJson.add("latency", endpoint.latency.ToJson());
+                endpointsJson.add(entry.getKey(), endpointJson);
+            }
+            json.add("endpoints", endpointsJson);
+            JsonObject errorsJson = new JsonObject();
+            for (Map.Entry<Cause, Long> entry : errors.entrySet()) {
+                errorsJson.addProperty(entry.getKey().name().toLowerCase(Locale.US), entry.getValue());
+            }
+            json.add("errors", errorsJson);
+            JsonObject statusesJson = new JsonObject();
+            for (Map.Entry<Integer, Long> entry : statuses.entrySet()) {
+                statusesJson.addProperty(entry.getKey().toString(), entry.getValue());
+            }
+            json.add("http_statuses", statusesJson);
+            json.addProperty("retries", retries);
+            json.addProperty("hedges", hedges);
+            json.addProperty("hedges_won", hedgesWon);
+            JsonObject decodeJson = decode.ToJson();
+            decodeJson.addProperty("posts", postsDecoded);
+            json.add("decode", decodeJson);
+            json.add("bind", bind.ToJson());
+            JsonObject firstPostJson = new JsonObject();
+            for (Map.Entry<String, HistogramSnapshot> entry : firstPost.entrySet()) {
+                firstPostJson.add(entry.getKey(), entry.getValue().ToJson());
+            }
+            json.add("time_to_first_post", firstPostJson);
+            JsonObject startupJson = new JsonObject();
+            for (Map.Entry<String, HistogramSnapshot> entry : startup.entrySet()) {
+                startupJson.add(entry.getKey(), entry.getValue().ToJson());
+            }
+            json.add("startup", startupJson);
+            return json;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            text.append("Requests\n");
+            for (Map.Entry<String, EndpointSnapshot> entry : endpoints.entrySet()) {
+                EndpointSnapshot endpoint = entry.getValue();
+                text.append(String.format(Locale.US, "  %s: %d requests, %d failed, %.1fKB in, %.1fKB out\n    %s\n",
+                        entry.getKey(), endpoint.requests, endpoint.failures,
+                        endpoint.bytesIn / 1024.0, endpoint.bytesOut / 1024.0, endpoint.latency));
+            }
+            text.append("Errors\n");
+            for (Map.Entry<Cause, Long> entry : errors.entrySet()) {
+                if (entry.getValue() > 0) {
+                    text.append("  ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+                }
+            }
+            for (Map.Entry<Integer, Long> entry : statuses.entrySet()) {
+                text.append("  HTTP ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+            }
+            text.append(String.format(Locale.US, "Retries %d, hedges %d (%d won)\n", retries, hedges, hedgesWon));
+            text.append("Decode (").append(postsDecoded).append(" posts)\n  ").append(decode).append('\n');
+            text.append("Bind\n  ").append(bind).append('\n');
+            text.append("Time to first post\n");
+            for (Map.Entry<String, HistogramSnapshot> entry : firstPost.entrySet()) {
+                text.append("  ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+            }
+            text.append("Startup\n");
+            for (Map.Entry<String, HistogramSnapshot> entry : startup.entrySet()) {
+                text.append("  ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+            }
+            return text.toString();
+        }
+    }
+
+    private final ConcurrentHashMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final AtomicLongArray errors = new AtomicLongArray(Cause.values().length);
+    private final ConcurrentHashMap<Integer, AtomicLong> statuses = new ConcurrentHashMap<>();
+    private final Histogram decode = new Histogram();
+    private final AtomicLong postsDecoded = new AtomicLong();
+    private final Histogram bind = new Histogram();
+    private final ConcurrentHashMap<String, Histogram> firstPost = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> startup = new ConcurrentHashMap<>();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+
+    /**
+     * Get the shared metrics, creating them if needed
+     * @return The app-wide {@link Metrics}
+     */
+    public static synchronized Metrics Get() {
+        if (instance == null) {
+            instance = new Metrics();
+        }
+        return instance;
+    }
+
+    /**
+     * Constructor, use {@link #Get()} outside of tests
+     */
+    Metrics() {
+    }
+
+    /**
+     * Work out why a request failed
+     * @param e What it threw
+     * @return The {@link Cause}
+     */
+    public static Cause Classify(Throwable e) {
+        if (e instanceof UnknownHostException) {
+            return Cause.DNS;
+        } else if (e instanceof SocketTimeoutException || e instanceof InterruptedIOException) {
+            return Cause.TIMEOUT;
+        } else if (e instanceof ConnectException || e instanceof NoRouteToHostException) {
+            return Cause.CONNECT;
+        } else if (e instanceof CircuitBreaker.OpenException) {
+            return Cause.CIRCUIT;
+        } else if (e instanceof PostStreamDecoder.ApiErrorException) {
+            return Cause.API;
+        } else if (e instanceof PostStreamDecoder.MalformedResponseException || e instanceof MalformedJsonException) {
+            return Cause.JSON;
+        } else if (e instanceof IOException && e.getCause() != null && e.getCause() != e) {
+            return Classify(e.getCause());
+        }
+        return Cause.OTHER;
+    }
+
+    /**
+     * A request got an answer, whatever the status
+     * @param endpoint Which endpoint, like getFrontPage.php
+     * @param nanos From starting the call to the end of the body
+     * @param bytesIn Body bytes received
+     * @param bytesOut Body bytes sent
+     * @param status HTTP status
+     */
+    public void RequestDone(String endpoint, long nanos, long bytesIn, long bytesOut, int status) {
+        Endpoint stats = Stats(endpoint);
+        stats.requests.incrementAndGet();
+        stats.latency.Record(nanos);
+        stats.bytesIn.addAndGet(bytesIn);
+        stats.bytesOut.addAndGet(bytesOut);
+        if (status >= 400) {
+            Error(Cause.HTTP);
+            AtomicLong count = statuses.get(status);
+            if (count == null) {
+                statuses.putIfAbsent(status, new AtomicLong());
+                count = statuses.get(status);
+            }
+            count.incrementAndGet();
+        }
+    }
+
+    /**
+     * A request never got a whole answer
+     * @param endpoint Which endpoint, like getFrontPage.php
+     * @param nanos How long it took to fail
+     * @param bytesIn Body bytes received before it failed
+     * @param bytesOut Body bytes sent
+     * @param e What went wrong
+     */
+    public void RequestFailed(String endpoint, long nanos, long bytesIn, long bytesOut, IOException e) {
+        Endpoint stats = Stats(endpoint);
+        stats.requests.incrementAndGet();
+        stats.failures.incrementAndGet();
+        stats.latency.Record(nanos);
+        stats.bytesIn.addAndGet(bytesIn);
+        stats.bytesOut.addAndGet(bytesOut);
+        Error(Classify(e));
+    }
+
+    /**
+     * Count an error that isn't the transport's, like a body that didn't decode
+     * @param cause Why
+     */
+    public void Error(Cause cause) {
+        errors.incrementAndGet(cause.ordinal());
+    }
+
+    /**
+     * A request is being sent again after failing
+     */
+    public void Retried() {
+        retries.incrementAndGet();
+    }
+
+    /**
+     * A slow request got a second copy sent
+     */
+    public void Hedged() {
+        hedges.incrementAndGet();
+    }
+
+    /**
+     * The second copy answered first
+     */
+    public void HedgeWon() {
+        hedgesWon.incrementAndGet();
+    }
+
+    /**
+     * A body was decoded into posts
+     * @param nanos How long it took, including waiting on the body as it streamed in
+     * @param posts How many posts came out
+     */
+    public void Decoded(long nanos, int posts) {
+        decode.Record(nanos);
+        postsDecoded.addAndGet(posts);
+    }
+
+    /**
+     * An adapter bound a row
+     * @param nanos How long onBindViewHolder took
+     */
+    public void Bound(long nanos) {
+        bind.Record(nanos);
+    }
+
+    /**
+     * A screen showed its first posts
+     * @param screen Which, like {@link #SCREEN_FRONT_PAGE}
+     * @param nanos From the screen being created
+     */
+    public void FirstPost(String screen, long nanos) {
+        Histogram histogram = firstPost.get(screen);
+        if (histogram == null) {
+            firstPost.putIfAbsent(screen, new Histogram());
+            histogram = firstPost.get(screen);
+        }
+        histogram.Record(nanos);
+    }
+
+    /**
+     * A phase of startup finished, see the app's StartupTrace
+     * @param phase Which, like "first_frame"
+     * @param nanos How long it took, or for marks, how long since onCreate
+     */
+    public void Startup(String phase, long nanos) {
+        Histogram histogram = startup.get(phase);
+        if (histogram == null) {
+            startup.putIfAbsent(phase, new Histogram());
+            histogram = startup.get(phase);
+        }
+        histogram.Record(nanos);
+    }
+
+    /**
+     * @return Everything recorded so far
+     */
+    public Snapshot Snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Start counting from zero, like before comparing two runs
+     */
+    public void Reset() {
+        endpoints.clear();
+        for (int i = 0; i < errors.length(); i++) {
+            errors.set(i, 0);
+        }
+        statuses.clear();
+        decode.Reset();
+        postsDecoded.set(0);
+        bind.Reset();
+        firstPost.clear();
+        startup.clear();
+        retries.set(0);
+        hedges.set(0);
+        hedgesWon.set(0);
+    }
+
+    private Endpoint Stats(String name) {
+        Endpoint endpoint = endpoints.get(name);
+        if (endpoint == null) {
+            endpoints.putIfAbsent(name, new Endpoint());
+            endpoint = endpoints.get(name);
+        }
+        return endpoint;
+    }
+}
@@ -0,0 +1,853 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Talks to the messageboard API: builds the requests, sends them through {@link HttpTransport}
+ * and decodes the answers into {@link Post}s. Plain Java, so it runs the same in the app, in JVM
+ * tests and benchmarks, and in tools like load tests. The app plugs in with
+ * {@link #SetListener(Listener)}.
+ */
+public class NetworkUtils {
+
+    // Api base
+    private final static String API_SERVER = "messageboard.hoppy.haus";
+
+    private final static String API_ENDPOINT_FRONT_PAGE = "getFrontPage.php";
+    private final static String API_ENDPOINT_NEW_POST = "newPost.php";
+    private final static String API_ENDPOINT_REPLIES = "getReplies.php";
+
+    private final static String USER_AGENT = "MagnificentMessageboard (S-Robert.Roberts@lwtech.edu) 1.0";
+    private final static MediaType FORM_CONTENT_TYPE = MediaType.parse("application/x-www-form-urlencoded; charset=utf-8");
+
+    /**
+     * Endpoint urls, worked out once rather than on every request
+     */
+    private static final class Endpoints {
+        final HttpUrl frontPage;
+        final HttpUrl replies;
+        final HttpUrl newPost;
+
+        Endpoints(HttpUrl base) {
+            frontPage = base.newBuilder().addPathSegment(API_ENDPOINT_FRONT_PAGE).build();
+            replies = base.newBuilder().addPathSegment(API_ENDPOINT_REPLIES).build();
+            newPost = base.newBuilder().addPathSegment(API_ENDPOINT_NEW_POST).build();
+        }
+    }
+
+    // Where requests go. Only changed by tests, to point at a stand-in server.
+    private static volatile Endpoints endpoints = new Endpoints(HttpUrl.get("http://" + API_SERVER + "/"));
+
+    // How patient to be with each endpoint, see SetPolicy(). Replies are what people sit waiting on
+    // after tapping a post, so slow ones get hedged.
+    private static final ConcurrentHashMap<String, RequestPolicy> policies = new ConcurrentHashMap<>();
+    static {
+        policies.put(API_ENDPOINT_FRONT_PAGE, new RequestPolicy(5000, 10000, 20000, 3, 250, 2000, 30000, 0));
+        policies.put(API_ENDPOINT_REPLIES, new RequestPolicy(5000, 10000, 20000, 3, 250, 2000, 30000, 1500));
+        // Posts are never sent twice, the OutboundQueue decides when to try again
+        policies.put(API_ENDPOINT_NEW_POST, new RequestPolicy(5000, 15000, 30000, 1, 0, 0, 30000, 0));
+    }
+    // Prefetching is a nice-to-have, so one quick try that doesn't add to a struggling server's load
+    private static final RequestPolicy PREFETCH_POLICY = new RequestPolicy(5000, 10000, 15000, 1, 0, 0, 15000, 0);
+    // Long polls sit waiting on the server for up to LONG_POLL_SECONDS, so reads get longer than
+    // that. Never retried here, LiveUpdates has its own backoff.
+    public static final int LONG_POLL_SECONDS = 25;
+    private static final RequestPolicy LONG_POLL_POLICY =
+            new RequestPolicy(5000, (LONG_POLL_SECONDS + 10) * 1000, (LONG_POLL_SECONDS + 15) * 1000, 1, 0, 0, 60000, 0);
+
+    // Rowids per batched getReplies.php request, so urls stay a sensible length
+    static final int MAX_BATCH_IDS = 50;
+    // Chunks of a big batch sent at once, besides the one the caller sends itself
+    private static final int MAX_PARALLEL_CHUNKS = 3;
+    private static ExecutorService chunkPool = null;
+    // Set once the server has shown it doesn't do batches, so later ones go one rowid at a time
+    private static volatile boolean batchUnsupported = false;
+
+    // Form bodies are built in a buffer kept per thread
+    private static final ThreadLocal<FormEncoder> FORM = new ThreadLocal<FormEncoder>() {
+        @Override
+        protected FormEncoder initialValue() {
+            return new FormEncoder();
+        }
+    };
+
+    /**
+     * Hears about what gets fetched, and about errors the methods that return null instead of
+     * throwing would otherwise swallow
+     */
+    public interface Listener {
+        /**
+         * Posts were decoded from an answer. Called on the thread that made the request.
+         * @param posts The posts, not to be changed
+         */
+        void onPosts(List<Post> posts);
+
+        /**
+         * A request made through one of the methods that don't throw failed
+         * @param e What went wrong
+         */
+        void onError(IOException e);
+    }
+
+    private static volatile Listener listener = null;
+
+    /**
+     * Hear about what gets fetched from now on, like to show errors or index posts
+     * @param listener The listener, or null for nobody
+     */
+    public static void SetListener(Listener listener) {
+        NetworkUtils.listener = listener;
+    }
+
+    /**
+     * Send requests somewhere other than the real server
+     * @param url Base url, like http://127.0.0.1:1234/
+     */
+    public static void SetApiBase(String url) {
+        endpoints = new Endpoints(HttpUrl.get(url));
+        batchUnsupported = false;
+    }
+
+    /**
+     * Change how patient to be with an endpoint
+     * @param endpoint Endpoint, like getReplies.php
+     * @param policy Timeouts, retries and hedging to use from now on
+     */
+    public static void SetPolicy(String endpoint, RequestPolicy policy) {
+        policies.put(endpoint, policy);
+    }
+
+    private static RequestPolicy Policy(String endpoint) {
+        RequestPolicy policy = policies.get(endpoint);
+        return policy != null ? policy : RequestPolicy.DEFAULT;
+    }
+
+    /**
+     * Remembers what a view has already seen, so refreshing it only asks the server for what's
+     * new. One per view, e.g. the front page or a single reply thread. Safe from any thread.
+     */
+    public static class SyncState {
+        private int newestId = -1;
+        private String etag = null;
+        private String lastModified = null;
+
+        /**
+         * @return Highest {@link Post#Id} seen so far, or -1 if nothing has been
+         */
+        public synchronized int NewestId() {
+            return newestId;
+        }
+
+        /**
+         * Remember posts the view is showing, like ones loaded from the cache
+         * @param posts Posts being shown
+         */
+        public synchronized void Seen(List<Post> posts) {
+            for (Post post : posts) {
+                newestId = Math.max(newestId, post.Id);
+            }
+        }
+
+        /**
+         * Start over, after the view has thrown away what it had
+         */
+        public synchronized void Reset() {
+            newestId = -1;
+            etag = null;
+            lastModified = null;
+        }
+
+        private synchronized void Validated(String etag, String lastModified) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * The result of a delta refresh
+     */
+    public static class Delta {
+        // Posts newer than anything seen before, in the order the server sent them
+        public final ArrayList<Post> posts;
+        // true if the server said nothing changed
+        public final boolean notModified;
+
+        Delta(ArrayList<Post> posts, boolean notModified) {
+            this.posts = posts;
+            this.notModified = notModified;
+        }
+    }
+
+
+    /**
+     * Replies to several posts, fetched together. Every rowid asked about ends up in exactly one
+     * of the two maps.
+     */
+    public static class RepliesBatch {
+        // Replies to each post, in the order the server sent them
+        public final HashMap<Integer, ArrayList<Post>> replies = new HashMap<>();
+        // Why the replies to the rest couldn't be had
+        public final HashMap<Integer, IOException> failures = new HashMap<>();
+        // HTTP requests it took, to compare against one per rowid
+        public int requests = 0;
+        // Body bytes those requests brought back
+        public long bytes = 0;
+
+        private void Add(RepliesBatch chunk) {
+            replies.putAll(chunk.replies);
+            failures.putAll(chunk.failures);
+            requests += chunk.requests;
+            bytes += chunk.bytes;
+        }
+
+        private void Fail(List<Integer> rowids, IOException e) {
+            for (int rowid : rowids) {
+                failures.put(rowid, e);
+            }
+        }
+    }
+
+    /**
+     * Class to encapsulate the response of a request. The body is only read when asked for, either
+     * as a whole with {@link #getData()} or streamed with {@link #decodePosts()}. Reading it to
+     * the end hands the connection back to {@link HttpTransport}'s pool.
+     */
+    public static class QuickRequestResponse {
+        private final Response response;
+        private final HttpTransport.Timings timings;
+        private String data = null;
+
+        /**
+         * Initializes with the response from quickRequest, not intended to be used elsewhere
+         * @param response Response from {@link HttpTransport}
+         * @param timings Timings of the request
+         */
+        public QuickRequestResponse(Response response, HttpTransport.Timings timings) {
+            this.response = response;
+            this.timings = timings;
+        }
+
+        /**
+         * Stream the body straight into {@link Post}s, without holding it all in memory
+         * @return An ArrayList of {@link Post}s
+         * @throws PostStreamDecoder.ApiErrorException If the server sent an error
+         * @throws IOException Upon network error or malformed data
+         */
+        public ArrayList<Post> decodePosts() throws IOException {
+            ResponseBody body = response.body();
+            if (body == null) {
+                response.close();
+                throw new IOException("Response has no body");
+            }
+            long start = System.nanoTime();
+            try {
+                ArrayList<Post> posts = PostStreamDecoder.DecodePosts(body.byteStream());
+                Metrics.Get().Decoded(System.nanoTime() - start, posts.size());
+                Fetched(posts);
+                return posts;
+            } catch (PostStreamDecoder.ApiErrorException | PostStreamDecoder.MalformedResponseException e) {
+                // The transport only knows about the network, the rest is counted here
+                Metrics.Get().Error(Metrics.Classify(e));
+                throw e;
+            } finally {
+                body.close();
+            }
+        }
+
+        /**
+         * Stream a batched getReplies.php body into {@link Post}s by rowid
+         * @return Replies and errors by rowid
+         * @throws PostStreamDecoder.ApiErrorException If the server sent an error for the whole batch
+         * @throws PostStreamDecoder.MalformedResponseException If the body isn't a batch
+         * @throws IOException Upon network or server error
+         */
+        public PostStreamDecoder.ReplyBatch decodeReplyBatch() throws IOException {
+            ResponseBody body = response.body();
+            if (body == null || response.code() >= 400) {
+                // Failed as a request, rather than not being understood as a batch
+                response.close();
+                throw new IOException("Server error " + response.code());
+            }
+            long start = System.nanoTime();
+            try {
+                PostStreamDecoder.ReplyBatch batch = PostStreamDecoder.DecodeReplyBatch(body.byteStream());
+                int count = 0;
+                for (ArrayList<Post> posts : batch.replies.values()) {
+                    Fetched(posts);
+                    count += posts.size();
+                }
+                Metrics.Get().Decoded(System.nanoTime() - start, count);
+                return batch;
+            } catch (PostStreamDecoder.ApiErrorException | PostStreamDecoder.MalformedResponseException e) {
+                Metrics.Get().Error(Metrics.Classify(e));
+                throw e;
+            } finally {
+                body.close();
+            }
+        }
+
+        /**
+         * Stream a newPost.php body
+         * @return rowid of the new post
+         * @throws PostStreamDecoder.ApiErrorException If the server turned the post down
+         * @throws IOException Upon network or server error, or malformed data
+         */
+        public int decodeNewPost() throws IOException {
+            ResponseBody body = response.body();
+            if (body == null || response.code() >= 500) {
+                response.close();
+                throw new IOException("Server error " + response.code());
+            }
+            try {
+                return PostStreamDecoder.DecodeNewPost(body.byteStream());
+            } catch (PostStreamDecoder.ApiErrorException | PostStreamDecoder.MalformedResponseException e) {
+                Metrics.Get().Error(Metrics.Classify(e));
+                throw e;
+            } finally {
+                body.close();
+            }
+        }
+
+        /**
+         * get the response object
+         * @return
+         */
+        public Response getResponse() {
+            return response;
+        }
+
+        /**
+         * How long each phase of the request took
+         * @return {@link HttpTransport.Timings} of the request
+         */
+        public HttpTransport.Timings getTimings() {
+            return timings;
+        }
+
+        /**
+         * Get the content of the response
+         * @return content from the response
+         */
+        public String getData() {
+            if (data != null) {
+                return data;
+            }
+            ResponseBody body = response.body();
+            try {
+                data = body != null ? body.string() : "";
+            } catch (IOException e) {
+                e.printStackTrace();
+                data = "";
+            } finally {
+                response.close();
+            }
+            return data;
+        }
+    }
+
+
+    private static void Fetched(List<Post> posts) {
+        Listener current = listener;
+        if (current != null) {
+            current.onPosts(posts);
+        }
+    }
+
+    /**
+     * Method to reduce boilerplate of getting a URL
+     * @param url URL to get
+     * @param method HTTP method to use
+     * @param redirects Follow redirects?
+     * @return QuickRequestResponse containing the data
+     * @throws IOException Upon network error
+     */
+    public static QuickRequestResponse quickRequest(String url, String method, boolean redirects) throws IOException {
+        return quickRequest(url, method, redirects, new HttpTransport.Timings());
+    }
+
+    /**
+     * {@link #quickRequest(String, String, boolean)}, filling in timings the caller can keep
+     * @param timings Filled in as the request goes
+     */
+    static QuickRequestResponse quickRequest(String url, String method, boolean redirects, HttpTransport.Timings timings) throws IOException {
+        return quickRequest(HttpUrl.get(url), method, redirects, timings);
+    }
+
+    /**
+     * {@link #quickRequest(String, String, boolean, HttpTransport.Timings)}, for a url that's
+     * already been built
+     */
+    static QuickRequestResponse quickRequest(HttpUrl url, String method, boolean redirects, HttpTransport.Timings timings) throws IOException {
+        return quickRequest(url, method, redirects, timings, RequestPolicy.DEFAULT);
+    }
+
+    /**
+     * {@link #quickRequest(HttpUrl, String, boolean, HttpTransport.Timings)}, with the policy
+     * of the endpoint being asked
+     * @param policy Timeouts, retries and hedging
+     */
+    static QuickRequestResponse quickRequest(HttpUrl url, String method, boolean redirects, HttpTransport.Timings timings,
+                                             RequestPolicy policy) throws IOException {
+        Request request = new Request.Builder()
+                .url(url)
+                // Only GET and HEAD go without a body
+                .method(method, method.equals("GET") || method.equals("HEAD") ? null : RequestBody.create(null, new byte[0]))
+                .header("User-Agent", USER_AGENT)
+                .build();
+        return new QuickRequestResponse(HttpTransport.Get().Execute(request, redirects, timings, policy), timings);
+    }
+
+    /**
+     * Make a POST request
+     * @param url URL to POST to
+     * @param data Hashmap of data we're passing
+     * @return QuickRequestResponse encapsulating the response
+     * @throws IOException on network issue
+     */
+    public static QuickRequestResponse quickPostRequest(String url, HashMap<String, String> data) throws IOException {
+        FormEncoder form = FORM.get().Reset();
+        for (Map.Entry<String, String> field : data.entrySet()) {
+            form.Add(field.getKey(), field.getValue());
+        }
+        return PostForm(HttpUrl.get(url), form);
+    }
+
+    /**
+     * POST a form. The body goes from the encoder's buffer straight to the connection.
+     * @param url URL to POST to
+     * @param form The form, which mustn't be reset until this returns
+     * @return QuickRequestResponse encapsulating the response
+     * @throws IOException on network issue
+     */
+    private static QuickRequestResponse PostForm(HttpUrl url, FormEncoder form) throws IOException {
+        Request request = new Request.Builder()
+                .url(url)
+                .post(form.ToRequestBody(FORM_CONTENT_TYPE))
+                .header("User-Agent", USER_AGENT)
+                .build();
+        HttpTransport.Timings timings = new HttpTransport.Timings();
+        return new QuickRequestResponse(HttpTransport.Get().Execute(request, false, timings, Policy(API_ENDPOINT_NEW_POST)), timings);
+    }
+
+    /**
+     * Build the POST data in a urlencoded format
+     * @param data Fields to send
+     * @return The body of the request
+     */
+    public static byte[] EncodeForm(Map<String, String> data) {
+        FormEncoder form = FORM.get().Reset();
+        for (Map.Entry<String, String> field : data.entrySet()) {
+            form.Add(field.getKey(), field.getValue());
+        }
+        return form.ToByteArray();
+    }
+
+    /**
+     * Get the front page of the forum
+     * @param offset Amount of posts to skip, for paging through history
+     * @return An ArrayList of {@link Post}s
+     */
+    public static ArrayList<Post> GetFrontPage(int offset) {
+        try {
+            return FetchFrontPage(offset);
+        } catch (IOException e) {
+            ShowError(e);
+            return null;
+        }
+    }
+
+    /**
+     * {@link #GetFrontPage(int)}, leaving errors to the caller
+     * @throws PostStreamDecoder.ApiErrorException If the server sent an error
+     * @throws IOException Upon network error or malformed data
+     */
+    public static ArrayList<Post> FetchFrontPage(int offset) throws IOException {
+        // Build the url
+        HttpUrl url = endpoints.frontPage.newBuilder()
+                .addQueryParameter("offset", Integer.toString(offset)).build();
+        QuickRequestResponse response = quickRequest(url, "GET", false, new HttpTransport.Timings(),
+                Policy(API_ENDPOINT_FRONT_PAGE));
+        // Posts are built as the body streams in
+        return response.decodePosts();
+    }
+
+    /**
+     * Get replies to a post
+     * @param rowid Post id
+     * @return List of replies to the post
+     */
+    public static ArrayList<Post> GetReplies(int rowid) {
+        try {
+            return FetchReplies(rowid, new HttpTransport.Timings(), Policy(API_ENDPOINT_REPLIES));
+        } catch (IOException e) {
+            ShowError(e);
+            return null;
+        }
+    }
+
+    /**
+     * Get replies to a post, leaving errors to the caller. Used for background work the user
+     * shouldn't hear about when it fails, so it's only tried once and never hedged.
+     * @param rowid Post id
+     * @param timings Filled in with how the request went, including how many bytes it took
+     * @return List of replies to the post
+     * @throws PostStreamDecoder.ApiErrorException If the server sent an error
+     * @throws IOException Upon network error or malformed data
+     */
+    static ArrayList<Post> FetchReplies(int rowid, HttpTransport.Timings timings) throws IOException {
+        return FetchReplies(rowid, timings, PREFETCH_POLICY);
+    }
+
+    private static ArrayList<Post> FetchReplies(int rowid, HttpTransport.Timings timings, RequestPolicy policy) throws IOException {
+        // Build the url
+        HttpUrl url = endpoints.replies.newBuilder()
+                .addQueryParameter("rowid", Integer.toString(rowid)).build();
+        return quickRequest(url, "GET", false, timings, policy).decodePosts();
+    }
+
+    /**
+     * Get replies to a lot of posts in a few requests rather than one each. Big sets are split
+     * into chunks of {@link #MAX_BATCH_IDS}, sent in parallel. Errors are left to the caller, per
+     * rowid: one thread failing, or one chunk, doesn't lose the rest.
+     * @param rowids Post ids, duplicates are only asked for once
+     * @return Replies or why not, for every rowid
+     */
+    public static RepliesBatch GetRepliesBatch(Collection<Integer> rowids) {
+        return GetRepliesBatch(rowids, MAX_BATCH_IDS);
+    }
+
+    /**
+     * {@link #GetRepliesBatch(Collection)}, with chunks of a different size
+     * @param chunkSize Most rowids in one request
+     */
+    static RepliesBatch GetRepliesBatch(Collection<Integer> rowids, int chunkSize) {
+        return GetRepliesBatch(rowids, chunkSize, Policy(API_ENDPOINT_REPLIES));
+    }
+
+    /**
+     * {@link #GetRepliesBatch(Collection)} for background work, like {@link #FetchReplies(int, HttpTransport.Timings)}
+     * @param rowids Post ids
+     * @param timings Filled in with how many bytes the whole batch took
+     * @return Replies or why not, for every rowid
+     */
+    static RepliesBatch PrefetchReplies(List<Integer> rowids, HttpTransport.Timings timings) {
+        RepliesBatch batch = GetRepliesBatch(rowids, MAX_BATCH_IDS, PREFETCH_POLICY);
+        timings.bodyBytes = batch.bytes;
+        return batch;
+    }
+
+    private static RepliesBatch GetRepliesBatch(Collection<Integer> rowids, int chunkSize, RequestPolicy policy) {
+        List<Integer> ids = new ArrayList<>(new LinkedHashSet<>(rowids));
+        List<List<Integer>> chunks = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i += chunkSize) {
+            chunks.add(ids.subList(i, Math.min(ids.size(), i + chunkSize)));
+        }
+        RepliesBatch batch = new RepliesBatch();
+        if (chunks.isEmpty()) {
+            return batch;
+        }
+        List<Future<RepliesBatch>> others = new ArrayList<>(chunks.size() - 1);
+        for (int i = 1; i < chunks.size(); i++) {
+            List<Integer> chunk = chunks.get(i);
+            others.add(ChunkPool().submit(() -> FetchChunk(chunk, policy)));
+        }
+        // This thread would only be waiting, so it takes the first chunk itself
+        batch.Add(FetchChunk(chunks.get(0), policy));
+        for (int i = 0; i < others.size(); i++) {
+            try {
+                batch.Add(others.get(i).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (int j = i; j < others.size(); j++) {
+                    others.get(j).cancel(true);
+                    batch.Fail(chunks.get(j + 1), new InterruptedIOException("Interrupted waiting on replies"));
+                }
+                break;
+            } catch (ExecutionException e) {
+                batch.Fail(chunks.get(i + 1), new IOException(e.getCause()));
+            }
+        }
+        return batch;
+    }
+
+    private static synchronized ExecutorService ChunkPool() {
+        if (chunkPool == null) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_PARALLEL_CHUNKS, MAX_PARALLEL_CHUNKS, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), runnable -> {
+                        Thread thread = new Thread(runnable, "reply-batch");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            chunkPool = pool;
+        }
+        return chunkPool;
+    }
+
+    /**
+     * Fetch one chunk of a batch, as getReplies.php?rowids=1,2,3. Servers that answer that with
+     * something other than a batch get asked one rowid at a time instead, from then on.
+     * @param rowids Post ids
+     * @param policy How patient to be
+     * @return Replies or why not, for every rowid. Never throws.
+     */
+    private static RepliesBatch FetchChunk(List<Integer> rowids, RequestPolicy policy) {
+        RepliesBatch chunk = new RepliesBatch();
+        if (!batchUnsupported) {
+            StringBuilder ids = new StringBuilder();
+            for (int rowid : rowids) {
+                ids.append(ids.length() > 0 ? "," : "").append(rowid);
+            }
+            HttpUrl url = endpoints.replies.newBuilder()
+                    .addQueryParameter("rowids", ids.toString()).build();
+            HttpTransport.Timings timings = new HttpTransport.Timings();
+            try {
+                chunk.requests++;
+                PostStreamDecoder.ReplyBatch answer = quickRequest(url, "GET", false, timings, policy).decodeReplyBatch();
+                chunk.bytes += timings.bodyBytes;
+                for (int rowid : rowids) {
+                    ArrayList<Post> replies = answer.replies.get(rowid);
+                    String error = answer.errors.get(rowid);
+                    if (replies != null) {
+                        chunk.replies.put(rowid, replies);
+                    } else if (error != null) {
+                        chunk.failures.put(rowid, new PostStreamDecoder.ApiErrorException(error));
+                    } else {
+                        chunk.failures.put(rowid, new PostStreamDecoder.MalformedResponseException("No answer for " + rowid));
+                    }
+                }
+                return chunk;
+            } catch (PostStreamDecoder.ApiErrorException | PostStreamDecoder.MalformedResponseException e) {
+                // It answered, just not with a batch
+                batchUnsupported = true;
+                chunk.bytes += timings.bodyBytes;
+            } catch (IOException e) {
+                chunk.Fail(rowids, e);
+                return chunk;
+            }
+        }
+        for (int rowid : rowids) {
+            HttpTransport.Timings timings = new HttpTransport.Timings();
+            chunk.requests++;
+            try {
+                chunk.replies.put(rowid, FetchReplies(rowid, timings, policy));
+            } catch (IOException e) {
+                chunk.failures.put(rowid, e);
+            }
+            chunk.bytes += timings.bodyBytes;
+        }
+        return chunk;
+    }
+
+    /**
+     * Get front page posts newer than any the view has seen. The first time, this is just the
+     * front page.
+     * @param state What the front page has seen so far, updated with the answer
+     * @return New posts, or null on error
+     */
+    public static Delta GetFrontPageSince(SyncState state) {
+        try {
+            return FetchFrontPageSince(state);
+        } catch (IOException e) {
+            ShowError(e);
+            return null;
+        }
+    }
+
+    /**
+     * Get replies to a post newer than any the view has seen. The first time, this is all of them.
+     * @param rowid Post id
+     * @param state What the thread has seen so far, updated with the answer
+     * @return New replies, or null on error
+     */
+    public static Delta GetRepliesSince(int rowid, SyncState state) {
+        try {
+            return FetchRepliesSince(rowid, state);
+        } catch (IOException e) {
+            ShowError(e);
+            return null;
+        }
+    }
+
+    /**
+     * {@link #GetFrontPageSince(SyncState)}, leaving errors to the caller. Used by the app's
+     * PostRepository, which hands them to whoever is watching.
+     * @throws IOException Upon network error, server error or malformed data
+     */
+    public static Delta FetchFrontPageSince(SyncState state) throws IOException {
+        HttpUrl url = endpoints.frontPage.newBuilder()
+                .addQueryParameter("offset", "0").build();
+        return FetchDelta(url, state, Policy(API_ENDPOINT_FRONT_PAGE));
+    }
+
+    /**
+     * {@link #GetRepliesSince(int, SyncState)}, leaving errors to the caller
+     * @throws IOException Upon network error, server error or malformed data
+     */
+    public static Delta FetchRepliesSince(int rowid, SyncState state) throws IOException {
+        HttpUrl url = endpoints.replies.newBuilder()
+                .addQueryParameter("rowid", Integer.toString(rowid)).build();
+        return FetchDelta(url, state, Policy(API_ENDPOINT_REPLIES));
+    }
+
+    /**
+     * Wait for front page posts newer than any the view has seen. The server holds on to the
+     * request until there are some or the wait runs out; one that doesn't know how answers
+     * straight away, like {@link #GetFrontPageSince(SyncState)}, validators and all. Errors are
+     * left to the caller.
+     * @param state What the front page has seen so far, updated with the answer
+     * @param waitSeconds Longest the server should wait for something new, 0 to answer now
+     * @return New posts, newest first, or notModified if the wait ran out
+     * @throws IOException Upon network error, server error or malformed data
+     */
+    public static Delta WaitForFrontPage(SyncState state, int waitSeconds) throws IOException {
+        HttpUrl url = endpoints.frontPage.newBuilder()
+                .addQueryParameter("offset", "0")
+                .addQueryParameter("wait", Integer.toString(waitSeconds)).build();
+        return FetchDelta(url, state, LONG_POLL_POLICY);
+    }
+
+    /**
+     * Wait for replies to a post newer than any the thread has seen, see
+     * {@link #WaitForFrontPage(SyncState, int)}
+     * @param rowid Post id
+     * @param state What the thread has seen so far, updated with the answer
+     * @param waitSeconds Longest the server should wait for something new, 0 to answer now
+     * @return New replies, oldest first, or notModified if the wait ran out
+     * @throws IOException Upon network error, server error or malformed data
+     */
+    public static Delta WaitForReplies(int rowid, SyncState state, int waitSeconds) throws IOException {
+        HttpUrl url = endpoints.replies.newBuilder()
+                .addQueryParameter("rowid", Integer.toString(rowid))
+                .addQueryParameter("wait", Integer.toString(waitSeconds)).build();
+        return FetchDelta(url, state, LONG_POLL_POLICY);
+    }
+
+    /**
+     * Ask for posts after the newest one seen, with the validators from last time so the server
+     * can answer 304 if nothing changed. Either way, the answer only costs as much as the new
+     * posts do. Long polls send them too, for servers that answer those straight away.
+     */
+    private static Delta FetchDelta(HttpUrl url, SyncState state, RequestPolicy policy) throws IOException {
+        int since;
+        String etag;
+        String lastModified;
+        synchronized (state) {
+            since = state.newestId;
+            etag = state.etag;
+            lastModified = state.lastModified;
+        }
+        Request.Builder request = new Request.Builder().header("User-Agent", USER_AGENT);
+        if (since >= 0) {
+            url = url.newBuilder().addQueryParameter("since", Integer.toString(since)).build();
+            // Validators only make sense for the same question
+            if (etag != null) {
+                request.header("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                request.header("If-Modified-Since", lastModified);
+            }
+        }
+        HttpTransport.Timings timings = new HttpTransport.Timings();
+        Response response = HttpTransport.Get().Execute(request.url(url).build(), false, timings, policy);
+        // 204 is how long polls usually say the wait ran out
+        if (response.code() == 304 || response.code() == 204) {
+            response.close();
+            return new Delta(new ArrayList<>(), true);
+        }
+        ArrayList<Post> posts = new QuickRequestResponse(response, timings).decodePosts();
+        if (since >= 0) {
+            // Servers that don't know about "since" send everything, so drop what we've got
+            ArrayList<Post> newer = new ArrayList<>(posts.size());
+            for (Post post : posts) {
+                if (post.Id > since) {
+                    newer.add(post);
+                }
+            }
+            posts = newer;
+        }
+        state.Seen(posts);
+        state.Validated(response.header("ETag"), response.header("Last-Modified"));
+        return new Delta(posts, false);
+    }
+
+    /**
+     * Create a new top-level post
+     * @param content String to submit
+     * @param tripcode Poster's tripcode
+     * @return ID of the new post, or -1 on error
+     */
+    public static int CreateNewPost(String content, String tripcode) {
+        return CreateNewPost(content, -1, tripcode);
+    }
+
+    /**
+     * Create a new post
+     * @param content String to submit
+     * @param reply ID of the post we're replying to, or -1
+     * @param tripcode Poster's tripcode
+     * @return ID of the new post, or -1 on error
+     */
+    public static int CreateNewPost(String content, int reply, String tripcode) {
+        try {
+            return SendNewPost(content, reply, tripcode);
+        } catch (IOException e) {
+            ShowError(e);
+            return -1;
+        }
+    }
+
+    /**
+     * Pass an error on to the listener, if there is one
+     * @param e What went wrong
+     */
+    private static void ShowError(IOException e) {
+        Listener current = listener;
+        if (current != null) {
+            current.onError(e);
+        }
+    }
+
+    /**
+     * Create a new post, leaving errors to the caller. Used by the app's OutboundQueue, which
+     * decides what's worth retrying.
+     * @param content String to submit
+     * @param reply ID of the post we're replying to, or -1
+     * @param tripcode Poster's tripcode, which the server hashes so their posts can be told apart
+     * @return ID of the new post
+     * @throws PostStreamDecoder.ApiErrorException If the server turned the post down
+     * @throws IOException Upon network error, server error or malformed data
+     */
+    public static int SendNewPost(String content, int reply, String tripcode) throws IOException {
+        // Load POST variables
+        FormEncoder form = FORM.get().Reset()
+                .Add("content", content)
+                .Add("reply", reply)
+                .Add("tripcode", tripcode);
+        return PostForm(endpoints.newPost, form).decodeNewPost();
+    }
+}
@@ -0,0 +1,53 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+
+/**
+ * Encapsulation of a post. Stored and passed around as {@link PostCodec} bytes.
+ */
+public class Post {
+    public final String Hash;
+    public final String Content;
+    public final int Id;
+    public final int Reply;
+
+    /**
+     * Create a {@link Post} from its fields
+     * @param hash Tripcode hash of the poster
+     * @param content Content of the post
+     * @param id rowid of the post
+     * @param reply rowid of the post this replies to, or -1
+     */
+    public Post(String hash, String content, int id, int reply) {
+        Hash = hash;
+        Content = content;
+        Id = id;
+        Reply = reply;
+    }
+
+    /**
+     * The start of the content, for when all of it would be too much
+     * @param chars Most characters to keep, not counting the "…" on the end
+     * @return The content if it's short enough, otherwise its start with a "…" on the end
+     */
+    public String Preview(int chars) {
+        if (Content.length() <= Math.max(chars, 0)) {
+            return Content;
+        }
+        if (chars <= 0) {
+            // None of it fits, but there's still more to read
+            return "…";
+        }
+        // Don't cut an emoji in half
+        int end = Character.isHighSurrogate(Content.charAt(chars - 1)) ? chars - 1 : chars;
+        // Or a word, if there's a space near the end
+        for (int i = end - 1; i > end - 32 && i > 0; i--) {
+            if (Character.isWhitespace(Content.charAt(i))) {
+                end = i;
+                break;
+            }
+        }
+        return Content.substring(0, end) + "…";
+    }
+}
@@ -0,0 +1,160 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary encoding of {@link Post}s, used by the app's post cache and to pass posts
+ * between screens. Numbers are varints, so small ids and the -1 of a top-level post take a byte
+ * or two, and strings are length-prefixed UTF-8.
+ *
+ * A post on its own, from {@link #Encode(Post)}, starts with a format version. Lists written with
+ * {@link #WriteList} don't, whatever holds them should have its own.
+ */
+public final class PostCodec {
+    public static final int VERSION = 1;
+
+    private PostCodec() {
+    }
+
+    /**
+     * Write a single post
+     * @param out Where to write it
+     * @param post The post
+     * @throws IOException If writing fails
+     */
+    public static void Write(DataOutputStream out, Post post) throws IOException {
+        WriteVarInt(out, ZigZag(post.Id));
+        WriteVarInt(out, ZigZag(post.Reply));
+        WriteString(out, post.Hash);
+        WriteString(out, post.Content);
+    }
+
+    /**
+     * Read a single post back
+     * @param in Where to read it from
+     * @param limit Longest a string can be, so a broken length can't make us allocate gigabytes
+     * @return The post
+     * @throws IOException If reading fails or the data is broken
+     */
+    public static Post Read(DataInputStream in, long limit) throws IOException {
+        int id = UnZigZag(ReadVarInt(in));
+        int reply = UnZigZag(ReadVarInt(in));
+        String hash = ReadString(in, limit);
+        String content = ReadString(in, limit);
+        return new Post(PostStore.InternHash(hash), content, id, reply);
+    }
+
+    /**
+     * Write a list of posts, count first
+     */
+    public static void WriteList(DataOutputStream out, List<Post> posts) throws IOException {
+        WriteVarInt(out, posts.size());
+        for (Post post : posts) {
+            Write(out, post);
+        }
+    }
+
+    /**
+     * Read a list written with {@link #WriteList}
+     * @param limit Longest a string can be, usually the size of the file
+     */
+    public static ArrayList<Post> ReadList(DataInputStream in, long limit) throws IOException {
+        int count = ReadVarInt(in);
+        if (count < 0 || count > limit) {
+            throw new IOException("Bad count");
+        }
+        ArrayList<Post> posts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            posts.add(Read(in, limit));
+        }
+        return posts;
+    }
+
+    /**
+     * @param post The post
+     * @return The post as bytes, with the format version in front
+     */
+    public static byte[] Encode(Post post) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + post.Hash.length() + post.Content.length());
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            Write(out, post);
+        } catch (IOException e) {
+            // Can't happen writing to memory
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param bytes Bytes from {@link #Encode(Post)}
+     * @return The post
+     * @throws IOException If the bytes are broken or from a version we don't know
+     */
+    public static Post Decode(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readByte() != VERSION) {
+            throw new IOException("Unknown post format");
+        }
+        return Read(in, bytes.length);
+    }
+
+    private static void WriteString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        WriteVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String ReadString(DataInputStream in, long limit) throws IOException {
+        int length = ReadVarInt(in);
+        if (length < 0 || length > limit) {
+            throw new IOException("Bad length");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Seven bits a byte, high bit set on all but the last
+     */
+    private static void WriteVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int ReadVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+    /**
+     * Map small negative numbers to small positive ones, so -1 is one byte instead of five
+     */
+    private static int ZigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int UnZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,209 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Lots of posts kept in as little heap as we can manage. Instead of a {@link Post} each, with its
+ * own object header and strings, posts are columns: ids and reply ids in int arrays, hashes as
+ * numbers into a dictionary of the hashes seen (most posts are by someone who's posted before),
+ * and content as UTF-8 packed into 64KB pages. Growing never copies the content, so a big store
+ * doesn't need twice its size free to get bigger. {@link Post}s are only made when someone asks
+ * for one, and don't stay around.
+ *
+ * Hashes are shared with every other post in the app through {@link #InternHash(String)}, so
+ * decoding the same poster a thousand times keeps one string. Not thread safe, whoever owns the
+ * store locks it.
+ */
+public class PostStore {
+    private static final int NONE = -1;
+    // Past this many different hashes new ones stop being interned, so junk can't grow it forever
+    private static final int MAX_HASHES = 1 << 16;
+    private static final int PAGE_SHIFT = 16;
+    private static final int PAGE_BYTES = 1 << PAGE_SHIFT;
+
+    // The app-wide hash dictionary, guarded by itself
+    private static final HashMap<String, Integer> hashIds = new HashMap<>();
+    private static final ArrayList<String> hashes = new ArrayList<>();
+
+    private int size = 0;
+    private int[] ids;
+    private int[] replies;
+    private int[] hashOf;
+    // Where each post's content starts: page number in the top bits, offset in the bottom 16
+    private int[] contentStart;
+    private int[] contentLength;
+    private byte[][] pages = new byte[4][];
+    private int pageCount = 0;
+    // Bytes used in the last page
+    private int pageUsed = PAGE_BYTES;
+    // rowid to slot
+    private final IntMap slots = new IntMap();
+    // Hashes of posts added once the dictionary was full, which a real board won't get to
+    private final HashMap<Integer, String> overflow = new HashMap<>();
+
+    /**
+     * Constructor
+     */
+    public PostStore() {
+        this(64);
+    }
+
+    /**
+     * Constructor
+     * @param expected About how many posts there'll be, so the columns start big enough
+     */
+    public PostStore(int expected) {
+        int capacity = Math.max(expected, 4);
+        ids = new int[capacity];
+        replies = new int[capacity];
+        hashOf = new int[capacity];
+        contentStart = new int[capacity];
+        contentLength = new int[capacity];
+    }
+
+    /**
+     * The one copy of a hash everyone should use
+     * @param hash Hash of a poster
+     * @return An equal string, the same one every time for the same hash
+     */
+    public static String InternHash(String hash) {
+        synchronized (hashIds) {
+            Integer id = HashId(hash);
+            return id == null ? hash : hashes.get(id);
+        }
+    }
+
+    /**
+     * Number of a hash in the dictionary, adding it if there's room. Needs the lock.
+     * @return Its number, or null if the dictionary is full and it isn't in it
+     */
+    private static Integer HashId(String hash) {
+        Integer id = hashIds.get(hash);
+        if (id == null && hashes.size() < MAX_HASHES) {
+            id = hashes.size();
+            hashes.add(hash);
+            hashIds.put(hash, id);
+        }
+        return id;
+    }
+
+    /**
+     * Add a post, or update the one with its id
+     * @param post The post
+     * @return Its slot, which stays the same for as long as the store is around
+     */
+    public int Put(Post post) {
+        int slot = slots.Get(post.Id);
+        if (slot == NONE) {
+            slot = size++;
+            if (slot == ids.length) {
+                Grow();
+            }
+            slots.Put(post.Id, slot);
+        } else if (post.Reply == replies[slot] && post.Hash.equals(Hash(slot)) && post.Content.equals(Content(slot))) {
+            // Same as last time, which is usual
+            return slot;
+        }
+        ids[slot] = post.Id;
+        replies[slot] = post.Reply;
+        Integer hash;
+        synchronized (hashIds) {
+            hash = HashId(post.Hash);
+        }
+        if (hash == null) {
+            hashOf[slot] = NONE;
+            overflow.put(slot, post.Hash);
+        } else {
+            hashOf[slot] = hash;
+            overflow.remove(slot);
+        }
+        // An edited post leaves its old content behind, there aren't enough of those to matter
+        byte[] bytes = post.Content.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length == 0) {
+            // Takes no room, and a full page has no offset left to point at
+            contentStart[slot] = 0;
+            contentLength[slot] = 0;
+            return slot;
+        }
+        if (pageCount == 0 || bytes.length > PAGE_BYTES - pageUsed) {
+            // Posts too long for a page get one to themselves
+            NewPage(Math.max(PAGE_BYTES, bytes.length));
+        }
+        System.arraycopy(bytes, 0, pages[pageCount - 1], pageUsed, bytes.length);
+        contentStart[slot] = (pageCount - 1) << PAGE_SHIFT | pageUsed;
+        contentLength[slot] = bytes.length;
+        pageUsed += bytes.length;
+        return slot;
+    }
+
+    private void NewPage(int bytes) {
+        if (pageCount == pages.length) {
+            pages = Arrays.copyOf(pages, pageCount * 2);
+        }
+        pages[pageCount++] = new byte[bytes];
+        pageUsed = 0;
+    }
+
+    private void Grow() {
+        int capacity = ids.length * 2;
+        ids = Arrays.copyOf(ids, capacity);
+        replies = Arrays.copyOf(replies, capacity);
+        hashOf = Arrays.copyOf(hashOf, capacity);
+        contentStart = Arrays.copyOf(contentStart, capacity);
+        contentLength = Arrays.copyOf(contentLength, capacity);
+    }
+
+    /**
+     * @param id rowid of a post
+     * @return Its slot, or -1 if it isn't in the store
+     */
+    public int Find(int id) {
+        return slots.Get(id);
+    }
+
+    /**
+     * @return How many posts are in the store. Slots go from 0 to this.
+     */
+    public int Size() {
+        return size;
+    }
+
+    public int Id(int slot) {
+        return ids[slot];
+    }
+
+    public int Reply(int slot) {
+        return replies[slot];
+    }
+
+    public String Hash(int slot) {
+        if (hashOf[slot] == NONE) {
+            return overflow.get(slot);
+        }
+        synchronized (hashIds) {
+            return hashes.get(hashOf[slot]);
+        }
+    }
+
+    public String Content(int slot) {
+        if (contentLength[slot] == 0) {
+            return "";
+        }
+        int start = contentStart[slot];
+        return new String(pages[start >>> PAGE_SHIFT], start & (PAGE_BYTES - 1), contentLength[slot], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Make a {@link Post} out of a slot. It's a copy, keep it only as long as it's needed.
+     * @param slot Slot of the post
+     * @return The post
+     */
+    public Post Get(int slot) {
+        return new Post(Hash(slot), Content(slot), ids[slot], replies[slot]);
+    }
+}
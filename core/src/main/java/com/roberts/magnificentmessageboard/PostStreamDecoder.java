@@ -0,0 +1,293 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Decodes the API's post listings straight off the network stream. Posts are built as the
+ * bytes come in, so we never hold the whole body as a String or a JSON tree.
+ */
+public class PostStreamDecoder {
+
+    /**
+     * Thrown when the server answers with an "error" field instead of a response
+     */
+    public static class ApiErrorException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ApiErrorException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown when the body isn't the JSON we expected, as opposed to the network failing
+     */
+    public static class MalformedResponseException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public MalformedResponseException(String message) {
+            super(message);
+        }
+
+        public MalformedResponseException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Decode a {"response": [posts...]} body
+     * @param in Body of the response, assumed to be UTF-8
+     * @return An ArrayList of {@link Post}s
+     * @throws ApiErrorException If the server sent an error
+     * @throws IOException Upon a network error or malformed JSON
+     */
+    public static ArrayList<Post> DecodePosts(InputStream in) throws IOException {
+        return DecodePosts(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decode a {"response": [posts...]} body
+     * @param in Body of the response
+     * @return An ArrayList of {@link Post}s
+     * @throws ApiErrorException If the server sent an error
+     * @throws IOException Upon a network error or malformed JSON
+     */
+    public static ArrayList<Post> DecodePosts(Reader in) throws IOException {
+        JsonReader json = new JsonReader(in);
+        ArrayList<Post> posts = null;
+        String error = null;
+        try {
+            json.beginObject();
+            while (json.hasNext()) {
+                String name = json.nextName();
+                if (name.equals("response") && json.peek() == JsonToken.BEGIN_ARRAY) {
+                    posts = new ArrayList<>();
+                    json.beginArray();
+                    while (json.hasNext()) {
+                        posts.add(ReadPost(json));
+                    }
+                    json.endArray();
+                } else if (name.equals("error")) {
+                    error = ReadString(json);
+                } else {
+                    json.skipValue();
+                }
+            }
+            json.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            // Gson reports structural surprises as runtime exceptions
+            throw new MalformedResponseException("Malformed response", e);
+        } catch (MalformedJsonException | EOFException e) {
+            // The transport throws its own exception if the body gets cut off, so this is the JSON
+            throw new MalformedResponseException("Malformed response", e);
+        }
+
+        if (error != null) {
+            throw new ApiErrorException(error);
+        } else if (posts == null) {
+            throw new MalformedResponseException("Response has no posts");
+        }
+        return posts;
+    }
+
+    /**
+     * Replies to several posts from one batched getReplies.php request
+     */
+    public static class ReplyBatch {
+        // Replies to each post the server answered for, in the order it sent them
+        public final HashMap<Integer, ArrayList<Post>> replies = new HashMap<>();
+        // Why the server couldn't answer for the rest
+        public final HashMap<Integer, String> errors = new HashMap<>();
+    }
+
+    /**
+     * Decode a {"response": {"rowid": [posts...], ...}, "errors": {"rowid": "why", ...}} body
+     * @param in Body of the response, assumed to be UTF-8
+     * @return Replies and errors by rowid
+     * @throws ApiErrorException If the server sent an error for the whole request
+     * @throws IOException Upon a network error or malformed JSON
+     */
+    public static ReplyBatch DecodeReplyBatch(InputStream in) throws IOException {
+        JsonReader json = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        ReplyBatch batch = null;
+        String error = null;
+        try {
+            json.beginObject();
+            while (json.hasNext()) {
+                String name = json.nextName();
+                if (name.equals("response") && json.peek() == JsonToken.BEGIN_OBJECT) {
+                    if (batch == null) {
+                        batch = new ReplyBatch();
+                    }
+                    json.beginObject();
+                    while (json.hasNext()) {
+                        int rowid = Integer.parseInt(json.nextName());
+                        ArrayList<Post> posts = new ArrayList<>();
+                        json.beginArray();
+                        while (json.hasNext()) {
+                            posts.add(ReadPost(json));
+                        }
+                        json.endArray();
+                        batch.replies.put(rowid, posts);
+                    }
+                    json.endObject();
+                } else if (name.equals("errors") && json.peek() == JsonToken.BEGIN_OBJECT) {
+                    if (batch == null) {
+                        batch = new ReplyBatch();
+                    }
+                    json.beginObject();
+                    while (json.hasNext()) {
+                        int rowid = Integer.parseInt(json.nextName());
+                        batch.errors.put(rowid, ReadString(json));
+                    }
+                    json.endObject();
+                } else if (name.equals("error")) {
+                    error = ReadString(json);
+                } else {
+                    json.skipValue();
+                }
+            }
+            json.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new MalformedResponseException("Malformed response", e);
+        } catch (MalformedJsonException | EOFException e) {
+            throw new MalformedResponseException("Malformed response", e);
+        }
+
+        if (error != null) {
+            throw new ApiErrorException(error);
+        } else if (batch == null) {
+            // Probably a server that doesn't know about batches, answering with a plain list
+            throw new MalformedResponseException("Response has no replies by rowid");
+        }
+        return batch;
+    }
+
+    /**
+     * Decode a newPost.php {"response": {"rowid": id}} body
+     * @param in Body of the response, assumed to be UTF-8
+     * @return rowid of the new post
+     * @throws ApiErrorException If the server turned the post down
+     * @throws IOException Upon a network error or malformed JSON
+     */
+    public static int DecodeNewPost(InputStream in) throws IOException {
+        JsonReader json = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        int rowid = -1;
+        boolean hasId = false;
+        String error = null;
+        try {
+            json.beginObject();
+            while (json.hasNext()) {
+                String name = json.nextName();
+                if (name.equals("response") && json.peek() == JsonToken.BEGIN_OBJECT) {
+                    json.beginObject();
+                    while (json.hasNext()) {
+                        if (json.nextName().equals("rowid")) {
+                            rowid = json.nextInt();
+                            hasId = true;
+                        } else {
+                            json.skipValue();
+                        }
+                    }
+                    json.endObject();
+                } else if (name.equals("error")) {
+                    error = ReadString(json);
+                } else {
+                    json.skipValue();
+                }
+            }
+            json.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new MalformedResponseException("Malformed response", e);
+        } catch (MalformedJsonException | EOFException e) {
+            throw new MalformedResponseException("Malformed response", e);
+        }
+
+        if (error != null) {
+            throw new ApiErrorException(error);
+        } else if (!hasId) {
+            throw new MalformedResponseException("Response has no rowid");
+        }
+        return rowid;
+    }
+
+    /**
+     * Read a single post object from the reader
+     * @param json Reader positioned at the start of a post
+     * @return The {@link Post}
+     * @throws IOException If the post is missing a field
+     */
+    private static Post ReadPost(JsonReader json) throws IOException {
+        String hash = null;
+        String content = null;
+        int id = 0;
+        int reply = 0;
+        boolean hasId = false;
+        boolean hasReply = false;
+
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+                case "hash":
+                    hash = ReadString(json);
+                    break;
+                case "content":
+                    content = ReadString(json);
+                    break;
+                case "rowid":
+                    // nextInt() also accepts numbers sent as strings, like the PHP side does
+                    id = json.nextInt();
+                    hasId = true;
+                    break;
+                case "reply":
+                    reply = json.nextInt();
+                    hasReply = true;
+                    break;
+                default:
+                    json.skipValue();
+            }
+        }
+        json.endObject();
+
+        if (hash == null || content == null || !hasId || !hasReply) {
+            throw new MalformedResponseException("Post is missing a field");
+        }
+        // Most posters have posted before, so there's no need for a string each
+        return new Post(PostStore.InternHash(hash), content, id, reply);
+    }
+
+    /**
+     * Read a value as a string, the same way {@link org.json.JSONObject#getString} would coerce it
+     * @param json Reader positioned at the value
+     * @return The value as a string
+     * @throws IOException Upon malformed JSON
+     */
+    private static String ReadString(JsonReader json) throws IOException {
+        switch (json.peek()) {
+            case STRING:
+            case NUMBER:
+                return json.nextString();
+            case BOOLEAN:
+                return Boolean.toString(json.nextBoolean());
+            case NULL:
+                json.nextNull();
+                return "null";
+            default:
+                json.skipValue();
+                return "";
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.roberts.magnificentmessageboard;
+/*
+ * @author Robert Roberts
+ */
+import java.util.Random;
+
+/**
+ * How patient to be with one kind of request: timeouts, how many times to retry it, and whether to
+ * hedge it. Only GET and HEAD are ever retried or hedged, since sending a post twice would make
+ * two posts. See {@link HttpTransport#Execute(okhttp3.Request, boolean, HttpTransport.Timings, RequestPolicy)}.
+ */
+public final class RequestPolicy {
+    /**
+     * One attempt with the transport's usual timeouts
+     */
+    public static final RequestPolicy DEFAULT = new RequestPolicy(10000, 15000, 30000, 1, 0, 0, 30000, 0);
+
+    public final long connectTimeoutMs;
+    public final long readTimeoutMs;
+    // Whole call, from connecting to the end of the body
+    public final long callTimeoutMs;
+    public final int maxAttempts;
+    public final long baseBackoffMs;
+    public final long maxBackoffMs;
+    // Retries stop once this much time has gone, so a brownout can't hold a thread forever
+    public final long budgetMs;
+    // Send a second copy if the first hasn't answered in this long, 0 to never
+    public final long hedgeAfterMs;
+
+    /**
+     * Constructor
+     * @param connectTimeoutMs Longest wait to connect
+     * @param readTimeoutMs Longest wait between bytes
+     * @param callTimeoutMs Longest a single attempt can take, body included
+     * @param maxAttempts Attempts at a GET, including the first
+     * @param baseBackoffMs Most to wait before the first retry, doubling after that
+     * @param maxBackoffMs Most to wait before any retry
+     * @param budgetMs Longest all attempts can take together, not counting the last body
+     * @param hedgeAfterMs Send a second copy of a GET that's taken this long, 0 to never
+     */
+    public RequestPolicy(long connectTimeoutMs, long readTimeoutMs, long callTimeoutMs, int maxAttempts,
+                         long baseBackoffMs, long maxBackoffMs, long budgetMs, long hedgeAfterMs) {
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+        this.callTimeoutMs = callTimeoutMs;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseBackoffMs = baseBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        this.budgetMs = budgetMs;
+        this.hedgeAfterMs = hedgeAfterMs;
+    }
+
+    /**
+     * @param method HTTP method
+     * @return true if a request can safely be sent more than once
+     */
+    public static boolean IsIdempotent(String method) {
+        return method.equals("GET") || method.equals("HEAD");
+    }
+
+    /**
+     * Full jitter backoff: anywhere from nothing up to the doubled delay, so phones that failed
+     * together don't all come back together
+     * @param attempt Attempts that have failed so far
+     * @param random Source of jitter
+     * @return How long to wait before the next attempt
+     */
+    public long Backoff(int attempt, Random random) {
+        long cap = Math.min(maxBackoffMs, baseBackoffMs << Math.min(attempt - 1, 20));
+        return (long) (random.nextDouble() * cap);
+    }
+}
@@ -0,0 +1,102 @@
+package com.roberts.magnificentmessageboard;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link FormEncoder} against URLEncoder, and that reusing it doesn't allocate
+ */
+public class FormEncoderTest {
+
+    private static String Legacy(String name, String value) throws Exception {
+        return name + "=" + URLEncoder.encode(value, "UTF-8");
+    }
+
+    private static String Encoded(FormEncoder form) {
+        return new String(form.ToByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static long AllocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    @Test
+    public void matchesUrlEncoder() throws Exception {
+        String[] values = {
+                "", "plain", "with spaces & ampersands = equals", "50% off!", "~tilde's (parens)",
+                "café über", "中文", "emoji 😀 here", "lone \ud83d surrogate", "lone \ude00 low",
+                "line\nbreak\ttab", "*.-_"
+        };
+        FormEncoder form = new FormEncoder();
+        for (String value : values) {
+            assertEquals(Legacy("content", value), Encoded(form.Reset().Add("content", value)));
+        }
+
+        Random random = new Random(42);
+        for (int round = 0; round < 1000; round++) {
+            StringBuilder value = new StringBuilder();
+            for (int i = random.nextInt(40); i > 0; i--) {
+                value.append((char) random.nextInt(0x10000));
+            }
+            assertEquals(Legacy("content", value.toString()), Encoded(form.Reset().Add("content", value.toString())));
+        }
+    }
+
+    @Test
+    public void joinsFieldsAndNumbers() {
+        FormEncoder form = new FormEncoder();
+        form.Add("content", "hi there").Add("reply", -1).Add("rowid", Integer.MIN_VALUE).Add("zero", 0).Add("n", 1234);
+        assertEquals("content=hi+there&reply=-1&rowid=-2147483648&zero=0&n=1234", Encoded(form));
+    }
+
+    @Test
+    public void bodyStreamsTheBuffer() throws Exception {
+        FormEncoder form = new FormEncoder().Add("content", new String(new char[5000]).replace((char) 0, 'x')).Add("reply", 7);
+        Buffer sink = new Buffer();
+        okhttp3.RequestBody body = form.ToRequestBody(null);
+        body.writeTo(sink);
+        assertEquals(form.Length(), body.contentLength());
+        assertEquals(Encoded(form), sink.readUtf8());
+    }
+
+    @Test
+    public void reuseDoesNotAllocate() throws Exception {
+        String content = "A typical post, with some punctuation & a café or two. Nothing too long.";
+        FormEncoder form = new FormEncoder();
+        // Let the buffer grow to size and the JIT settle
+        for (int i = 0; i < 20000; i++) {
+            form.Reset().Add("content", content).Add("reply", i).Add("tripcode", "0f8fad5b-d9cb-469f-a165-70867728950e");
+        }
+
+        long legacy = AllocatedBytes();
+        for (int i = 0; i < 1000; i++) {
+            String params = "";
+            params += String.format("%s=%s&", "content", URLEncoder.encode(content, "UTF-8"));
+            params += String.format("%s=%s&", "reply", URLEncoder.encode(Integer.toString(i), "UTF-8"));
+            params += String.format("%s=%s&", "tripcode", URLEncoder.encode("0f8fad5b-d9cb-469f-a165-70867728950e", "UTF-8"));
+            params.replaceFirst("&$", "").getBytes(StandardCharsets.UTF_8);
+        }
+        legacy = AllocatedBytes() - legacy;
+
+        long reused = AllocatedBytes();
+        for (int i = 0; i < 1000; i++) {
+            form.Reset().Add("content", content).Add("reply", i).Add("tripcode", "0f8fad5b-d9cb-469f-a165-70867728950e");
+        }
+        reused = AllocatedBytes() - reused;
+
+        System.out.printf("1000 forms: legacy %d KB allocated, FormEncoder %d KB%n", legacy / 1024, reused / 1024);
+        assertTrue(reused < 16 * 1024);
+    }
+}
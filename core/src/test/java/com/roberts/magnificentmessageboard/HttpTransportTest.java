@@ -0,0 +1,87 @@
+package com.roberts.magnificentmessageboard;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import okhttp3.Request;
+import okhttp3.Response;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks connection reuse, compression and timings of {@link HttpTransport} against a local server
+ */
+public class HttpTransportTest {
+
+    private static byte[] Compress(byte[] data, boolean gzip) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (java.io.OutputStream zip = gzip ? new GZIPOutputStream(out) : new DeflaterOutputStream(out)) {
+            zip.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void reusesConnectionsAndDecompresses() throws Exception {
+        byte[] page = PostStreamDecoderTest.SyntheticFrontPage(200);
+        try (StandInServer server = new StandInServer()) {
+            server.Handle("/getFrontPage.php", exchange -> {
+                String accepted = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                boolean gzip = exchange.getRequestURI().getQuery().contains("offset=0");
+                assertTrue(accepted.contains("gzip") && accepted.contains("deflate"));
+                exchange.getResponseHeaders().add("Content-Encoding", gzip ? "gzip" : "deflate");
+                StandInServer.Send(exchange, 200, Compress(page, gzip));
+            });
+
+            HttpTransport transport = new HttpTransport(5, 60);
+            HttpTransport.Timings first = null;
+            HttpTransport.Timings last = null;
+            for (int i = 0; i < 10; i++) {
+                HttpTransport.Timings timings = new HttpTransport.Timings();
+                Request request = new Request.Builder().url(server.Url() + "/getFrontPage.php?offset=" + (i % 2)).build();
+                try (Response response = transport.Execute(request, false, timings)) {
+                    List<Post> posts = PostStreamDecoder.DecodePosts(response.body().byteStream());
+                    assertEquals(200, posts.size());
+                }
+                if (first == null) {
+                    first = timings;
+                }
+                last = timings;
+            }
+
+            assertEquals(10, server.requests.get());
+            assertEquals(1, server.Connections());
+            assertFalse(first.reusedConnection);
+            assertTrue(first.connectNanos > 0);
+            assertTrue(last.reusedConnection);
+            assertEquals(0, last.connectNanos);
+            assertTrue(last.firstByteNanos > 0);
+            System.out.println("First request: " + first + ", last request: " + last);
+        }
+    }
+
+    @Test
+    public void evictsIdleConnections() throws Exception {
+        try (StandInServer server = new StandInServer()) {
+            server.Handle("/", exchange -> StandInServer.Send(exchange, 200, "{}"));
+
+            HttpTransport transport = new HttpTransport(5, 1);
+            Request request = new Request.Builder().url(server.Url() + "/").build();
+            try (Response response = transport.Execute(request, false, null)) {
+                assertEquals("{}", response.body().string());
+            }
+            assertEquals(1, transport.IdleConnections());
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (transport.IdleConnections() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+            assertEquals(0, transport.OpenConnections());
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.roberts.magnificentmessageboard;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link IntMap} agrees with a HashMap through puts and removes
+ */
+public class IntMapTest {
+
+    @Test
+    public void matchesAHashMap() {
+        Random random = new Random(7);
+        IntMap map = new IntMap();
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            int key = random.nextInt(5000) - 2500;
+            if (random.nextBoolean()) {
+                map.Put(key, i);
+                expected.put(key, i);
+            } else {
+                Integer removed = expected.remove(key);
+                assertEquals(removed == null ? -1 : removed, map.Remove(key));
+            }
+            assertEquals(expected.size(), map.Size());
+        }
+        for (int key = -2500; key < 2500; key++) {
+            Integer value = expected.get(key);
+            assertEquals(value == null ? -1 : value, map.Get(key));
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.roberts.magnificentmessageboard;
+
+import com.google.gson.JsonObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link Metrics} adds up under contention, and that requests through
+ * {@link HttpTransport} land in the right buckets
+ */
+public class MetricsTest {
+
+    @Before
+    public void startFromZero() {
+        Metrics.Get().Reset();
+    }
+
+    @Test
+    public void percentilesLandInTheRightBucket() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        // 90 fast ones around 1ms, 10 slow ones around 200ms
+        for (int i = 0; i < 90; i++) {
+            histogram.Record(TimeUnit.MICROSECONDS.toNanos(900));
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.Record(TimeUnit.MILLISECONDS.toNanos(200));
+        }
+        Metrics.HistogramSnapshot snapshot = histogram.Snapshot();
+        assertEquals(100, snapshot.count);
+        assertEquals(20.81, snapshot.MeanMs(), 0.01);
+        // Within a factor of two, from above
+        assertTrue(snapshot.PercentileMs(50) >= 0.9 && snapshot.PercentileMs(50) < 1.8);
+        assertTrue(snapshot.PercentileMs(90) < 1.8);
+        assertTrue(snapshot.PercentileMs(99) >= 200 && snapshot.PercentileMs(99) < 400);
+        assertEquals(0, new Metrics.Histogram().Snapshot().PercentileMs(50), 0);
+    }
+
+    @Test
+    public void concurrentRecordingLosesNothing() throws Exception {
+        Metrics metrics = new Metrics();
+        int threads = 8;
+        int each = 50000;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            pool.execute(() -> {
+                for (int i = 0; i < each; i++) {
+                    metrics.RequestDone("getFrontPage.php", i * 1000L, 10, 1, i % 100 == 0 ? 503 : 200);
+                    metrics.Bound(i);
+                }
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        pool.shutdown();
+
+        Metrics.Snapshot snapshot = metrics.Snapshot();
+        Metrics.EndpointSnapshot endpoint = snapshot.endpoints.get("getFrontPage.php");
+        assertEquals(threads * each, endpoint.requests);
+        assertEquals(threads * each, endpoint.latency.count);
+        assertEquals(threads * each * 10L, endpoint.bytesIn);
+        assertEquals(threads * each, snapshot.bind.count);
+        assertEquals(threads * each / 100, (long) snapshot.statuses.get(503));
+        assertEquals(threads * each / 100, (long) snapshot.errors.get(Metrics.Cause.HTTP));
+    }
+
+    @Test
+    public void failuresAreSortedByCause() {
+        assertEquals(Metrics.Cause.DNS, Metrics.Classify(new UnknownHostException("nowhere")));
+        assertEquals(Metrics.Cause.TIMEOUT, Metrics.Classify(new SocketTimeoutException()));
+        assertEquals(Metrics.Cause.CONNECT, Metrics.Classify(new ConnectException()));
+        assertEquals(Metrics.Cause.API, Metrics.Classify(new PostStreamDecoder.ApiErrorException("No")));
+        assertEquals(Metrics.Cause.JSON, Metrics.Classify(new PostStreamDecoder.MalformedResponseException("Bad")));
+        assertEquals(Metrics.Cause.TIMEOUT, Metrics.Classify(new IOException("wrapped", new SocketTimeoutException())));
+        assertEquals(Metrics.Cause.OTHER, Metrics.Classify(new IOException("?")));
+    }
+
+    @Test
+    public void requestsAreCountedPerEndpoint() throws Exception {
+        try (StandInServer server = new StandInServer()) {
+            String posts = "{\"response\":[{\"rowid\":\"1\",\"hash\":\"a\",\"reply\":\"-1\",\"content\":\"hi\"}]}";
+            server.Handle("/good.php", exchange -> StandInServer.Send(exchange, 200, posts));
+            server.Handle("/missing.php", exchange -> StandInServer.Send(exchange, 404, "nope"));
+            server.Handle("/garbled.php", exchange -> StandInServer.Send(exchange, 200, "{\"response\":[{\"rowid\""));
+
+            for (int i = 0; i < 3; i++) {
+                assertEquals(1, NetworkUtils.quickRequest(server.Url() + "/good.php", "GET", false).decodePosts().size());
+            }
+            NetworkUtils.quickRequest(server.Url() + "/missing.php", "GET", false).getData();
+            try {
+                NetworkUtils.quickRequest(server.Url() + "/garbled.php", "GET", false).decodePosts();
+                fail();
+            } catch (IOException expected) {
+            }
+        }
+
+        // Nothing listening here any more
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        try {
+            NetworkUtils.quickRequest("http://127.0.0.1:" + port + "/refused.php", "GET", false);
+            fail();
+        } catch (IOException expected) {
+        }
+
+        Metrics.Snapshot snapshot = Metrics.Get().Snapshot();
+        Metrics.EndpointSnapshot good = snapshot.endpoints.get("good.php");
+        assertEquals(3, good.requests);
+        assertEquals(0, good.failures);
+        assertTrue(good.bytesIn > 0);
+        assertTrue(good.latency.MeanMs() > 0);
+        assertEquals(3, snapshot.postsDecoded);
+        assertEquals(1, (long) snapshot.statuses.get(404));
+        assertEquals(1, (long) snapshot.errors.get(Metrics.Cause.HTTP));
+        assertEquals(1, snapshot.endpoints.get("refused.php").failures);
+        assertEquals(1, (long) snapshot.errors.get(Metrics.Cause.CONNECT));
+        assertEquals(1, (long) snapshot.errors.get(Metrics.Cause.JSON));
+
+        // Exported JSON carries the same numbers
+        JsonObject json = snapshot.ToJson();
+        assertEquals(3, json.getAsJsonObject("endpoints").getAsJsonObject("good.php").get("requests").getAsLong());
+        assertEquals(1, json.getAsJsonObject("http_statuses").get("404").getAsLong());
+        assertTrue(snapshot.toString().contains("good.php: 3 requests"));
+    }
+}
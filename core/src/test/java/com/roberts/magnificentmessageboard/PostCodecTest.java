@@ -0,0 +1,147 @@
+package com.roberts.magnificentmessageboard;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips through {@link PostCodec}, and compares it with the Serializable path it replaced
+ */
+public class PostCodecTest {
+
+    /**
+     * What Post used to be, for the comparison
+     */
+    private static class SerializablePost implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final String Hash;
+        final String Content;
+        final int Id;
+        final int Reply;
+
+        SerializablePost(Post post) {
+            Hash = post.Hash;
+            Content = post.Content;
+            Id = post.Id;
+            Reply = post.Reply;
+        }
+    }
+
+    private static List<Post> Posts(int count) {
+        List<Post> posts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            posts.add(new Post(Integer.toHexString(i * 7919), "Post number " + i + " with some text in it", i + 1, i % 3 == 0 ? -1 : i / 3));
+        }
+        return posts;
+    }
+
+    @Test
+    public void roundTripsEveryField() throws IOException {
+        Post post = new Post("a1b2c3", "Café 😀 \"quoted\"\nnew line", 123456789, -1);
+        Post back = PostCodec.Decode(PostCodec.Encode(post));
+        assertEquals(post.Hash, back.Hash);
+        assertEquals(post.Content, back.Content);
+        assertEquals(post.Id, back.Id);
+        assertEquals(post.Reply, back.Reply);
+
+        // Pending posts have negative ids
+        Post pending = new Post("", "", -2000000000, 5);
+        assertEquals(-2000000000, PostCodec.Decode(PostCodec.Encode(pending)).Id);
+    }
+
+    @Test
+    public void roundTripsLists() throws IOException {
+        List<Post> posts = Posts(1000);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            PostCodec.WriteList(out, posts);
+        }
+        byte[] data = bytes.toByteArray();
+        List<Post> back = PostCodec.ReadList(new DataInputStream(new ByteArrayInputStream(data)), data.length);
+        assertEquals(posts.size(), back.size());
+        for (int i = 0; i < posts.size(); i++) {
+            assertEquals(posts.get(i).Id, back.get(i).Id);
+            assertEquals(posts.get(i).Reply, back.get(i).Reply);
+            assertEquals(posts.get(i).Content, back.get(i).Content);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedData() throws IOException {
+        byte[] data = PostCodec.Encode(Posts(1).get(0));
+        PostCodec.Decode(Arrays.copyOf(data, data.length - 3));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherVersions() throws IOException {
+        byte[] data = PostCodec.Encode(Posts(1).get(0));
+        data[0] = (byte) (PostCodec.VERSION + 1);
+        PostCodec.Decode(data);
+    }
+
+    /**
+     * Not a rigorous benchmark, but the gap is wide enough to show up anyway
+     */
+    @Test
+    public void smallerAndFasterThanSerializable() throws Exception {
+        List<Post> posts = Posts(10000);
+
+        long serializedBytes = 0;
+        long codecBytes = 0;
+        // Warm up both paths so we aren't timing class loading
+        for (int round = 0; round < 3; round++) {
+            for (Post post : posts.subList(0, 1000)) {
+                Deserialize(Serialize(new SerializablePost(post)));
+                PostCodec.Decode(PostCodec.Encode(post));
+            }
+        }
+
+        long serialTime = System.nanoTime();
+        for (Post post : posts) {
+            byte[] data = Serialize(new SerializablePost(post));
+            serializedBytes += data.length;
+            Deserialize(data);
+        }
+        serialTime = System.nanoTime() - serialTime;
+
+        long codecTime = System.nanoTime();
+        for (Post post : posts) {
+            byte[] data = PostCodec.Encode(post);
+            codecBytes += data.length;
+            PostCodec.Decode(data);
+        }
+        codecTime = System.nanoTime() - codecTime;
+
+        System.out.printf("%d posts one at a time: Serializable %d ms / %d bytes, PostCodec %d ms / %d bytes%n",
+                posts.size(), serialTime / 1000000, serializedBytes, codecTime / 1000000, codecBytes);
+        assertTrue(codecBytes * 3 < serializedBytes);
+        assertTrue(codecTime < serialTime);
+    }
+
+    private static byte[] Serialize(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object Deserialize(byte[] data) throws Exception {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return in.readObject();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.roberts.magnificentmessageboard;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link PostStore} gives back what went in, and measures how much heap it saves over a
+ * list of {@link Post}s
+ */
+public class PostStoreTest {
+    private static final String[] WORDS = {"the", "board", "is", "magnificent", "and", "posting", "here", "every", "day", "é", "thread"};
+
+    /**
+     * A post like the decoder makes without interning: fresh strings for everything
+     */
+    private static Post Decoded(int id, Random random) {
+        StringBuilder content = new StringBuilder("Post ").append(id);
+        int length = 40 + random.nextInt(120);
+        while (content.length() < length) {
+            content.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        // A couple of thousand regulars
+        String hash = Integer.toHexString(random.nextInt(2000) * 7919 + 0x100000);
+        return new Post(new String(hash.toCharArray()), content.toString(), id, random.nextInt(3) == 0 ? id - 1 : -1);
+    }
+
+    private static long UsedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // Settle down, the number moves about for a few collections
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(20);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    @Test
+    public void givesBackWhatWentIn() {
+        PostStore store = new PostStore(4);
+        Random random = new Random(22);
+        List<Post> posts = new ArrayList<>();
+        for (int i = 1; i <= 5000; i++) {
+            posts.add(Decoded(i, random));
+        }
+        // Emoji and a post longer than a page
+        StringBuilder huge = new StringBuilder();
+        while (huge.length() < 200000) {
+            huge.append("long post 🎉 ");
+        }
+        posts.add(new Post("abc", huge.toString(), 6000, -1));
+        posts.add(new Post("abc", "after the long one", 6001, 6000));
+        for (Post post : posts) {
+            store.Put(post);
+        }
+        assertEquals(posts.size(), store.Size());
+        for (Post post : posts) {
+            int slot = store.Find(post.Id);
+            Post back = store.Get(slot);
+            assertEquals(post.Id, back.Id);
+            assertEquals(post.Reply, back.Reply);
+            assertEquals(post.Hash, back.Hash);
+            assertEquals(post.Content, back.Content);
+        }
+        assertEquals(-1, store.Find(99999));
+
+        // Updating keeps the slot
+        int slot = store.Find(42);
+        assertEquals(slot, store.Put(new Post("new", "edited", 42, 7)));
+        assertEquals("edited", store.Content(slot));
+        assertEquals("new", store.Hash(slot));
+        assertEquals(7, store.Reply(slot));
+        assertEquals(posts.size(), store.Size());
+    }
+
+    @Test
+    public void emptyPostsInAFreshStore() {
+        PostStore store = new PostStore();
+        int slot = store.Put(new Post("h", "", 1, -1));
+        assertEquals("", store.Content(slot));
+        int next = store.Put(new Post("h", "Not empty", 2, 1));
+        assertEquals("Not empty", store.Content(next));
+        assertEquals("", store.Get(slot).Content);
+    }
+
+    @Test
+    public void emptyPostsAfterAFullPage() {
+        PostStore store = new PostStore();
+        // Exactly one page's worth
+        String full = new String(new char[1 << 16]).replace((char) 0, 'x');
+        int first = store.Put(new Post("h", full, 1, -1));
+        int empty = store.Put(new Post("h", "", 2, 1));
+        int after = store.Put(new Post("h", "After", 3, 1));
+        assertEquals(full, store.Content(first));
+        assertEquals("", store.Content(empty));
+        assertEquals("After", store.Content(after));
+        // And editing one to nothing
+        store.Put(new Post("h", "", 3, 1));
+        assertEquals("", store.Content(after));
+    }
+
+    @Test
+    public void hashesAreShared() {
+        String hash = PostStore.InternHash(new String("f00d".toCharArray()));
+        assertSame(hash, PostStore.InternHash(new String("f00d".toCharArray())));
+
+        PostStore store = new PostStore();
+        int a = store.Put(new Post(new String("f00d".toCharArray()), "one", 1, -1));
+        int b = store.Put(new Post(new String("f00d".toCharArray()), "two", 2, -1));
+        assertSame(store.Hash(a), store.Hash(b));
+        assertSame(hash, store.Get(b).Hash);
+    }
+
+    @Test
+    public void takesLessHeapThanPosts() throws Exception {
+        int count = 100000;
+        long before = UsedHeap();
+        Random random = new Random(22);
+        List<Post> posts = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+            posts.add(Decoded(i, random));
+        }
+        long listBytes = UsedHeap() - before;
+        assertEquals(count, posts.size());
+        posts = null;
+
+        before = UsedHeap();
+        random = new Random(22);
+        PostStore store = new PostStore();
+        for (int i = 1; i <= count; i++) {
+            store.Put(Decoded(i, random));
+        }
+        long storeBytes = UsedHeap() - before;
+        assertEquals(count, store.Size());
+
+        System.out.println(String.format("Post store: %d posts, ArrayList<Post> %.1f MB (%d bytes each), PostStore %.1f MB (%d bytes each)",
+                count, listBytes / 1048576.0, listBytes / count, storeBytes / 1048576.0, storeBytes / count));
+        assertTrue(storeBytes < listBytes * 3 / 4);
+    }
+}
@@ -0,0 +1,155 @@
+package com.roberts.magnificentmessageboard;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the streaming decoder against the old read-it-all-then-parse path
+ */
+public class PostStreamDecoderTest {
+
+    /**
+     * Build a front page style body, one post per line like a pretty-printed response
+     * @param count Amount of posts
+     * @return UTF-8 bytes of the body
+     */
+    static byte[] SyntheticFrontPage(int count) {
+        StringBuilder body = new StringBuilder("{\"response\":[\n");
+        for (int i = 0; i < count; i++) {
+            body.append("{\"rowid\":\"").append(i + 1)
+                    .append("\",\"hash\":\"").append(Integer.toHexString(i * 7919))
+                    .append("\",\"reply\":\"-1\",\"content\":\"Post number ").append(i)
+                    .append(" with some \\\"quoted\\\" text and a unicode \\u00e9 escape\"}");
+            body.append(i + 1 < count ? ",\n" : "\n");
+        }
+        body.append("]}");
+        return body.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * What GetFrontPage used to do: concatenate the body line by line, then build a DOM
+     */
+    static List<Post> LegacyDecode(InputStream in) throws Exception {
+        BufferedReader br = new BufferedReader(new InputStreamReader(in));
+        String data = "";
+        String line;
+        while ((line = br.readLine()) != null) {
+            data += line;
+        }
+        JSONArray content = new JSONObject(data).getJSONArray("response");
+        List<Post> posts = new ArrayList<>();
+        for (int i = 0; i < content.length(); i++) {
+            JSONObject post = content.getJSONObject(i);
+            posts.add(new Post(post.getString("hash"), post.getString("content"), post.getInt("rowid"), post.getInt("reply")));
+        }
+        return posts;
+    }
+
+    /**
+     * @return Bytes allocated so far by this thread, or -1 if the JVM can't tell us
+     */
+    private static long AllocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    @Test
+    public void decodesPostsAndCoercesStringNumbers() throws IOException {
+        String body = "{\"response\":[{\"rowid\":\"12\",\"hash\":\"abc\",\"reply\":-1,\"content\":\"hi\\nthere\",\"extra\":[1,2]}]}";
+        List<Post> posts = PostStreamDecoder.DecodePosts(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(1, posts.size());
+        assertEquals(12, posts.get(0).Id);
+        assertEquals(-1, posts.get(0).Reply);
+        assertEquals("abc", posts.get(0).Hash);
+        assertEquals("hi\nthere", posts.get(0).Content);
+    }
+
+    @Test
+    public void surfacesServerErrors() {
+        String body = "{\"error\":\"Invalid rowid\"}";
+        try {
+            PostStreamDecoder.DecodePosts(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+            fail("Expected an error");
+        } catch (PostStreamDecoder.ApiErrorException e) {
+            assertEquals("Invalid rowid", e.getMessage());
+        } catch (IOException e) {
+            fail("Wrong exception " + e);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedBodies() throws IOException {
+        String body = "{\"response\":[{\"rowid\":1,\"hash\":\"a\",\"reply\":-1,\"content\":\"trunc";
+        PostStreamDecoder.DecodePosts(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void decodesNewPostAnswers() throws IOException {
+        String body = "{\"response\":{\"rowid\":\"42\"}}";
+        assertEquals(42, PostStreamDecoder.DecodeNewPost(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8))));
+        try {
+            PostStreamDecoder.DecodeNewPost(new ByteArrayInputStream("{\"error\":\"Too long\"}".getBytes(StandardCharsets.UTF_8)));
+            fail("Expected an error");
+        } catch (PostStreamDecoder.ApiErrorException e) {
+            assertEquals("Too long", e.getMessage());
+        }
+        try {
+            PostStreamDecoder.DecodeNewPost(new ByteArrayInputStream("{\"response\":{}}".getBytes(StandardCharsets.UTF_8)));
+            fail("Expected an error");
+        } catch (PostStreamDecoder.MalformedResponseException e) {
+            // No rowid
+        }
+    }
+
+    @Test
+    public void largePayloadMatchesLegacyWithLessAllocation() throws Exception {
+        byte[] payload = SyntheticFrontPage(5000);
+
+        // Warm both paths up so we aren't timing class loading
+        LegacyDecode(new ByteArrayInputStream(payload));
+        PostStreamDecoder.DecodePosts(new ByteArrayInputStream(payload));
+
+        long legacyAlloc = AllocatedBytes();
+        long legacyTime = System.nanoTime();
+        List<Post> legacy = LegacyDecode(new ByteArrayInputStream(payload));
+        legacyTime = System.nanoTime() - legacyTime;
+        legacyAlloc = AllocatedBytes() - legacyAlloc;
+
+        long streamAlloc = AllocatedBytes();
+        long streamTime = System.nanoTime();
+        List<Post> streamed = PostStreamDecoder.DecodePosts(new ByteArrayInputStream(payload));
+        streamTime = System.nanoTime() - streamTime;
+        streamAlloc = AllocatedBytes() - streamAlloc;
+
+        System.out.printf("%d byte payload: legacy %d ms / %d KB allocated, streaming %d ms / %d KB allocated%n",
+                payload.length, legacyTime / 1000000, legacyAlloc / 1024, streamTime / 1000000, streamAlloc / 1024);
+
+        assertEquals(legacy.size(), streamed.size());
+        for (int i = 0; i < legacy.size(); i++) {
+            assertEquals(legacy.get(i).Id, streamed.get(i).Id);
+            assertEquals(legacy.get(i).Reply, streamed.get(i).Reply);
+            assertEquals(legacy.get(i).Hash, streamed.get(i).Hash);
+            assertEquals(legacy.get(i).Content, streamed.get(i).Content);
+        }
+        if (legacyAlloc >= 0) {
+            // The quadratic concatenation alone copies the body once per line
+            assertTrue("Streaming should allocate far less", streamAlloc * 10 < legacyAlloc);
+        }
+    }
+}
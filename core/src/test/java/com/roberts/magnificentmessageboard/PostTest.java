@@ -0,0 +1,64 @@
+package com.roberts.magnificentmessageboard;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link Post#Preview(int)} cuts long posts in sensible places
+ */
+public class PostTest {
+
+    private static Post WithContent(String content) {
+        return new Post("hash", content, 1, -1);
+    }
+
+    @Test
+    public void shortPostsAreLeftAlone() {
+        Post post = WithContent("short and sweet");
+        assertSame(post.Content, post.Preview(500));
+        assertSame(post.Content, post.Preview(post.Content.length()));
+    }
+
+    @Test
+    public void longPostsAreCutAtASpace() {
+        StringBuilder content = new StringBuilder();
+        while (content.length() < 2000) {
+            content.append("word ");
+        }
+        String preview = WithContent(content.toString()).Preview(502);
+        assertEquals("…", preview.substring(preview.length() - 1));
+        // Ends on a whole word
+        assertTrue(preview.endsWith("word…"));
+        assertTrue(preview.length() <= 503);
+        assertTrue(preview.length() > 470);
+    }
+
+    @Test
+    public void wordsTooLongToCutAtASpaceAreCutAnyway() {
+        String content = new String(new char[1000]).replace((char) 0, 'x');
+        assertEquals(content.substring(0, 500) + "…", WithContent(content).Preview(500));
+    }
+
+    @Test
+    public void emojiAreNotCutInHalf() {
+        String emoji = "😀";
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            content.append(emoji);
+        }
+        // 500 would land between the two halves of the 250th
+        String preview = WithContent(content.toString()).Preview(499);
+        String kept = preview.substring(0, preview.length() - 1);
+        assertEquals(498, kept.length());
+        assertFalse(Character.isHighSurrogate(kept.charAt(kept.length() - 1)));
+    }
+
+    @Test
+    public void noRoomAtAllLeavesJustTheDots() {
+        assertEquals("…", WithContent("anything").Preview(0));
+        assertEquals("…", WithContent("anything").Preview(-5));
+        assertEquals("", WithContent("").Preview(0));
+        assertEquals("", WithContent("").Preview(-1));
+    }
+}
@@ -0,0 +1,211 @@
+package com.roberts.magnificentmessageboard;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link NetworkUtils#GetRepliesBatch} against a stand-in server implementing the batch
+ * contract: getReplies.php?rowids=1,2,3 answers {"response": {"1": [...], ...}, "errors":
+ * {"3": "why"}}
+ */
+public class ReplyBatchTest {
+    // Every request takes at least this long, like a phone a long way from the server
+    private static final int LATENCY_MS = 10;
+
+    /**
+     * Threads 1 to count have (rowid % 4) replies each, anything else doesn't exist
+     */
+    private static class Board {
+        final int count;
+        final boolean batches;
+        // Chunks containing this rowid fail as a whole
+        volatile int poison = -1;
+
+        Board(int count, boolean batches) {
+            this.count = count;
+            this.batches = batches;
+        }
+
+        List<Post> Replies(int rowid) {
+            List<Post> replies = new ArrayList<>();
+            for (int i = 0; i < rowid % 4; i++) {
+                replies.add(new Post("h", "Reply " + i + " to " + rowid, rowid * 10 + i, rowid));
+            }
+            return replies;
+        }
+
+        void Serve(HttpExchange exchange) throws IOException {
+            try {
+                Thread.sleep(LATENCY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            Map<String, String> query = StandInServer.Query(exchange);
+            if (query.containsKey("rowid")) {
+                int rowid = Integer.parseInt(query.get("rowid"));
+                if (rowid < 1 || rowid > count) {
+                    StandInServer.Send(exchange, 200, "{\"error\":\"No such post\"}");
+                } else {
+                    StandInServer.Send(exchange, 200, StandInServer.Json(Replies(rowid)));
+                }
+                return;
+            }
+            if (!batches || !query.containsKey("rowids")) {
+                // What the real server says when there's no rowid
+                StandInServer.Send(exchange, 200, "{\"error\":\"No rowid\"}");
+                return;
+            }
+            StringBuilder response = new StringBuilder();
+            StringBuilder errors = new StringBuilder();
+            for (String id : URLDecoder.decode(query.get("rowids"), "UTF-8").split(",")) {
+                int rowid = Integer.parseInt(id);
+                if (rowid == poison) {
+                    StandInServer.Send(exchange, 500, "busy");
+                    return;
+                }
+                if (rowid < 1 || rowid > count) {
+                    errors.append(errors.length() > 0 ? "," : "").append('"').append(rowid).append("\":\"No such post\"");
+                } else {
+                    String json = StandInServer.Json(Replies(rowid));
+                    // Just the list out of {"response":[...]}
+                    response.append(response.length() > 0 ? "," : "").append('"').append(rowid).append("\":")
+                            .append(json, json.indexOf('['), json.lastIndexOf(']') + 1);
+                }
+            }
+            StandInServer.Send(exchange, 200, "{\"response\":{" + response + "},\"errors\":{" + errors + "}}");
+        }
+    }
+
+    private static StandInServer Serve(Board board) throws IOException {
+        StandInServer server = new StandInServer();
+        server.Handle("/getReplies.php", board::Serve);
+        NetworkUtils.SetApiBase(server.Url() + "/");
+        // Quick, and no retrying the chunk that fails on purpose
+        NetworkUtils.SetPolicy("getReplies.php", new RequestPolicy(1000, 1000, 2000, 1, 0, 0, 2000, 0));
+        return server;
+    }
+
+    private static List<Integer> Range(int from, int to) {
+        List<Integer> ids = new ArrayList<>();
+        for (int i = from; i <= to; i++) {
+            ids.add(i);
+        }
+        return ids;
+    }
+
+    @After
+    public void pointBackAtRealServer() {
+        NetworkUtils.SetApiBase("http://messageboard.hoppy.haus/");
+        NetworkUtils.SetPolicy("getReplies.php", new RequestPolicy(5000, 10000, 20000, 3, 250, 2000, 30000, 1500));
+    }
+
+    @Test
+    public void manyThreadsTakeAFewRequests() throws Exception {
+        int threads = 120;
+        Board board = new Board(threads, true);
+        try (StandInServer server = Serve(board)) {
+            List<Integer> ids = Range(1, threads);
+            // Asked twice, fetched once
+            ids.add(7);
+
+            long start = System.nanoTime();
+            NetworkUtils.RepliesBatch batch = NetworkUtils.GetRepliesBatch(ids);
+            long batched = System.nanoTime() - start;
+            assertEquals(3, batch.requests);
+            assertEquals(3, server.requests.get());
+            assertEquals(threads, batch.replies.size());
+            assertTrue(batch.failures.isEmpty());
+            for (int rowid = 1; rowid <= threads; rowid++) {
+                List<Post> replies = batch.replies.get(rowid);
+                assertEquals(rowid % 4, replies.size());
+                for (Post reply : replies) {
+                    assertEquals(rowid, reply.Reply);
+                }
+            }
+
+            // One request each, going by the first few so the test doesn't take all day
+            int sample = 20;
+            start = System.nanoTime();
+            for (int rowid = 1; rowid <= sample; rowid++) {
+                assertEquals(batch.replies.get(rowid).size(), NetworkUtils.GetReplies(rowid).size());
+            }
+            long oneByOne = (System.nanoTime() - start) * threads / sample;
+            System.out.println(String.format("Reply batch: %d threads in %d requests / %.0f ms, one by one %d requests / ~%.0f ms",
+                    threads, batch.requests, batched / 1e6, threads, oneByOne / 1e6));
+            assertTrue(batched < oneByOne);
+        }
+    }
+
+    @Test
+    public void failuresAreReportedPerRowid() throws Exception {
+        Board board = new Board(100, true);
+        try (StandInServer server = Serve(board)) {
+            // 45 is in the third chunk, which fails as a whole. 200 and 201 don't exist.
+            board.poison = 45;
+            List<Integer> ids = Range(1, 60);
+            ids.add(200);
+            ids.add(201);
+            NetworkUtils.RepliesBatch batch = NetworkUtils.GetRepliesBatch(ids, 20);
+            assertEquals(4, batch.requests);
+            // The failing chunk might have been retried on the way
+            assertTrue(server.requests.get() >= 4);
+            assertEquals(ids.size(), batch.replies.size() + batch.failures.size());
+
+            for (int rowid = 1; rowid <= 60; rowid++) {
+                boolean inBadChunk = rowid > 40;
+                assertEquals(inBadChunk, batch.failures.containsKey(rowid));
+                assertEquals(!inBadChunk, batch.replies.containsKey(rowid));
+            }
+            IOException missing = batch.failures.get(200);
+            assertTrue(missing instanceof PostStreamDecoder.ApiErrorException);
+            assertEquals("No such post", missing.getMessage());
+            assertTrue(batch.failures.containsKey(201));
+            // A chunk failing isn't the server not knowing batches
+            assertFalse(batch.failures.get(45) instanceof PostStreamDecoder.ApiErrorException);
+            assertEquals(1, NetworkUtils.GetRepliesBatch(Range(1, 10), 20).requests);
+        }
+    }
+
+    @Test
+    public void prefetchingCountsTheBytes() throws Exception {
+        Board board = new Board(30, true);
+        try (StandInServer server = Serve(board)) {
+            HttpTransport.Timings timings = new HttpTransport.Timings();
+            NetworkUtils.RepliesBatch batch = NetworkUtils.PrefetchReplies(Range(1, 12), timings);
+            assertEquals(1, batch.requests);
+            assertEquals(12, batch.replies.size());
+            assertTrue(batch.bytes > 0);
+            assertEquals(batch.bytes, timings.bodyBytes);
+        }
+    }
+
+    @Test
+    public void serversWithoutBatchesGetAskedOneAtATime() throws Exception {
+        Board board = new Board(30, false);
+        try (StandInServer server = Serve(board)) {
+            NetworkUtils.RepliesBatch batch = NetworkUtils.GetRepliesBatch(Range(1, 12), 20);
+            // The batch that wasn't understood, then one each
+            assertEquals(13, batch.requests);
+            assertEquals(13, server.requests.get());
+            assertEquals(12, batch.replies.size());
+            assertEquals(3, batch.replies.get(3).size());
+
+            batch = NetworkUtils.GetRepliesBatch(Range(25, 32), 20);
+            // Straight to one at a time, now it knows
+            assertEquals(8, batch.requests);
+            assertEquals(6, batch.replies.size());
+            assertEquals(2, batch.failures.size());
+            assertTrue(batch.failures.get(31) instanceof PostStreamDecoder.ApiErrorException);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.roberts.magnificentmessageboard;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+import static org.junit.Assert.*;
+
+/**
+ * Puts {@link HttpTransport}'s retries, hedging and circuit breaker up against a stand-in server
+ * that drops, stalls and errors on purpose
+ */
+public class ResilienceTest {
+    // Quick everything, so the tests don't take all day
+    private static final RequestPolicy PATIENT = new RequestPolicy(500, 500, 1000, 3, 20, 50, 5000, 0);
+
+    private static Request Get(StandInServer server, String path) {
+        return new Request.Builder().url(server.Url() + path).build();
+    }
+
+    /**
+     * Stalls long past any timeout the tests use
+     */
+    private static void Stall() {
+        try {
+            Thread.sleep(3000);
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    @Test
+    public void getsAreRetriedThroughErrors() throws Exception {
+        try (StandInServer server = new StandInServer()) {
+            AtomicInteger calls = new AtomicInteger();
+            server.Handle("/flaky.php", exchange -> {
+                if (calls.incrementAndGet() <= 2) {
+                    StandInServer.Send(exchange, 503, "busy");
+                } else {
+                    StandInServer.Send(exchange, 200, "ok");
+                }
+            });
+            HttpTransport transport = new HttpTransport(5, 60, 10, 60000);
+            try (Response response = transport.Execute(Get(server, "/flaky.php"), false, null, PATIENT)) {
+                assertEquals(200, response.code());
+                assertEquals("ok", response.body().string());
+            }
+            assertEquals(3, server.requests.get());
+        }
+    }
+
+    @Test
+    public void postsAreNeverSentTwice() throws Exception {
+        try (StandInServer server = new StandInServer()) {
+            server.Handle("/newPost.php", exchange -> StandInServer.Send(exchange, 503, "busy"));
+            HttpTransport transport = new HttpTransport(5, 60, 10, 60000);
+            Request post = new Request.Builder().url(server.Url() + "/newPost.php")
+                    .post(RequestBody.create(MediaType.parse("text/plain"), "hello")).build();
+            RequestPolicy hedgedToo = new RequestPolicy(500, 500, 1000, 3, 20, 50, 5000, 10);
+            try (Response response = transport.Execute(post, false, null, hedgedToo)) {
+                assertEquals(503, response.code());
+            }
+            assertEquals(1, server.requests.get());
+        }
+    }
+
+    @Test
+    public void brownoutsCantHoldThreadsForever() throws Exception {
+        try (StandInServer server = new StandInServer()) {
+            server.Handle("/slow.php", exchange -> {
+                Stall();
+                StandInServer.Send(exchange, 200, "late");
+            });
+            HttpTransport transport = new HttpTransport(5, 60, 100, 60000);
+            RequestPolicy policy = new RequestPolicy(200, 200, 300, 3, 20, 50, 800, 0);
+            int threads = 8;
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            List<Future<Long>> took = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                took.add(pool.submit(() -> {
+                    long start = System.nanoTime();
+                    try (Response response = transport.Execute(Get(server, "/slow.php"), false, null, policy)) {
+                        fail("Got " + response.code());
+                    } catch (IOException expected) {
+                    }
+                    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                }));
+            }
+            long worst = 0;
+            for (Future<Long> future : took) {
+                worst = Math.max(worst, future.get(10, TimeUnit.SECONDS));
+            }
+            pool.shutdown();
+            // Three attempts at 300ms each, the budget stops a fourth
+            System.out.println("Worst thread held by a brownout: " + worst + "ms");
+            assertTrue(worst < 1500);
+        }
+    }
+
+    @Test
+    public void hedgingCutsOffTheSlowTail() throws Exception {
+        try (StandInServer server = new StandInServer()) {
+            AtomicInteger calls = new AtomicInteger();
+            server.Handle("/getReplies.php", exchange -> {
+                // The first copy hits a bad backend, the hedge doesn't
+                if (calls.incrementAndGet() == 1) {
+                    Stall();
+                }
+                StandInServer.Send(exchange, 200, "replies");
+            });
+            HttpTransport transport = new HttpTransport(5, 60, 10, 60000);
+            RequestPolicy hedged = new RequestPolicy(500, 5000, 5000, 1, 0, 0, 5000, 100);
+            long start = System.nanoTime();
+            try (Response response = transport.Execute(Get(server, "/getReplies.php"), false, null, hedged)) {
+                assertEquals("replies", response.body().string());
+            }
+            long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue("Took " + took + "ms", took < 1500);
+            assertEquals(2, server.requests.get());
+        }
+    }
+
+    @Test
+    public void fastAnswersAreNotHedged() throws Exception {
+        try (StandInServer server = new StandInServer()) {
+            server.Handle("/getReplies.php", exchange -> StandInServer.Send(exchange, 200, "replies"));
+            HttpTransport transport = new HttpTransport(5, 60, 10, 60000);
+            RequestPolicy hedged = new RequestPolicy(500, 5000, 5000, 1, 0, 0, 5000, 1000);
+            for (int i = 0; i < 5; i++) {
+                try (Response response = transport.Execute(Get(server, "/getReplies.php"), false, null, hedged)) {
+                    assertEquals("replies", response.body().string());
+                }
+            }
+            assertEquals(5, server.requests.get());
+        }
+    }
+
+    @Test
+    public void breakerFailsFastThenTriesAgain() throws Exception {
+        try (StandInServer server = new StandInServer()) {
+            AtomicInteger healthy = new AtomicInteger();
+            server.Handle("/getFrontPage.php", exchange -> {
+                if (healthy.get() == 0) {
+                    StandInServer.Send(exchange, 500, "down");
+                } else {
+                    StandInServer.Send(exchange, 200, "up");
+                }
+            });
+            HttpTransport transport = new HttpTransport(5, 60, 3, 300);
+            RequestPolicy once = new RequestPolicy(500, 500, 1000, 1, 0, 0, 1000, 0);
+            for (int i = 0; i < 3; i++) {
+                try (Response response = transport.Execute(Get(server, "/getFrontPage.php"), false, null, once)) {
+                    assertEquals(500, response.code());
+                }
+            }
+            assertEquals(CircuitBreaker.State.OPEN, transport.Breaker(Get(server, "/").url()).GetState());
+
+            // Open, so nothing reaches the server and nobody waits
+            long start = System.nanoTime();
+            try {
+                transport.Execute(Get(server, "/getFrontPage.php"), false, null, once);
+                fail();
+            } catch (CircuitBreaker.OpenException expected) {
+            }
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(50));
+            assertEquals(3, server.requests.get());
+
+            // Once it's had a rest, one request finds out the server is back
+            healthy.set(1);
+            Thread.sleep(350);
+            try (Response response = transport.Execute(Get(server, "/getFrontPage.php"), false, null, once)) {
+                assertEquals("up", response.body().string());
+            }
+            assertEquals(CircuitBreaker.State.CLOSED, transport.Breaker(Get(server, "/").url()).GetState());
+            assertEquals(1, transport.Breaker(Get(server, "/").url()).TimesOpened());
+        }
+    }
+
+    @Test
+    public void halfOpenFailureOpensAgain() {
+        CircuitBreaker breaker = new CircuitBreaker(2, 0);
+        breaker.Failure();
+        breaker.Failure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.GetState());
+        // Rested long enough, one gets through and the rest wait on it
+        assertTrue(breaker.Allow());
+        assertFalse(breaker.Allow());
+        breaker.Failure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.GetState());
+        assertEquals(2, breaker.TimesOpened());
+    }
+
+    @Test
+    public void backoffIsJitteredAndCapped() {
+        RequestPolicy policy = new RequestPolicy(1, 1, 1, 10, 100, 1000, 1, 0);
+        java.util.Random random = new java.util.Random(1);
+        boolean varied = false;
+        long previous = -1;
+        for (int attempt = 1; attempt < 30; attempt++) {
+            long wait = policy.Backoff(attempt, random);
+            assertTrue(wait >= 0 && wait <= Math.min(1000, 100L << Math.min(attempt - 1, 20)));
+            varied |= previous >= 0 && wait != previous;
+            previous = wait;
+        }
+        assertTrue(varied);
+    }
+}
@@ -0,0 +1,115 @@
+package com.roberts.magnificentmessageboard;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stand-in for messageboard.hoppy.haus, so network code can be tested without the real
+ * backend. Counts requests and the connections they arrived on.
+ */
+class StandInServer implements AutoCloseable {
+    private final HttpServer server;
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+    final AtomicInteger requests = new AtomicInteger();
+
+    StandInServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    /**
+     * Serve a path
+     * @param path Path, like "/getFrontPage.php"
+     * @param handler What to answer with
+     */
+    void Handle(String path, HttpHandler handler) {
+        server.createContext(path, exchange -> {
+            requests.incrementAndGet();
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            try {
+                handler.handle(exchange);
+            } finally {
+                exchange.close();
+            }
+        });
+    }
+
+    /**
+     * @return Base URL of the server, without a trailing slash
+     */
+    String Url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return How many distinct connections requests came in on
+     */
+    int Connections() {
+        return clientPorts.size();
+    }
+
+    /**
+     * Send a response with a known length, so the connection can be kept alive
+     */
+    static void Send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    static void Send(HttpExchange exchange, int status, String body) throws IOException {
+        Send(exchange, status, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return The query string of a request, decoded enough for numbers
+     */
+    static Map<String, String> Query(HttpExchange exchange) {
+        Map<String, String> query = new HashMap<>();
+        String raw = exchange.getRequestURI().getQuery();
+        if (raw != null) {
+            for (String pair : raw.split("&")) {
+                String[] parts = pair.split("=", 2);
+                query.put(parts[0], parts.length > 1 ? parts[1] : "");
+            }
+        }
+        return query;
+    }
+
+    /**
+     * @return Posts the way the real server sends them. Content isn't escaped, keep it plain.
+     */
+    static String Json(List<Post> posts) {
+        StringBuilder body = new StringBuilder("{\"response\":[");
+        for (int i = 0; i < posts.size(); i++) {
+            Post post = posts.get(i);
+            body.append(i > 0 ? "," : "").append("{\"rowid\":\"").append(post.Id)
+                    .append("\",\"hash\":\"").append(post.Hash)
+                    .append("\",\"reply\":\"").append(post.Reply)
+                    .append("\",\"content\":\"").append(post.Content).append("\"}");
+        }
+        return body.append("]}").toString();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        ((java.util.concurrent.ExecutorService) server.getExecutor()).shutdownNow();
+    }
+}